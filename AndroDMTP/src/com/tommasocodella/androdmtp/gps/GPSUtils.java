@@ -1,51 +1,43 @@
 package com.tommasocodella.androdmtp.gps;
 
-import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.client.base.DmtpClientContext;
 
 public class GPSUtils {
-	private static final String  LOG_NAME = "GPS";
 	
-	private static boolean stale = false;
-	private static GPSUtils DMTP_GPSUtils = null;
-	private static long lastSampleTime = 0L;
-	private static long lastValidTime = 0L;
+	private boolean stale = false;
+	private long lastSampleTime = 0L;
+	private long lastValidTime = 0L;
 	
 	public static GPSUtils init(){
-        if (DMTP_GPSUtils == null) {
-        	DMTP_GPSUtils = new GPSUtils();
-        }
-        return DMTP_GPSUtils;
+        return GPSUtils.getInstance();
     }
 	
 	public static GPSUtils getInstance(){
-        if (DMTP_GPSUtils == null) {
-            Log.error(LOG_NAME, "GPSReceiver uninitialized!");
-        }
-        return DMTP_GPSUtils;
+        return DmtpClientContext.getCurrent().getGPSUtils();
     }
 	
 	public static boolean isGpsStale() {
-		return GPSUtils.stale;
+		return GPSUtils.getInstance().stale;
 	}
 
 	public static void setGpsStale(boolean stale) {
-		GPSUtils.stale = stale;
+		GPSUtils.getInstance().stale = stale;
 	}
 
 	public static long getLastSampleTime() {
-		return lastSampleTime;
+		return GPSUtils.getInstance().lastSampleTime;
 	}
 
 	public static void setLastSampleTime(long lastSampleTime) {
-		GPSUtils.lastSampleTime = lastSampleTime;
+		GPSUtils.getInstance().lastSampleTime = lastSampleTime;
 	}
 
 	public static long getLastValidTime() {
-		return lastValidTime;
+		return GPSUtils.getInstance().lastValidTime;
 	}
 
 	public static void setLastValidTime(long lastValidTime) {
-		GPSUtils.lastValidTime = lastValidTime;
+		GPSUtils.getInstance().lastValidTime = lastValidTime;
 	}
 	
 }
@@ -30,6 +30,10 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.client.base;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import com.tommasocodella.androdmtp.opendmtp.client.custom.Constants;
 import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
 
@@ -47,16 +51,13 @@ public class Accounting
 
     // ----------------------------------------------------------------------------
     
-    private static Accounting duplexAccounting  = null;
-    
     /**
-    * Returns duplex Accounting.
+    * Returns duplex Accounting of the current client context.
     * @return duplexAccounting the duplex accounting assigned to instance.
     */
     public static Accounting getDuplexAccounting()
     {
-        if (duplexAccounting == null) { duplexAccounting = new Accounting(); }
-        return duplexAccounting;
+        return DmtpClientContext.getCurrent().getDuplexAccounting();
     }
 
     /**
@@ -68,18 +69,25 @@ public class Accounting
         return getDuplexAccounting().markConnection();
     }
 
+    /**
+    *  Marks the current minute of a persistent duplex session.  While persistent sessions
+    *  are used, the duplex connection mask counts session minutes rather than connections.
+    *  @return true if this minute was not already marked.
+    */
+    public static boolean markDuplexSession()
+    {
+        return getDuplexAccounting().markConnection();
+    }
+
     // ----------------------------------------------------------------------------
 
-    private static Accounting simplexAccounting = null;
-    
     /**
-    * Returns simplex Accounting.
+    * Returns simplex Accounting of the current client context.
     * @return simplexAccounting the simplex accounting.
     */
     public static Accounting getSimplexAccounting()
     {
-        if (simplexAccounting == null) { simplexAccounting = new Accounting(); }
-        return simplexAccounting;
+        return DmtpClientContext.getCurrent().getSimplexAccounting();
     }
     
     /**
@@ -91,18 +99,41 @@ public class Accounting
         return getSimplexAccounting().markConnection();
     }
 
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Returns the catch-up Accounting of the current client context.
+    * @return catchupAccounting the catch-up accounting.
+    */
+    public static Accounting getCatchupAccounting()
+    {
+        return DmtpClientContext.getCurrent().getCatchupAccounting();
+    }
+
+    /**
+    * Mark that a catch-up (duplex) connection has been made.  Catch-up connections are not
+    * counted in the duplex/total connection quota.
+    * @return boolean true if successful.
+    */
+    public static boolean markCatchupConnection()
+    {
+        return getCatchupAccounting().markConnection();
+    }
+
     // ----------------------------------------------------------------------------
     
     /**
-    * Return the time of the last connection time.
-    * @return lates time of connection of simplex or duplex.
+    * Return the time of the last connection time.  Connections of a concurrent simplex lane
+    * are not included (see 'hasSimplexLane').
+    * @return lates time of connection of simplex, duplex, or catch-up.
     */
     public static long getLastConnectionTimer()
     {
         long dupConnTime = getDuplexAccounting()._getLastConnectionTimer();
-        long simConnTime = getSimplexAccounting()._getLastConnectionTimer();
+        long simConnTime = Accounting.hasSimplexLane()? 0L : getSimplexAccounting()._getLastConnectionTimer();
+        long catConnTime = getCatchupAccounting()._getLastConnectionTimer();
         long latest = (dupConnTime > simConnTime)? dupConnTime : simConnTime;
-        return latest;
+        return (catConnTime > latest)? catConnTime : latest;
     }
 
     // ----------------------------------------------------------------------------
@@ -179,6 +210,95 @@ public class Accounting
         }
     }
 
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Return true if we are currently under the number of allowed catch-up connections.
+    * @return true if currently under allowed catch-up connections else false.
+    */
+    public static boolean isUnderCatchupQuota()
+    {
+        if (!Accounting.supportsDuplex()) {
+
+            /* catch-up sessions are duplex sessions */
+            return false;
+
+        } else
+        if (Accounting.hasQuota()) {
+
+            /* check catch-up connection limit */
+            int maxCatchupConn = (int)Props.getLong(Props.PROP_COMM_CATCHUP, 3, 2L);
+            if (maxCatchupConn <= 0) { return false; } // NO catch-up connections allowed
+
+            /* count actual connections and compare to limit */
+            int catchupConnCount = getCatchupAccounting().countConnections();
+            return (catchupConnCount < maxCatchupConn);
+
+        } else {
+
+            return true;
+
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Return true if low priority events are sent on a concurrent simplex lane (see
+    * PROP_COMM_SIMPLEX_LANE).  The simplex lane is then accounted separately from duplex
+    * connections.
+    * @return true if the simplex lane is enabled.
+    */
+    public static boolean hasSimplexLane()
+    {
+        return Props.getBoolean(Props.PROP_COMM_SIMPLEX_LANE, 0, false) &&
+            Accounting.supportsSimplex() && Accounting.supportsDuplex();
+    }
+
+    /**
+    * Return true if we are currently under the number of allowed simplex lane connections,
+    * which is the share of the total connections not allowed for duplex connections.
+    * @return true if currently under allowed simplex connections else false.
+    */
+    public static boolean isUnderSimplexQuota()
+    {
+        if (!Accounting.supportsSimplex()) {
+
+            /* never under simplex quota if simplex connections aren't supported */
+            return false;
+
+        } else
+        if (Accounting.hasQuota()) {
+
+            /* the simplex share of the total connection limit */
+            int maxTotConn    = (int)Props.getLong(Props.PROP_COMM_MAX_CONNECTIONS, 0, 1L); // Total
+            int maxDuplexConn = (int)Props.getLong(Props.PROP_COMM_MAX_CONNECTIONS, 1, 1L); // Duplex
+            int maxSimplexConn = maxTotConn - maxDuplexConn;
+
+            /* count actual connections and compare to limit */
+            int simplexConnCount = getSimplexAccounting().countConnections();
+            return (simplexConnCount < maxSimplexConn);
+
+        } else {
+
+            return true;
+
+        }
+    }
+
+    /**
+    * Return true if the minimum time between simplex lane connections has expired.
+    * @return returns true if the simplex interval has expired.
+    */
+    public static boolean minSimplexIntervalExpired()
+    {
+        long lastConnTimer = getSimplexAccounting()._getLastConnectionTimer();
+        long minXmitInterval = Props.getLong(Props.PROP_COMM_MIN_XMIT_RATE, 0, DateTime.HourSeconds(2));
+        if (minXmitInterval < Constants.MIN_XMIT_RATE) { minXmitInterval = Constants.MIN_XMIT_RATE; }
+        boolean timerExp = DateTime.isTimerExpired(lastConnTimer, minXmitInterval);
+        return timerExp;
+    }
+
     // ----------------------------------------------------------------------------
     
     /**
@@ -255,6 +375,134 @@ public class Accounting
         return timerExp;
     }
 
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Returns the byte budget of the current client context.
+    * @return The data budget
+    */
+    public static DataBudget getDataBudget()
+    {
+        return DmtpClientContext.getCurrent().getDataBudget();
+    }
+
+    /**
+    * Counts bytes read or written against the data budget.
+    * @param bytes The number of bytes
+    */
+    public static void consumeDataBytes(long bytes)
+    {
+        getDataBudget().consume(bytes);
+    }
+
+    /**
+    * Returns the current data budget level.
+    * @return DataBudget.LEVEL_OK, LEVEL_LOW, or LEVEL_EXHAUSTED
+    */
+    public static int getDataBudgetLevel()
+    {
+        long lowPercent = Props.getLong(Props.PROP_COMM_BUDGET_LOW, 0, 25L);
+        return getDataBudget().getLevel(lowPercent);
+    }
+
+    /**
+    * Return true if the data budget allows a connection for events of the specified priority.
+    * High priority events are always allowed.  While the budget is low, the minimum interval
+    * (low priority) and maximum interval ('checkup') are lengthened by the PROP_COMM_BUDGET_LOW
+    * multiplier, and once it is exhausted only high priority events are sent.
+    * @param priority The highest priority of the queued events (PRIORITY_NONE if none)
+    * @return true if a connection is allowed.
+    */
+    public static boolean isUnderDataBudget(int priority)
+    {
+        if (priority >= Packet.PRIORITY_HIGH) {
+            return true;
+        }
+        int level = Accounting.getDataBudgetLevel();
+        if (level == DataBudget.LEVEL_EXHAUSTED) {
+            return false;
+        } else
+        if ((level == DataBudget.LEVEL_LOW) && (priority <= Packet.PRIORITY_LOW)) {
+            long mult = Props.getLong(Props.PROP_COMM_BUDGET_LOW, 1, 4L);
+            if (mult < 1L) { mult = 1L; }
+            if (priority == Packet.PRIORITY_NONE) {
+                long lastConnTimer = getDuplexAccounting()._getLastConnectionTimer();
+                long maxXmitInterval = Props.getLong(Props.PROP_COMM_MAX_XMIT_RATE, 0, DateTime.HourSeconds(24));
+                return DateTime.isTimerExpired(lastConnTimer, maxXmitInterval * mult);
+            } else {
+                long lastConnTimer = Accounting.getLastConnectionTimer();
+                long minXmitInterval = Props.getLong(Props.PROP_COMM_MIN_XMIT_RATE, 0, DateTime.HourSeconds(2));
+                if (minXmitInterval < Constants.MIN_XMIT_RATE) { minXmitInterval = Constants.MIN_XMIT_RATE; }
+                return DateTime.isTimerExpired(lastConnTimer, minXmitInterval * mult);
+            }
+        } else {
+            return true;
+        }
+    }
+
+    /**
+    * Returns a StateSnapshot client which saves/restores the data budget buckets, so that
+    * the budget survives a restart.
+    * @return The StateSnapshot client
+    */
+    public static StateSnapshot.Client getDataBudgetStateClient()
+    {
+        return new StateSnapshot.Client() {
+            public int getStateId() {
+                return StateSnapshot.STATE_DATA_BUDGET;
+            }
+            public void writeState(DataOutput out) throws IOException {
+                getDataBudget().writeState(out);
+            }
+            public void readState(DataInput in) throws IOException {
+                getDataBudget().readState(in);
+            }
+        };
+    }
+
+    /**
+    * Returns a StateSnapshot client which saves/restores the catch-up connection mask.
+    * @return The StateSnapshot client
+    */
+    public static StateSnapshot.Client getCatchupStateClient()
+    {
+        return new StateSnapshot.Client() {
+            public int getStateId() {
+                return StateSnapshot.STATE_CATCHUP;
+            }
+            public void writeState(DataOutput out) throws IOException {
+                getCatchupAccounting()._writeState(out);
+            }
+            public void readState(DataInput in) throws IOException {
+                getCatchupAccounting()._readState(in);
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Returns a StateSnapshot client which saves/restores the duplex and simplex connection
+    * masks, so that connection quotas survive a restart.
+    * @return The StateSnapshot client
+    */
+    public static StateSnapshot.Client getStateClient()
+    {
+        return new StateSnapshot.Client() {
+            public int getStateId() {
+                return StateSnapshot.STATE_ACCOUNTING;
+            }
+            public void writeState(DataOutput out) throws IOException {
+                getDuplexAccounting()._writeState(out);
+                getSimplexAccounting()._writeState(out);
+            }
+            public void readState(DataInput in) throws IOException {
+                getDuplexAccounting()._readState(in);
+                getSimplexAccounting()._readState(in);
+            }
+        };
+    }
+
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
@@ -423,6 +671,41 @@ public class Accounting
 
     // ----------------------------------------------------------------------------
 
+    /**
+    * Writes the connection mask state.  'shiftTime' is already an absolute time, the last
+    * connection timer is saved as an absolute time.
+    */
+    private void _writeState(DataOutput out)
+        throws IOException
+    {
+        out.writeLong(this.shiftTime);
+        out.writeLong(StateSnapshot.timerToTime(this.lastConnTimer));
+        out.writeByte(this.mask.length);
+        for (int i = 0; i < this.mask.length; i++) {
+            out.writeLong(this.mask[i]);
+        }
+    }
+
+    /**
+    * Reads the connection mask state.  The mask is shifted by the time elapsed since the
+    * state was saved on the next 'shift()'.
+    */
+    private void _readState(DataInput in)
+        throws IOException
+    {
+        this.shiftTime     = in.readLong();
+        this.lastConnTimer = StateSnapshot.timeToTimer(in.readLong());
+        int len = in.readUnsignedByte();
+        for (int i = 0; i < len; i++) {
+            long m = in.readLong();
+            if (i < this.mask.length) {
+                this.mask[i] = m;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+
     /**
     * Clears Mask.
     */
@@ -0,0 +1,194 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class compresses the binary encoded event packets of a duplex block
+//  into a single DEFLATE stream, primed with a preset dictionary of typical
+//  DMTP packets.  The stream is sent in PKT_CLIENT_DEFLATE_DATA packets (up to
+//  the maximum payload length each), and is finished at the end of the block,
+//  so that each block can be decompressed on its own (blocks may be resent).
+//  The nested Decoder is the reference decoder for servers.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.tommasocodella.androdmtp.opendmtp.util.StringTools;
+
+/**
+* DEFLATE compression of duplex event blocks.
+*/
+public class BlockCompressor
+{
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * The preset dictionary shared by the client and server.  The most frequent strings
+    * (event packet headers and status codes) are at the end of the dictionary, where they
+    * are cheapest to reference.  This must not be changed without changing the dictionary
+    * of the server.
+    */
+    public  static final byte   PRESET_DICTIONARY[] = StringTools.parseHex(
+        "E00002" + "0000" +                                 // EOB done
+        "E00102" + "0000" +                                 // EOB more
+        "E03119" + "F020" + "6A000000" + "0000000000000000" + "0000" + "0000" + "000000" + "000000" + "00" +
+        "E0CA"   + "F113" + "6A000000" + "000000000000" + "00" + "00" + "0000" + "000000" + "00" +
+        "E0CC"   + "F112" + "6A000000" + "000000000000" + "00" + "00" + "0000" + "000000" + "00" +
+        "E03014" + "F020" + "6A000000" + "000000000000" + "00" + "00" + "0000" + "000000" + "00" +
+        "E03014" + "F112" + "6A000000" + "000000000000" + "00" + "00" + "0000" + "000000" + "00",
+        new byte[0]);
+
+    // ------------------------------------------------------------------------
+
+    private Deflater                deflater    = null;
+    private ByteArrayOutputStream   output      = new ByteArrayOutputStream();
+    private byte                    buffer[]    = new byte[512];
+    private long                    inputBytes  = 0L;
+
+    /**
+    * Starts the compressed stream of a block
+    * @param level The DEFLATE compression level (1..9)
+    */
+    public BlockCompressor(int level)
+    {
+        this.deflater = new Deflater(level, false);
+        this.deflater.setDictionary(PRESET_DICTIONARY);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Adds the specified (binary encoded) packet to the compressed stream
+    * @param pkt The encoded packet
+    */
+    public void write(byte pkt[])
+    {
+        this.deflater.setInput(pkt);
+        this.inputBytes += pkt.length;
+        while (!this.deflater.needsInput()) {
+            this._drain();
+        }
+    }
+
+    /**
+    * Ends the compressed stream.  The remaining compressed data is available from
+    * 'getPayload', and no further packets may be written.
+    */
+    public void finish()
+    {
+        this.deflater.finish();
+        while (!this.deflater.finished()) {
+            this._drain();
+        }
+        this.deflater.end();
+    }
+
+    /**
+    * Returns the next PKT_CLIENT_DEFLATE_DATA payload
+    * @param partial True to return a payload shorter than the maximum payload length (ie.
+    *        after the stream was finished)
+    * @return The payload bytes, or null if no (complete) payload is available
+    */
+    public byte[] getPayload(boolean partial)
+    {
+        int avail = this.output.size();
+        if ((avail == 0) || (!partial && (avail < Packet.MAX_PAYLOAD_LENGTH))) {
+            return null;
+        }
+        byte b[] = this.output.toByteArray();
+        int len = Math.min(b.length, Packet.MAX_PAYLOAD_LENGTH);
+        byte p[] = new byte[len];
+        System.arraycopy(b, 0, p, 0, len);
+        this.output.reset();
+        this.output.write(b, len, b.length - len);
+        return p;
+    }
+
+    /**
+    * Returns the number of uncompressed bytes written
+    * @return The uncompressed bytes
+    */
+    public long getInputBytes()
+    {
+        return this.inputBytes;
+    }
+
+    /**
+    * Moves the compressed output of the deflater to the output buffer
+    */
+    private void _drain()
+    {
+        int len = this.deflater.deflate(this.buffer);
+        if (len > 0) {
+            this.output.write(this.buffer, 0, len);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    * Reference decoder of the compressed blocks.  The payloads of the PKT_CLIENT_DEFLATE_DATA
+    * packets received from a client are passed to 'inflate' in the order received, and the
+    * returned bytes are parsed as binary encoded packets.  A new stream starts with the next
+    * payload after the end of a stream.
+    */
+    public static class Decoder
+    {
+        private Inflater inflater = null;
+        private byte     buffer[] = new byte[1024];
+        /**
+        * Returns the decompressed bytes of the specified payload
+        * @param payload The payload of a PKT_CLIENT_DEFLATE_DATA packet
+        * @return The decompressed bytes
+        * @throws DataFormatException if the payload is not valid compressed data
+        */
+        public byte[] inflate(byte payload[])
+            throws DataFormatException
+        {
+            if (this.inflater == null) {
+                this.inflater = new Inflater(false);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.inflater.setInput(payload);
+            while (!this.inflater.finished()) {
+                int len = this.inflater.inflate(this.buffer);
+                if (len > 0) {
+                    out.write(this.buffer, 0, len);
+                } else
+                if (this.inflater.needsDictionary()) {
+                    this.inflater.setDictionary(PRESET_DICTIONARY);
+                } else
+                if (this.inflater.needsInput()) {
+                    break;
+                }
+            }
+            if (this.inflater.finished()) {
+                // end of block
+                this.inflater.end();
+                this.inflater = null;
+            }
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class maintains the byte budget of the client as three token buckets
+//  (hour, day and month), sized by PROP_COMM_DATA_BUDGET.  Each bucket refills
+//  continuously at its size per period, and every byte read or written is
+//  taken from all buckets.  A bucket may go into debt (ie. high priority
+//  events are sent regardless), which is repaid by the refill.  The bytes
+//  taken from each bucket (size minus tokens) are available in
+//  PROP_STATE_DATA_BUDGET.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
+
+/**
+* Hourly/daily/monthly token bucket byte budget.
+*/
+public class DataBudget
+{
+
+    // ------------------------------------------------------------------------
+
+    /* budget levels */
+    public  static final int    LEVEL_OK            = 0;    // no budget, or above the low threshold
+    public  static final int    LEVEL_LOW           = 1;    // below the low threshold
+    public  static final int    LEVEL_EXHAUSTED     = 2;    // no bytes left
+
+    /* buckets */
+    public  static final int    BUCKET_HOUR         = 0;
+    public  static final int    BUCKET_DAY          = 1;
+    public  static final int    BUCKET_MONTH        = 2;
+    public  static final int    BUCKET_COUNT        = 3;
+
+    private static final long   PERIOD_SEC[]        = {
+        DateTime.HourSeconds(1),
+        DateTime.DaySeconds(1),
+        DateTime.DaySeconds(30),
+    };
+
+    // ------------------------------------------------------------------------
+
+    private long    size[]      = new long[BUCKET_COUNT];     // bytes per period (0 if unlimited)
+    private double  tokens[]    = new double[BUCKET_COUNT];   // bytes left (may be negative)
+    private long    refillTimer = 0L;
+
+    /**
+    * Creates a byte budget with full buckets
+    */
+    public DataBudget()
+    {
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Takes the specified number of bytes from all buckets
+    * @param bytes The number of bytes read or written
+    */
+    public synchronized void consume(long bytes)
+    {
+        this.refill();
+        if (bytes > 0L) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (this.size[i] > 0L) {
+                    this.tokens[i] -= (double)bytes;
+                }
+            }
+        }
+    }
+
+    /**
+    * Returns the budget level of the emptiest bucket
+    * @param lowPercent The percentage of a bucket below which the budget is LEVEL_LOW
+    * @return The budget level (LEVEL_OK, LEVEL_LOW, LEVEL_EXHAUSTED)
+    */
+    public synchronized int getLevel(long lowPercent)
+    {
+        this.refill();
+        int level = LEVEL_OK;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (this.size[i] <= 0L) {
+                continue; // unlimited
+            } else
+            if (this.tokens[i] < 1.0) {
+                return LEVEL_EXHAUSTED;
+            } else
+            if ((this.tokens[i] * 100.0) < ((double)this.size[i] * (double)lowPercent)) {
+                level = LEVEL_LOW;
+            }
+        }
+        return level;
+    }
+
+    /**
+    * Returns the number of bytes taken from the specified bucket and not yet refilled
+    * @param bucket The bucket (BUCKET_HOUR, BUCKET_DAY, BUCKET_MONTH)
+    * @return The bytes consumed, or 0 if the bucket is unlimited
+    */
+    public synchronized long getConsumed(int bucket)
+    {
+        this.refill();
+        if (this.size[bucket] <= 0L) {
+            return 0L;
+        }
+        double used = (double)this.size[bucket] - this.tokens[bucket];
+        return (used > 0.0)? (long)used : 0L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Adds the tokens accrued since the last refill, and applies changes to the bucket sizes
+    */
+    private void refill()
+    {
+        long nowTimer = DateTime.getTimerSec();
+        long deltaSec = (this.refillTimer != 0L)? (nowTimer - this.refillTimer) : 0L;
+        if (deltaSec < 0L) { deltaSec = 0L; }
+        this.refillTimer = nowTimer;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long sz = Props.getLong(Props.PROP_COMM_DATA_BUDGET, i, 0L);
+            if (sz != this.size[i]) {
+                // a new bucket starts full, a smaller bucket is trimmed
+                if ((this.size[i] <= 0L) || (this.tokens[i] > (double)sz)) {
+                    this.tokens[i] = (double)sz;
+                }
+                this.size[i] = sz;
+            }
+            if ((sz > 0L) && (deltaSec > 0L)) {
+                this.tokens[i] += ((double)sz * (double)deltaSec) / (double)PERIOD_SEC[i];
+                if (this.tokens[i] > (double)sz) { this.tokens[i] = (double)sz; }
+            }
+            Props.setLong(Props.PROP_STATE_DATA_BUDGET, i, (sz > 0L)? Math.max((long)(sz - this.tokens[i]), 0L) : 0L);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Writes the bucket state.  The refill timer is saved as an absolute time, so that the
+    * time spent stopped is refilled on restore.
+    * @param out The section output
+    * @throws IOException if an error occurs
+    */
+    protected synchronized void writeState(DataOutput out)
+        throws IOException
+    {
+        this.refill();
+        out.writeLong(StateSnapshot.timerToTime(this.refillTimer));
+        out.writeByte(BUCKET_COUNT);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            out.writeLong(this.size[i]);
+            out.writeDouble(this.tokens[i]);
+        }
+    }
+
+    /**
+    * Reads the bucket state
+    * @param in The section input
+    * @throws IOException if an error occurs
+    */
+    protected synchronized void readState(DataInput in)
+        throws IOException
+    {
+        this.refillTimer = StateSnapshot.timeToTimer(in.readLong());
+        int len = in.readUnsignedByte();
+        for (int i = 0; i < len; i++) {
+            long   sz  = in.readLong();
+            double tok = in.readDouble();
+            if (i < BUCKET_COUNT) {
+                this.size[i]   = sz;
+                this.tokens[i] = tok;
+            }
+        }
+        this.refill();
+    }
+
+}
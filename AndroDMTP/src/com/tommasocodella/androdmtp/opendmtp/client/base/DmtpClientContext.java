@@ -0,0 +1,262 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class holds the state of a single DMTP client (device): properties,
+//  connection accounting, the event sequence allocator, the Protocol handler
+//  (with its queues and transport), and the GPS state and module chain.
+//  The static client API (Props, Accounting, Protocol.getInstance, GPSUtils)
+//  operates on the context bound to the calling thread, or on the default
+//  context, so that many clients may run in a single JVM.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import com.tommasocodella.androdmtp.gps.GPSUtils;
+import com.tommasocodella.androdmtp.opendmtp.codes.DMTPProps;
+
+/**
+* State of a single DMTP client.
+*/
+public class DmtpClientContext
+{
+
+    // ------------------------------------------------------------------------
+
+    private static DmtpClientContext    defaultContext  = null;
+    private static ThreadLocal          boundContext    = new ThreadLocal();
+
+    /**
+    * Returns the default client context.  The default context uses the properties
+    * initialized by 'Props.initProps'.
+    * @return The default context
+    */
+    public static synchronized DmtpClientContext getDefault()
+    {
+        if (defaultContext == null) { defaultContext = new DmtpClientContext(); }
+        return defaultContext;
+    }
+
+    /**
+    * Returns the client context bound to the calling thread
+    * @return The bound context, or null if the thread uses the default context
+    */
+    public static DmtpClientContext getBound()
+    {
+        return (DmtpClientContext)boundContext.get();
+    }
+
+    /**
+    * Returns the client context of the calling thread
+    * @return The bound context, or the default context
+    */
+    public static DmtpClientContext getCurrent()
+    {
+        DmtpClientContext ctx = DmtpClientContext.getBound();
+        return (ctx != null)? ctx : DmtpClientContext.getDefault();
+    }
+
+    /**
+    * Restores the client context which was bound to the calling thread before 'enter'
+    * @param prior The context returned by 'enter'
+    */
+    public static void exit(DmtpClientContext prior)
+    {
+        boundContext.set(prior);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private String              name            = null;
+    private Props.Store         propStore       = null;     // null for the default context
+    private Accounting          duplexAcct      = null;
+    private Accounting          simplexAcct     = null;
+    private Accounting          catchupAcct     = null;
+    private DataBudget          dataBudget      = null;
+    private SequenceAllocator   eventSequence   = null;
+    private Protocol            protocol        = null;
+    private GPSUtils            gpsUtils        = null;
+    private GPSModules          gpsModules      = null;
+
+    /**
+    * Constructor for the default context
+    */
+    private DmtpClientContext()
+    {
+        this.name = null;
+    }
+
+    /**
+    * Creates a client context with its own properties, initialized to the default values
+    * @param name The context name (ie. the device id), used to name the context threads
+    * @param saveProps The callback used to save the properties (may be null)
+    */
+    public DmtpClientContext(String name, Props.SavePropsCallBack saveProps)
+    {
+        this.name      = name;
+        this.propStore = Props.createStore(saveProps);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Binds this context to the calling thread.  The static client API will operate on this
+    * context until 'exit' is called.
+    * <pre>
+    *   DmtpClientContext prior = ctx.enter();
+    *   try {
+    *       ...
+    *   } finally {
+    *       DmtpClientContext.exit(prior);
+    *   }
+    * </pre>
+    * @return The context previously bound to the calling thread (may be null)
+    */
+    public DmtpClientContext enter()
+    {
+        DmtpClientContext prior = DmtpClientContext.getBound();
+        boundContext.set((this == defaultContext)? null : this);
+        return prior;
+    }
+
+    /**
+    * Returns true if this is the default context
+    * @return True if this is the default context
+    */
+    public boolean isDefault()
+    {
+        return (this.propStore == null);
+    }
+
+    /**
+    * Returns the name of this context
+    * @return The context name, or null for the default context
+    */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the properties of this context
+    * @return The property set
+    */
+    public Props.Store getPropStore()
+    {
+        return (this.propStore != null)? this.propStore : Props.getDefaultStore();
+    }
+
+    /**
+    * Returns the duplex connection accounting of this context
+    * @return The duplex accounting
+    */
+    public synchronized Accounting getDuplexAccounting()
+    {
+        if (this.duplexAcct == null) { this.duplexAcct = new Accounting(); }
+        return this.duplexAcct;
+    }
+
+    /**
+    * Returns the simplex connection accounting of this context
+    * @return The simplex accounting
+    */
+    public synchronized Accounting getSimplexAccounting()
+    {
+        if (this.simplexAcct == null) { this.simplexAcct = new Accounting(); }
+        return this.simplexAcct;
+    }
+
+    /**
+    * Returns the catch-up connection accounting of this context
+    * @return The catch-up accounting
+    */
+    public synchronized Accounting getCatchupAccounting()
+    {
+        if (this.catchupAcct == null) { this.catchupAcct = new Accounting(); }
+        return this.catchupAcct;
+    }
+
+    /**
+    * Returns the data budget of this context
+    * @return The data budget
+    */
+    public synchronized DataBudget getDataBudget()
+    {
+        if (this.dataBudget == null) { this.dataBudget = new DataBudget(); }
+        return this.dataBudget;
+    }
+
+    /**
+    * Returns the event sequence allocator of this context
+    * @return The sequence allocator
+    */
+    public synchronized SequenceAllocator getEventSequence()
+    {
+        if (this.eventSequence == null) {
+            this.eventSequence = new SequenceAllocator(DMTPProps.PROP_STATE_EVENT_SEQUENCE, SequenceAllocator.DEFAULT_BLOCK_SIZE);
+        }
+        return this.eventSequence;
+    }
+
+    /**
+    * Returns the Protocol handler of this context
+    * @return The protocol, or null if not yet created (see 'Protocol.createInstance')
+    */
+    public Protocol getProtocol()
+    {
+        return this.protocol;
+    }
+
+    /**
+    * Sets the Protocol handler of this context
+    * @param protocol The protocol
+    */
+    protected void setProtocol(Protocol protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    /**
+    * Returns the GPS state of this context
+    * @return The GPS state
+    */
+    public synchronized GPSUtils getGPSUtils()
+    {
+        if (this.gpsUtils == null) { this.gpsUtils = new GPSUtils(); }
+        return this.gpsUtils;
+    }
+
+    /**
+    * Returns the GPS module chain of this context
+    * @return The GPS modules
+    */
+    public synchronized GPSModules getGPSModules()
+    {
+        if (this.gpsModules == null) { this.gpsModules = new GPSModules(); }
+        return this.gpsModules;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public String toString()
+    {
+        return (this.name != null)? this.name : "default";
+    }
+
+}
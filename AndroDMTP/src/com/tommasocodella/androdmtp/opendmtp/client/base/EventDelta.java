@@ -0,0 +1,190 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class converts standard fixed format event records (the payload of a
+//  PKT_CLIENT_FIXED_FMT_STD packet) to and from delta records.  A delta event
+//  packet (PKT_CLIENT_DELTA_FMT_STD) starts with an absolute (keyframe) event
+//  record, and each further event is a delta record relative to the previous
+//  event in the packet:
+//      0:2 - status code
+//      2:1 - [UInt8] seconds since the previous event
+//      3:1 - [Int8]  latitude change (in 'GeoPoint.encodeGeoPoint' 6-byte units)
+//      4:1 - [Int8]  longitude change (in 'GeoPoint.encodeGeoPoint' 6-byte units)
+//      5:1 - [Int8]  speed change (kph, modulo 256)
+//      6:1 - [Int8]  heading change (1.412 deg units, modulo 256)
+//      7:1 - [Int8]  altitude change (meters)
+//      8:1 - [UInt8] odometer change (km)
+//      9:1 - sequence
+//  An event whose change cannot be represented starts a new keyframe.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+/**
+* Delta encoding of standard fixed format event records.
+*/
+public class EventDelta
+{
+
+    // ------------------------------------------------------------------------
+
+    /* standard fixed format record (see 'Packet.ClientCustomEvent_30') */
+    public  static final int    RECORD_LENGTH       = 20;
+    private static final int    REC_STATUS          = 0;    // %2u
+    private static final int    REC_TIMESTAMP       = 2;    // %4u
+    private static final int    REC_LATITUDE        = 6;    // %3u (first half of %6g)
+    private static final int    REC_LONGITUDE       = 9;    // %3u (second half of %6g)
+    private static final int    REC_SPEED           = 12;   // %1u
+    private static final int    REC_HEADING         = 13;   // %1u
+    private static final int    REC_ALTITUDE        = 14;   // %2i
+    private static final int    REC_ODOMETER        = 16;   // %3u
+    private static final int    REC_SEQUENCE        = 19;   // %1u
+
+    /* delta record */
+    public  static final int    DELTA_LENGTH        = 10;
+    private static final int    DLT_STATUS          = 0;
+    private static final int    DLT_TIME            = 2;
+    private static final int    DLT_LATITUDE        = 3;
+    private static final int    DLT_LONGITUDE       = 4;
+    private static final int    DLT_SPEED           = 5;
+    private static final int    DLT_HEADING         = 6;
+    private static final int    DLT_ALTITUDE        = 7;
+    private static final int    DLT_ODOMETER        = 8;
+    private static final int    DLT_SEQUENCE        = 9;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Private constructor, no instances are allowed.
+    */
+    private EventDelta()
+    {
+        // no instance allowed
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the delta record of an event relative to the previous event
+    * @param prev The standard fixed format record of the previous event
+    * @param rec The standard fixed format record of the event
+    * @return The delta record, or null if the change cannot be represented (ie. the event
+    *         must be sent as a keyframe)
+    */
+    public static byte[] encode(byte prev[], byte rec[])
+    {
+        if ((prev == null) || (prev.length != RECORD_LENGTH) || (rec == null) || (rec.length != RECORD_LENGTH)) {
+            return null;
+        }
+
+        /* changes which must fit */
+        long dTime = _getULong(rec, REC_TIMESTAMP, 4) - _getULong(prev, REC_TIMESTAMP, 4);
+        long dLat  = _getULong(rec, REC_LATITUDE , 3) - _getULong(prev, REC_LATITUDE , 3);
+        long dLon  = _getULong(rec, REC_LONGITUDE, 3) - _getULong(prev, REC_LONGITUDE, 3);
+        long dAlt  = _getLong(rec, REC_ALTITUDE, 2)   - _getLong(prev, REC_ALTITUDE, 2);
+        long dOdom = _getULong(rec, REC_ODOMETER , 3) - _getULong(prev, REC_ODOMETER , 3);
+        if ((dTime < 0L) || (dTime > 255L) || !_isByte(dLat) || !_isByte(dLon) || !_isByte(dAlt) ||
+            (dOdom < 0L) || (dOdom > 255L)) {
+            return null;
+        }
+
+        /* delta record */
+        byte d[] = new byte[DELTA_LENGTH];
+        d[DLT_STATUS    ] = rec[REC_STATUS    ];
+        d[DLT_STATUS + 1] = rec[REC_STATUS + 1];
+        d[DLT_TIME      ] = (byte)dTime;
+        d[DLT_LATITUDE  ] = (byte)dLat;
+        d[DLT_LONGITUDE ] = (byte)dLon;
+        d[DLT_SPEED     ] = (byte)(rec[REC_SPEED  ] - prev[REC_SPEED  ]); // modulo 256
+        d[DLT_HEADING   ] = (byte)(rec[REC_HEADING] - prev[REC_HEADING]); // modulo 256
+        d[DLT_ALTITUDE  ] = (byte)dAlt;
+        d[DLT_ODOMETER  ] = (byte)dOdom;
+        d[DLT_SEQUENCE  ] = rec[REC_SEQUENCE  ];
+        return d;
+
+    }
+
+    /**
+    * Returns the standard fixed format record of an event from its delta record
+    * @param prev The standard fixed format record of the previous event
+    * @param d The delta record of the event
+    * @return The standard fixed format record, or null if the records are invalid
+    */
+    public static byte[] decode(byte prev[], byte d[])
+    {
+        if ((prev == null) || (prev.length != RECORD_LENGTH) || (d == null) || (d.length != DELTA_LENGTH)) {
+            return null;
+        }
+        byte rec[] = new byte[RECORD_LENGTH];
+        rec[REC_STATUS    ] = d[DLT_STATUS    ];
+        rec[REC_STATUS + 1] = d[DLT_STATUS + 1];
+        _setLong(rec, REC_TIMESTAMP, 4, _getULong(prev, REC_TIMESTAMP, 4) + ((long)d[DLT_TIME] & 0xFF));
+        _setLong(rec, REC_LATITUDE , 3, _getULong(prev, REC_LATITUDE , 3) + (long)d[DLT_LATITUDE ]);
+        _setLong(rec, REC_LONGITUDE, 3, _getULong(prev, REC_LONGITUDE, 3) + (long)d[DLT_LONGITUDE]);
+        rec[REC_SPEED     ] = (byte)(prev[REC_SPEED  ] + d[DLT_SPEED  ]);
+        rec[REC_HEADING   ] = (byte)(prev[REC_HEADING] + d[DLT_HEADING]);
+        _setLong(rec, REC_ALTITUDE , 2, _getLong(prev, REC_ALTITUDE, 2)   + (long)d[DLT_ALTITUDE ]);
+        _setLong(rec, REC_ODOMETER , 3, _getULong(prev, REC_ODOMETER , 3) + ((long)d[DLT_ODOMETER] & 0xFF));
+        rec[REC_SEQUENCE  ] = d[DLT_SEQUENCE  ];
+        return rec;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns true if the specified value fits in a signed byte
+    */
+    private static boolean _isByte(long v)
+    {
+        return (v >= -128L) && (v <= 127L);
+    }
+
+    /**
+    * Returns the big-endian unsigned value at the specified offset
+    */
+    private static long _getULong(byte b[], int ofs, int len)
+    {
+        long v = 0L;
+        for (int i = 0; i < len; i++) {
+            v = (v << 8) | ((long)b[ofs + i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+    * Returns the big-endian signed value at the specified offset
+    */
+    private static long _getLong(byte b[], int ofs, int len)
+    {
+        long v = _getULong(b, ofs, len);
+        long sign = 1L << ((len * 8) - 1);
+        return ((v & sign) != 0L)? (v - (sign << 1)) : v;
+    }
+
+    /**
+    * Sets the big-endian value at the specified offset (the high-order bits are discarded)
+    */
+    private static void _setLong(byte b[], int ofs, int len, long v)
+    {
+        for (int i = len - 1; i >= 0; i--) {
+            b[ofs + i] = (byte)(v & 0xFF);
+            v >>= 8;
+        }
+    }
+
+}
@@ -0,0 +1,603 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class provides a crash-safe append-only log of event packets which
+//  backs the event PacketQueue.  Records are written into fixed size slots of
+//  memory-mapped segment files, and the position of the oldest live record is
+//  kept in a small memory-mapped 'head' file.  Nothing is explicitly flushed
+//  on a per-event basis, the mapped pages are written back by the OS and are
+//  forced to disk only when the log is synced/closed.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* A durable, memory-mapped, append-only log of Packets.
+*/
+public class EventLog
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "EVLOG";
+
+    /* files */
+    private static final String SEGMENT_PREFIX      = "evlog_";
+    private static final String SEGMENT_SUFFIX      = ".seg";
+    private static final String HEAD_FILE           = "evlog.head";
+
+    /* record slot layout */
+    //  0..1    magic
+    //  2       flags (not included in the crc)
+    //  3       packet header
+    //  4       packet type
+    //  5       priority
+    //  6       payload length
+    //  7       delivered destination mask (not included in the crc)
+    //  8..15   log position
+    // 16..23   event sequence
+    // 24..27   crc32 [3..23] + payload
+    // 28..     payload
+    private static final int    RECORD_MAGIC        = 0xD7E1;
+    private static final int    OFS_FLAGS           = 2;
+    private static final int    OFS_DELIVERED       = 7;
+    private static final int    OFS_POSITION        = 8;
+    private static final int    OFS_CRC             = 24;
+    private static final int    RECORD_HEADER_SIZE  = 28;
+    private static final int    FLAG_RELEASED       = 0x01;
+
+    public  static final int    SLOT_SIZE           = 288; // RECORD_HEADER_SIZE + Payload.MAX_PAYLOAD_LENGTH (rounded)
+    public  static final int    SLOTS_PER_SEGMENT   = 1024;
+    public  static final int    SEGMENT_SIZE        = SLOT_SIZE * SLOTS_PER_SEGMENT;
+    private static final int    MAX_SPARE_SEGMENTS  = 2;
+
+    /* head file layout (two alternating copies) */
+    //  0..3    generation
+    //  4..11   head position
+    // 12..15   check
+    private static final int    HEAD_COPY_SIZE      = 16;
+    private static final int    HEAD_FILE_SIZE      = HEAD_COPY_SIZE * 2;
+    private static final int    HEAD_MAGIC          = 0x444D5450; // "DMTP"
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * A single mapped segment file
+    */
+    private static class Segment
+    {
+        private long                id      = 0L;
+        private File                file    = null;
+        private MappedByteBuffer    buffer  = null;
+        public Segment(long id, File file, MappedByteBuffer buffer)
+        {
+            this.id     = id;
+            this.file   = file;
+            this.buffer = buffer;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private File                logDir          = null;
+    private MappedByteBuffer    headBuffer      = null;
+    private int                 headGeneration  = 0;
+    private long                headPosition    = 0L;
+    private long                tailPosition    = 0L;
+    private Vector              segments        = new Vector(); // Segment (first contains head)
+    private Vector              spareFiles      = new Vector(); // File (recyclable segments)
+    private CRC32               crc             = new CRC32();
+    private byte                slotBuffer[]    = new byte[SLOT_SIZE];
+
+    /**
+    * Constructor
+    * @param dir The directory in which the log files are kept
+    */
+    public EventLog(File dir)
+    {
+        this.logDir = dir;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Opens the log and recovers all live (unreleased) records.
+    * @param packets A Vector into which the recovered Packets are placed (in log order)
+    * @return True if the log was opened successfully
+    */
+    public synchronized boolean open(Vector packets)
+    {
+        try {
+
+            /* directory */
+            if (!this.logDir.isDirectory() && !this.logDir.mkdirs()) {
+                Log.error(LOG_NAME, "Unable to create log directory: " + this.logDir);
+                return false;
+            }
+
+            /* head pointer */
+            this.headBuffer = this._map(new File(this.logDir, HEAD_FILE), HEAD_FILE_SIZE);
+            this._readHead();
+            long headSegId = this.headPosition / SLOTS_PER_SEGMENT;
+
+            /* existing segment files */
+            String names[] = this.logDir.list();
+            long maxSegId = -1L;
+            for (int i = 0; (names != null) && (i < names.length); i++) {
+                long id = EventLog._parseSegmentId(names[i]);
+                if (id > maxSegId) {
+                    maxSegId = id;
+                }
+            }
+
+            /* the live segments are the contiguous run ending with the last segment */
+            // If the head file was lost (or reverted to its older copy), the head segment
+            // may already have been recycled.  Records are then recovered from the start of
+            // this run (released records are skipped, others may be delivered again).
+            long runSegId = maxSegId;
+            while ((runSegId > 0L) && this._segmentFile(runSegId - 1L).isFile()) {
+                runSegId--;
+            }
+            if ((maxSegId >= 0L) && (headSegId < runSegId)) {
+                Log.warn(LOG_NAME, "Head segment missing, recovering from segment " + runSegId);
+                headSegId = runSegId;
+                this.headPosition = runSegId * SLOTS_PER_SEGMENT;
+            }
+            for (int i = 0; (names != null) && (i < names.length); i++) {
+                long id = EventLog._parseSegmentId(names[i]);
+                if ((id >= 0L) && (id < headSegId)) {
+                    // entirely before the head, recycle
+                    this._recycle(new File(this.logDir, names[i]));
+                }
+            }
+
+            /* scan forward from the head until the first invalid record */
+            long pos = this.headPosition;
+            boolean leading = true;
+            for (long segId = headSegId; segId <= maxSegId; segId++) {
+                File segFile = this._segmentFile(segId);
+                if (!segFile.isFile()) { break; }
+                Segment seg = new Segment(segId, segFile, this._map(segFile, SEGMENT_SIZE));
+                this.segments.addElement(seg);
+                int slot = (int)(pos % SLOTS_PER_SEGMENT);
+                for (; slot < SLOTS_PER_SEGMENT; slot++, pos++) {
+                    Packet pkt = this._readRecord(seg.buffer, slot, pos);
+                    if (pkt == null) {
+                        break; // invalid/unwritten record, this is the tail
+                    } else
+                    if (this._isReleased(seg.buffer, slot)) {
+                        if (leading) { this.headPosition = pos + 1L; }
+                    } else {
+                        leading = false;
+                        packets.addElement(pkt);
+                    }
+                }
+                if (slot < SLOTS_PER_SEGMENT) { break; }
+            }
+            this.tailPosition = pos;
+
+            /* scrub anything past the tail, so stale records cannot reappear later */
+            long tailSegId = this.tailPosition / SLOTS_PER_SEGMENT;
+            for (long id = tailSegId + 1L; id <= maxSegId; id++) {
+                // these would otherwise be reused under their own name
+                this._segmentFile(id).delete();
+            }
+            if (this.segments.size() > 0) {
+                Segment seg = (Segment)this.segments.lastElement();
+                if (seg.id == tailSegId) {
+                    for (int s = (int)(this.tailPosition % SLOTS_PER_SEGMENT); s < SLOTS_PER_SEGMENT; s++) {
+                        seg.buffer.putShort(s * SLOT_SIZE, (short)0);
+                    }
+                }
+            }
+
+            /* drop segments made obsolete by released leading records */
+            this._trimHead();
+            this._writeHead();
+            Log.info(LOG_NAME, "Recovered " + packets.size() + " event(s) [" + this.headPosition + ".." + this.tailPosition + "]");
+            return true;
+
+        } catch (Throwable t) {
+            Log.error(LOG_NAME, "Unable to open event log", t);
+            this.close();
+            return false;
+        }
+    }
+
+    /**
+    * Forces all mapped pages to be written to storage.
+    */
+    public synchronized void sync()
+    {
+        try {
+            for (int i = 0; i < this.segments.size(); i++) {
+                ((Segment)this.segments.elementAt(i)).buffer.force();
+            }
+            if (this.headBuffer != null) {
+                this.headBuffer.force();
+            }
+        } catch (Throwable t) {
+            Log.error(LOG_NAME, "Sync error", t);
+        }
+    }
+
+    /**
+    * Syncs and closes the log.
+    */
+    public synchronized void close()
+    {
+        this.sync();
+        this.segments.removeAllElements();
+        this.spareFiles.removeAllElements();
+        this.headBuffer = null;
+    }
+
+    /**
+    * Returns true if the log is open.
+    * @return True if the log is open
+    */
+    public synchronized boolean isOpen()
+    {
+        return (this.headBuffer != null);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the number of records between the head and tail of the log (including
+    * records which have been released out of order).
+    * @return The number of records
+    */
+    public synchronized long getRecordCount()
+    {
+        return this.tailPosition - this.headPosition;
+    }
+
+    /**
+    * Appends a Packet to the end of the log.
+    * @param pkt The Packet to append
+    * @return The log position of the new record, or -1 if the record could not be written
+    */
+    public synchronized long append(Packet pkt)
+    {
+        if (this.headBuffer == null) {
+            return -1L;
+        }
+        try {
+            byte payload[] = pkt.getPayload(false).getBytes();
+            int len = payload.length;
+            if (len > (SLOT_SIZE - RECORD_HEADER_SIZE)) {
+                Log.error(LOG_NAME, "Payload too large: " + len);
+                return -1L;
+            }
+            Segment seg = this._tailSegment();
+            long pos  = this.tailPosition;
+            long seq  = pkt.getEventSequence();
+            byte b[]  = this.slotBuffer;
+            b[0] = (byte)(RECORD_MAGIC >> 8);
+            b[1] = (byte)RECORD_MAGIC;
+            b[2] = 0;
+            b[3] = (byte)pkt.getPacketHeader();
+            b[4] = (byte)pkt.getPacketType();
+            b[5] = (byte)pkt.getPriority();
+            b[6] = (byte)len;
+            b[7] = (byte)pkt.getDelivered();
+            for (int i = 0; i < 8; i++) {
+                b[OFS_POSITION + i] = (byte)(pos >> (56 - (i * 8)));
+                b[16 + i]           = (byte)(seq >> (56 - (i * 8)));
+            }
+            System.arraycopy(payload, 0, b, RECORD_HEADER_SIZE, len);
+            int cksum = this._checksum(b, len);
+            b[OFS_CRC    ] = (byte)(cksum >> 24);
+            b[OFS_CRC + 1] = (byte)(cksum >> 16);
+            b[OFS_CRC + 2] = (byte)(cksum >>  8);
+            b[OFS_CRC + 3] = (byte)cksum;
+            seg.buffer.position((int)(pos % SLOTS_PER_SEGMENT) * SLOT_SIZE);
+            seg.buffer.put(b, 0, RECORD_HEADER_SIZE + len);
+            this.tailPosition++;
+            return pos;
+        } catch (Throwable t) {
+            Log.error(LOG_NAME, "Append error", t);
+            return -1L;
+        }
+    }
+
+    /**
+    * Releases the record at the specified position.  The head pointer is advanced
+    * over all contiguous released records.
+    * @param pos The log position of the record
+    */
+    public synchronized void release(long pos)
+    {
+        if ((this.headBuffer == null) || (pos < this.headPosition) || (pos >= this.tailPosition)) {
+            return;
+        }
+        Segment seg = this._findSegment(pos);
+        if (seg == null) {
+            return;
+        }
+        int ofs = (int)(pos % SLOTS_PER_SEGMENT) * SLOT_SIZE + OFS_FLAGS;
+        seg.buffer.put(ofs, (byte)(seg.buffer.get(ofs) | FLAG_RELEASED));
+        if (pos == this.headPosition) {
+            while (this.headPosition < this.tailPosition) {
+                Segment s = this._findSegment(this.headPosition);
+                if ((s == null) || !this._isReleased(s.buffer, (int)(this.headPosition % SLOTS_PER_SEGMENT))) {
+                    break;
+                }
+                this.headPosition++;
+            }
+            this._trimHead();
+            this._writeHead();
+        }
+    }
+
+    /**
+    * Records the destinations which have acknowledged the record at the specified 
+    * position (see PacketQueue.setDeliveryMask), so that a recovered record is not sent
+    * to these destinations again.
+    * @param pos The log position of the record
+    * @param mask The destination mask
+    */
+    public synchronized void setDelivered(long pos, int mask)
+    {
+        if ((this.headBuffer == null) || (pos < this.headPosition) || (pos >= this.tailPosition)) {
+            return;
+        }
+        Segment seg = this._findSegment(pos);
+        if (seg != null) {
+            seg.buffer.put((int)(pos % SLOTS_PER_SEGMENT) * SLOT_SIZE + OFS_DELIVERED, (byte)mask);
+        }
+    }
+
+    /**
+    * Releases all records in the log.
+    */
+    public synchronized void releaseAll()
+    {
+        if (this.headBuffer == null) {
+            return;
+        }
+        this.headPosition = this.tailPosition;
+        this._trimHead();
+        this._writeHead();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the segment containing the specified position, or null if not mapped.
+    */
+    private Segment _findSegment(long pos)
+    {
+        if (this.segments.size() > 0) {
+            long id = pos / SLOTS_PER_SEGMENT;
+            Segment first = (Segment)this.segments.elementAt(0);
+            int ndx = (int)(id - first.id);
+            if ((ndx >= 0) && (ndx < this.segments.size())) {
+                return (Segment)this.segments.elementAt(ndx);
+            }
+        }
+        return null;
+    }
+
+    /**
+    * Returns the segment into which the next record will be written, creating
+    * (or recycling) a segment file if necessary.
+    */
+    private Segment _tailSegment()
+        throws java.io.IOException
+    {
+        long id = this.tailPosition / SLOTS_PER_SEGMENT;
+        if (this.segments.size() > 0) {
+            Segment last = (Segment)this.segments.lastElement();
+            if (last.id == id) {
+                return last;
+            }
+        }
+        File segFile = this._segmentFile(id);
+        if (!segFile.isFile() && (this.spareFiles.size() > 0)) {
+            File spare = (File)this.spareFiles.elementAt(0);
+            this.spareFiles.removeElementAt(0);
+            if (!spare.renameTo(segFile)) {
+                spare.delete();
+            }
+        }
+        Segment seg = new Segment(id, segFile, this._map(segFile, SEGMENT_SIZE));
+        this.segments.addElement(seg);
+        return seg;
+    }
+
+    /**
+    * Removes (and recycles) leading segments which no longer contain live records.
+    */
+    private void _trimHead()
+    {
+        long headSegId = this.headPosition / SLOTS_PER_SEGMENT;
+        while (this.segments.size() > 0) {
+            Segment seg = (Segment)this.segments.elementAt(0);
+            if (seg.id >= headSegId) {
+                break;
+            }
+            this.segments.removeElementAt(0);
+            this._recycle(seg.file);
+        }
+    }
+
+    /**
+    * Keeps the specified file as a spare segment, or deletes it if enough spares exist.
+    */
+    private void _recycle(File segFile)
+    {
+        if (this.spareFiles.size() < MAX_SPARE_SEGMENTS) {
+            this.spareFiles.addElement(segFile);
+        } else {
+            segFile.delete();
+        }
+    }
+
+    /**
+    * Returns the file for the specified segment id
+    */
+    private File _segmentFile(long id)
+    {
+        return new File(this.logDir, SEGMENT_PREFIX + Long.toHexString(id) + SEGMENT_SUFFIX);
+    }
+
+    /**
+    * Returns the segment id of the specified file name, or -1 if not a segment file
+    */
+    private static long _parseSegmentId(String name)
+    {
+        if ((name != null) && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+            } catch (NumberFormatException nfe) {
+                return -1L;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+    * Maps the specified file (read/write), extending it to the specified size.
+    */
+    private MappedByteBuffer _map(File file, int size)
+        throws java.io.IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Reads the record in the specified slot, and returns it as a Packet.  Returns null
+    * if the slot does not contain a valid record for the specified position.
+    */
+    private Packet _readRecord(MappedByteBuffer buf, int slot, long pos)
+    {
+        int ofs = slot * SLOT_SIZE;
+        if ((buf.getShort(ofs) & 0xFFFF) != RECORD_MAGIC) {
+            return null;
+        } else
+        if (buf.getLong(ofs + OFS_POSITION) != pos) {
+            return null;
+        }
+        int len = (int)buf.get(ofs + 6) & 0xFF;
+        if (len > (SLOT_SIZE - RECORD_HEADER_SIZE)) {
+            return null;
+        }
+        byte b[] = this.slotBuffer;
+        buf.position(ofs);
+        buf.get(b, 0, RECORD_HEADER_SIZE + len);
+        int cksum = ((b[OFS_CRC] & 0xFF) << 24) | ((b[OFS_CRC + 1] & 0xFF) << 16) |
+                    ((b[OFS_CRC + 2] & 0xFF) << 8) | (b[OFS_CRC + 3] & 0xFF);
+        if (cksum != this._checksum(b, len)) {
+            return null;
+        }
+        byte payload[] = new byte[len];
+        System.arraycopy(b, RECORD_HEADER_SIZE, payload, 0, len);
+        Packet pkt = new Packet(true, (int)b[3] & 0xFF, (int)b[4] & 0xFF, payload);
+        pkt.setPriority((int)b[5] & 0xFF);
+        pkt.setEventSequence(buf.getLong(ofs + 16));
+        pkt.setLogPosition(pos);
+        pkt.setDelivered((int)b[OFS_DELIVERED] & 0xFF);
+        return pkt;
+    }
+
+    /**
+    * Returns true if the record in the specified slot has been released
+    */
+    private boolean _isReleased(MappedByteBuffer buf, int slot)
+    {
+        return ((buf.get(slot * SLOT_SIZE + OFS_FLAGS) & FLAG_RELEASED) != 0);
+    }
+
+    /**
+    * Calculates the record checksum (excludes the magic and flags, and the delivered mask,
+    * which is updated in place and is checked as zero)
+    */
+    private int _checksum(byte b[], int payloadLen)
+    {
+        this.crc.reset();
+        this.crc.update(b, 3, OFS_DELIVERED - 3);
+        this.crc.update(0);
+        this.crc.update(b, OFS_DELIVERED + 1, OFS_CRC - OFS_DELIVERED - 1);
+        this.crc.update(b, RECORD_HEADER_SIZE, payloadLen);
+        return (int)this.crc.getValue();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Reads the head position from the most recent valid copy in the head file
+    */
+    private void _readHead()
+    {
+        this.headGeneration = 0;
+        this.headPosition   = 0L;
+        for (int c = 0; c < 2; c++) {
+            int ofs = c * HEAD_COPY_SIZE;
+            int gen = this.headBuffer.getInt(ofs);
+            long pos = this.headBuffer.getLong(ofs + 4);
+            int chk = this.headBuffer.getInt(ofs + 12);
+            if ((pos >= 0L) && (chk == EventLog._headCheck(gen, pos)) && (gen - this.headGeneration >= 0)) {
+                this.headGeneration = gen;
+                this.headPosition   = pos;
+            }
+        }
+    }
+
+    /**
+    * Writes the head position into the older of the two copies in the head file
+    */
+    private void _writeHead()
+    {
+        int gen = ++this.headGeneration;
+        int ofs = (gen & 1) * HEAD_COPY_SIZE;
+        this.headBuffer.putInt(ofs, gen);
+        this.headBuffer.putLong(ofs + 4, this.headPosition);
+        this.headBuffer.putInt(ofs + 12, EventLog._headCheck(gen, this.headPosition));
+    }
+
+    /**
+    * Returns the check value for a head file copy
+    */
+    private static int _headCheck(int gen, long pos)
+    {
+        return HEAD_MAGIC ^ gen ^ (int)pos ^ (int)(pos >>> 32);
+    }
+
+}
@@ -0,0 +1,674 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class provides compact in-memory storage for queued packets.  Each
+//  packet is stored as a small length-prefixed record (queue attributes
+//  followed by the binary wire image of the packet) in large shared byte
+//  slabs, and is referenced by an int handle.  Packet views over a record are
+//  created on demand, and binary encoding of a stored packet is a plain copy.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.Payload;
+
+/**
+* Slab storage of encoded Packet records.
+*/
+public class EventSlab
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    SLAB_BITS           = 13;
+    private static final int    SLAB_SIZE           = 1 << SLAB_BITS; // 8K
+    private static final int    OFFSET_MASK         = SLAB_SIZE - 1;
+    private static final int    INITIAL_SLABS       = 4;
+
+    /* record layout */
+    //  0..1    wire image length
+    //  2       flags (bit 0: sent, bits 1..7: sent block tag)
+    //  3       priority
+    //  4..11   event sequence
+    // 12..19   log position
+    // 20       delivered (bit N: acknowledged by destination N)
+    // 21..24   record stamp (0 once released)
+    // 25..     wire image (header, type, payload length, payload)
+    private static final int    OFS_LENGTH          = 0;
+    private static final int    OFS_FLAGS           = 2;
+    private static final int    OFS_PRIORITY        = 3;
+    private static final int    OFS_SEQUENCE        = 4;
+    private static final int    OFS_LOG_POSITION    = 12;
+    private static final int    OFS_DELIVERED       = 20;
+    private static final int    OFS_STAMP           = 21;
+    private static final int    OFS_WIRE            = 25;
+    private static final int    FLAG_SENT           = 0x01;
+    private static final int    BLOCK_SHIFT         = 1;
+    private static final int    BLOCK_MASK          = 0x7F;
+    private static final int    DESTINATIONS        = 8;    // bits in 'delivered'
+
+    // ------------------------------------------------------------------------
+
+    private byte    slabs[][]   = new byte[INITIAL_SLABS][];
+    private int     fill[]      = new int[INITIAL_SLABS];  // next free offset in slab
+    private int     live[]      = new int[INITIAL_SLABS];  // number of live records in slab
+    private int     current     = -1;                      // slab currently being filled
+    private byte    spare[]     = null;                    // released slab kept for reuse
+    private int     destination = -1;                      // current destination, -1 if none
+    private int     unsent[]    = new int[DESTINATIONS + 1]; // unsent records, per destination (last: none)
+    private int     pending[]   = new int[DESTINATIONS];     // records not delivered, per destination
+    private int     lastStamp   = 0;                       // stamp of the last added record
+
+    /**
+    * Creates an empty EventSlab
+    */
+    public EventSlab()
+    {
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Stores a copy of the specified packet
+    * @param pkt The packet to store
+    * @return The record handle
+    */
+    public synchronized int add(Packet pkt)
+    {
+        Payload payload = pkt.getPayload(false);
+        int wireLen = Packet.MIN_HEADER_LENGTH + payload.getSize();
+        int recLen  = OFS_WIRE + wireLen;
+        if ((this.current < 0) || ((this.fill[this.current] + recLen) > SLAB_SIZE)) {
+            this.current = this._newSlab();
+        }
+        int  slot = this.current;
+        int  ofs  = this.fill[slot];
+        byte s[]  = this.slabs[slot];
+        s[ofs + OFS_LENGTH    ] = (byte)(wireLen >> 8);
+        s[ofs + OFS_LENGTH + 1] = (byte)wireLen;
+        s[ofs + OFS_FLAGS     ] = (byte)(pkt.isSent()? (FLAG_SENT | ((pkt.getSentBlock() & BLOCK_MASK) << BLOCK_SHIFT)) : 0);
+        s[ofs + OFS_PRIORITY  ] = (byte)pkt.getPriority();
+        _putLong(s, ofs + OFS_SEQUENCE    , pkt.getEventSequence());
+        _putLong(s, ofs + OFS_LOG_POSITION, pkt.getLogPosition());
+        s[ofs + OFS_DELIVERED ] = (byte)pkt.getDelivered();
+        if (++this.lastStamp == 0) { this.lastStamp++; }
+        _putInt(s, ofs + OFS_STAMP, this.lastStamp);
+        s[ofs + OFS_WIRE      ] = (byte)pkt.getPacketHeader();
+        s[ofs + OFS_WIRE + 1  ] = (byte)pkt.getPacketType();
+        s[ofs + OFS_WIRE + 2  ] = (byte)payload.getSize();
+        payload.getBytes(s, ofs + OFS_WIRE + Packet.MIN_HEADER_LENGTH);
+        this.fill[slot] += recLen;
+        this.live[slot]++;
+        this._count(s, ofs, 1);
+        return (slot << SLAB_BITS) | ofs;
+    }
+
+    /**
+    * Releases the specified record.  The handle must not be used after it has been released.
+    * @param h The record handle
+    */
+    public synchronized void release(int h)
+    {
+        this._count(this._slab(h), h & OFFSET_MASK, -1);
+        _putInt(this._slab(h), (h & OFFSET_MASK) + OFS_STAMP, 0);
+        int slot = h >>> SLAB_BITS;
+        if (--this.live[slot] > 0) {
+            // slab still in use
+        } else
+        if (slot == this.current) {
+            // rewind the current slab
+            this.fill[slot] = 0;
+        } else {
+            if (this.spare == null) {
+                this.spare = this.slabs[slot];
+            }
+            this.slabs[slot] = null;
+        }
+    }
+
+    /**
+    * Releases all records
+    */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < this.slabs.length; i++) {
+            if ((this.spare == null) && (this.slabs[i] != null)) {
+                this.spare = this.slabs[i];
+            }
+            this.slabs[i] = null;
+            this.fill[i]  = 0;
+            this.live[i]  = 0;
+        }
+        this.current = -1;
+        for (int d = 0; d < DESTINATIONS; d++) {
+            this.unsent[d]  = 0;
+            this.pending[d] = 0;
+        }
+        this.unsent[DESTINATIONS] = 0;
+    }
+
+    /**
+    * Returns the number of bytes held by the allocated slabs
+    * @return The number of allocated bytes
+    */
+    public synchronized long getAllocatedBytes()
+    {
+        long bytes = (this.spare != null)? SLAB_SIZE : 0L;
+        for (int i = 0; i < this.slabs.length; i++) {
+            if (this.slabs[i] != null) { bytes += SLAB_SIZE; }
+        }
+        return bytes;
+    }
+
+    /**
+    * Allocates a new slab in an unused slot, and returns the slot index
+    */
+    private int _newSlab()
+    {
+        int slot = 0;
+        for (; (slot < this.slabs.length) && (this.slabs[slot] != null); slot++);
+        if (slot == this.slabs.length) {
+            int n = this.slabs.length * 2;
+            byte s[][] = new byte[n][];
+            int  f[]   = new int[n];
+            int  l[]   = new int[n];
+            System.arraycopy(this.slabs, 0, s, 0, slot);
+            System.arraycopy(this.fill , 0, f, 0, slot);
+            System.arraycopy(this.live , 0, l, 0, slot);
+            this.slabs = s;
+            this.fill  = f;
+            this.live  = l;
+        }
+        this.slabs[slot] = (this.spare != null)? this.spare : new byte[SLAB_SIZE];
+        this.spare       = null;
+        this.fill[slot]  = 0;
+        this.live[slot]  = 0;
+        return slot;
+    }
+
+    /**
+    * Adds the specified amount to the unsent/pending counts matching the state of the
+    * specified record.  Called with -1 before, and +1 after, each change of state.
+    */
+    private void _count(byte s[], int rec, int delta)
+    {
+        boolean sent = ((s[rec + OFS_FLAGS] & FLAG_SENT) != 0);
+        int delivered = (int)s[rec + OFS_DELIVERED] & 0xFF;
+        for (int d = 0; d < DESTINATIONS; d++) {
+            if ((delivered & (1 << d)) == 0) {
+                this.pending[d] += delta;
+                if (!sent) { this.unsent[d] += delta; }
+            }
+        }
+        if (!sent) { this.unsent[DESTINATIONS] += delta; }
+    }
+
+    /**
+    * Returns the number of records which are not 'sent' (see 'isSent') to the current
+    * destination
+    * @return The number of unsent records
+    */
+    public synchronized int getUnsentCount()
+    {
+        return this.unsent[(this.destination >= 0)? this.destination : DESTINATIONS];
+    }
+
+    /**
+    * Returns the number of records which have not been delivered to the specified destination
+    * @param dest The destination index (0 to 7)
+    * @return The number of pending records
+    */
+    public synchronized int getPendingCount(int dest)
+    {
+        return ((dest >= 0) && (dest < DESTINATIONS))? this.pending[dest] : 0;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static void _putLong(byte b[], int ofs, long val)
+    {
+        for (int i = 7; i >= 0; i--) {
+            b[ofs + i] = (byte)val;
+            val >>>= 8;
+        }
+    }
+
+    private static void _putInt(byte b[], int ofs, int val)
+    {
+        for (int i = 3; i >= 0; i--) {
+            b[ofs + i] = (byte)val;
+            val >>>= 8;
+        }
+    }
+
+    private static int _getInt(byte b[], int ofs)
+    {
+        int val = 0;
+        for (int i = 0; i < 4; i++) {
+            val = (val << 8) | ((int)b[ofs + i] & 0xFF);
+        }
+        return val;
+    }
+
+    private static long _getLong(byte b[], int ofs)
+    {
+        long val = 0L;
+        for (int i = 0; i < 8; i++) {
+            val = (val << 8) | ((long)b[ofs + i] & 0xFF);
+        }
+        return val;
+    }
+
+    private byte[] _slab(int h)
+    {
+        return this.slabs[h >>> SLAB_BITS];
+    }
+
+    /**
+    * Returns the stamp of the specified live record
+    */
+    private int _getStamp(int h)
+    {
+        return _getInt(this._slab(h), (h & OFFSET_MASK) + OFS_STAMP);
+    }
+
+    /**
+    * Returns true if the specified handle still refers to the record with the specified
+    * stamp (ie. the record has not been released, nor its space reused)
+    * (must be called while synchronized on this EventSlab)
+    */
+    private boolean _isLive(int h, int stamp)
+    {
+        int slot = h >>> SLAB_BITS;
+        int rec  = h & OFFSET_MASK;
+        if ((slot >= this.slabs.length) || (this.slabs[slot] == null) || (rec >= this.fill[slot])) {
+            return false;
+        }
+        return (_getInt(this.slabs[slot], rec + OFS_STAMP) == stamp);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the header of the stored packet
+    * @param h The record handle
+    * @return The packet header
+    */
+    public synchronized int getPacketHeader(int h)
+    {
+        return (int)this._slab(h)[(h & OFFSET_MASK) + OFS_WIRE] & 0xFF;
+    }
+
+    /**
+    * Returns the type of the stored packet
+    * @param h The record handle
+    * @return The packet type
+    */
+    public synchronized int getPacketType(int h)
+    {
+        return (int)this._slab(h)[(h & OFFSET_MASK) + OFS_WIRE + 1] & 0xFF;
+    }
+
+    /**
+    * Returns the payload length of the stored packet
+    * @param h The record handle
+    * @return The payload length
+    */
+    public synchronized int getPayloadLength(int h)
+    {
+        return (int)this._slab(h)[(h & OFFSET_MASK) + OFS_WIRE + 2] & 0xFF;
+    }
+
+    /**
+    * Returns the encoded (binary) length of the stored packet
+    * @param h The record handle
+    * @return The packet length
+    */
+    public int getPacketLength(int h)
+    {
+        return Packet.MIN_HEADER_LENGTH + this.getPayloadLength(h);
+    }
+
+    /**
+    * Returns the priority of the stored packet
+    * @param h The record handle
+    * @return The packet priority
+    */
+    public synchronized int getPriority(int h)
+    {
+        return (int)this._slab(h)[(h & OFFSET_MASK) + OFS_PRIORITY];
+    }
+
+    /**
+    * Sets the priority of the stored packet
+    * @param h The record handle
+    * @param pri The packet priority
+    */
+    public synchronized void setPriority(int h, int pri)
+    {
+        this._slab(h)[(h & OFFSET_MASK) + OFS_PRIORITY] = (byte)pri;
+    }
+
+    /**
+    * Sets the destination to which packets are currently being sent.  Packets which have
+    * already been delivered to this destination are reported as 'sent'.
+    * @param dest The destination index (0 to 7), or -1 if none
+    */
+    public synchronized void setDestination(int dest)
+    {
+        this.destination = dest;
+    }
+
+    /**
+    * Returns true if the stored packet has been sent, or has already been delivered to the
+    * current destination
+    * @param h The record handle
+    * @return True if sent
+    */
+    public synchronized boolean isSent(int h)
+    {
+        return ((this._slab(h)[(h & OFFSET_MASK) + OFS_FLAGS] & FLAG_SENT) != 0) || this.isDelivered(h);
+    }
+
+    /**
+    * Returns true if the stored packet has already been delivered to the current destination
+    * @param h The record handle
+    * @return True if delivered
+    */
+    public synchronized boolean isDelivered(int h)
+    {
+        return (this.destination >= 0) && ((this.getDelivered(h) & (1 << this.destination)) != 0);
+    }
+
+    /**
+    * Returns the destinations to which the stored packet has been delivered
+    * @param h The record handle
+    * @return The destination mask
+    */
+    public synchronized int getDelivered(int h)
+    {
+        return (int)this._slab(h)[(h & OFFSET_MASK) + OFS_DELIVERED] & 0xFF;
+    }
+
+    /**
+    * Sets the destinations to which the stored packet has been delivered
+    * @param h The record handle
+    * @param mask The destination mask
+    */
+    public synchronized void setDelivered(int h, int mask)
+    {
+        byte s[] = this._slab(h);
+        int  rec = h & OFFSET_MASK;
+        this._count(s, rec, -1);
+        s[rec + OFS_DELIVERED] = (byte)mask;
+        this._count(s, rec, 1);
+    }
+
+    /**
+    * Sets the 'sent' state of the stored packet
+    * @param h The record handle
+    * @param sent True if sent
+    */
+    public synchronized void setSent(int h, boolean sent)
+    {
+        byte s[] = this._slab(h);
+        int  rec = h & OFFSET_MASK;
+        this._count(s, rec, -1);
+        s[rec + OFS_FLAGS] = (byte)(sent? (s[rec + OFS_FLAGS] | FLAG_SENT) : 0);
+        this._count(s, rec, 1);
+    }
+
+    /**
+    * Returns the transmission block in which the stored packet was sent
+    * @param h The record handle
+    * @return The block tag, or 0 if not sent within a tagged block
+    */
+    public synchronized int getSentBlock(int h)
+    {
+        return ((int)this._slab(h)[(h & OFFSET_MASK) + OFS_FLAGS] >> BLOCK_SHIFT) & BLOCK_MASK;
+    }
+
+    /**
+    * Marks the stored packet as sent within the specified transmission block
+    * @param h The record handle
+    * @param block The block tag (1 to 127)
+    */
+    public synchronized void setSentBlock(int h, int block)
+    {
+        byte s[] = this._slab(h);
+        int  rec = h & OFFSET_MASK;
+        this._count(s, rec, -1);
+        s[rec + OFS_FLAGS] = (byte)(FLAG_SENT | ((block & BLOCK_MASK) << BLOCK_SHIFT));
+        this._count(s, rec, 1);
+    }
+
+    /**
+    * Returns the event sequence of the stored packet
+    * @param h The record handle
+    * @return The event sequence
+    */
+    public synchronized long getEventSequence(int h)
+    {
+        return _getLong(this._slab(h), (h & OFFSET_MASK) + OFS_SEQUENCE);
+    }
+
+    /**
+    * Sets the event sequence of the stored packet
+    * @param h The record handle
+    * @param seq The event sequence
+    */
+    public synchronized void setEventSequence(int h, long seq)
+    {
+        _putLong(this._slab(h), (h & OFFSET_MASK) + OFS_SEQUENCE, seq);
+    }
+
+    /**
+    * Returns the EventLog position of the stored packet
+    * @param h The record handle
+    * @return The log position, or -1 if the packet has not been logged
+    */
+    public synchronized long getLogPosition(int h)
+    {
+        return _getLong(this._slab(h), (h & OFFSET_MASK) + OFS_LOG_POSITION);
+    }
+
+    /**
+    * Sets the EventLog position of the stored packet
+    * @param h The record handle
+    * @param pos The log position
+    */
+    public synchronized void setLogPosition(int h, long pos)
+    {
+        _putLong(this._slab(h), (h & OFFSET_MASK) + OFS_LOG_POSITION, pos);
+    }
+
+    /**
+    * Returns a copy of the specified section of the stored packet payload
+    * @param h The record handle
+    * @param ofs The payload offset
+    * @param len The number of bytes
+    * @return The payload bytes
+    */
+    public synchronized byte[] getPayloadBytes(int h, int ofs, int len)
+    {
+        byte s[] = this._slab(h);
+        int  rec = h & OFFSET_MASK;
+        int  pLen = (int)s[rec + OFS_WIRE + 2] & 0xFF;
+        if (ofs >= pLen) {
+            return new byte[0];
+        } else {
+            if (len > (pLen - ofs)) { len = pLen - ofs; }
+            byte n[] = new byte[len];
+            System.arraycopy(s, rec + OFS_WIRE + Packet.MIN_HEADER_LENGTH + ofs, n, 0, len);
+            return n;
+        }
+    }
+
+    /**
+    * Returns a copy of the binary wire image of the stored packet
+    * @param h The record handle
+    * @return The binary encoded packet
+    */
+    public synchronized byte[] encode(int h)
+    {
+        byte s[] = this._slab(h);
+        int  rec = h & OFFSET_MASK;
+        int  len = (((int)s[rec + OFS_LENGTH] & 0xFF) << 8) | ((int)s[rec + OFS_LENGTH + 1] & 0xFF);
+        byte b[] = new byte[len];
+        System.arraycopy(s, rec + OFS_WIRE, b, 0, len);
+        return b;
+    }
+
+    /**
+    * Returns a Packet view of the stored packet.  Changes to the 'sent' state, priority,
+    * sequence, and log position of the view are written through to the record.  Once the
+    * record has been released the view is stale: it reads as a sent packet with an empty
+    * payload, and changes to it are ignored.
+    * @param h The record handle
+    * @return The Packet view
+    */
+    public synchronized Packet getPacket(int h)
+    {
+        return new View(this, h, this._getStamp(h));
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * A Packet backed by a slab record.
+    */
+    private static class View
+        extends Packet
+    {
+        private EventSlab slab   = null;
+        private int       handle = 0;
+        private int       stamp  = 0;    // stamp of the record when the view was created
+        public View(EventSlab slab, int h, int stamp)
+        {
+            super(true, slab.getPacketHeader(h), slab.getPacketType(h), (Payload)null);
+            this.slab   = slab;
+            this.handle = h;
+            this.stamp  = stamp;
+        }
+        private boolean _isLive()
+        {
+            // must be called while synchronized on 'this.slab'
+            return this.slab._isLive(this.handle, this.stamp);
+        }
+        public void setSent(boolean sent)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setSent(this.handle, sent); }
+            }
+        }
+        public boolean isSent()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.isSent(this.handle) : true;
+            }
+        }
+        public void setSentBlock(int block)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setSentBlock(this.handle, block); }
+            }
+        }
+        public int getSentBlock()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getSentBlock(this.handle) : 0;
+            }
+        }
+        public void setPriority(int pri)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setPriority(this.handle, pri); }
+            }
+        }
+        public int getPriority()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getPriority(this.handle) : super.getPriority();
+            }
+        }
+        public void setEventSequence(long seq)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setEventSequence(this.handle, seq); }
+            }
+        }
+        public long getEventSequence()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getEventSequence(this.handle) : super.getEventSequence();
+            }
+        }
+        public void setLogPosition(long pos)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setLogPosition(this.handle, pos); }
+            }
+        }
+        public long getLogPosition()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getLogPosition(this.handle) : super.getLogPosition();
+            }
+        }
+        public void setDelivered(int mask)
+        {
+            synchronized (this.slab) {
+                if (this._isLive()) { this.slab.setDelivered(this.handle, mask); }
+            }
+        }
+        public int getDelivered()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getDelivered(this.handle) : super.getDelivered();
+            }
+        }
+        public int getPayloadLength()
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getPayloadLength(this.handle) : 0;
+            }
+        }
+        public Payload getPayload(boolean reset)
+        {
+            // a fresh (read-only) copy of the stored payload
+            return new Payload(this.getPayloadBytes(0, Payload.MAX_PAYLOAD_LENGTH));
+        }
+        public byte[] getPayloadBytes(int ofs, int len)
+        {
+            synchronized (this.slab) {
+                return this._isLive()? this.slab.getPayloadBytes(this.handle, ofs, len) : new byte[0];
+            }
+        }
+        public byte[] encode(int encoding)
+        {
+            synchronized (this.slab) {
+                if ((encoding == Encoding.ENCODING_BINARY) && this._isLive()) {
+                    return this.slab.encode(this.handle);
+                }
+            }
+            return super.encode(encoding);
+        }
+    }
+
+}
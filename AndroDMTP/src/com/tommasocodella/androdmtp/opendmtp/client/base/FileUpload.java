@@ -0,0 +1,462 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class receives files sent by the server in PKT_SERVER_FILE_UPLOAD
+//  records.  Data records are written directly to a partial file in the upload
+//  directory, so the file is never held in memory, and the length of the
+//  partial file is the offset at which an interrupted upload is resumed (in
+//  the same or a later session).  When the final record is received the whole
+//  file is verified against the server checksum and then applied: property
+//  files ("*.props") are applied to the client properties as a set, all other
+//  files are renamed into place.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.ClientErrors;
+import com.tommasocodella.androdmtp.opendmtp.util.KeyValue;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.util.Payload;
+
+/**
+* Resumable receiver for server file uploads.
+*/
+public class FileUpload
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "UPLD";
+
+    /* upload record types */
+    //  FILE: 0:1 type, 1:3 file size, 4:X file name
+    //  DATA: 0:1 type, 1:3 file offset, 4:X data
+    //  END : 0:1 type, 1:3 file size, 4:4 CRC32 of the file
+    public  static final int    UPLOAD_TYPE_FILE    = 0x01;
+    public  static final int    UPLOAD_TYPE_DATA    = 0x02;
+    public  static final int    UPLOAD_TYPE_END     = 0x03;
+
+    /* upload status (PROP_STATE_UPLOAD) */
+    public  static final int    STATUS_NONE         = 0;
+    public  static final int    STATUS_RECEIVING    = 1;
+    public  static final int    STATUS_COMPLETE     = 2;
+    // otherwise, the status is the ClientErrors code of the last error
+
+    public  static final long   MAX_FILE_SIZE       = 0xFFFFFFL;    // 3 byte size field
+    private static final int    MAX_NAME_LENGTH     = 64;
+    private static final String PARTIAL_SUFFIX      = ".part";
+    private static final String PROPS_SUFFIX        = ".props";
+
+    // ------------------------------------------------------------------------
+
+    private Protocol            protocol        = null;
+    private File                uploadDir       = null;
+
+    private String              fileName        = null;     // file currently being received
+    private long                fileSize        = 0L;
+    private long                fileOffset      = 0L;       // bytes received
+    private File                partFile        = null;
+    private FileOutputStream    partOutput      = null;     // open while receiving
+
+    /**
+    * Constructor
+    * @param protocol The Protocol handler to which responses are queued
+    */
+    public FileUpload(Protocol protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sets the directory in which uploaded files are received.  Uploads are refused
+    * until a directory has been set.
+    * @param dir The upload directory
+    */
+    public synchronized void setDirectory(File dir)
+    {
+        this.suspend();
+        this.uploadDir = dir;
+    }
+
+    /**
+    * Returns the directory in which uploaded files are received
+    * @return The upload directory, or null if not set
+    */
+    public File getDirectory()
+    {
+        return this.uploadDir;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Processes a single PKT_SERVER_FILE_UPLOAD record.  Errors, and the upload status
+    * (PROP_STATE_UPLOAD) in response to FILE/END records, are queued to the server.
+    * @param payload The packet payload
+    */
+    public synchronized void processRecord(Payload payload)
+    {
+        int type = (int)payload.readULong(1, 0L);
+        int err  = 0;
+        switch (type) {
+            case UPLOAD_TYPE_FILE: {
+                long   size = payload.readULong(3, 0L);
+                String name = payload.readString(payload.getAvail());
+                err = this._startFile(name, size);
+                this._queueStatus(err);
+                break;
+            }
+            case UPLOAD_TYPE_DATA: {
+                long ofs  = payload.readULong(3, 0L);
+                byte b[]  = payload.readBytes(payload.getAvail());
+                err = this._writeData(ofs, b);
+                if (err != 0) {
+                    // the status tells the server where to resume
+                    this._queueStatus(err);
+                }
+                break;
+            }
+            case UPLOAD_TYPE_END: {
+                long size = payload.readULong(3, 0L);
+                long crc  = payload.readULong(4, 0L);
+                err = this._endFile(size, crc);
+                this._queueStatus(err);
+                break;
+            }
+            default: {
+                err = ClientErrors.ERROR_UPLOAD_TYPE;
+                break;
+            }
+        }
+        if (err != 0) {
+            Payload p = new Payload();
+            p.writeULong(err, 2);
+            this.protocol.queueError(p);
+        }
+    }
+
+    /**
+    * Closes the partial file at the end of a session.  The partial file is retained, and the
+    * upload is resumed when the server next sends the same file.
+    */
+    public synchronized void suspend()
+    {
+        if (this.partOutput != null) {
+            this._closePart();
+            Log.info(LOG_NAME, "Upload suspended: " + this.fileName + " [" + this.fileOffset + "/" + this.fileSize + "]");
+        }
+    }
+
+    /**
+    * Syncs and closes the partial file
+    */
+    private void _closePart()
+    {
+        try {
+            this.partOutput.getFD().sync();
+        } catch (IOException ioe) {
+            // ignore
+        }
+        try { this.partOutput.close(); } catch (IOException ioe) {}
+        this.partOutput = null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Starts (or resumes) receiving a file
+    */
+    private int _startFile(String name, long size)
+    {
+        this.suspend();
+        this.fileName   = null;
+        this.fileSize   = 0L;
+        this.fileOffset = 0L;
+        this.partFile   = null;
+
+        /* validate */
+        if ((size <= 0L) || (size > MAX_FILE_SIZE)) {
+            return ClientErrors.ERROR_UPLOAD_LENGTH;
+        } else
+        if (!FileUpload._isValidName(name)) {
+            return ClientErrors.ERROR_UPLOAD_FILE_NAME;
+        } else
+        if ((this.uploadDir == null) || (!this.uploadDir.isDirectory() && !this.uploadDir.mkdirs())) {
+            Log.error(LOG_NAME, "Upload directory not available: " + this.uploadDir);
+            return ClientErrors.ERROR_UPLOAD_SAVE;
+        }
+
+        /* resume a partial file of the same name/size */
+        File part = new File(this.uploadDir, name + "." + size + PARTIAL_SUFFIX);
+        long ofs = part.isFile()? part.length() : 0L;
+        if (ofs > size) {
+            part.delete();
+            ofs = 0L;
+        }
+        FileUpload._deleteOtherParts(this.uploadDir, name, part);
+        try {
+            this.partOutput = new FileOutputStream(part.getPath(), true);
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to open " + part, ioe);
+            return ClientErrors.ERROR_UPLOAD_SAVE;
+        }
+        this.fileName   = name;
+        this.fileSize   = size;
+        this.fileOffset = ofs;
+        this.partFile   = part;
+        if (ofs > 0L) {
+            Log.info(LOG_NAME, "Upload resumed: " + name + " [" + ofs + "/" + size + "]");
+        } else {
+            Log.info(LOG_NAME, "Upload started: " + name + " [" + size + "]");
+        }
+        return 0;
+    }
+
+    /**
+    * Appends a data record to the partial file
+    */
+    private int _writeData(long ofs, byte b[])
+    {
+        if (this.partOutput == null) {
+            // no FILE record in this session
+            return ClientErrors.ERROR_UPLOAD_OFFSET_GAP;
+        } else
+        if ((ofs + b.length) > this.fileSize) {
+            return ClientErrors.ERROR_UPLOAD_OFFSET_OVERFLOW;
+        } else
+        if (ofs > this.fileOffset) {
+            return ClientErrors.ERROR_UPLOAD_OFFSET_GAP;
+        } else
+        if (ofs < this.fileOffset) {
+            if ((ofs + b.length) <= this.fileOffset) {
+                return 0; // already received (ie. resent after a resume)
+            }
+            return ClientErrors.ERROR_UPLOAD_OFFSET_OVERLAP;
+        }
+        try {
+            this.partOutput.write(b);
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to write " + this.partFile, ioe);
+            this._closePart();
+            return ClientErrors.ERROR_UPLOAD_SAVE;
+        }
+        this.fileOffset += b.length;
+        return 0;
+    }
+
+    /**
+    * Verifies and applies the received file
+    */
+    private int _endFile(long size, long crc)
+    {
+        if (this.partOutput == null) {
+            return ClientErrors.ERROR_UPLOAD_OFFSET_GAP;
+        } else
+        if ((size != this.fileSize) || (this.fileOffset != this.fileSize)) {
+            return ClientErrors.ERROR_UPLOAD_LENGTH;
+        }
+        this._closePart();
+        File part = this.partFile;
+
+        /* verify */
+        long fileCrc = FileUpload._getCRC32(part);
+        if (fileCrc != crc) {
+            // start over
+            Log.error(LOG_NAME, "Upload checksum mismatch: " + this.fileName);
+            part.delete();
+            this.fileOffset = 0L;
+            return ClientErrors.ERROR_UPLOAD_CHECKSUM;
+        }
+
+        /* apply */
+        boolean ok;
+        if (this.fileName.endsWith(PROPS_SUFFIX)) {
+            ok = FileUpload._applyProps(part);
+            part.delete();
+        } else {
+            File file = new File(this.uploadDir, this.fileName);
+            ok = part.renameTo(file);
+            if (!ok) {
+                file.delete();
+                ok = part.renameTo(file);
+            }
+        }
+        this.partFile = null;
+        if (!ok) {
+            Log.error(LOG_NAME, "Unable to apply upload: " + this.fileName);
+            return ClientErrors.ERROR_UPLOAD_SAVE;
+        }
+        Log.info(LOG_NAME, "Upload complete: " + this.fileName + " [" + this.fileSize + "]");
+        return 0;
+    }
+
+    /**
+    * Sets PROP_STATE_UPLOAD and queues its value to the server
+    */
+    private void _queueStatus(int err)
+    {
+        long status;
+        if (err != 0) {
+            status = err;
+        } else
+        if (this.partOutput != null) {
+            status = STATUS_RECEIVING;
+        } else
+        if (this.fileName != null) {
+            status = STATUS_COMPLETE;
+        } else {
+            status = STATUS_NONE;
+        }
+        Props.setLong(Props.PROP_STATE_UPLOAD, 0, this.fileSize);
+        Props.setLong(Props.PROP_STATE_UPLOAD, 1, this.fileOffset);
+        Props.setLong(Props.PROP_STATE_UPLOAD, 2, status);
+        Payload p = new Payload();
+        p.writeULong(Props.PROP_STATE_UPLOAD, 2);
+        p.writeULong(this.fileSize          , 4);
+        p.writeULong(this.fileOffset        , 4);
+        p.writeULong(status                 , 4);
+        this.protocol.queuePacket(Packet.createClientPacket(Packet.PKT_CLIENT_PROPERTY_VALUE, p));
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns true if the file name is a plain name within the upload directory
+    */
+    private static boolean _isValidName(String name)
+    {
+        if ((name == null) || (name.length() == 0) || (name.length() > MAX_NAME_LENGTH)) {
+            return false;
+        } else
+        if (name.startsWith(".") || name.endsWith(PARTIAL_SUFFIX)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (!Character.isLetterOrDigit(ch) && (ch != '.') && (ch != '_') && (ch != '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+    * Deletes partial files of the named file which were sent with a different size
+    */
+    private static void _deleteOtherParts(File dir, String name, File keep)
+    {
+        String f[] = dir.list();
+        for (int i = 0; (f != null) && (i < f.length); i++) {
+            if (f[i].startsWith(name + ".") && f[i].endsWith(PARTIAL_SUFFIX) && !f[i].equals(keep.getName())) {
+                new File(dir, f[i]).delete();
+            }
+        }
+    }
+
+    /**
+    * Returns the CRC32 of the specified file, or -1 if the file could not be read
+    */
+    private static long _getCRC32(File file)
+    {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            CRC32 crc = new CRC32();
+            byte b[] = new byte[4096];
+            for (int len; (len = in.read(b)) >= 0;) {
+                crc.update(b, 0, len);
+            }
+            return crc.getValue();
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to read " + file, ioe);
+            return -1L;
+        } finally {
+            if (in != null) { try { in.close(); } catch (IOException ioe) {} }
+        }
+    }
+
+    /**
+    * Applies a property file ("key=value" lines).  All properties are validated before any
+    * property is changed, so that either the whole set is applied or nothing is.
+    */
+    private static boolean _applyProps(File file)
+    {
+
+        /* parse/validate */
+        Vector keys = new Vector();     // KeyValue
+        Vector vals = new Vector();     // KeyValue (parsed copy)
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+            for (String line; (line = in.readLine()) != null;) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+                String keyVal[] = KeyValue.parseKeyValue(line);
+                if ((keyVal == null) || (keyVal.length != 2) || (keyVal[0] == null)) {
+                    Log.error(LOG_NAME, "Invalid property: " + line);
+                    return false;
+                }
+                KeyValue kv = Props.getKeyValue(keyVal[0]);
+                if ((kv == null) || kv.isReadOnly() || kv.isCommand()) {
+                    Log.error(LOG_NAME, "Property not writable: " + keyVal[0]);
+                    return false;
+                }
+                KeyValue val = new KeyValue(kv);
+                if (!val.initFromString(keyVal[1])) {
+                    Log.error(LOG_NAME, "Invalid property value: " + line);
+                    return false;
+                }
+                keys.addElement(kv);
+                vals.addElement(val);
+            }
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to read " + file, ioe);
+            return false;
+        } finally {
+            if (in != null) { try { in.close(); } catch (IOException ioe) {} }
+        }
+
+        /* apply */
+        for (int i = 0; i < keys.size(); i++) {
+            KeyValue kv = (KeyValue)keys.elementAt(i);
+            Object v[] = ((KeyValue)vals.elementAt(i)).getValues();
+            for (int n = 0; n < v.length; n++) {
+                if (v[n] != null) { kv.setValue(v[n], n); } // unspecified values are unchanged
+            }
+        }
+        Props.saveProps();
+        Log.info(LOG_NAME, "Applied " + keys.size() + " properties from " + file.getName());
+        return true;
+
+    }
+
+}
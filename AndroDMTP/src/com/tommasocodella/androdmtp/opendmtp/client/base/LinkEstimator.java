@@ -0,0 +1,232 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class estimates the round trip time and throughput of a duplex link,
+//  from the time between sending an event block and receiving the server
+//  response to that block.  The smoothed RTT and RTT variation are maintained
+//  as described by Jacobson/Karels (RFC 6298), and are used to derive the
+//  duplex read timeout.  The throughput estimate is used to size event blocks
+//  so that each block takes about the same (target) time to be acknowledged.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Vector;
+
+/**
+* Duplex link RTT/throughput estimator.
+*/
+public class LinkEstimator
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final double RTT_ALPHA           = 1.0 / 8.0;    // SRTT gain
+    private static final double RTT_BETA            = 1.0 / 4.0;    // RTTVAR gain
+    private static final int    RTT_K               = 4;            // RTTVAR multiplier
+    private static final double RATE_GAIN           = 1.0 / 4.0;    // throughput/event size gain
+    private static final double MAX_BLOCK_GROWTH    = 2.0;          // per block
+
+    // ------------------------------------------------------------------------
+
+    private Vector  pending     = new Vector(); // sent blocks awaiting a response (oldest first)
+
+    private double  srttMS      = -1.0;         // smoothed RTT (<0 if not yet measured)
+    private double  rttvarMS    = 0.0;          // RTT variation
+    private double  bytesPerSec = 0.0;          // throughput
+    private double  eventBytes  = 0.0;          // average encoded event size
+    private int     blockEvents = 0;            // events per block (0 if not yet sized)
+    private long    sampleCount = 0L;
+
+    /**
+    * Creates a link estimator with no measurements
+    */
+    public LinkEstimator()
+    {
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Records that a block has been sent, and that the server will respond to it
+    * @param bytes The number of bytes in the block
+    * @param events The number of events in the block
+    */
+    public synchronized void blockSent(long bytes, int events)
+    {
+        this.pending.addElement(new long[] { System.currentTimeMillis(), bytes, events });
+    }
+
+    /**
+    * Records the server response to the oldest sent block, and updates the estimates
+    * @return The RTT sample in milliseconds, or -1 if no block was pending
+    */
+    public synchronized long blockAcknowledged()
+    {
+        if (this.pending.isEmpty()) {
+            return -1L;
+        }
+        long blk[] = (long[])this.pending.elementAt(0);
+        this.pending.removeElementAt(0);
+        long rtt = System.currentTimeMillis() - blk[0];
+        if (rtt < 1L) { rtt = 1L; }
+
+        /* RTT (Jacobson/Karels) */
+        if (this.srttMS < 0.0) {
+            this.srttMS   = (double)rtt;
+            this.rttvarMS = (double)rtt / 2.0;
+        } else {
+            double err = (double)rtt - this.srttMS;
+            this.rttvarMS += RTT_BETA  * (Math.abs(err) - this.rttvarMS);
+            this.srttMS   += RTT_ALPHA * err;
+        }
+
+        /* throughput/event size */
+        if (blk[1] > 0L) {
+            double rate = ((double)blk[1] * 1000.0) / (double)rtt;
+            this.bytesPerSec = (this.bytesPerSec <= 0.0)? rate : (this.bytesPerSec + RATE_GAIN * (rate - this.bytesPerSec));
+        }
+        if (blk[2] > 0L) {
+            double size = (double)blk[1] / (double)blk[2];
+            this.eventBytes = (this.eventBytes <= 0.0)? size : (this.eventBytes + RATE_GAIN * (size - this.eventBytes));
+        }
+
+        this.sampleCount++;
+        return rtt;
+    }
+
+    /**
+    * Discards the sent blocks awaiting a response (ie. the session has ended).  The
+    * estimates are retained for the next session.
+    */
+    public synchronized void clearPending()
+    {
+        this.pending.removeAllElements();
+    }
+
+    /**
+    * Discards all measurements (ie. the client is now connected to a different server)
+    */
+    public synchronized void reset()
+    {
+        this.pending.removeAllElements();
+        this.srttMS      = -1.0;
+        this.rttvarMS    = 0.0;
+        this.bytesPerSec = 0.0;
+        this.eventBytes  = 0.0;
+        this.blockEvents = 0;
+        this.sampleCount = 0L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns true if the RTT has been measured
+    * @return True if an RTT sample has been taken
+    */
+    public synchronized boolean hasEstimate()
+    {
+        return (this.srttMS >= 0.0);
+    }
+
+    /**
+    * Returns the smoothed RTT
+    * @return The smoothed RTT in milliseconds, or -1 if not yet measured
+    */
+    public synchronized long getSmoothedRTT()
+    {
+        return (this.srttMS >= 0.0)? (long)(this.srttMS + 0.5) : -1L;
+    }
+
+    /**
+    * Returns the RTT variation
+    * @return The RTT variation in milliseconds
+    */
+    public synchronized long getRTTVariation()
+    {
+        return (long)(this.rttvarMS + 0.5);
+    }
+
+    /**
+    * Returns the throughput
+    * @return The throughput in bytes per second, or 0 if not yet measured
+    */
+    public synchronized long getBytesPerSecond()
+    {
+        return (long)(this.bytesPerSec + 0.5);
+    }
+
+    /**
+    * Returns the read timeout derived from the RTT estimate (srtt + 4*rttvar)
+    * @param minMS The minimum read timeout (also returned if the RTT is not yet measured)
+    * @param maxMS The maximum read timeout
+    * @return The read timeout in milliseconds
+    */
+    public synchronized long getReadTimeout(long minMS, long maxMS)
+    {
+        if (maxMS < minMS) { maxMS = minMS; }
+        if (this.srttMS < 0.0) {
+            return minMS;
+        }
+        long rto = (long)(this.srttMS + (RTT_K * this.rttvarMS) + 0.5);
+        if (rto < minMS) { return minMS; }
+        if (rto > maxMS) { return maxMS; }
+        return rto;
+    }
+
+    /**
+    * Returns the number of events per block which should be acknowledged within the target
+    * block duration.  The block size grows by at most a factor of 2 per block, so that the
+    * estimate converges on the link capacity rather than overshooting it.
+    * @param targetMS The target block duration in milliseconds
+    * @param dftEvents The events per block to use until the throughput has been measured
+    * @param maxEvents The maximum events per block
+    * @return The number of events per block
+    */
+    public synchronized int getBlockEvents(long targetMS, int dftEvents, int maxEvents)
+    {
+        if (this.blockEvents <= 0) {
+            this.blockEvents = dftEvents;
+        }
+        if ((this.bytesPerSec > 0.0) && (this.eventBytes > 0.0)) {
+            double n = (this.bytesPerSec * (double)targetMS) / (1000.0 * this.eventBytes);
+            if (n > (this.blockEvents * MAX_BLOCK_GROWTH)) { n = this.blockEvents * MAX_BLOCK_GROWTH; }
+            this.blockEvents = (int)n;
+        }
+        if (this.blockEvents > maxEvents) { this.blockEvents = maxEvents; }
+        if (this.blockEvents < 1) { this.blockEvents = 1; }
+        return this.blockEvents;
+    }
+
+    /**
+    * Returns the number of events per block last returned by 'getBlockEvents'
+    * @return The number of events per block, or 0 if blocks are not being sized
+    */
+    public synchronized int getLastBlockEvents()
+    {
+        return this.blockEvents;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public String toString()
+    {
+        return "srtt=" + this.getSmoothedRTT() + "ms rttvar=" + this.getRTTVariation() + "ms rate=" + this.getBytesPerSecond() + "B/s";
+    }
+
+}
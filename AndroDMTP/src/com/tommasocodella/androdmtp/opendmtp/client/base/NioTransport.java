@@ -0,0 +1,375 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class implements the Transport interface over non-blocking NIO
+//  channels, for use with the ProtocolEngine.  Packets written by the Protocol
+//  handler are buffered and flushed by the engine when the channel is
+//  writable, and packets received by the engine are framed from the input
+//  buffer.  This transport never blocks the calling thread.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.util.TimeoutException;
+
+/**
+* Non-blocking (NIO) Transport driven by a ProtocolEngine.
+*/
+public class NioTransport
+    implements Transport
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "NIOXP";
+
+    private static final int    INPUT_SIZE          = 4096;
+    private static final int    OUTPUT_SIZE         = 8192;
+    private static final int    MAX_ASCII_PACKET    = 600;
+
+    public  static final int    DEFAULT_READ_TIMEOUT = 3000;   // milliseconds
+
+    // ------------------------------------------------------------------------
+
+    private String          host        = null;
+    private int             port        = 0;
+    private int             xportType   = Protocol.TRANSPORT_NONE;
+    private int             readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private SocketChannel   socket      = null;
+    private DatagramChannel datagram    = null;
+
+    private ByteBuffer      input       = ByteBuffer.allocate(INPUT_SIZE);   // read mode after 'fill'
+    private ByteBuffer      output      = ByteBuffer.allocate(OUTPUT_SIZE);  // write mode
+
+    /**
+    * Creates a transport which connects to the host:port specified in the client properties
+    */
+    public NioTransport()
+    {
+        this(null, 0);
+    }
+
+    /**
+    * Creates a transport which connects to the specified host:port
+    * @param host The DMTP server host
+    * @param port The DMTP server port
+    */
+    public NioTransport(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+        this.input.flip(); // empty
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sets the server to which the transport connects when it is next opened.
+    * @param host The server host, or null to use the host:port specified in the client properties
+    * @param port The server port
+    */
+    public void setServer(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+    * Sets the duplex read timeout.  The ProtocolEngine uses this timeout while waiting
+    * for the server response.
+    * @param timeoutMS The read timeout in milliseconds
+    */
+    public void setReadTimeout(int timeoutMS)
+    {
+        this.readTimeout = timeoutMS;
+    }
+
+    /**
+    * Returns the duplex read timeout
+    * @return The read timeout in milliseconds
+    */
+    public int getReadTimeout()
+    {
+        return this.readTimeout;
+    }
+
+    /**
+    * Returns the address of the DMTP server, or null if the host/port are not specified
+    * @return The server address
+    */
+    public InetSocketAddress getServerAddress()
+    {
+        String h = (this.host != null)? this.host : Props.getString(Props.PROP_COMM_DMTP_HOST, "");
+        int    p = (this.host != null)? this.port : (int)Props.getLong(Props.PROP_COMM_DMTP_PORT, 0, 0L);
+        if ((h == null) || h.equals("") || (p <= 0)) {
+            return null;
+        }
+        return new InetSocketAddress(h, p);
+    }
+
+    /**
+    * Sets the (connected, or connecting) duplex channel.  Called by the ProtocolEngine.
+    * @param channel The socket channel
+    */
+    public void setSocketChannel(SocketChannel channel)
+    {
+        this.socket = channel;
+        this.input.clear().flip();
+        this.output.clear();
+    }
+
+    /**
+    * Returns the duplex channel
+    * @return The socket channel, or null if none
+    */
+    public SocketChannel getSocketChannel()
+    {
+        return this.socket;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns true if the transport is open.
+    * @return True if transport is open
+    */
+    public boolean isOpen()
+    {
+        return (this.xportType != Protocol.TRANSPORT_NONE);
+    }
+
+    /**
+    * Opens the transport.  A duplex transport must already have been connected by the
+    * ProtocolEngine, a simplex transport opens an unconnected DatagramChannel.
+    * @param xportType The transport type
+    * @return true, if successful
+    */
+    public boolean open(int xportType)
+    {
+        if (this.isOpen()) {
+            Log.warn(LOG_NAME, "Transport seems to still be open!");
+            this.close(false);
+        }
+        this.output.clear();
+        switch (xportType) {
+            case Protocol.TRANSPORT_SIMPLEX:
+                try {
+                    this.datagram = DatagramChannel.open();
+                    this.datagram.configureBlocking(false);
+                } catch (IOException ioe) {
+                    Log.error(LOG_NAME, "Unable to open DatagramChannel", ioe);
+                    return false;
+                }
+                break;
+            case Protocol.TRANSPORT_DUPLEX:
+                if ((this.socket == null) || !this.socket.isConnected()) {
+                    Log.error(LOG_NAME, "SocketChannel not connected");
+                    return false;
+                }
+                break;
+            default:
+                Log.error(LOG_NAME, "Invalid Transport type: " + xportType);
+                return false;
+        }
+        this.xportType = xportType;
+        return true;
+    }
+
+    /**
+    * Closes the transport.  A simplex transport sends the buffered datagram, a duplex
+    * transport makes a final attempt to flush buffered output.
+    * @param sendUDP True to send the buffered simplex datagram
+    * @return true, if successful
+    */
+    public boolean close(boolean sendUDP)
+    {
+        boolean rtn = true;
+
+        /* simplex */
+        if (this.datagram != null) {
+            if (sendUDP && (this.output.position() > 0)) {
+                InetSocketAddress addr = this.getServerAddress();
+                try {
+                    this.output.flip();
+                    int len = this.output.remaining();
+                    if ((addr == null) || (this.datagram.send(this.output, addr) < len)) {
+                        Log.error(LOG_NAME, "Unable to send UDP");
+                        rtn = false;
+                    }
+                } catch (IOException ioe) {
+                    Log.error(LOG_NAME, "Unable to send UDP", ioe);
+                    rtn = false;
+                }
+            }
+            try { this.datagram.close(); } catch (IOException ioe) {}
+            this.datagram = null;
+        }
+
+        /* duplex */
+        if (this.socket != null) {
+            try { this.flush(); } catch (IOException ioe) {}
+            try { this.socket.close(); } catch (IOException ioe) {}
+            this.socket = null;
+        }
+
+        this.output.clear();
+        this.input.clear().flip();
+        this.xportType = Protocol.TRANSPORT_NONE;
+        return rtn;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the next complete packet in the input buffer.  This method does not read from
+    * the channel (see 'fill').
+    * @return The next packet
+    * @throws TimeoutException if no complete packet is available
+    */
+    public byte[] readPacket()
+        throws TimeoutException
+    {
+        byte p[] = this.nextPacket();
+        if (p == null) {
+            throw new TimeoutException("No packet available");
+        }
+        return p;
+    }
+
+    /**
+    * Returns the next complete packet in the input buffer.
+    * @return The next packet, or null if no complete packet is available
+    */
+    public byte[] nextPacket()
+    {
+        ByteBuffer in = this.input;
+        int avail = in.remaining();
+        if (avail <= 0) {
+            return null;
+        }
+        int start = in.position();
+        if (in.get(start) == Encoding.AsciiEncodingChar) {
+            // ASCII packet, terminated by EOL
+            for (int i = 1; (i < avail) && (i < MAX_ASCII_PACKET); i++) {
+                if (in.get(start + i) == Encoding.AsciiEndOfLineChar) {
+                    byte p[] = new byte[i];
+                    in.get(p);
+                    in.get(); // EOL
+                    return p;
+                }
+            }
+            return null;
+        } else
+        if (avail >= Packet.MIN_HEADER_LENGTH) {
+            int len = Packet.MIN_HEADER_LENGTH + ((int)in.get(start + 2) & 0xFF);
+            if (avail >= len) {
+                byte p[] = new byte[len];
+                in.get(p);
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+    * Reads available data from the duplex channel into the input buffer.
+    * @return The number of bytes read, or -1 if the channel has reached end-of-stream
+    * @throws IOException if a read error occurs
+    */
+    public int fill()
+        throws IOException
+    {
+        this.input.compact();
+        int len = this.socket.read(this.input);
+        this.input.flip();
+        return len;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Buffers a packet for transmission.  Duplex output is sent when the engine flushes the
+    * transport, simplex output is sent on 'close'.
+    * @param b The packet to be written
+    * @return The length written, or -1 if the output buffer is full
+    */
+    public int writePacket(byte b[])
+    {
+        if (!this.isOpen()) {
+            Log.warn(LOG_NAME, "Transport not open!");
+            return -1;
+        }
+        if (b.length > this.output.remaining()) {
+            try {
+                this.flush();
+            } catch (IOException ioe) {
+                Log.error(LOG_NAME, "Unable to write packet");
+                return -1;
+            }
+            if (b.length > this.output.remaining()) {
+                ByteBuffer n = ByteBuffer.allocate(this.output.capacity() * 2 + b.length);
+                this.output.flip();
+                n.put(this.output);
+                this.output = n;
+            }
+        }
+        this.output.put(b);
+        return b.length;
+    }
+
+    /**
+    * Returns true if buffered duplex output is waiting to be sent
+    * @return True if output is pending
+    */
+    public boolean hasPendingOutput()
+    {
+        return (this.socket != null) && (this.output.position() > 0);
+    }
+
+    /**
+    * Writes as much buffered duplex output as the channel will accept.
+    * @return True if all buffered output has been written
+    * @throws IOException if a write error occurs (buffered output is discarded)
+    */
+    public boolean flush()
+        throws IOException
+    {
+        if ((this.socket == null) || (this.output.position() == 0)) {
+            return true;
+        }
+        this.output.flip();
+        try {
+            this.socket.write(this.output);
+            this.output.compact();
+        } catch (IOException ioe) {
+            this.output.clear();
+            throw ioe;
+        }
+        return (this.output.position() == 0);
+    }
+
+}
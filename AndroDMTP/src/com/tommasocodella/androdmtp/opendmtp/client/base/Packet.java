@@ -134,6 +134,17 @@ public class Packet
     // Property packet
     public static final int     PKT_CLIENT_PROPERTY_VALUE   = 0xB0;    // Property value
     
+    // Compressed packets (see PROP_COMM_COMPRESSION)
+    public static final int     PKT_CLIENT_DEFLATE_DATA     = 0xC8;    // DEFLATE compressed packets
+
+    // Bulk backlog catch-up (see PROP_COMM_CATCHUP)
+    public static final int     PKT_CLIENT_CATCHUP_REQUEST  = 0xC9;    // Catch-up session request
+
+    // Packed event packets (see PROP_COMM_PACKED_EVENTS)
+    public static final int     PKT_CLIENT_PACKED_FMT_STD   = 0xCA;    // Packed standard GPS
+    public static final int     PKT_CLIENT_PACKED_FMT_HIGH  = 0xCB;    // Packed high resolution GPS
+    public static final int     PKT_CLIENT_DELTA_FMT_STD    = 0xCC;    // Delta encoded standard GPS
+
     // Custom format packet
     public static final int     PKT_CLIENT_FORMAT_DEF_24    = 0xCF;    // Custom format definition (24 bit field def)
 
@@ -158,6 +169,9 @@ public class Packet
     // File upload packet
     public static final int     PKT_SERVER_FILE_UPLOAD      = 0xC0;    // "%1x%3u%*b" : File upload
 
+    // Bulk backlog catch-up (see PROP_COMM_CATCHUP)
+    public static final int     PKT_SERVER_CATCHUP_ACCEPT   = 0xC9;    // "%2u%1u" : Catch-up session accepted
+
     // Error packets
     public static final int     PKT_SERVER_ERROR            = 0xE0;    // "%2u"    : NAK/Error codes
     
@@ -195,6 +209,48 @@ public class Packet
         }
     );
 
+    // The packed event templates carry the fields of the fixed format event, followed by 
+    // repeated binary records with the same layout (one record per further event).
+    private static PayloadTemplate ClientPackedEvent_CA = _createPackedTemplate(
+        Packet.PKT_CLIENT_PACKED_FMT_STD,
+        ClientCustomEvent_30
+    );
+
+    private static PayloadTemplate ClientPackedEvent_CB = _createPackedTemplate(
+        Packet.PKT_CLIENT_PACKED_FMT_HIGH,
+        ClientCustomEvent_31
+    );
+
+    // The delta event template carries the fields of the standard fixed format event (the
+    // keyframe), followed by repeated delta records (see EventDelta).
+    private static PayloadTemplate ClientDeltaEvent_CC = _createPackedTemplate(
+        Packet.PKT_CLIENT_DELTA_FMT_STD,
+        ClientCustomEvent_30,
+        EventDelta.DELTA_LENGTH
+    );
+
+    /**
+    * Returns a packed event template, consisting of the fields of the specified template
+    * followed by a repeated binary record of the same length as these fields
+    */
+    private static PayloadTemplate _createPackedTemplate(int type, PayloadTemplate template)
+    {
+        return _createPackedTemplate(type, template, template.getFieldsLength());
+    }
+
+    /**
+    * Returns a packed event template, consisting of the fields of the specified template
+    * followed by a repeated binary record of the specified length
+    */
+    private static PayloadTemplate _createPackedTemplate(int type, PayloadTemplate template, int recordLen)
+    {
+        PayloadTemplate.Field tf[] = template.getFields();
+        PayloadTemplate.Field pf[] = new PayloadTemplate.Field[tf.length + 1];
+        System.arraycopy(tf, 0, pf, 0, tf.length);
+        pf[tf.length] = new PayloadTemplate.Field(PayloadTemplate.FIELD_BINARY, false, 0, recordLen);
+        return new PayloadTemplate(type, pf, true);
+    }
+
     // ------------------------------------------------------------------------
     // packet payload templates
     // overloaded types:
@@ -256,6 +312,22 @@ public class Packet
         true
     );
 
+    private static PayloadTemplate ClientTemplate_DeflateData = new PayloadTemplate(
+        Packet.PKT_CLIENT_DEFLATE_DATA,
+        new PayloadTemplate.Field[] {
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_BINARY      , false, 0,255), // compressed data
+        }
+    );
+
+    private static PayloadTemplate ClientTemplate_CatchupRequest = new PayloadTemplate(
+        Packet.PKT_CLIENT_CATCHUP_REQUEST,
+        new PayloadTemplate.Field[] {
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_STATUS_CODE , false, 0,  4), // queued events
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_STATUS_CODE , false, 0,  2), // events per block
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_STATUS_CODE , false, 0,  1), // window
+        }
+    );
+
     private static PayloadTemplate ClientTemplate_Diagnostic = new PayloadTemplate(
         Packet.PKT_CLIENT_DIAGNOSTIC,
         new PayloadTemplate.Field[] {
@@ -278,6 +350,9 @@ public class Packet
     private static PayloadTemplate ClientEventPayloadTemplate_table[] = {
         ClientCustomEvent_30,
         ClientCustomEvent_31,
+        ClientPackedEvent_CA,
+        ClientPackedEvent_CB,
+        ClientDeltaEvent_CC,
     };
 
     private static PayloadTemplate ClientStandardPayloadTemplate_table[] = {
@@ -288,6 +363,8 @@ public class Packet
         ClientTemplate_Device_ID,
         ClientTemplate_PropertyValue,
         ClientTemplate_CustomDef,
+        ClientTemplate_DeflateData,
+        ClientTemplate_CatchupRequest,
         ClientTemplate_Diagnostic,
         ClientTemplate_Error
     };
@@ -315,6 +392,70 @@ public class Packet
         return null;
     }
 
+    /**
+    * Returns the length of the sequence field of the specified client event packet type
+    * @param type The packet type
+    * @return The sequence field length (in bytes), or 0 if the packet has no sequence field
+    */
+    public static int GetSequenceLength(int type)
+    {
+        PayloadTemplate plt = GetClientPayloadTemplate(type);
+        PayloadTemplate.Field fld[] = (plt != null)? plt.getFields() : null;
+        for (int i = 0; (fld != null) && (i < fld.length); i++) {
+            if (fld[i].getType() == PayloadTemplate.FIELD_SEQUENCE) {
+                return fld[i].getLength();
+            }
+        }
+        return 0;
+    }
+
+    /**
+    * Returns the packed event packet type for the specified fixed format event packet type
+    * @param type The event packet type
+    * @return The packed event packet type, or -1 if events of this type cannot be packed
+    */
+    public static int GetPackedEventType(int type)
+    {
+        switch (type) {
+            case PKT_CLIENT_FIXED_FMT_STD : return PKT_CLIENT_PACKED_FMT_STD;
+            case PKT_CLIENT_FIXED_FMT_HIGH: return PKT_CLIENT_PACKED_FMT_HIGH;
+            default                       : return -1;
+        }
+    }
+
+    /**
+    * Returns the length of the record which the specified event packet adds to a packed event
+    * packet.
+    * @param prev The previous event packet in the packed event packet, or null if the event
+    *        is the first event
+    * @param pkt The event packet
+    * @param delta True to delta encode events of the standard fixed format
+    * @return The record length, or -1 if the event cannot follow the previous event
+    */
+    public static int GetPackedRecordLength(Packet prev, Packet pkt, boolean delta)
+    {
+        int type = pkt.getPacketType();
+        if (GetPackedEventType(type) < 0) {
+            return -1; // not packed
+        }
+        int len = pkt.getPayload(false).getSize();
+        if (len != GetClientPayloadTemplate(type).getFieldsLength()) {
+            return -1; // not a complete fixed format record
+        } else
+        if (prev == null) {
+            return len;
+        } else
+        if (type != prev.getPacketType()) {
+            return -1;
+        } else
+        if (delta && (type == PKT_CLIENT_FIXED_FMT_STD)) {
+            byte d[] = EventDelta.encode(prev.getPayload(true).getBytes(), pkt.getPayload(true).getBytes());
+            return (d != null)? d.length : -1;
+        } else {
+            return len;
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Server Payload template table
 
@@ -350,6 +491,14 @@ public class Packet
         }
     );
 
+    private static PayloadTemplate ServerTemplate_CatchupAccept = new PayloadTemplate(
+        Packet.PKT_SERVER_CATCHUP_ACCEPT,
+        new PayloadTemplate.Field[] {
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_STATUS_CODE , false, 0,  2), // events per block
+            new PayloadTemplate.Field(PayloadTemplate.FIELD_STATUS_CODE , false, 0,  1), // window
+        }
+    );
+
     private static PayloadTemplate ServerTemplate_Error = new PayloadTemplate(
         Packet.PKT_SERVER_ERROR,
         new PayloadTemplate.Field[] {
@@ -370,6 +519,7 @@ public class Packet
         ServerTemplate_Ack,
         ServerTemplate_GetProperty,
         ServerTemplate_SetProperty,
+        ServerTemplate_CatchupAccept,
         ServerTemplate_Error,
         ServerTemplate_EndOfTransmission
     };
@@ -539,9 +689,10 @@ public class Packet
                         payload.writeULong(ds, length);
                     }
                     break;
-                case PayloadTemplate.FIELD_SEQUENCE     : // %1u 0 to 255
-                    sequence = (Packet.eventSequence++) & ((1L << (length * 8)) - 1L);
-                    payload.writeULong(sequence, length);
+                case PayloadTemplate.FIELD_SEQUENCE     : // %1u 0 to 255                 %4u 0 to 4294967295
+                    // the packet retains the full sequence, the payload field carries the low-order bytes
+                    sequence = DmtpClientContext.getCurrent().getEventSequence().next();
+                    payload.writeULong(Packet.maskSequence(sequence, length), length);
                     break;
                 // other fields may be needed for other PayloadTemplates
             }
@@ -554,6 +705,72 @@ public class Packet
         return pkt;
     }
 
+    /**
+    * Creates a packed event packet from the specified event packets.  The events must be of
+    * the same fixed format event packet type, and must fit within the maximum payload length
+    * (see 'GetPackedRecordLength').  The events retain their queued payloads (and sequence 
+    * numbers), the packed packet sequence is that of the last event.
+    * @param events The event packets
+    * @param count The number of event packets to pack
+    * @param delta True to delta encode events of the standard fixed format
+    * @return The packed event packet
+    */
+    public static Packet createClientPackedPacket(Packet events[], int count, boolean delta)
+    {
+        int type = events[0].getPacketType();
+        delta = delta && (type == PKT_CLIENT_FIXED_FMT_STD);
+        Packet pkt = Packet.createClientPacket(delta? PKT_CLIENT_DELTA_FMT_STD : GetPackedEventType(type));
+        Payload payload = pkt.getPayload(false);
+        byte prev[] = null;
+        for (int i = 0; i < count; i++) {
+            byte b[] = events[i].getPayload(true).getBytes();
+            byte r[] = (delta && (prev != null))? EventDelta.encode(prev, b) : b;
+            payload.writeBytes(r, r.length);
+            prev = b;
+        }
+        pkt.setPriority(events[0].getPriority());
+        pkt.setEventSequence(events[count - 1].getEventSequence());
+        return pkt;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the low-order bytes of the specified sequence number, as carried by a sequence
+    * field of the specified length.
+    * @param seq The sequence number
+    * @param len The sequence field length (in bytes)
+    * @return The masked sequence number
+    */
+    public static long maskSequence(long seq, int len)
+    {
+        return (len >= 8)? seq : (seq & ((1L << (len * 8)) - 1L));
+    }
+
+    /**
+    * Compares two sequence numbers using serial number arithmetic over a sequence field of
+    * the specified length, so that a sequence which has just wrapped around to 0 compares
+    * as newer than one just before the wrap.
+    * @param seq1 The first sequence number
+    * @param seq2 The second sequence number
+    * @param len The sequence field length (in bytes)
+    * @return <0 if 'seq1' is older than 'seq2', 0 if equal, >0 if 'seq1' is newer
+    */
+    public static int compareSequence(long seq1, long seq2, int len)
+    {
+        long diff;
+        if (len >= 8) {
+            diff = seq1 - seq2;
+        } else {
+            int bits = len * 8;
+            diff = maskSequence(seq1 - seq2, len);
+            if (diff >= (1L << (bits - 1))) {
+                diff -= (1L << bits);
+            }
+        }
+        return (diff < 0L)? -1 : ((diff > 0L)? 1 : 0);
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -580,17 +797,18 @@ public class Packet
     
     // ------------------------------------------------------------------------
     
-    private static long eventSequence = 0L;
-    
     private int      encoding           = Encoding.ENCODING_BINARY;
     private boolean  hasAsciiChecksum   = false;
     private boolean  isClient           = true;
     private int      header             = 0;
     private int      type               = 0;
     private Payload  payload            = null;
-    private boolean  isSent             = false;
+    private volatile boolean isSent     = false;
+    private int      sentBlock          = 0;
     private int      priority           = PRIORITY_NORMAL;
     private long     sequence           = 0L;
+    private long     logPosition        = -1L;
+    private int      delivered          = 0;
     
     /**
     * Empty Packet constructor for creating either client or server packets
@@ -794,6 +1012,28 @@ public class Packet
     public void setSent(boolean sent)
     {
         this.isSent = sent;
+        if (!sent) {
+            this.sentBlock = 0;
+        }
+    }
+
+    /**
+    * Marks the packet as sent within the specified (duplex) transmission block.
+    * @param block The block tag (1 to 127)
+    */
+    public void setSentBlock(int block)
+    {
+        this.sentBlock = block;
+        this.setSent(true);
+    }
+
+    /**
+    * Gets the transmission block in which the packet was sent.
+    * @return The block tag, or 0 if the packet was not sent within a tagged block
+    */
+    public int getSentBlock()
+    {
+        return this.sentBlock;
     }
 
     /**
@@ -847,6 +1087,45 @@ public class Packet
 
     // ------------------------------------------------------------------------
 
+    /**
+    * Sets the position of this packet in the durable EventLog.
+    * @param pos The log position, or -1 if the packet has not been logged.
+    */
+    public void setLogPosition(long pos)
+    {
+        this.logPosition = pos;
+    }
+
+    /**
+    * Gets the position of this packet in the durable EventLog.
+    * @return The log position, or -1 if the packet has not been logged.
+    */
+    public long getLogPosition()
+    {
+        return this.logPosition;
+    }
+
+    /**
+    * Sets the destinations which have acknowledged this packet (see 
+    * PacketQueue.setDeliveryMask).
+    * @param mask The destination mask (bit N for destination N)
+    */
+    public void setDelivered(int mask)
+    {
+        this.delivered = mask & 0xFF;
+    }
+
+    /**
+    * Gets the destinations which have acknowledged this packet.
+    * @return The destination mask (bit N for destination N)
+    */
+    public int getDelivered()
+    {
+        return this.delivered;
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
     * Sets the packet's encoding format.
     * @param encoding encoding format.
@@ -929,6 +1208,9 @@ public class Packet
         } else
         if ((t >= PKT_CLIENT_DMTSP_FMT_0) && (t <= PKT_CLIENT_DMTSP_FMT_F)) {
             return true;
+        } else
+        if ((t == PKT_CLIENT_PACKED_FMT_STD) || (t == PKT_CLIENT_PACKED_FMT_HIGH) || (t == PKT_CLIENT_DELTA_FMT_STD)) {
+            return true;
         } else {
             return false;
         }
@@ -6,9 +6,9 @@
 // Licensed under the Apache License, Version 2.0 (the "License");
 // you may not use this file except in compliance with the License.
 // You may obtain a copy of the License at
-// 
+//
 // http://www.apache.org/licenses/LICENSE-2.0
-// 
+//
 // Unless required by applicable law or agreed to in writing, software
 // distributed under the License is distributed on an "AS IS" BASIS,
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -30,29 +30,722 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.client.base;
 
-import java.util.Enumeration;
+import java.io.File;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.tommasocodella.androdmtp.opendmtp.codes.StatusCodes;
 import com.tommasocodella.androdmtp.opendmtp.util.GeoEvent;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoPoint;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
 
 /**
 * A Queue that contains Packets to be sent to the server.
 */
 public class PacketQueue
 {
-    
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME = "QUEUE";
+
+    private static final int    INITIAL_CAPACITY = 16; // must be a power of 2
+
+    // ------------------------------------------------------------------------
+    // Overflow policies (see PROP_COMM_QUEUE_POLICY)
+
+    public  static final int    OVERFLOW_REFUSE     = 0; // refuse new packets
+    public  static final int    OVERFLOW_DROP_LOW   = 1; // drop oldest low priority packets
+    public  static final int    OVERFLOW_COALESCE   = 2; // thin in-motion/dormant runs, then drop oldest low
+
+    private static final int    COUNT_DROPPED       = 0; // PROP_STATE_QUEUE_OVERFLOW indices
+    private static final int    COUNT_COALESCED     = 1;
+    private static final int    COUNT_REFUSED       = 2;
+    private static final int    COUNT_THINNED       = 3;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * A growable circular buffer of EventSlab record handles, with O(1) append, indexed
+    * access and head removal (removal at an index is O(index)).  Not thread safe, the 
+    * caller is expected to synchronize.
+    */
+    private static class Ring
+    {
+        private int     ring[]  = new int[INITIAL_CAPACITY];
+        private int     head    = 0;
+        private int     size    = 0;
+        public int size()
+        {
+            return this.size;
+        }
+        public int elementAt(int ndx)
+        {
+            return this.ring[(this.head + ndx) & (this.ring.length - 1)];
+        }
+        public int lastElement()
+        {
+            return this.elementAt(this.size - 1);
+        }
+        public void addElement(int h)
+        {
+            if (this.size == this.ring.length) {
+                int n[] = new int[this.ring.length * 2];
+                for (int i = 0; i < this.size; i++) {
+                    n[i] = this.elementAt(i);
+                }
+                this.ring = n;
+                this.head = 0;
+            }
+            this.ring[(this.head + this.size) & (this.ring.length - 1)] = h;
+            this.size++;
+        }
+        public int removeFirst()
+        {
+            int h = this.ring[this.head];
+            this.head = (this.head + 1) & (this.ring.length - 1);
+            this.size--;
+            return h;
+        }
+        public int removeAt(int ndx)
+        {
+            int mask = this.ring.length - 1;
+            int h = this.elementAt(ndx);
+            for (int i = ndx; i > 0; i--) {
+                this.ring[(this.head + i) & mask] = this.ring[(this.head + i - 1) & mask];
+            }
+            this.head = (this.head + 1) & mask;
+            this.size--;
+            return h;
+        }
+        public void removeAllElements()
+        {
+            this.ring = new int[INITIAL_CAPACITY];
+            this.head = 0;
+            this.size = 0;
+        }
+    }
+
+    /**
+    * Queue listener, notified when packets are added
+    */
+    public interface Listener
+    {
+        /**
+        * Called by the producer thread when a packet is added to an empty inbox (ie. the
+        * first packet of a burst), or when a high priority packet is added.
+        * @param priority The priority of the added packet
+        */
+        public void packetQueued(int priority);
+    }
+
+    /**
+    * A packet published by a producer thread which has not yet been moved into its lane.
+    */
+    private static class Inbound
+    {
+        public Packet   packet  = null;
+        public EventLog log     = null; // the log to which the packet was appended, if any
+        public Inbound  next    = null;
+        public Inbound(Packet pkt, EventLog log)
+        {
+            this.packet = pkt;
+            this.log    = log;
+        }
+    }
+
     // ------------------------------------------------------------------------
-    
-    private Vector  queue = null;
-    
+
+    private AtomicReference inbox       = new AtomicReference(); // Inbound stack (newest first)
+    private Listener    listener        = null;
+
+    private Object      queueLock       = new Object();
+    private Ring        lanes[]         = null; // one FIFO lane per priority (LOW..HIGH)
+    private EventSlab   store[]         = null; // packet records for each lane
+    private volatile EventLog eventLog  = null; // also read by producers (see 'addPacket')
+
+    private long        queuedBytes     = 0L;
+    private int         maxPackets      = 0;    // 0 == unlimited
+    private long        maxBytes        = 0L;   // 0 == unlimited
+    private int         overflowPolicy  = OVERFLOW_DROP_LOW;
+    private boolean     overwriteEnabled= true;
+    private long        overflowCount[] = new long[4];
+
+    private int         deliveryMask    = 0;    // required destinations, 0 == any single destination
+    private int         destination     = -1;   // current destination, -1 if none
+
     /**
     * Creates a new PacketQueue instance that contains packets to be sent to the server.
     */
     public PacketQueue()
     {
-        this.queue = new Vector();
+        this.lanes = new Ring[Packet.PRIORITY_HIGH + 1];
+        this.store = new EventSlab[Packet.PRIORITY_HIGH + 1];
+        for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+            this.lanes[pri] = new Ring();
+            this.store[pri] = new EventSlab();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Backs this queue with a durable EventLog kept in the specified directory.  Packets
+    * recovered from the log are placed ahead of any packets currently in this queue.
+    * @param dir The directory containing the log files
+    * @return True if the log was opened successfully
+    */
+    public boolean openEventLog(File dir)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            this.closeEventLog();
+            EventLog log = new EventLog(dir);
+            Vector recovered = new Vector();
+            if (!log.open(recovered)) {
+                Log.error(LOG_NAME, "Event log unavailable, queue is not durable");
+                return false;
+            }
+            Ring existing[] = this.lanes;
+            this.lanes = new Ring[existing.length];
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                this.lanes[pri] = new Ring();
+            }
+            for (int i = 0; i < recovered.size(); i++) {
+                this._append((Packet)recovered.elementAt(i));
+            }
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                Ring lane = existing[pri];
+                for (int i = 0; i < lane.size(); i++) {
+                    int h = lane.elementAt(i);
+                    this.store[pri].setLogPosition(h, log.append(this.store[pri].getPacket(h)));
+                    this.lanes[pri].addElement(h);
+                }
+            }
+            this.eventLog = log;
+            this._makeRoom(null);
+            return true;
+        }
+    }
+
+    /**
+    * Flushes the durable EventLog (if any) to storage.
+    */
+    public void syncEventLog()
+    {
+        EventLog log = this.eventLog;
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+    * Syncs and closes the durable EventLog (if any).  Packets remain in memory.
+    */
+    public void closeEventLog()
+    {
+        synchronized (this.queueLock) {
+            if (this.eventLog != null) {
+                this.eventLog.close();
+                this.eventLog = null;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sets the destinations which must acknowledge each packet before it is removed from
+    * this queue.  Each destination acknowledges packets independently (see 'setDestination').
+    * @param mask The required destination mask (bit N for destination N), or 0 if a packet
+    *        is removed once it has been acknowledged by any destination.
+    */
+    public void setDeliveryMask(int mask)
+    {
+        synchronized (this.queueLock) {
+            this.deliveryMask = mask & 0xFF;
+        }
+    }
+
+    /**
+    * Returns the required destination mask
+    * @return The required destination mask
+    */
+    public int getDeliveryMask()
+    {
+        return this.deliveryMask;
+    }
+
+    /**
+    * Sets the destination to which packets are about to be sent.  Packets which have already
+    * been acknowledged by this destination are treated as 'sent' (they are neither sent again
+    * nor acknowledged again), and packets subsequently acknowledged are marked as delivered
+    * to this destination, until all required destinations have acknowledged them.
+    * @param dest The destination index (0 to 7), or -1 if none
+    */
+    public void setDestination(int dest)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            this.destination = dest;
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                this.store[pri].setDestination(dest);
+            }
+        }
+    }
+
+    /**
+    * Returns true if this queue contains packets which have not yet been acknowledged by the
+    * specified destination
+    * @param dest The destination index
+    * @return True if packets are pending for the destination
+    */
+    public boolean hasPendingPackets(int dest)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                if (this.store[pri].getPendingCount(dest) > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+    * Acknowledges the packet at the specified lane index for the current destination.  The
+    * packet is removed (and its records released) once all required destinations have
+    * acknowledged it, otherwise it is marked as delivered to the current destination.
+    * (must be called while synchronized on 'this.queueLock')
+    * @return True if the packet was removed
+    */
+    private boolean _acknowledge(int pri, int ndx)
+    {
+        if ((this.deliveryMask != 0) && (this.destination >= 0)) {
+            EventSlab slab = this.store[pri];
+            int h = this.lanes[pri].elementAt(ndx);
+            int delivered = slab.getDelivered(h) | (1 << this.destination);
+            if ((delivered & this.deliveryMask) != this.deliveryMask) {
+                slab.setSent(h, false);
+                slab.setDelivered(h, delivered);
+                long logPos = slab.getLogPosition(h);
+                if ((this.eventLog != null) && (logPos >= 0L)) {
+                    this.eventLog.setDelivered(logPos, delivered);
+                }
+                return false;
+            }
+        }
+        this._release(pri, this.lanes[pri].removeAt(ndx));
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the lane index for the specified packet priority
+    */
+    private static int _laneIndex(int pri)
+    {
+        if (pri <= Packet.PRIORITY_LOW) {
+            return Packet.PRIORITY_LOW;
+        } else
+        if (pri >= Packet.PRIORITY_HIGH) {
+            return Packet.PRIORITY_HIGH;
+        } else {
+            return pri;
+        }
+    }
+
+    /**
+    * Appends a packet to the end of the lane matching its priority.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _append(Packet pkt)
+    {
+        int pri = _laneIndex(pkt.getPriority());
+        this.lanes[pri].addElement(this.store[pri].add(pkt));
+        this.queuedBytes += pkt.getPacketLength();
+    }
+
+    /**
+    * Releases the record, and the log record (if any), of a packet which has been removed
+    * from the specified lane.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _release(int pri, int h)
+    {
+        EventSlab slab = this.store[pri];
+        this.queuedBytes -= slab.getPacketLength(h);
+        long logPos = slab.getLogPosition(h);
+        if ((this.eventLog != null) && (logPos >= 0L)) {
+            this.eventLog.release(logPos);
+        }
+        slab.release(h);
     }
-        
+
+    /**
+    * Removes the first packet from the specified lane, and releases the packet's 
+    * record and log record (if any).
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _removeFirst(int pri)
+    {
+        this._release(pri, this.lanes[pri].removeFirst());
+    }
+
+    /**
+    * Removes all packets from all lanes.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _clear()
+    {
+        for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+            this.lanes[pri].removeAllElements();
+            this.store[pri].clear();
+        }
+        this.queuedBytes = 0L;
+    }
+
+    /**
+    * Returns the total number of packets in all lanes.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private int _size()
+    {
+        int size = 0;
+        for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+            size += this.lanes[pri].size();
+        }
+        return size;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sets the maximum size of this queue, and the policy used to make room for new
+    * packets when the maximum has been reached.
+    * @param maxPackets The maximum number of queued packets (0 for no limit)
+    * @param maxBytes The maximum number of queued packet bytes (0 for no limit)
+    * @param policy The overflow policy (OVERFLOW_REFUSE, OVERFLOW_DROP_LOW, OVERFLOW_COALESCE)
+    */
+    public void setLimits(int maxPackets, long maxBytes, int policy)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            this.maxPackets     = (maxPackets > 0)? maxPackets : 0;
+            this.maxBytes       = (maxBytes > 0L)? maxBytes : 0L;
+            this.overflowPolicy = policy;
+            this._makeRoom(null);
+        }
+    }
+
+    /**
+    * Enables/Disables removal of queued packets to make room for new packets.  Overwrites
+    * should be disabled while connected to the server, since the queued packets are then
+    * being referenced by index.  While disabled, new packets are accepted beyond the limits
+    * and the queue is trimmed back to its limits when overwrites are re-enabled.
+    * @param enable True to enable overwrites
+    */
+    public void enableOverwrite(boolean enable)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            this.overwriteEnabled = enable;
+            if (enable) {
+                this._makeRoom(null);
+            }
+        }
+    }
+
+    /**
+    * Returns the number of packets dropped, coalesced, or refused due to queue overflow.
+    * @param ndx 0=dropped, 1=coalesced, 2=refused, 3=thinned
+    * @return The overflow count
+    */
+    public long getOverflowCount(int ndx)
+    {
+        synchronized (this.queueLock) {
+            return ((ndx >= 0) && (ndx < this.overflowCount.length))? this.overflowCount[ndx] : 0L;
+        }
+    }
+
+    /**
+    * Returns the number of encoded packet bytes currently in this queue.
+    * @return The number of queued bytes
+    */
+    public long getQueuedBytes()
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            return this.queuedBytes;
+        }
+    }
+
+    /**
+    * Increments the specified overflow counter
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _countOverflow(int ndx, long count)
+    {
+        this.overflowCount[ndx] += count;
+        Props.addLong(Props.PROP_STATE_QUEUE_OVERFLOW, ndx, count);
+    }
+
+    /**
+    * Returns true if adding the specified packet would exceed the limits of this queue.
+    * If the specified packet is null, returns true if the queue already exceeds its limits.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private boolean _isFull(Packet pkt)
+    {
+        long count = this._size()    + ((pkt != null)? 1 : 0);
+        long bytes = this.queuedBytes + ((pkt != null)? pkt.getPacketLength() : 0);
+        if ((this.maxPackets > 0) && (count > this.maxPackets)) {
+            return true;
+        } else
+        if ((this.maxBytes > 0L) && (bytes > this.maxBytes)) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+    * Applies the overflow policy until there is room for the specified packet (or, if
+    * null, until the queue is within its limits).
+    * (must be called while synchronized on 'this.queueLock')
+    * @return False if there is no room for the packet
+    */
+    private boolean _makeRoom(Packet pkt)
+    {
+        if (!this.overwriteEnabled) {
+            // accepted for now, trimmed when overwrites are re-enabled
+            return true;
+        }
+        while (this._isFull(pkt)) {
+            if (this.overflowPolicy == OVERFLOW_REFUSE) {
+                return false;
+            }
+            if (this.overflowPolicy == OVERFLOW_COALESCE) {
+                int removed = this._coalesce();
+                if (removed > 0) {
+                    this._countOverflow(COUNT_COALESCED, removed);
+                    continue;
+                }
+            }
+            Ring lowLane = this.lanes[Packet.PRIORITY_LOW];
+            if ((lowLane.size() == 0) || this.store[Packet.PRIORITY_LOW].isSent(lowLane.elementAt(0))) {
+                return false; // nothing left which may be dropped
+            }
+            this._removeFirst(Packet.PRIORITY_LOW);
+            this._countOverflow(COUNT_DROPPED, 1L);
+        }
+        return true;
+    }
+
+    /**
+    * Thins runs of consecutive in-motion/dormant events in the low priority lane by 
+    * removing every other event within the run (the first and last events of each run
+    * are retained).
+    * (must be called while synchronized on 'this.queueLock')
+    * @return The number of packets removed
+    */
+    private int _coalesce()
+    {
+        Ring lane = this.lanes[Packet.PRIORITY_LOW];
+        EventSlab slab = this.store[Packet.PRIORITY_LOW];
+        int len = lane.size();
+        int code[] = new int[len];
+        for (int i = 0; i < len; i++) {
+            int h = lane.elementAt(i);
+            int sc = slab.isSent(h)? StatusCodes.STATUS_NONE : _getStatusCode(slab, h);
+            boolean runCode = (sc == StatusCodes.STATUS_MOTION_IN_MOTION) || (sc == StatusCodes.STATUS_MOTION_DORMANT);
+            code[i] = runCode? sc : StatusCodes.STATUS_NONE;
+        }
+        Ring kept = new Ring();
+        int removed = 0, runPos = 0;
+        for (int i = 0; i < len; i++) {
+            int h = lane.elementAt(i);
+            boolean inRun = (code[i] != StatusCodes.STATUS_NONE);
+            runPos = (inRun && (i > 0) && (code[i - 1] == code[i]))? (runPos + 1) : 0;
+            boolean lastInRun = !inRun || (i == (len - 1)) || (code[i + 1] != code[i]);
+            if (inRun && !lastInRun && ((runPos & 1) == 1)) {
+                this._release(Packet.PRIORITY_LOW, h);
+                removed++;
+            } else {
+                kept.addElement(h);
+            }
+        }
+        if (removed > 0) {
+            this.lanes[Packet.PRIORITY_LOW] = kept;
+        }
+        return removed;
+    }
+
+    /**
+    * Returns the status code contained in the specified event packet, or STATUS_NONE if
+    * the packet does not contain a status code.
+    */
+    private static int _getStatusCode(EventSlab slab, int h)
+    {
+        byte b[] = _getFieldBytes(slab, h, PayloadTemplate.FIELD_STATUS_CODE);
+        if (b == null) {
+            return StatusCodes.STATUS_NONE;
+        } else {
+            int sc = 0;
+            for (int n = 0; n < b.length; n++) {
+                sc = (sc << 8) | ((int)b[n] & 0xFF);
+            }
+            return sc;
+        }
+    }
+
+    /**
+    * Returns the GPS point contained in the specified event packet, or null if the packet
+    * does not contain a valid GPS point.
+    */
+    private static GeoPoint _getGeoPoint(EventSlab slab, int h)
+    {
+        byte b[] = _getFieldBytes(slab, h, PayloadTemplate.FIELD_GPS_POINT);
+        GeoPoint gp = (b != null)? GeoPoint.decodeGeoPoint(b, 0, b.length) : null;
+        return ((gp != null) && gp.isValid())? gp : null;
+    }
+
+    /**
+    * Returns the bytes of the first field of the specified type in the specified event
+    * packet, or null if the packet template does not contain such a field.
+    */
+    private static byte[] _getFieldBytes(EventSlab slab, int h, int fieldType)
+    {
+        PayloadTemplate plt = Packet.GetClientPayloadTemplate(slab.getPacketType(h));
+        PayloadTemplate.Field fld[] = (plt != null)? plt.getFields() : null;
+        int ofs = 0;
+        for (int i = 0; (fld != null) && (i < fld.length); i++) {
+            if (fld[i].getType() == fieldType) {
+                return slab.getPayloadBytes(h, ofs, fld[i].getLength());
+            }
+            ofs += fld[i].getLength();
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Simplifies the route described by the unsent in-motion/dormant events in the low 
+    * priority lane (Douglas-Peucker), removing events which lie within the specified 
+    * tolerance of the simplified route.  All other events, and the first and last event
+    * of each run of consecutive in-motion/dormant events, are retained.
+    * @param toleranceMeters The maximum distance (in meters) between a removed event and
+    *        the simplified route
+    * @return The number of events removed
+    */
+    public int thinLowPriority(double toleranceMeters)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            Ring lane = this.lanes[Packet.PRIORITY_LOW];
+            EventSlab slab = this.store[Packet.PRIORITY_LOW];
+            int len = lane.size();
+
+            /* locate thinnable points */
+            GeoPoint gp[] = new GeoPoint[len];
+            for (int i = 0; i < len; i++) {
+                int h = lane.elementAt(i);
+                if (!slab.isSent(h)) {
+                    int sc = _getStatusCode(slab, h);
+                    if ((sc == StatusCodes.STATUS_MOTION_IN_MOTION) || (sc == StatusCodes.STATUS_MOTION_DORMANT)) {
+                        gp[i] = _getGeoPoint(slab, h);
+                    }
+                }
+            }
+
+            /* simplify each run of thinnable points */
+            boolean keep[] = new boolean[len];
+            for (int i = 0; i < len;) {
+                if (gp[i] == null) {
+                    keep[i++] = true;
+                } else {
+                    int last = i;
+                    while (((last + 1) < len) && (gp[last + 1] != null)) { last++; }
+                    _simplify(gp, i, last, toleranceMeters, keep);
+                    i = last + 1;
+                }
+            }
+
+            /* remove thinned events */
+            Ring kept = new Ring();
+            int removed = 0;
+            for (int i = 0; i < len; i++) {
+                int h = lane.elementAt(i);
+                if (keep[i]) {
+                    kept.addElement(h);
+                } else {
+                    this._release(Packet.PRIORITY_LOW, h);
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                this.lanes[Packet.PRIORITY_LOW] = kept;
+                this._countOverflow(COUNT_THINNED, removed);
+            }
+            return removed;
+
+        }
+    }
+
+    /**
+    * Douglas-Peucker simplification of the points 'first' through 'last' (inclusive).  The
+    * retained points are flagged in 'keep'.
+    */
+    private static void _simplify(GeoPoint gp[], int first, int last, double tolMeters, boolean keep[])
+    {
+        keep[first] = true;
+        keep[last]  = true;
+        int stack[] = new int[2 * (last - first + 1)];
+        int sp = 0;
+        stack[sp++] = first;
+        stack[sp++] = last;
+        while (sp > 0) {
+            int b = stack[--sp];
+            int a = stack[--sp];
+            if ((b - a) < 2) { continue; }
+
+            /* project onto a local plane (meters) centered at 'a' */
+            double R    = GeoPoint.EARTH_MEAN_RADIUS_KM * 1000.0 * Math.PI / 180.0;
+            double cosA = Math.cos(gp[a].getLatitudeRadians());
+            double bx   = (gp[b].getLongitude() - gp[a].getLongitude()) * cosA * R;
+            double by   = (gp[b].getLatitude()  - gp[a].getLatitude() ) * R;
+            double bb   = (bx * bx) + (by * by);
+
+            /* find the point farthest from segment a-b */
+            double maxDist = -1.0;
+            int maxNdx = -1;
+            for (int i = a + 1; i < b; i++) {
+                double px = (gp[i].getLongitude() - gp[a].getLongitude()) * cosA * R;
+                double py = (gp[i].getLatitude()  - gp[a].getLatitude() ) * R;
+                double t  = (bb > 0.0)? (((px * bx) + (py * by)) / bb) : 0.0;
+                if (t < 0.0) { t = 0.0; } else if (t > 1.0) { t = 1.0; }
+                double dx = px - (t * bx), dy = py - (t * by);
+                double d  = Math.sqrt((dx * dx) + (dy * dy));
+                if (d > maxDist) {
+                    maxDist = d;
+                    maxNdx  = i;
+                }
+            }
+
+            /* split at the farthest point if it exceeds the tolerance */
+            if (maxDist > tolMeters) {
+                keep[maxNdx] = true;
+                stack[sp++] = a;
+                stack[sp++] = maxNdx;
+                stack[sp++] = maxNdx;
+                stack[sp++] = b;
+            }
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -60,11 +753,19 @@ public class PacketQueue
     */
     public void emptyQueue()
     {
-        synchronized (this.queue) {
-            this.queue.removeAllElements();
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            // records are released individually, since producers may be appending to the log
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                Ring lane = this.lanes[pri];
+                while (lane.size() > 0) {
+                    this._removeFirst(pri);
+                }
+            }
+            this._clear();
         }
     }
-        
+
     // ------------------------------------------------------------------------
 
     /**
@@ -74,163 +775,529 @@ public class PacketQueue
     public boolean isEmpty()
     {
         boolean empty;
-        synchronized (this.queue) {
-            empty = this.queue.isEmpty();
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            empty = (this._size() == 0);
         }
         return empty;
     }
-    
-    /** 
+
+    /**
     * Returns the number of packets in the queue
     * @return The number of packets in the queue
     */
     public long getQueueSize()
     {
         long size = 0L;
-        synchronized (this.queue) {
-            size = this.queue.size();
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            size = this._size();
         }
         return size;
     }
-    
+
+    /**
+    * Returns the number of packets in the lane for the specified priority
+    * @param priority The packet priority
+    * @return The number of packets in the lane
+    */
+    public int getQueueSize(int priority)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            return this.lanes[_laneIndex(priority)].size();
+        }
+    }
+
     /**
     * Checks whether this queue has unsent packets
     * @return True if this queue has any packets that have not been sent to the server, false otherwise
     */
     public boolean hasUnsentPackets()
     {
-        // We only need to check the very last packet in the queue.  If the last
-        // packet was sent, then all preceding packets have been sent.
-        boolean hasUnsent;
-        synchronized (this.queue) {
-            int len = this.queue.size();
-            hasUnsent = (len > 0)? !((Packet)this.queue.elementAt(len-1)).isSent() : false;
+        return this.hasUnsentPackets(Packet.PRIORITY_LOW);
+    }
+
+    /**
+    * Checks whether the lanes of the specified, or higher, priority have unsent packets
+    * @param minPri The lowest priority lane examined
+    * @return True if these lanes have any packets that have not been sent to the server
+    */
+    public boolean hasUnsentPackets(int minPri)
+    {
+        // Each lane keeps a live count of its unsent packets (see EventSlab)
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = _laneIndex(minPri); pri <= Packet.PRIORITY_HIGH; pri++) {
+                if (this.store[pri].getUnsentCount() > 0) {
+                    return true;
+                }
+            }
         }
-        return hasUnsent;
+        return false;
     }
-    
+
     /**
     * Clears all contained packets to 'unsent' state.
     */
     public void resetSent()
     {
-        synchronized (this.queue) {
-            for (Enumeration i = this.queue.elements(); i.hasMoreElements();) {
-                Packet pkt = (Packet)i.nextElement();
-                if (pkt.isSent()) {
-                    pkt.setSent(false);
-                } else {
-                    // we can stop at the first unsent packet
-                    break;
+        this.resetSent(Packet.PRIORITY_LOW);
+    }
+
+    /**
+    * Clears the packets in the lanes of the specified, or higher, priority to 'unsent' state.
+    * @param minPri The lowest priority lane cleared
+    */
+    public void resetSent(int minPri)
+    {
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = _laneIndex(minPri); pri <= Packet.PRIORITY_HIGH; pri++) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                int len = lane.size();
+                for (int i = 0; i < len; i++) {
+                    // sent packets of a pipelined session may follow unsent packets
+                    int h = lane.elementAt(i);
+                    if (slab.isSent(h)) {
+                        slab.setSent(h, false);
+                    }
                 }
             }
         }
     }
-    
+
     // ------------------------------------------------------------------------
 
     /**
-    * Adds a new Packet to this queue.
+    * Adds a new Packet to this queue.  The packet is first appended to the EventLog (if any),
+    * so it is durable once this method returns, and is then published to the inbox with a 
+    * compare-and-set.  The queue lock is not taken: the packet is moved to the end of the 
+    * lane matching its priority by the next reader of this queue (at which time the overflow
+    * policy is applied).  The packet must not be modified by the caller after it has been 
+    * added.
     * @param pkt The new Packet.
     */
     public void addPacket(Packet pkt)
     {
-        // TODO: Limit the number of packets added to this queue?
-        synchronized (this.queue) {
-            this.queue.addElement(pkt);
+
+        /* log */
+        // synchronized on the EventLog only (readers release log records while holding the
+        // queue lock, but never wait for a producer)
+        EventLog log = this.eventLog;
+        if (log != null) {
+            pkt.setLogPosition(log.append(pkt));
+        }
+
+        /* publish */
+        Inbound node = new Inbound(pkt, log);
+        for (;;) {
+            Inbound top = (Inbound)this.inbox.get();
+            node.next = top;
+            if (this.inbox.compareAndSet(top, node)) {
+                break;
+            }
+        }
+
+        /* notify listener */
+        // Packets added before the reader has drained the inbox are coalesced into the
+        // notification of the first packet, except for high priority packets.
+        Listener l = this.listener;
+        if ((l != null) && ((node.next == null) || (pkt.getPriority() >= Packet.PRIORITY_HIGH))) {
+            l.packetQueued(pkt.getPriority());
         }
     }
-        
+
+    /**
+    * Sets the listener notified when packets are added to this queue
+    * @param listener The listener, or null to remove the listener
+    */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+    * Moves all packets published to the inbox into their lanes, in the order in which 
+    * they were published.
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private void _drainInbox()
+    {
+        Inbound node = (Inbound)this.inbox.getAndSet(null);
+        Inbound fifo = null;
+        while (node != null) {
+            Inbound next = node.next;
+            node.next = fifo;
+            fifo = node;
+            node = next;
+        }
+        for (; fifo != null; fifo = fifo.next) {
+            Packet pkt = fifo.packet;
+            boolean logged = (fifo.log != null) && (fifo.log == this.eventLog);
+            if (!this._makeRoom(pkt)) {
+                this._countOverflow(COUNT_REFUSED, 1L);
+                Log.warn(LOG_NAME, "Queue full, packet refused");
+                if (logged && (pkt.getLogPosition() >= 0L)) {
+                    this.eventLog.release(pkt.getLogPosition());
+                }
+                continue;
+            }
+            if (!logged) {
+                // the log was opened (or closed) after the packet was published
+                pkt.setLogPosition((this.eventLog != null)? this.eventLog.append(pkt) : -1L);
+            }
+            this._append(pkt);
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     /**
     * Creates a Packet that contains GeoEvent and adds this packet the this queue.
-    * @param priority The packet priority (currently unused)
+    * @param priority The packet priority
     * @param event The GeoEvent that will be added to the packet.
     */
     public void addEvent(int priority, GeoEvent event)
     {
         Packet evPkt = Packet.createClientEventPacket(event, null);
+        evPkt.setPriority(priority);
         this.addPacket(evPkt);
     }
-        
+
     // ------------------------------------------------------------------------
-    
+
     /**
-    * Returns the packet at the specified index in the PacketQueue.
+    * Returns the packet at the specified index in the PacketQueue.  Packets are indexed
+    * in transmission order, that is all high priority packets, followed by normal and
+    * then low priority packets.
     * @param ndx The index of the packet.
     * @return The Packet at the specified index. If the index is invalid, returns null.
     */
     public Packet getPackatAt(int ndx)
     {
         if (ndx >= 0) {
-            Packet pkt = null;
-            synchronized (this.queue) {
-                if (ndx < this.queue.size()) {
-                    pkt = (Packet)this.queue.elementAt(ndx);
+            synchronized (this.queueLock) {
+                this._drainInbox();
+                for (int pri = Packet.PRIORITY_HIGH; pri >= Packet.PRIORITY_LOW; pri--) {
+                    Ring lane = this.lanes[pri];
+                    if (ndx < lane.size()) {
+                        return this.store[pri].getPacket(lane.elementAt(ndx));
+                    }
+                    ndx -= lane.size();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+    * Returns the packet at the specified index in the lane for the specified priority.
+    * @param priority The packet priority
+    * @param ndx The index of the packet within the lane.
+    * @return The Packet at the specified index. If the index is invalid, returns null.
+    */
+    public Packet getPackatAt(int priority, int ndx)
+    {
+        if (ndx >= 0) {
+            synchronized (this.queueLock) {
+                this._drainInbox();
+                int pri = _laneIndex(priority);
+                Ring lane = this.lanes[pri];
+                if (ndx < lane.size()) {
+                    return this.store[pri].getPacket(lane.elementAt(ndx));
                 }
             }
-            return pkt;
-        } else {
-            return null;
         }
+        return null;
     }
-    
+
     // ------------------------------------------------------------------------
 
     /**
-    * Deletes all unsent packets from up to, and including, the specified sequence number
+    * Deletes all sent packets from up to, and including, the specified sequence number.
+    * Lanes are examined in transmission order (high, normal, then low priority).
     * @param seq The specified index.
     * @return The number of packets deleted.
     */
     public int deleteToSequence(long seq)
     {
+        return this.deleteToSequence(seq, 8);
+    }
+
+    /**
+    * Deletes all sent packets from up to, and including, the packet with the specified 
+    * sequence number, as carried in a sequence field of the specified length (ie. only the
+    * low-order 'seqLen' bytes are compared).  Lanes are examined in transmission order 
+    * (high, normal, then low priority).  If no sent packet matches the sequence number, 
+    * sent packets are deleted up to the first packet which is newer than the specified
+    * sequence number (using wrap-aware comparison).
+    * @param seq The acknowledged sequence number, or SEQUENCE_ALL
+    * @param seqLen The length of the sequence field (in bytes)
+    * @return The number of packets deleted.
+    */
+    public int deleteToSequence(long seq, int seqLen)
+    {
+        return this.deleteToSequence(seq, seqLen, Packet.PRIORITY_LOW);
+    }
+
+    /**
+    * Deletes all sent packets from up to, and including, the packet with the specified 
+    * sequence number (as in 'deleteToSequence(seq, seqLen)'), in the lanes of the specified, 
+    * or higher, priority only.  Packets in lower priority lanes (ie. those sent on the 
+    * simplex lane) are not affected.
+    * @param seq The acknowledged sequence number, or SEQUENCE_ALL
+    * @param seqLen The length of the sequence field (in bytes)
+    * @param minPri The lowest priority lane examined
+    * @return The number of packets deleted.
+    */
+    public int deleteToSequence(long seq, int seqLen, int minPri)
+    {
+        minPri = _laneIndex(minPri);
         boolean delAll = (seq == Packet.SEQUENCE_ALL) || (seq < 0);
         int deleteCount = 0;
-        synchronized (this.queue) {
-            while (this.queue.size() > 0) {
-                
-                /* get next packet */
-                Packet pkt = (Packet)this.queue.elementAt(0);
-                
-                /* not sent */
-                if (!pkt.isSent()) {
-                    // stop at the first un-sent packet
+        synchronized (this.queueLock) {
+            this._drainInbox();
+
+            /* find the lane containing the acknowledged packet */
+            int ackLane = Packet.PRIORITY_NONE;
+            for (int pri = Packet.PRIORITY_HIGH; !delAll && (pri >= minPri); pri--) {
+                if (this._findSent(pri, seq, seqLen)) {
+                    ackLane = pri;
                     break;
                 }
-                
-                /* remove */
-                this.queue.removeElementAt(0);
-                deleteCount++;
-                
-                /* check matching sequence */
-                if (!delAll && (pkt.getEventSequence() == seq)) {
-                    // stop at the first matching sequence number
+            }
+
+            for (int pri = Packet.PRIORITY_HIGH; pri >= minPri; pri--) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                for (int i = 0; i < lane.size();) {
+
+                    /* get next packet */
+                    int h = lane.elementAt(i);
+
+                    /* not sent */
+                    if (!slab.isSent(h)) {
+                        // stop at the first un-sent packet in this lane
+                        break;
+                    } else
+                    if (slab.isDelivered(h)) {
+                        // acknowledged by this destination in an earlier session
+                        i++;
+                        continue;
+                    }
+
+                    /* not acknowledged */
+                    long pktSeq = slab.getEventSequence(h);
+                    if (!delAll && (ackLane == Packet.PRIORITY_NONE) && 
+                        (Packet.compareSequence(pktSeq, seq, seqLen) > 0)) {
+                        // newer than the acknowledged sequence
+                        break;
+                    }
+
+                    /* remove */
+                    if (!this._acknowledge(pri, i)) {
+                        i++;
+                    }
+                    deleteCount++;
+
+                    /* check matching sequence */
+                    if ((pri == ackLane) && (Packet.maskSequence(pktSeq, seqLen) == Packet.maskSequence(seq, seqLen))) {
+                        // stop at the first matching sequence number
+                        return deleteCount;
+                    }
+
+                }
+            }
+        }
+        return deleteCount;
+    }
+
+    /**
+    * Returns true if the specified lane contains a sent packet with the specified sequence
+    * (must be called while synchronized on 'this.queueLock')
+    */
+    private boolean _findSent(int pri, long seq, int seqLen)
+    {
+        Ring lane = this.lanes[pri];
+        EventSlab slab = this.store[pri];
+        long mseq = Packet.maskSequence(seq, seqLen);
+        for (int i = 0; i < lane.size(); i++) {
+            int h = lane.elementAt(i);
+            if (!slab.isSent(h)) {
+                break;
+            } else
+            if (!slab.isDelivered(h) && (Packet.maskSequence(slab.getEventSequence(h), seqLen) == mseq)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+    * Deletes the packets sent within the specified transmission block, up to, and including,
+    * the packet with the specified sequence number (compared as in 'deleteToSequence').  
+    * Packets of other blocks are not affected.
+    * @param block The block tag
+    * @param seq The acknowledged sequence number, or SEQUENCE_ALL
+    * @param seqLen The length of the sequence field (in bytes)
+    * @return The number of packets deleted.
+    */
+    public int deleteSentBlock(int block, long seq, int seqLen)
+    {
+        boolean delAll = (seq == Packet.SEQUENCE_ALL) || (seq < 0);
+        long mseq = Packet.maskSequence(seq, seqLen);
+        int deleteCount = 0;
+        synchronized (this.queueLock) {
+            this._drainInbox();
+
+            /* find the lane containing the acknowledged packet */
+            int ackLane = Packet.PRIORITY_NONE;
+            for (int pri = Packet.PRIORITY_HIGH; !delAll && (pri >= Packet.PRIORITY_LOW); pri--) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                for (int i = 0; i < lane.size(); i++) {
+                    int h = lane.elementAt(i);
+                    if (slab.isSent(h) && (slab.getSentBlock(h) == block) &&
+                        (Packet.maskSequence(slab.getEventSequence(h), seqLen) == mseq)) {
+                        ackLane = pri;
+                        break;
+                    }
+                }
+                if (ackLane != Packet.PRIORITY_NONE) {
                     break;
                 }
+            }
 
+            for (int pri = Packet.PRIORITY_HIGH; pri >= Packet.PRIORITY_LOW; pri--) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                for (int i = 0; i < lane.size();) {
+
+                    /* not sent within this block */
+                    int h = lane.elementAt(i);
+                    if (!slab.isSent(h) || (slab.getSentBlock(h) != block)) {
+                        i++;
+                        continue;
+                    }
+
+                    /* not acknowledged */
+                    long pktSeq = slab.getEventSequence(h);
+                    if (!delAll && (ackLane == Packet.PRIORITY_NONE) && 
+                        (Packet.compareSequence(pktSeq, seq, seqLen) > 0)) {
+                        // newer than the acknowledged sequence
+                        break;
+                    }
+
+                    /* remove */
+                    if (!this._acknowledge(pri, i)) {
+                        i++;
+                    }
+                    deleteCount++;
+
+                    /* check matching sequence */
+                    if ((pri == ackLane) && (Packet.maskSequence(pktSeq, seqLen) == mseq)) {
+                        // stop at the first matching sequence number
+                        return deleteCount;
+                    }
+
+                }
             }
         }
         return deleteCount;
     }
-    
+
+    /**
+    * Marks the first unsent packets in the lane for the specified priority as sent within
+    * the specified transmission block, and returns their binary encoded images.  The packets
+    * are selected, encoded and marked in one step, so that they cannot be removed (ie.
+    * thinned, coalesced or dropped) in between.
+    * @param priority The packet priority
+    * @param maxCount The maximum number of packets marked
+    * @param block The block tag
+    * @return The binary encoded packets (in lane order), or an empty array if the lane has
+    *         no unsent packets
+    */
+    public byte[][] markSentBlock(int priority, int maxCount, int block)
+    {
+        Vector encoded = new Vector();
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            int pri = _laneIndex(priority);
+            Ring lane = this.lanes[pri];
+            EventSlab slab = this.store[pri];
+            for (int i = 0; (i < lane.size()) && (encoded.size() < maxCount); i++) {
+                int h = lane.elementAt(i);
+                if (!slab.isSent(h)) {
+                    encoded.addElement(slab.encode(h));
+                    slab.setSentBlock(h, block);
+                }
+            }
+        }
+        byte pkts[][] = new byte[encoded.size()][];
+        encoded.copyInto(pkts);
+        return pkts;
+    }
+
+    /**
+    * Clears the packets sent within the specified transmission block to 'unsent' state, so
+    * that they will be sent again.
+    * @param block The block tag
+    * @return The number of packets cleared
+    */
+    public int resetSentBlock(int block)
+    {
+        int resetCount = 0;
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                for (int i = 0; i < lane.size(); i++) {
+                    int h = lane.elementAt(i);
+                    if (slab.isSent(h) && (slab.getSentBlock(h) == block)) {
+                        slab.setSent(h, false);
+                        resetCount++;
+                    }
+                }
+            }
+        }
+        return resetCount;
+    }
+
     /**
-    * Removes the first Packet in the PacketQueue if it has been sent.
+    * Removes the first sent Packet (in transmission order) from the PacketQueue.
     * @return True if the Packet was deleted, false otherwise.
     */
     public boolean deleteFirstSent()
     {
-        boolean didDelete = false;
-        synchronized (this.queue) {
-            if (this.queue.size() > 0) {
-                Packet pkt = (Packet)this.queue.elementAt(0);
-                if (pkt.isSent()) {
-                    this.queue.removeElementAt(0);
-                    didDelete = true;
+        return this.deleteFirstSent(Packet.PRIORITY_LOW);
+    }
+
+    /**
+    * Removes the first sent Packet (in transmission order) from the lanes of the specified,
+    * or higher, priority.
+    * @param minPri The lowest priority lane examined
+    * @return True if the Packet was deleted, false otherwise.
+    */
+    public boolean deleteFirstSent(int minPri)
+    {
+        minPri = _laneIndex(minPri);
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = Packet.PRIORITY_HIGH; pri >= minPri; pri--) {
+                Ring lane = this.lanes[pri];
+                EventSlab slab = this.store[pri];
+                for (int i = 0; (i < lane.size()) && slab.isSent(lane.elementAt(i)); i++) {
+                    if (!slab.isDelivered(lane.elementAt(i))) {
+                        this._acknowledge(pri, i);
+                        return true;
+                    }
                 }
             }
         }
-        return didDelete;
+        return false;
     }
 
     // ------------------------------------------------------------------------
@@ -241,17 +1308,15 @@ public class PacketQueue
     */
     public int getHighestPriority()
     {
-        int priority = Packet.PRIORITY_NONE;
-        synchronized (this.queue) {
-            for (Enumeration i = this.queue.elements(); i.hasMoreElements() && (priority < Packet.PRIORITY_HIGH);) {
-                Packet pkt = (Packet)i.nextElement();
-                int pri = pkt.getPriority();
-                if (pri > priority) {
-                    priority = pri;
+        synchronized (this.queueLock) {
+            this._drainInbox();
+            for (int pri = Packet.PRIORITY_HIGH; pri >= Packet.PRIORITY_LOW; pri--) {
+                if (this.lanes[pri].size() > 0) {
+                    return pri;
                 }
             }
         }
-        return priority;
+        return Packet.PRIORITY_NONE;
     }
-    
+
 }
@@ -55,7 +55,7 @@ public class PayloadTemplate
     public  static final int FIELD_TIMESTAMP            = 0x02;
     public  static final int FIELD_INDEX                = 0x03;
     
-    public  static final int FIELD_SEQUENCE             = 0x04; // %1u 0 to 255                 %2u 0 to 65535
+    public  static final int FIELD_SEQUENCE             = 0x04; // %1u 0 to 255                 %2u 0 to 65535      (up to %4u)
 
     public  static final int FIELD_GPS_POINT            = 0x06; // %6g                          %8g
     public  static final int FIELD_GPS_AGE              = 0x07; // %2u 0 to 65535 sec
@@ -198,6 +198,21 @@ public class PayloadTemplate
         return this.repeatLast;
     }
     
+    /**
+    * Returns the total length of the fields of this PayloadTemplate (repeated fields are
+    * counted once).
+    * @return The length of the fields
+    */
+    public int getFieldsLength()
+    {
+        Field fld[] = this.getFields();
+        int len = 0;
+        for (int i = 0; i < fld.length; i++) {
+            len += fld[i].getLength();
+        }
+        return len;
+    }
+    
     // ------------------------------------------------------------------------
 
     /**
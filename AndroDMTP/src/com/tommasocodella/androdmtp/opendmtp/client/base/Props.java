@@ -165,6 +165,14 @@ public class Props
     new KeyValue(PROP_STATE_GPS             , "sta.gpsloc"     , KeyValue.GPS      , RO|SAVE  ,  1,  "0"    ), 
     new KeyValue(PROP_STATE_GPS_DIAGNOSTIC  , "sta.gpsdiag"    , KeyValue.UINT32   , RO       ,  5,  "0,0,0,0,0" ), 
     new KeyValue(PROP_STATE_QUEUED_EVENTS   , "sta.evtqueue"   , KeyValue.UINT32   , RO       ,  2,  "0,0"    ), 
+    new KeyValue(PROP_STATE_QUEUE_OVERFLOW  , "sta.evtovfl"    , KeyValue.UINT32   , RO       ,  4,  "0,0,0,0"), 
+    new KeyValue(PROP_STATE_EVENT_SEQUENCE  , "sta.evtseq"     , KeyValue.UINT32   , RO|SAVE  ,  1,  "0"      ), 
+    new KeyValue(PROP_STATE_LINK_ESTIMATE   , "sta.link"       , KeyValue.UINT32   , RO       ,  5,  "0,0,0,0,0"), 
+    new KeyValue(PROP_STATE_UPLOAD          , "sta.upload"     , KeyValue.UINT32   , RO       ,  3,  "0,0,0"  ), 
+    new KeyValue(PROP_STATE_DATA_BUDGET     , "sta.budget"     , KeyValue.UINT32   , RO       ,  3,  "0,0,0"  ), 
+    new KeyValue(PROP_STATE_RETRY           , "sta.retry"      , KeyValue.UINT32   , RO       ,  4,  "0,0,0,0"), 
+    new KeyValue(PROP_STATE_CATCHUP         , "sta.catchup"    , KeyValue.UINT32   , RO       ,  3,  "0,0,0"  ), 
+    new KeyValue(PROP_STATE_SIMPLEX_LANE    , "sta.splxlane"   , KeyValue.UINT32   , RO       ,  2,  "0,0"    ), 
     new KeyValue(PROP_STATE_DEV_DIAGNOSTIC  , "sta.devdiag"    , KeyValue.UINT32   , RO|SAVE  ,  5,  "0,0,0,0,0" ), 
 
     // --- Communication protocol properties
@@ -176,11 +184,27 @@ public class Props
     new KeyValue(PROP_COMM_MAX_XMIT_RATE    , "com.maxrate"    , KeyValue.UINT32   ,    SAVE  ,  1,  "3600" ),
     new KeyValue(PROP_COMM_MAX_DUP_EVENTS   , "com.maxduplex"  , KeyValue.UINT8    ,    SAVE  ,  1,  "12"   ),
     new KeyValue(PROP_COMM_MAX_SIM_EVENTS   , "com.maxsimplex" , KeyValue.UINT8    ,    SAVE  ,  1,  "4"    ),
+    new KeyValue(PROP_COMM_QUEUE_LIMITS     , "com.qlimits"    , KeyValue.UINT32   ,    SAVE  ,  2,  "10000,500000" ), // events/bytes
+    new KeyValue(PROP_COMM_QUEUE_POLICY     , "com.qpolicy"    , KeyValue.UINT8    ,    SAVE  ,  1,  "2"    ),
+    new KeyValue(PROP_COMM_THIN_BACKLOG     , "com.thin"       , KeyValue.UINT32   ,    SAVE  ,  2,  "0,25" ), // events/meters
+    new KeyValue(PROP_COMM_DUPLEX_WINDOW    , "com.window"     , KeyValue.UINT8    ,    SAVE  ,  1,  "1"    ),
+    new KeyValue(PROP_COMM_PERSISTENT       , "com.persist"    , KeyValue.UINT16   ,    SAVE  ,  2,  "0,60" ), // keepalive/timeout
+    new KeyValue(PROP_COMM_DELIVERY_MASK    , "com.deliver"    , KeyValue.UINT8    ,    SAVE  ,  1,  "0"    ),
+    new KeyValue(PROP_COMM_LINK_ADAPT       , "com.linkadapt"  , KeyValue.UINT16   ,    SAVE  ,  3,  "0,3000,30000" ), // target/min/max ms
+    new KeyValue(PROP_COMM_DATA_BUDGET      , "com.budget"     , KeyValue.UINT32   ,    SAVE  ,  3,  "0,0,0" ), // hour/day/month bytes
+    new KeyValue(PROP_COMM_BUDGET_LOW       , "com.budgetlow"  , KeyValue.UINT8    ,    SAVE  ,  2,  "25,4" ), // percent/multiplier
+    new KeyValue(PROP_COMM_RETRY            , "com.retry"      , KeyValue.UINT32   ,    SAVE  ,  3,  "5000,900000,3" ), // base/max ms, failures
+    new KeyValue(PROP_COMM_PACKED_EVENTS    , "com.packed"     , KeyValue.UINT8    ,    SAVE  ,  2,  "0,0"  ), // events per packet, delta
+    new KeyValue(PROP_COMM_COMPRESSION      , "com.compress"   , KeyValue.UINT8    ,    SAVE  ,  1,  "0"    ), // deflate level
+    new KeyValue(PROP_COMM_CATCHUP          , "com.catchup"    , KeyValue.UINT32   ,    SAVE  ,  4,  "0,512,4,2" ), // backlog/block events, window, connections
+    new KeyValue(PROP_COMM_SIMPLEX_LANE     , "com.splxlane"   , KeyValue.BOOLEAN  ,    SAVE  ,  1,  "false"),
 
     // --- Communication connection properties
     new KeyValue(PROP_COMM_SETTINGS         , "com.settings"   , KeyValue.STRING   ,    SAVE  ,  1,  DFT_COMM_SETTINGS ),
     new KeyValue(PROP_COMM_DMTP_HOST        , "com.dmtp.host"  , KeyValue.STRING   ,    SAVE  ,  1,  DFT_COMM_HOST ),
     new KeyValue(PROP_COMM_DMTP_PORT        , "com.dmtp.port"  , KeyValue.UINT16   ,    SAVE  ,  1,  DFT_COMM_PORT ),
+    new KeyValue(PROP_COMM_DMTP_ALT_HOSTS   , "com.dmtp.alt"   , KeyValue.STRING   ,    SAVE  ,  1,  ""    ),
+    new KeyValue(PROP_COMM_SERVER_CAPS      , "com.dmtp.caps"  , KeyValue.STRING   ,    SAVE  ,  1,  ""    ),
     new KeyValue(PROP_COMM_DNS_1            , "com.dns1"       , KeyValue.STRING   ,    SAVE  ,  1,  DFT_COMM_DNS_1 ),
     new KeyValue(PROP_COMM_DNS_2            , "com.dns2"       , KeyValue.STRING   ,    SAVE  ,  1,  DFT_COMM_DNS_2 ),
     new KeyValue(PROP_COMM_CONNECTION       , "com.connection" , KeyValue.STRING   ,    SAVE  ,  1,  DFT_COMM_CONNECTION ),
@@ -263,11 +287,30 @@ public class Props
 
     // ------------------------------------------------------------------------
 
-    private static Vector               kvOrd       = null;
-    private static Hashtable            nameMap     = null;
-    private static Hashtable            codeMap     = null;
-    private static SavePropsCallBack    saveProps   = null;
-    
+    /**
+    * A set of property key values.  The static Props methods operate on the set of the
+    * DmtpClientContext bound to the current thread, or on the default set.
+    */
+    public static class Store
+    {
+        private Vector              kvOrd       = new Vector();
+        private Hashtable           nameMap     = new Hashtable();
+        private Hashtable           codeMap     = new Hashtable();
+        private SavePropsCallBack   saveProps   = null;
+        private Store(SavePropsCallBack saveProps)
+        {
+            this.saveProps = saveProps;
+        }
+        private void putKeyValue(KeyValue kv)
+        {
+            this.kvOrd.addElement(kv);
+            this.nameMap.put(kv.getKeyName(), kv);
+            this.codeMap.put(new Integer(kv.getKeyCode()), kv);
+        }
+    }
+
+    private static Store                defaultStore = null;
+
     /**
     * Private constructor, no instances are allowed.
     */
@@ -282,10 +325,43 @@ public class Props
     public static void initProps(SavePropsCallBack saveProps)
     {
         //Log.info(LOG_NAME, "Initilizing Properties ...");
+        Props.defaultStore = new Store(saveProps);
+        for (int i = 0; i < kvProps.length; i++) {
+            Props.defaultStore.putKeyValue(kvProps[i]);
+        }
+    }
+
+    /**
+    * Creates a new set of properties, initialized to the default values, for use by a
+    * DmtpClientContext.
+    * @param saveProps The callback used to save the properties (may be null)
+    * @return The property set
+    */
+    public static Store createStore(SavePropsCallBack saveProps)
+    {
+        Store store = new Store(saveProps);
         for (int i = 0; i < kvProps.length; i++) {
-            Props.putKeyValue(kvProps[i]);
+            store.putKeyValue(new KeyValue(kvProps[i]));
         }
-        Props.saveProps = saveProps;
+        return store;
+    }
+
+    /**
+    * Returns the default set of properties (see 'initProps')
+    * @return The default property set, or null if not yet initialized
+    */
+    public static Store getDefaultStore()
+    {
+        return Props.defaultStore;
+    }
+
+    /**
+    * Returns the property set of the current client context
+    */
+    private static Store _store()
+    {
+        DmtpClientContext ctx = DmtpClientContext.getBound();
+        return (ctx != null)? ctx.getPropStore() : Props.defaultStore;
     }
 
     // ------------------------------------------------------------------------
@@ -295,8 +371,9 @@ public class Props
     **/
     public static boolean saveProps()
     {
-        if (Props.saveProps != null) {
-            Props.saveProps.saveProps();
+        Store store = Props._store();
+        if ((store != null) && (store.saveProps != null)) {
+            store.saveProps.saveProps();
             return true;
         } else {
             return false;
@@ -332,12 +409,8 @@ public class Props
     */
     public static void putKeyValue(KeyValue kv)
     {
-        if (Props.kvOrd   == null) { Props.kvOrd   = new Vector(); }
-        if (Props.nameMap == null) { Props.nameMap = new Hashtable(); }
-        if (Props.codeMap == null) { Props.codeMap = new Hashtable(); }
-        Props.kvOrd.addElement(kv);
-        Props.nameMap.put(kv.getKeyName(), kv);
-        Props.codeMap.put(new Integer(kv.getKeyCode()), kv);
+        if (Props._store() == null) { Props.defaultStore = new Store(null); }
+        Props._store().putKeyValue(kv);
     }
 
     /**
@@ -359,7 +432,7 @@ public class Props
     */
     public static Enumeration getKeyValues()
     {
-        return Props.kvOrd.elements();
+        return Props._store().kvOrd.elements();
     }
     
     // ------------------------------------------------------------------------
@@ -371,8 +444,9 @@ public class Props
     */
     public static KeyValue getKeyValue(int code)
     {
-        if (Props.codeMap != null) {
-            return (KeyValue)Props.codeMap.get(new Integer(code));
+        Store store = Props._store();
+        if (store != null) {
+            return (KeyValue)store.codeMap.get(new Integer(code));
         } else {
             Log.error(LOG_NAME, "Not initialized!!");
             return null;
@@ -392,8 +466,8 @@ public class Props
         if (name.startsWith("0x") || name.startsWith("0X")) {
             return Props.getKeyValue((int)StringTools.parseHexLong(name, 0x0000L));
         } else
-        if (Props.nameMap != null) {
-            return (KeyValue)Props.nameMap.get(name);
+        if (Props._store() != null) {
+            return (KeyValue)Props._store().nameMap.get(name);
         } else {
             Log.error(LOG_NAME, "Not initialized!!");
             return null;
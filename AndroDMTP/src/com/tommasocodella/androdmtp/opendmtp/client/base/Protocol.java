@@ -33,6 +33,9 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.client.base;
 
+import java.net.InetSocketAddress;
+import java.util.Vector;
+
 import com.tommasocodella.androdmtp.gps.GPSUtils;
 import com.tommasocodella.androdmtp.opendmtp.client.custom.Constants;
 import com.tommasocodella.androdmtp.opendmtp.codes.ClientErrors;
@@ -66,16 +69,24 @@ public class Protocol
     private static final int SEND_ID_UNIQUE             = 1; // sending Unique ID (if available)
     private static final int SEND_ID_ACCOUNT            = 2; // send Account/Device ID
 
+    private static final int CATCHUP_NONE               = 0; // normal blocks
+    private static final int CATCHUP_REQUEST            = 1; // request to be sent with the next block
+    private static final int CATCHUP_REQUESTED          = 2; // awaiting server acceptance
+    private static final int CATCHUP_ACCEPTED           = 3; // sending catch-up blocks
+
     private static final int MAX_SEVERE_ERRORS          = 10;
     private static final int EXCESSIVE_SEVERE_ERRORS    = 15;
     private static final int MAX_DUPLEX_EVENTS          = 128;
+    private static final int MAX_DUPLEX_WINDOW          = 16;
+    private static final int MAX_BLOCK_TAG              = SimplexLane.BLOCK_TAG - 1; // see EventSlab flags
     private static final int MAX_SIMPLEX_EVENTS         = 8;
+    private static final int MAX_CATCHUP_EVENTS         = 1024;
     private static final int GPS_EVENT_INTERVAL         = 10;
 
     // ------------------------------------------------------------------------
 
     /**
-    * Singleton instance of the Protocol handler
+    * Protocol handler of the default client context
     */
     public static Protocol   DMTP_Protocol = null;
     
@@ -86,18 +97,55 @@ public class Protocol
     */
     public static Protocol createInstance(Transport transport)
     {
-        // To be called only once, during initialization
-        DMTP_Protocol = new Protocol(transport);
-        return DMTP_Protocol;
+        // To be called only once per client context, during initialization
+        return Protocol._setInstance(new Protocol(transport, null));
     }
 
     /**
-    * Returns the DMTP protocol singleton instance.
+    * Creates an instance of a Protocol given a transport, whose sessions are run by the
+    * specified ProtocolEngine (rather than by a dedicated Protocol thread).
+    * @param transport The transport value (normally a NioTransport)
+    * @param engine The protocol engine
+    * @return The protocol
+    */
+    public static Protocol createInstance(Transport transport, ProtocolEngine engine)
+    {
+        // To be called only once per client context, during initialization
+        return Protocol._setInstance(new Protocol(transport, engine));
+    }
+
+    /**
+    * Sets the Protocol handler of the current client context
+    */
+    private static Protocol _setInstance(Protocol protocol)
+    {
+        protocol.context.setProtocol(protocol);
+        if (protocol.context.isDefault()) {
+            DMTP_Protocol = protocol;
+        }
+        return protocol;
+    }
+
+    /**
+    * Creates an additional Protocol handler, run by the specified ProtocolEngine.  The
+    * Protocol handler of the current client context is not changed.  Used where a single
+    * engine drives many connections.
+    * @param transport The transport value (normally a NioTransport)
+    * @param engine The protocol engine
+    * @return The protocol
+    */
+    public static Protocol createSession(Transport transport, ProtocolEngine engine)
+    {
+        return new Protocol(transport, engine);
+    }
+
+    /**
+    * Returns the DMTP protocol handler of the current client context.
     * @return The protocol
     */
     public static Protocol getInstance()
     {
-        return DMTP_Protocol;
+        return DmtpClientContext.getCurrent().getProtocol();
     }
 
     // ------------------------------------------------------------------------
@@ -110,11 +158,27 @@ public class Protocol
     private PacketQueue  pendingQueue           = null;
     private PacketQueue  volatileQueue          = null;
 
+    private DmtpClientContext context           = null;
     private CThread      protocolThread         = null;
+    private ProtocolEngine engine               = null;
     private Object       transportLock          = new Object();
     private int          currentTransport       = TRANSPORT_NONE;
+    private boolean      wakeRequested          = false;    // events queued since the last check
+    private volatile boolean expressPending     = false;    // high priority event queued
+    private boolean      sessionPreempted       = false;    // last session ended for a high priority event
+    private boolean      deltaPacketsSent       = false;    // delta event packets sent in this session
     
     private Transport    transport              = null;
+    private ServerList   servers                = null;
+    private RetryPolicy  retry                  = null;
+    private int          transportPriority      = Packet.PRIORITY_NONE; // priority which started the session
+    private FileUpload   upload                 = null;
+    private SimplexLane  simplexLane            = null;     // concurrent simplex lane (low priority events)
+    private String       serverKey              = null;     // "host:port" of the current server
+    private long         lastConnectMS          = -1L;
+    private ServerList.Server engineServer      = null;     // server of the session run by the ProtocolEngine
+    private int          engineTried            = 0;        // servers contacted for the current request (engine)
+    private boolean      engineContinue         = false;    // start a session with the next server (engine)
     private long         lastSimplexErrorTimer  = 0L;
     private long         lastDuplexErrorTimer   = 0L;
 
@@ -137,20 +201,65 @@ public class Protocol
     private int          sessionEncoding        = Encoding.ENCODING_BINARY;
     private boolean      sessionEncodingChanged = false;
 
+    private int          duplexWindow           = 1;
+    private Vector       sentBlocks             = new Vector(); // tags of unacknowledged blocks (oldest first)
+    private boolean      sentBlockMore          = false;        // last block ended with EOB_MORE
+    private int          lastBlockTag           = 0;
+    private int          blockEventCount        = 0;        // events sent in the current block
+    private int          blockSequenceRange     = 0;        // max events of the current block, 0 if unlimited
+    private BlockCompressor blockCompressor     = null;     // compressing the events of the current block
+
+    private boolean      catchupDue             = false;    // large backlog, start a catch-up session
+    private boolean      catchupSession         = false;    // current session is a catch-up connection
+    private int          catchupState           = CATCHUP_NONE;
+    private int          catchupEvents          = 0;        // events per catch-up block (granted)
+    private long         catchupStartMS         = 0L;
+    private long         catchupStartSent       = 0L;
+
+    private LinkEstimator link                  = new LinkEstimator(); // of the current server
+    private long         readTimeoutMS          = 3000L;    // current duplex read timeout
+
+    private boolean      sessionPersistent      = false;    // keep the duplex session open
+    private boolean      sessionIdle            = false;    // persistent session holding its turn
+    private long         keepAliveInterval      = 0L;
+    private long         responseTimeout        = 0L;
+    private long         lastActivityTimer      = 0L;       // last packet read/written
+    private long         lastResponseTimer      = 0L;       // last packet read, or start of wait
+    private long         sessionMinuteTimer     = 0L;
+
+    private boolean      duplexOpen             = false;    // duplex session in progress
+    private boolean      duplexOK               = false;    // no errors in the current session
+
     /**
     * Constructor for Protocol.
     * @param xport The transport value
+    * @param engine The protocol engine, or null to run sessions in a Protocol thread
     */
     @SuppressWarnings("static-access")
-	private Protocol(Transport xport)
+	private Protocol(Transport xport, ProtocolEngine engine)
     {
         try {
+            this.context = DmtpClientContext.getCurrent();
             this.fletcher = new FletcherChecksum();
             this.eventQueue = new PacketQueue();
+            this.eventQueue.setListener(new PacketQueue.Listener() {
+                public void packetQueued(int priority) {
+                    Protocol.this._wakeTransport(priority);
+                }
+            });
             this.pendingQueue = new PacketQueue();
             this.volatileQueue = new PacketQueue();
+            this._updateEventQueueLimits();
             this.transport = xport; 
-            this.protocolThread = new CThread("Protocol", this);
+            this.servers = new ServerList();
+            this.retry = new RetryPolicy();
+            this.upload = new FileUpload(this);
+            this.engine = engine;
+            if (this.engine == null) {
+                // thread names must be unique
+                String name = this.context.isDefault()? "Protocol" : ("Protocol_" + this.context.getName());
+                this.protocolThread = new CThread(name, this);
+            }
             //this.protocolThread.startThreads();
         } catch (Throwable t) {
         	
@@ -168,22 +277,133 @@ public class Protocol
     {
     	
         synchronized (this.transportLock) {
-            if (!this.protocolThread.isAlive()) {
+            if ((this.engine != null)? !this.engine.isAlive() : !this.protocolThread.isAlive()) {
                 Log.setMessage(1, "No Valid Connection");
             } else
             if (this.currentTransport == TRANSPORT_NONE) {
                 int xportType = this._getTransportType();
                 Log.info(LOG_NAME, "xporttype: " + xportType);
                 if (xportType != TRANSPORT_NONE) {
-                    this.currentTransport = xportType;
-                    this.transportLock.notify();
+                    if (this.engine == null) {
+                        this.currentTransport = xportType;
+                        this.transportLock.notify();
+                    } else {
+                        this.engineTried = 0;
+                        if (this._selectEngineServer()) {
+                            this.currentTransport = xportType;
+                            this.engine.startSession(this, xportType);
+                        }
+                    }
                 }
+            } else
+            if (this.engine != null) {
+                // a session is in progress, let it send any newly queued data
+                this.engine.pollSession(this);
+            }
+        }
+    }
+
+    /**
+    * Wakes the transport when events are queued, rather than waiting for the next call to
+    * 'transport()'.  A high priority event also ends an in-progress low priority simplex
+    * send, so that it is sent without waiting for that session to complete.
+    * @param priority The priority of the queued event
+    */
+    private void _wakeTransport(int priority)
+    {
+        if (this.simplexLane != null) {
+            this.simplexLane.wake();
+        }
+        if (priority >= Packet.PRIORITY_HIGH) {
+            this.expressPending = true;
+        }
+        if (this.engine != null) {
+            // the engine thread decides whether a session is due (see 'transport()')
+            this.engine.wakeTransport(this);
+        } else {
+            // the Protocol thread decides whether a session is due
+            synchronized (this.transportLock) {
+                this.wakeRequested = true;
+                this.transportLock.notify();
             }
         }
     }
 
+    /**
+    * Called by the ProtocolEngine when a session (including any retry delay following a 
+    * failed session) has completed, so that the next session may be started.
+    */
+    public void transportComplete()
+    {
+        // even though the session may have failed, reset the transport type anyway.
+        // it will be set again by the main thread, unless the request continues with
+        // the next server (failover, or dual delivery).
+        int xportType = TRANSPORT_NONE;
+        synchronized (this.transportLock) {
+            this.getEventQueue().setDestination(-1);
+            if (this.engineContinue && (this.engine != null) && !this.engine.shouldStop() && this._selectEngineServer()) {
+                xportType = this.currentTransport;
+                if (this.getEventQueue().getDeliveryMask() == 0) {
+                    Log.info(LOG_NAME, "Failover to server " + this.engineServer);
+                }
+            }
+            this.engineContinue = false;
+            this.currentTransport = xportType;
+        }
+        if (xportType != TRANSPORT_NONE) {
+            this.engine.startSession(this, xportType);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sets the transport of the concurrent simplex lane, which sends the low priority events
+    * while PROP_COMM_SIMPLEX_LANE is enabled.  The lane thread is started with the other
+    * threads (see 'CThread.startThreads').
+    * @param xport The simplex lane transport (not the transport of this Protocol handler)
+    */
+    public void setSimplexTransport(Transport xport)
+    {
+        this.simplexLane = (xport != null)? new SimplexLane(this, xport) : null;
+    }
+
+    /**
+    * Returns true if low priority events are sent on the concurrent simplex lane
+    */
+    private boolean _isSimplexLane()
+    {
+        return (this.simplexLane != null) && this.simplexLane.isEnabled();
+    }
+
+    /**
+    * Returns the lowest priority of the events sent by duplex (and Protocol simplex) sessions
+    */
+    private int _getDuplexMinPriority()
+    {
+        return this._isSimplexLane()? Packet.PRIORITY_NORMAL : Packet.PRIORITY_LOW;
+    }
+
     // ------------------------------------------------------------------------
 
+    /**
+    * Returns the client context of this Protocol handler.
+    * @return The client context
+    */
+    public DmtpClientContext getContext()
+    {
+        return this.context;
+    }
+
+    /**
+    * Returns the transport.
+    * @return The Transport
+    */
+    public Transport getTransport()
+    {
+        return this.transport;
+    }
+
     /**
     * Returns the event queue.
     * @return The event PacketQueue
@@ -229,6 +449,15 @@ public class Protocol
         return this.volatileQueue;
     }
 
+    /**
+    * Returns the server file upload receiver.
+    * @return The FileUpload
+    */
+    public FileUpload getFileUpload()
+    {
+        return this.upload;
+    }
+
     // ------------------------------------------------------------------------
     
     /**
@@ -283,6 +512,7 @@ public class Protocol
     */
     private int _getTransportType()
     {
+        this.expressPending = false; // high priority events are considered below
     
         /* first check absolute minimum delay between connections */
         if (!Accounting.absoluteDelayExpired()) {
@@ -298,6 +528,15 @@ public class Protocol
         int xportType = TRANSPORT_NONE;
         int evPri = this.getEventQueue().getHighestPriority();
         Log.info(LOG_NAME, "\tHighest event priority: " + evPri + " in an empty queue? " + this.getEventQueue().isEmpty());
+        if ((evPri == Packet.PRIORITY_LOW) && this._isSimplexLane()) {
+            // low priority events are sent on the simplex lane
+            evPri = Packet.PRIORITY_NONE;
+        }
+        if (!Accounting.isUnderDataBudget(evPri)) {
+            // data budget low/exhausted, defer low priority traffic
+            Log.info(LOG_NAME, "Data budget deferred priority " + evPri);
+            return TRANSPORT_NONE;
+        }
         switch (evPri) {
     
             // no events, time for 'checkup'?
@@ -402,6 +641,20 @@ public class Protocol
                 break;
     
         }
+
+        /* a large backlog is sent in a catch-up session, outside of the connection quota */
+        this.catchupDue = false;
+        if ((evPri != Packet.PRIORITY_NONE) && this._isCatchupBacklog() && Accounting.isUnderCatchupQuota()) {
+            //Log.info(LOG_NAME, "Catch-up backlog");
+            xportType = TRANSPORT_DUPLEX;
+            this.catchupDue = true;
+        }
+
+        /* failed servers are retried after a backoff delay */
+        if ((xportType != TRANSPORT_NONE) && !this._isRetryAllowed(evPri)) {
+            xportType = TRANSPORT_NONE;
+        }
+        this.transportPriority = evPri;
         
         return xportType;
         
@@ -416,15 +669,23 @@ public class Protocol
     public void run()
         // throws SecurityException
     {
+        if (this.protocolThread == null) {
+            return; // sessions are run by the ProtocolEngine
+        }
+        this.context.enter(); // this thread serves only this client context
         //Log.debug(LOG_NAME, "Starting thread ...");
         while (!this.protocolThread.shouldStop()) {
             int xportType = TRANSPORT_NONE;
 
-            /* wait for a transport request */
+            /* wait for a transport request, or newly queued events */
             synchronized (this.transportLock) {
-                if (this.currentTransport == TRANSPORT_NONE) {
+                if ((this.currentTransport == TRANSPORT_NONE) && !this.wakeRequested) {
                     try { this.transportLock.wait(); } catch (InterruptedException ie) {}
                 }
+                if ((this.currentTransport == TRANSPORT_NONE) && this.wakeRequested) {
+                    this.currentTransport = this._getTransportType();
+                }
+                this.wakeRequested = false;
                 xportType = this.currentTransport;
             }
             
@@ -442,14 +703,7 @@ public class Protocol
             // (this section may 
             boolean xportOK = false;
             try {
-                if (xportType == TRANSPORT_SIMPLEX) {
-                    // establish Simplex communication here
-                    xportOK = this.run_protocolSimplexTransport();
-                } else 
-                if (xportType == TRANSPORT_DUPLEX) {
-                    // establish Duplex communication here
-                    xportOK = this.run_protocolDuplexTransport();
-                }
+                xportOK = this._runServerSessions(xportType);
             } catch (SecurityException se) {
                 // We could get a security exception if the user has denied us access
                 // to the network.  In which case, there is nothing we can do but to
@@ -459,9 +713,9 @@ public class Protocol
             }
             
             /* transport failed? */
-            if (!xportOK) {
-                // if transport fails, wait a few seconds before trying again
-                try { Thread.sleep(15000L); } catch (Throwable t) {}
+            if (!xportOK && !this.sessionPreempted) {
+                // failed servers are retried after a backoff delay (see '_isRetryAllowed')
+                Log.info(LOG_NAME, "Transport failed");
             }
 
             /* reset transport type */
@@ -475,6 +729,264 @@ public class Protocol
         //Log.debug(LOG_NAME, "Stopping thread ...");
     }
     
+    /**
+    * Returns the mask of the servers which must acknowledge each event (see 
+    * PROP_COMM_DELIVERY_MASK).  Servers which are not specified are not included.
+    * @return The required destination mask, or 0 if any single server may acknowledge events
+    */
+    public int getDeliveryMask()
+    {
+        int mask = (int)Props.getLong(Props.PROP_COMM_DELIVERY_MASK, 0, 0L);
+        for (int i = 0; i < ServerList.MAX_SERVERS; i++) {
+            if (((mask & (1 << i)) != 0) && (this.servers.getServer(i) == null)) {
+                mask &= ~(1 << i); // not specified
+            }
+        }
+        return mask;
+    }
+
+    /**
+    * Runs the sessions for a transport request.  Without dual delivery, a session is run
+    * with the healthiest server, and the next server is tried immediately if the session
+    * fails (failover).  With dual delivery, a session is run with each required server
+    * which has not yet acknowledged all queued events.
+    * @param xportType The transport type
+    * @return true, if all sessions were successful
+    */
+    private boolean _runServerSessions(int xportType)
+    {
+        PacketQueue eventQueue = this.getEventQueue();
+
+        /* required servers */
+        int mask = this.getDeliveryMask();
+        eventQueue.setDeliveryMask(mask);
+
+        /* failover */
+        if (mask == 0) {
+            ServerList.Server order[] = this.servers.getFailoverOrder(-1);
+            if (order.length == 0) {
+                // no valid server, let the transport report the host/port problem
+                this.transport.setServer(null, 0);
+                this.serverKey = null;
+                if (!this.retry.isAllowed(this._getServerKey(), this.transportPriority)) {
+                    return false; // backing off
+                }
+                boolean ok = this._runSession(xportType);
+                if (this.sessionPreempted) {
+                    this.retry.release(this._getServerKey());
+                } else {
+                    this.retry.markResult(this._getServerKey(), ok);
+                }
+                return ok;
+            }
+            boolean tried = false;
+            for (int i = 0; i < order.length; i++) {
+                if (tried && this.protocolThread.shouldStop()) {
+                    break;
+                }
+                if (!this.retry.isAllowed(order[i].toString(), this.transportPriority)) {
+                    continue; // backing off
+                }
+                if (tried) {
+                    Log.info(LOG_NAME, "Failover to server " + order[i]);
+                }
+                tried = true;
+                if (this._runServerSession(xportType, order[i])) {
+                    return true;
+                } else
+                if (this.sessionPreempted) {
+                    break; // not a server failure, do not fail over
+                }
+            }
+            return false;
+        }
+
+        /* dual delivery */
+        // The first server also receives the pending/volatile packets, the other servers
+        // are only contacted if they have not yet acknowledged all events.
+        boolean allOK = true;
+        ServerList.Server order[] = this.servers.getFailoverOrder(mask);
+        for (int i = 0; i < order.length; i++) {
+            int dest = order[i].getIndex();
+            if ((i > 0) && (this.protocolThread.shouldStop() || !eventQueue.hasPendingPackets(dest))) {
+                continue;
+            }
+            if (!this.retry.isAllowed(order[i].toString(), this.transportPriority)) {
+                allOK = false; // backing off, events are retained for this server
+                continue;
+            }
+            eventQueue.setDestination(dest);
+            if (!this._runServerSession(xportType, order[i])) {
+                allOK = false;
+                if (this.sessionPreempted) {
+                    break;
+                }
+            }
+        }
+        eventQueue.setDestination(-1);
+        return allOK;
+
+    }
+
+    /**
+    * Runs a session with the specified server, and updates the health of the server
+    * @param xportType The transport type
+    * @param server The server
+    * @return true, if the session was successful
+    */
+    private boolean _runServerSession(int xportType, ServerList.Server server)
+    {
+        this.transport.setServer(server.getHost(), server.getPort());
+        this.serverKey = server.toString();
+        this.link = server.getLinkEstimator();
+        this.lastConnectMS = -1L;
+        boolean ok = this._runSession(xportType);
+        if (this.sessionPreempted) {
+            // nothing was sent, the server health is unchanged
+            this.retry.release(server.toString());
+            return false;
+        }
+        if ((xportType == TRANSPORT_DUPLEX) && (this.lastConnectMS >= 0L)) {
+            this.servers.markConnect(server, this.lastConnectMS);
+        }
+        this.servers.markResult(server, ok);
+        this.retry.markResult(server.toString(), ok);
+        return ok;
+    }
+
+    /**
+    * Returns true if a session may be started with at least one server, considering the
+    * retry backoff of servers which have recently failed.
+    * @param priority The highest priority of the queued events
+    */
+    private boolean _isRetryAllowed(int priority)
+    {
+        this.retry.updateState();
+        ServerList.Server order[] = this.servers.getFailoverOrder(-1);
+        if (order.length == 0) {
+            this.serverKey = null;
+            return this.retry.isDue(this._getServerKey(), priority);
+        }
+        for (int i = 0; i < order.length; i++) {
+            if (this.retry.isDue(order[i].toString(), priority)) {
+                return true;
+            }
+        }
+        Log.info(LOG_NAME, "All servers backing off");
+        return false;
+    }
+
+    /**
+    * Records the result of a session run by the ProtocolEngine, for the retry backoff of
+    * the server.
+    * @param ok True if the session was successful
+    */
+    public void markSessionResult(boolean ok)
+    {
+        if (this.sessionPreempted) {
+            // nothing was sent, the server health is unchanged
+            this.retry.release(this._getServerKey());
+            return;
+        }
+        if (this.engineServer != null) {
+            if (this.lastConnectMS >= 0L) {
+                this.servers.markConnect(this.engineServer, this.lastConnectMS);
+            }
+            this.servers.markResult(this.engineServer, ok);
+            // fail over to the next server, or continue with the next required server
+            this.engineContinue = !ok || (this.getEventQueue().getDeliveryMask() != 0);
+        }
+        this.retry.markResult(this._getServerKey(), ok);
+    }
+
+    /**
+    * Selects the server of the next session run by the ProtocolEngine.  The engine runs
+    * the sessions of a transport request one at a time, as '_runServerSessions' does:
+    * without dual delivery, the healthiest server is tried first, and the next server is
+    * tried if the session fails.  With dual delivery, a session is run with each required
+    * server which has not yet acknowledged all queued events (the first server also
+    * receives the pending/volatile packets).  Each server is contacted at most once per
+    * request.
+    * @return true if a session may be started with the selected server
+    */
+    private boolean _selectEngineServer()
+    {
+        PacketQueue eventQueue = this.getEventQueue();
+        int mask = this.getDeliveryMask();
+        eventQueue.setDeliveryMask(mask);
+        this.engineServer = null;
+        this.lastConnectMS = -1L;
+
+        /* no valid server, let the transport report the host/port problem */
+        ServerList.Server order[] = this.servers.getFailoverOrder((mask != 0)? mask : -1);
+        if (order.length == 0) {
+            if (this.engineTried != 0) {
+                return false; // already tried
+            }
+            this.engineTried = 1;
+            this.transport.setServer(null, 0);
+            this.serverKey = null;
+            return this.retry.isAllowed(this._getServerKey(), this.transportPriority);
+        }
+
+        /* next server */
+        for (int i = 0; i < order.length; i++) {
+            int dest = order[i].getIndex();
+            if ((this.engineTried & (1 << dest)) != 0) {
+                continue; // contacted during this request
+            }
+            if ((mask != 0) && (i > 0) && !eventQueue.hasPendingPackets(dest)) {
+                continue; // nothing to deliver to this server
+            }
+            if (!this.retry.isAllowed(order[i].toString(), this.transportPriority)) {
+                continue; // backing off
+            }
+            this.engineTried |= (1 << dest);
+            if (mask != 0) {
+                eventQueue.setDestination(dest);
+            }
+            this.transport.setServer(order[i].getHost(), order[i].getPort());
+            this.serverKey = order[i].toString();
+            this.link = order[i].getLinkEstimator();
+            this.engineServer = order[i];
+            return true;
+        }
+        return false;
+
+    }
+
+    /**
+    * Runs a session
+    * @param xportType The transport type
+    * @return true, if the session was successful
+    */
+    private boolean _runSession(int xportType)
+    {
+        this.sessionPreempted = false;
+        this.deltaPacketsSent = false;
+        if (xportType == TRANSPORT_SIMPLEX) {
+            // establish Simplex communication here
+            return this.run_protocolSimplexTransport();
+        } else 
+        if (xportType == TRANSPORT_DUPLEX) {
+            // establish Duplex communication here
+            return this.run_protocolDuplexTransport();
+        } else {
+            return false;
+        }
+    }
+
+    /**
+    * Runs a simplex session.  Called by the ProtocolEngine.
+    * @return true, if simplex transport was successful
+    */
+    public boolean runSimplexSession()
+    {
+        this.sessionPreempted = false;
+        this.deltaPacketsSent = false;
+        return this.run_protocolSimplexTransport();
+    }
+    
     /**
     * Simplex transport
     * @return true, if simplex transport was successful
@@ -520,10 +1032,22 @@ public class Protocol
         /* send queued packets/events */
         if (!this._sendAllPackets(TRANSPORT_SIMPLEX, false)) {
             this._transportClose(TRANSPORT_SIMPLEX, false);
-            this.getEventQueue().resetSent(); // set all to 'unsent'
+            this.getEventQueue().resetSent(this._getDuplexMinPriority()); // set all to 'unsent'
             Log.setMessage(1, "UDP TX Err");
             return false;
         }
+
+        /* pre-empted by a high priority event? */
+        if (this.expressPending && Accounting.supportsDuplex()) {
+            // The datagram has not been sent yet (no connection has been made), discard it
+            // so that the high priority event (and these events) are sent via Duplex now.
+            // The session is neither a success nor a server failure (see 'sessionPreempted').
+            this._transportClose(TRANSPORT_SIMPLEX, false);
+            this.getEventQueue().resetSent(this._getDuplexMinPriority()); // set all to 'unsent'
+            Log.info(LOG_NAME, "Simplex pre-empted by high priority event");
+            this.sessionPreempted = true;
+            return false;
+        }
     
         /* acknowledge sent events */
         Log.setMessage(1, "");
@@ -537,7 +1061,7 @@ public class Protocol
             // acknowledgement to the device.  As such, no attempt is made to read an
             // acknowledgement from the server.
             this.getPendingQueue().emptyQueue(); // remove all pending messages
-            int delCnt = this.getEventQueue().deleteToSequence(Packet.SEQUENCE_ALL); // del all 'sent'
+            int delCnt = this.getEventQueue().deleteToSequence(Packet.SEQUENCE_ALL, 8, this._getDuplexMinPriority()); // del all 'sent'
             if (delCnt > 0) {
                 // add to total events sent/ack'ed
                 this.totalEventsSent += delCnt;
@@ -557,9 +1081,50 @@ public class Protocol
     private boolean run_protocolDuplexTransport()
     {
         //Log.debug(LOG_NAME, "run_protocolDuplexTransport ...");
+        
+        /* open transport, send first block */
+        boolean keepLooping = this.beginDuplexSession();
+        if (!this.duplexOpen) {
+            return false;
+        }
+
+        /* packet handling loop */
+        while (keepLooping) {
+            
+            /* read packet */
+            byte b[] = null;
+            try {
+                b = this.transport.readPacket(); // <-- timeout is specified by transport
+            } catch (TimeoutException toe) {
+                // read timeout
+                keepLooping = this.handleDuplexTimeout();
+                continue;
+            }
+            
+            /* handle received packet */
+            keepLooping = this.handleDuplexPacket(b);
+    
+        }
+        
+        /* close transport */
+        return this.endDuplexSession();
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Opens a duplex session, and sends the first block (if the client speaks first).  This
+    * method, and the other 'Duplex' session methods below, are called from the Protocol
+    * thread, or from a ProtocolEngine.
+    * @return True if the session should continue, false if it should be ended
+    */
+    public boolean beginDuplexSession()
+    {
     
         /* open transport */
         //Log.setMessage(1, "Openning TCP connection ...");
+        this.duplexOpen = false;
         if (!this._transportOpen(TRANSPORT_DUPLEX)) {
             if (DateTime.isTimerExpired(this.lastDuplexErrorTimer,60L)) {
                 this.lastDuplexErrorTimer = DateTime.getTimerSec();
@@ -570,6 +1135,8 @@ public class Protocol
             }
             return false;
         }
+        this.duplexOpen = true;
+        this.duplexOK   = true;
         Log.setMessage(1, "TX TCP ...");
 
         /* check for GPS Fix expiration ("stale") */
@@ -601,80 +1168,230 @@ public class Protocol
         /* default speak-brief on new connection */
         this.speakBrief = Props.getBoolean(Props.PROP_COMM_FIRST_BRIEF, 0, false);
 
-        /* packet handling loop */
-        boolean rtnOK       = true;
-        boolean keepLooping = true;
-        boolean speakFirst  = Props.getBoolean(Props.PROP_COMM_SPEAK_FIRST, 0, true);
-        boolean firstPass   = true;
-        for (;keepLooping;) {
-            
-            /* send queued packets */
-            if (firstPass) {
-                firstPass = false;
-                if (speakFirst) {
-                    // client initiates conversation
-                    // send identification and first block of events
-                    // 'speakFreely' is always false here
-                    if (!this._sendAllPackets(TRANSPORT_DUPLEX, this.speakBrief)) {
-                        rtnOK = false; // write error
-                        break;
-                    }
-                    this.speakBrief = false;
-                }
-            } else
-            if (this.speakFreely) {
-                // send any pending packets
-                // During 'speak-freely' wait until we have something to send.
-                if (this._hasMoreDataToSend()) {
-                    // The thread may decide whether, or not, to relinquish 'speakFreely' permission
-                    if (this.relinquishSpeakFreely) {
-                        this.speakFreely = false; // relinquish speak-freely permission
-                    }
-                    if (!this._sendAllPackets(TRANSPORT_DUPLEX, false)) {
-                        rtnOK = false; // write error
-                        break;
-                    }
-                }
-            }
-            
-            /* read packet */
-            Packet pkt = null;
-            try {
-                pkt = this._readServerPacket(); // <-- timeout is specified by transport
-                if (pkt == null) {
-                    // read/parse error
-                    rtnOK = false;
-                    break;
-                }
-            } catch (TimeoutException toe) {
-                // read timeout
-                if (this.speakFreely) {
-                    // read timeouts are allowed in 'speak-freely' mode
-                    continue;
-                } else {
-                    Log.info(LOG_NAME, "Duplex server read timeout");
-                    // this is an error when not in 'speak-freely' mode, or not in a thread
-                    // otherwise we'll be blocking the mainloop for too long.
-                    rtnOK = false;
-                    break;
-                }
+        /* transmit window */
+        this.duplexWindow = (int)Props.getLong(Props.PROP_COMM_DUPLEX_WINDOW, 0, 1L);
+        if (this.duplexWindow < 1) { this.duplexWindow = 1; }
+        if (this.duplexWindow > MAX_DUPLEX_WINDOW) { this.duplexWindow = MAX_DUPLEX_WINDOW; }
+        this.sentBlocks.removeAllElements();
+        this.sentBlockMore = false;
+        this.link.clearPending();
+        this._updateLinkEstimate();
+
+        /* bulk backlog catch-up (requested with the first block) */
+        this.catchupSession     = this.catchupDue && this._isCatchupBacklog();
+        this.catchupState       = this.catchupSession? CATCHUP_REQUEST : CATCHUP_NONE;
+        this.catchupDue         = false;
+        this.catchupStartMS     = System.currentTimeMillis();
+        this.catchupStartSent   = this.totalEventsSent;
+
+        /* persistent session (a catch-up session ends when the backlog has been sent) */
+        this.keepAliveInterval  = Props.getLong(Props.PROP_COMM_PERSISTENT, 0, 0L);
+        this.responseTimeout    = Props.getLong(Props.PROP_COMM_PERSISTENT, 1, 60L);
+        this.sessionPersistent  = (this.keepAliveInterval > 0L) && !this.catchupSession;
+        this.sessionIdle        = false;
+        this.sessionMinuteTimer = 0L;
+        this.lastActivityTimer  = DateTime.getTimerSec();
+        this.lastResponseTimer  = this.lastActivityTimer;
+
+        /* persistent session accounting */
+        if (this.sessionPersistent && !this._checkPersistentSession()) {
+            this.duplexOK = false; // write error
+            return false;
+        }
+
+        /* send identification and first block of events */
+        if (Props.getBoolean(Props.PROP_COMM_SPEAK_FIRST, 0, true)) {
+            // client initiates conversation
+            // 'speakFreely' is always false here
+            if (!this._sendAllPackets(TRANSPORT_DUPLEX, this.speakBrief)) {
+                this.duplexOK = false; // write error
+                return false;
             }
-            
-            /* handle received packet */
-            keepLooping = this._handleServerPacket(pkt);
-    
+            this.speakBrief = false;
         }
-        
-        /* close transport */
-        if (rtnOK) {
+
+        /* pipeline further blocks */
+        if (!this._fillDuplexWindow()) {
+            this.duplexOK = false; // write error
+            return false;
+        }
+        return true;
+
+    }
+
+    /**
+    * Handles a packet received from the server during a duplex session, and sends any
+    * packets which are then due.
+    * @param b The received packet, or null if the packet could not be read
+    * @return True if the session should continue, false if it should be ended
+    */
+    public boolean handleDuplexPacket(byte b[])
+    {
+        Packet pkt = this._parseServerPacket(b);
+        if (pkt == null) {
+            // read/parse error
+            this.duplexOK = false;
+            return false;
+        }
+        if (!this._handleServerPacket(pkt)) {
+            return false;
+        }
+        return this._duplexSessionSend();
+    }
+
+    /**
+    * Handles a read timeout during a duplex session.  Read timeouts are allowed in a
+    * persistent session until the response timeout has expired.
+    * @return True if the session should continue, false if it should be ended
+    */
+    public boolean handleDuplexTimeout()
+    {
+        if (this.sessionPersistent && (this.speakFreely || this.sessionIdle)) {
+            // read timeouts are allowed in 'speak-freely' mode, and while idle
+            return this._duplexSessionSend();
+        } else
+        if (this.sessionPersistent && !DateTime.isTimerExpired(this.lastResponseTimer, this.responseTimeout)) {
+            // still waiting for the server response
+            return this._duplexSessionSend();
+        } else
+        if (this.sessionPersistent) {
+            Log.warn(LOG_NAME, "Duplex server not responding (half-open connection)");
+            this.duplexOK = false;
+            return false;
+        } else
+        if (this.readTimeoutMS < Props.getLong(Props.PROP_COMM_LINK_ADAPT, 2, 30000L)) {
+            // the link may be slower than estimated, back off and keep waiting
+            this._setReadTimeout(this.readTimeoutMS * 2L);
+            Log.info(LOG_NAME, "Duplex read timeout, waiting " + this.readTimeoutMS + " ms");
+            return this._duplexSessionSend();
+        } else {
+            Log.info(LOG_NAME, "Duplex server read timeout");
+            // this is an error when not in 'speak-freely' mode, or not in a thread
+            // otherwise we'll be blocking the mainloop for too long.
+            this.duplexOK = false;
+            return false;
+        }
+    }
+
+    /**
+    * Sends any packets which are due in a 'speak-freely', or idle persistent, session.
+    * Called by a ProtocolEngine when new data has been queued.
+    * @return True if the session should continue, false if it should be ended
+    */
+    public boolean pollDuplexSession()
+    {
+        return this.duplexOpen && this._duplexSessionSend();
+    }
+
+    /**
+    * Returns true if a duplex session is open, and the client is waiting for the server to
+    * respond (ie. the read timeout is significant).
+    * @return True if awaiting a server response
+    */
+    public boolean isAwaitingResponse()
+    {
+        return this.duplexOpen && !this.speakFreely && !this.sessionIdle;
+    }
+
+    /**
+    * Closes the duplex session after a transport error detected by a ProtocolEngine (ie.
+    * the connection was closed, or buffered output could not be sent).
+    * @return false
+    */
+    public boolean abortDuplexSession()
+    {
+        this.duplexOK = false;
+        return this.endDuplexSession();
+    }
+
+    /**
+    * Closes the duplex session
+    * @return true, if the duplex session was successful
+    */
+    public boolean endDuplexSession()
+    {
+        if (!this.duplexOpen) {
+            return false;
+        }
+        if (this.duplexOK) {
             Log.setMessage(1, "");
         } else {
             Log.setMessage(1, "TCP TX Err");
         }
-        this._transportClose(TRANSPORT_DUPLEX, false);
-        this.getEventQueue().resetSent(); // set any remaining 'sent' events to 'unsent'
-        Accounting.markDuplexConnection();
-        return rtnOK;
+        this._transportClose(TRANSPORT_DUPLEX, false);
+        this.upload.suspend(); // resumed in a later session
+        this.getEventQueue().resetSent(this._getDuplexMinPriority()); // set any remaining 'sent' events to 'unsent'
+        this.sentBlocks.removeAllElements();
+        this.link.clearPending();
+        this.sessionPersistent = false;
+        this.sessionIdle = false;
+        this.duplexOpen = false;
+        if (this.catchupSession) {
+            // catch-up connections are not counted in the connection quota
+            Accounting.markCatchupConnection();
+            this._updateCatchupState();
+            this.catchupSession = false;
+        } else {
+            Accounting.markDuplexConnection();
+        }
+        this.catchupState = CATCHUP_NONE;
+        return this.duplexOK;
+    }
+
+    /**
+    * Sends queued packets while the client holds the turn ('speak-freely', or idle
+    * persistent session), and pipelines further blocks within the transmit window.
+    * @return True if the session should continue, false on a write error
+    */
+    private boolean _duplexSessionSend()
+    {
+
+        /* persistent session accounting */
+        if (this.sessionPersistent && !this._checkPersistentSession()) {
+            this.duplexOK = false; // write error
+            return false;
+        }
+
+        /* send queued packets */
+        if (this.speakFreely) {
+            // send any pending packets
+            // During 'speak-freely' wait until we have something to send.
+            if (this._hasMoreDataToSend()) {
+                // The thread may decide whether, or not, to relinquish 'speakFreely' permission
+                if (this.relinquishSpeakFreely) {
+                    this.speakFreely = false; // relinquish speak-freely permission
+                }
+                if (!this._sendAllPackets(TRANSPORT_DUPLEX, false)) {
+                    this.duplexOK = false; // write error
+                    return false;
+                }
+            }
+        } else
+        if (this.sessionIdle) {
+            // A persistent session holds its turn until there is something to send
+            if (this._hasMoreDataToSend()) {
+                this.sessionIdle = false;
+                if (!this._sendAllPackets(TRANSPORT_DUPLEX, false)) {
+                    this.duplexOK = false; // write error
+                    return false;
+                }
+            } else
+            if (DateTime.isTimerExpired(this.lastActivityTimer, this.keepAliveInterval)) {
+                // keepalive: an empty block, which the server must respond to
+                this.sessionIdle = false;
+                if (!this._sendAllPackets(TRANSPORT_DUPLEX, true)) {
+                    this.duplexOK = false; // write error
+                    return false;
+                }
+            }
+        }
+
+        /* pipeline further blocks while earlier blocks are unacknowledged */
+        if (!this._fillDuplexWindow()) {
+            this.duplexOK = false; // write error
+            return false;
+        }
+        return true;
 
     }
 
@@ -696,13 +1413,38 @@ public class Protocol
             // has miscellaneous (unsent) volatile packets
             return true;
         } else
-        if (this.getEventQueue().hasUnsentPackets()) {
+        if (this.getEventQueue().hasUnsentPackets(this._getDuplexMinPriority())) {
             // has unsent event packets
             return true;
         }
         return false;
     }
 
+    /**
+    * Marks each minute of a persistent session, and ends persistence when the Duplex quota
+    * (counted in session minutes) has been reached, or the protocol thread is stopping.  If 
+    * the session was idle, a final block is sent, so that the session ends normally.
+    * @return true, if successful
+    */
+    private boolean _checkPersistentSession()
+    {
+        if (DateTime.isTimerExpired(this.sessionMinuteTimer, 60L)) {
+            this.sessionMinuteTimer = DateTime.getTimerSec();
+            Accounting.markDuplexSession();
+        }
+        boolean stopping = (this.engine != null)? this.engine.shouldStop() : this.protocolThread.shouldStop();
+        if (stopping || !Accounting.isUnderDuplexQuota()) {
+            Log.info(LOG_NAME, "Ending persistent session");
+            this.sessionPersistent = false;
+            if (this.sessionIdle || (this.speakFreely && this.sentBlocks.isEmpty())) {
+                this.sessionIdle = false;
+                this.speakFreely = false;
+                return this._sendAllPackets(TRANSPORT_DUPLEX, false);
+            }
+        }
+        return true;
+    }
+
     /**
     * Sends all packets.
     * @param xportType The transport type
@@ -714,11 +1456,26 @@ public class Protocol
     
         /* reset checksum before we start transmitting */
         this.fletcher.reset();
+
+        /* tag the events sent in this block */
+        int blockTag = 0;
+        if (xportType == TRANSPORT_DUPLEX) {
+            blockTag = (this.lastBlockTag % MAX_BLOCK_TAG) + 1;
+            this.lastBlockTag = blockTag;
+        }
+        long blockStartBytes = this.sessionWriteBytes;
+        this.blockEventCount = 0;
+        this.blockSequenceRange = 0;
     
         /* transmit identification packets */
         if (!this._sendIdentification()) {
             return false; // write error
         }
+
+        /* request a catch-up session */
+        if ((this.catchupState == CATCHUP_REQUEST) && !this._sendCatchupRequest()) {
+            return false; // write error
+        }
         
         /* 'brief' means send only the identification and EOB packets */
         // If the ID packets aren't sent (don't need to be sent), and 'speakFreekly' is true,
@@ -733,12 +1490,12 @@ public class Protocol
         } else {
         
             /* transmit pending packets */
-            if (!this._sendQueue(this.getPendingQueue(), Packet.PRIORITY_HIGH, -1)) {
+            if (!this._sendQueue(this.getPendingQueue(), Packet.PRIORITY_HIGH, -1, 0)) {
                 return false; // write error: close socket
             }
     
             /* transmit volatile packets */
-            if (!this._sendQueue(this.getVolatileQueue(), Packet.PRIORITY_HIGH, -1)) {
+            if (!this._sendQueue(this.getVolatileQueue(), Packet.PRIORITY_HIGH, -1, 0)) {
                 return false; // write error: close socket
             }
             
@@ -774,8 +1531,18 @@ public class Protocol
                     if (maxEvents > MAX_SIMPLEX_EVENTS) { maxEvents = MAX_SIMPLEX_EVENTS; }
                     break;
                 case TRANSPORT_DUPLEX:
+                    if (this.catchupState == CATCHUP_ACCEPTED) {
+                        // catch-up blocks are sized by the server
+                        maxEvents = this.catchupEvents;
+                        break;
+                    }
                     maxEvents = (int)Props.getLong(Props.PROP_COMM_MAX_DUP_EVENTS, 0, 8L);
                     if (maxEvents > MAX_DUPLEX_EVENTS) { maxEvents = MAX_DUPLEX_EVENTS; }
+                    long targetMS = Props.getLong(Props.PROP_COMM_LINK_ADAPT, 0, 0L);
+                    if (targetMS > 0L) {
+                        // size the block from the measured throughput
+                        maxEvents = this.link.getBlockEvents(targetMS, maxEvents, MAX_DUPLEX_EVENTS);
+                    }
                     break;
             }
     
@@ -794,20 +1561,55 @@ public class Protocol
                 Packet.PRIORITY_HIGH :     // all priority events will be sent
                 Packet.PRIORITY_LOW;       // only low priority events will be sent
     
+            /* simplify a large backlog of low priority events */
+            this._thinEventBacklog();
+    
+            /* compress the event packets of a duplex block? */
+            // There is no negotiation: the first compressed (PKT_CLIENT_DEFLATE_DATA) block sent to
+            // a server is the capability probe.  A server which does not support it NAKs the packet
+            // and does not acknowledge the events, compression is then disabled (see
+            // '_disableCompression'), and the events of the block are resent uncompressed when the
+            // block is retired.  Enable compression only for servers known to support it, or
+            // accept that the first block is sent twice.
+            long level = Props.getLong(Props.PROP_COMM_COMPRESSION, 0, 0L);
+            if ((xportType == TRANSPORT_DUPLEX) && (level > 0L)) {
+                this.blockCompressor = new BlockCompressor((int)Math.min(level, 9L));
+            }
+    
             /* transmit unacknowledged event packets */
-            if (!this._sendQueue(this.getEventQueue(), maxPri, maxEvents)) {
+            boolean sendOK = this._sendQueue(this.getEventQueue(), maxPri, maxEvents, blockTag);
+            if (this.blockCompressor != null) {
+                sendOK = this._sendCompressedBlock(sendOK);
+            }
+            if (!sendOK) {
                 return false; // write error: close socket
             }
-            hasMoreEvents = this.getEventQueue().hasUnsentPackets(); // this._hasMoreDataToSend();
+            hasMoreEvents = this.getEventQueue().hasUnsentPackets(this._getDuplexMinPriority()); // this._hasMoreDataToSend();
 
         }
     
         /* send end-of-block packet */
         if (xportType == TRANSPORT_DUPLEX) {
+            // Blocks which are still unacknowledged may need to be resent, so the session
+            // is not ended (EOB_DONE) until the server has responded to all earlier blocks.
+            if (!this.sentBlocks.isEmpty() || this.sessionPersistent) {
+                // a persistent session is not ended by the client
+                hasMoreEvents = true;
+            }
             // This also relinquishes any 'speakFreely' permission
+            boolean sendEOB = !this.speakFreely;
             if (!_protocolSendEOB(hasMoreEvents)) {
                 return false;
             }
+            if (sendEOB) {
+                // the server will respond to this block
+                if (this.sentBlocks.isEmpty()) {
+                    this.lastResponseTimer = DateTime.getTimerSec(); // start waiting
+                }
+                this.sentBlocks.addElement(new Integer(blockTag));
+                this.link.blockSent(this.sessionWriteBytes - blockStartBytes, this.blockEventCount);
+                this.sentBlockMore = hasMoreEvents;
+            }
         }
 
         return true;
@@ -879,17 +1681,18 @@ public class Protocol
     // ----------------------------------------------------------------------------
 
     /**
-    * Read a server packet
-    * @return The parsed packet
-    * @throws TimeoutException If a timeout occurs
+    * Parses a packet read from the server
+    * @param b The packet bytes
+    * @return The parsed packet, or null if the packet could not be parsed
     */
-    private Packet _readServerPacket()
-        throws TimeoutException
+    private Packet _parseServerPacket(byte b[])
     {
-        byte b[] = this.transport.readPacket();
         if (b != null) {
+            this.lastActivityTimer = DateTime.getTimerSec();
+            this.lastResponseTimer = this.lastActivityTimer;
             this.sessionReadBytes += b.length;
             this.totalReadBytes   += b.length;
+            Accounting.consumeDataBytes(b.length);
             try {
                 Packet p = new Packet(false, b);
                 return p;
@@ -927,6 +1730,16 @@ public class Protocol
             case Packet.PKT_SERVER_EOB_DONE     : {    // End of transmission, query response
                 // Arguments: none
                 this.speakFreely = false; // relinquish speak-freely permission
+                this._retireOldestBlock();
+                if (!this.sentBlocks.isEmpty()) {
+                    // the server has yet to respond to later (pipelined) blocks
+                    return true;
+                }
+                if (this.sessionPersistent && !this._hasMoreDataToSend()) {
+                    // hold the turn until there is something to send, or a keepalive is due
+                    this.sessionIdle = true;
+                    return true;
+                }
                 if (!this._sendAllPackets(TRANSPORT_DUPLEX, this.speakBrief)) {
                     return false; // write error
                 }
@@ -935,15 +1748,25 @@ public class Protocol
             }
             case Packet.PKT_SERVER_EOB_SPEAK_FREELY: { // End of transmission, speak freely
                 // Arguments: none
+                this._retireOldestBlock();
                 this.speakFreely = true; // 'speak-freely' permission granted
                 // we will be sending data shortly (in the outer loop)
                 return true;
             }
             case Packet.PKT_SERVER_ACK          : { // Acknowledge [optional sequence]
                 // Arguments: sequence[optional]
-                long sequence = payload.readULong(4, Packet.SEQUENCE_ALL);
+                long sequence = payload.readULong(8, Packet.SEQUENCE_ALL);
+                int  seqLen   = payload.getIndex(); // the sequence field length
                 // remove sent/acknowledged events from queue up to specified sequence #
-                int delCount = this.getEventQueue().deleteToSequence(sequence);
+                int delCount = 0;
+                if (!this.sentBlocks.isEmpty()) {
+                    // the acknowledgement applies to the oldest unacknowledged block
+                    int blockTag = ((Integer)this.sentBlocks.elementAt(0)).intValue();
+                    delCount = this.getEventQueue().deleteSentBlock(blockTag, sequence, seqLen);
+                } else {
+                    delCount = this.getEventQueue().deleteToSequence(sequence, seqLen, this._getDuplexMinPriority());
+                    this.getEventQueue().resetSent(this._getDuplexMinPriority()); // set all events to 'unsent'
+                }
                 if (delCount <= 0) {
                     Payload p = new Payload();
                     p.writeULong(ClientErrors.ERROR_PACKET_ACK, 2);
@@ -953,7 +1776,6 @@ public class Protocol
                     // add to total events sent/ack'ed
                     this.totalEventsSent += delCount;
                 }
-                this.getEventQueue().resetSent(); // set all events to 'unsent'
                 return true;
             }
             case Packet.PKT_SERVER_GET_PROPERTY : { // Get property
@@ -1012,8 +1834,21 @@ public class Protocol
                 return true;
             }
             case Packet.PKT_SERVER_FILE_UPLOAD  : { // File upload
-                //uploadProcessRecord(srvPkt->data, (int)srvPkt->dataLen);
-                // this already sends error/ack packets
+                // Arguments: uploadType, offset/length, data
+                this.upload.processRecord(payload); // this already sends error/status packets
+                return true;
+            }
+            case Packet.PKT_SERVER_CATCHUP_ACCEPT: { // Catch-up session accepted
+                // Arguments: eventsPerBlock, window
+                int maxEvents = (int)payload.readULong(2, 0L);
+                int window    = (int)payload.readULong(1, 1L);
+                if ((this.catchupState == CATCHUP_REQUESTED) && (maxEvents > 0)) {
+                    // the following blocks are sent with the granted size and window
+                    this.catchupEvents = Math.min(maxEvents, this._getCatchupEvents());
+                    this.duplexWindow  = Math.max(Math.min(window, this._getCatchupWindow()), 1);
+                    this.catchupState  = CATCHUP_ACCEPTED;
+                    Log.info(LOG_NAME, "Catch-up session: " + this.catchupEvents + " events/block, window " + this.duplexWindow);
+                }
                 return true;
             }
             case Packet.PKT_SERVER_ERROR        : { // NAK/Error codes
@@ -1104,11 +1939,18 @@ public class Protocol
             case ServerErrors.NAK_PACKET_TYPE            : { // Invalid/Unsupported packet type
                 // The DMT server does not support our custom extensions
                 // Ignore the error and continue.
+                this._disablePackedEvents(hdrType);
+                this._disableCompression(hdrType);
+                this._disableCatchup(hdrType);
                 return true;
             }
             
             case ServerErrors.NAK_PACKET_LENGTH          :   // Invalid packet length
             case ServerErrors.NAK_PACKET_PAYLOAD         : { // Invalid packet payload
+                if (this._disableCompression(hdrType)) {
+                    // the server could not decompress the block, which will be resent uncompressed
+                    return true;
+                }
                 // This indicates a protocol compliance issue in the client
                 this.severeErrorCount++;
                 return false;
@@ -1133,6 +1975,7 @@ public class Protocol
                     Props.setLong(Props.PROP_COMM_ENCODINGS, 0, encodingMask);
                     this.sessionEncoding &= ~Encoding.ENCODING_MASK; // save checksum
                     this.sessionEncoding |= Encoding.SUPPORTED_ENCODING_BASE64; // new encoding
+                    ServerCapabilities.setEncoding(this._getServerKey(), this.sessionEncoding);
                     if ((hdrType == Packet.PKT_CLIENT_UNIQUE_ID)  ||
                         (hdrType == Packet.PKT_CLIENT_ACCOUNT_ID) ||
                         (hdrType == Packet.PKT_CLIENT_DEVICE_ID)    ) {
@@ -1173,7 +2016,11 @@ public class Protocol
                 // current level of service).  
                 // We should acknowledge all sent events, and set a flag indicating that
                 // we should not send custom formats to this server in the future.
-                this.getEventQueue().deleteToSequence(Packet.SEQUENCE_ALL);
+                if (this._disablePackedEvents(hdrType)) {
+                    // the packed events will be resent individually
+                    return true;
+                }
+                this.getEventQueue().deleteToSequence(Packet.SEQUENCE_ALL, 8, this._getDuplexMinPriority());
                 // these records are not counted
                 Props.setBoolean(Props.PROP_COMM_CUSTOM_FORMATS, 0, false);
                 return true;
@@ -1183,12 +2030,15 @@ public class Protocol
                 // The DMT does support custom formats, but it doesn't recognize the 
                 // format we've used in an event packet.  We should send the custom
                 // format template(s), then resend the events.
-                PayloadTemplate template = Packet.GetClientPayloadTemplate(hdrType);
+                int pktType = hdrType & 0xFF; // 'hdrType' is the packet header and type
+                PayloadTemplate template = Packet.GetClientPayloadTemplate(pktType);
                 if (template != null) {
                     Payload p = template.getPayload();
                     Packet custPkt = Packet.createClientPacket(Packet.PKT_CLIENT_FORMAT_DEF_24, p);
                     custPkt.setPriority(Packet.PRIORITY_HIGH);
                     this.queuePacket(custPkt);
+                    // send the definition at the start of future sessions with this server
+                    ServerCapabilities.addDefinedType(this._getServerKey(), pktType);
                     return true;
                 } else {
                     // One of the following has occured:
@@ -1204,7 +2054,7 @@ public class Protocol
             case ServerErrors.NAK_EXCESSIVE_EVENTS       : { // Excessive events
                 // The DMT server may mark (or has marked) us as an abuser.
                 // If present, the next (first) event will never be accepted, purge it from the queue.
-                this.getEventQueue().deleteFirstSent(); // first "sent" event
+                this.getEventQueue().deleteFirstSent(this._getDuplexMinPriority()); // first "sent" event
                 // Slow down periodic messages to prevent this from occurring in the future
                 long inMotionInterval = Props.getLong(Props.PROP_MOTION_IN_MOTION, 0, 0L);
                 if (inMotionInterval > 0L) {
@@ -1235,6 +2085,156 @@ public class Protocol
 
     }
 
+    /**
+    * Disables packed (or delta encoded) event packets, if the specified packet is a packed
+    * (or delta encoded) event packet
+    * @param hdrType The packet header and type
+    * @return true if the packet was a packed event packet
+    */
+    private boolean _disablePackedEvents(int hdrType)
+    {
+        int pktType = hdrType & 0xFF;
+        if (pktType == Packet.PKT_CLIENT_DELTA_FMT_STD) {
+            if (Props.getLong(Props.PROP_COMM_PACKED_EVENTS, 1, 0L) != 0L) {
+                // continue with packed events without delta encoding
+                Log.warn(LOG_NAME, "Server does not support delta encoded events");
+                Props.setLong(Props.PROP_COMM_PACKED_EVENTS, 1, 0L);
+                return true;
+            }
+            // delta encoding may have been disabled by the NAK of an earlier packet in this block
+            return this.deltaPacketsSent;
+        } else
+        if ((pktType == Packet.PKT_CLIENT_PACKED_FMT_STD) || (pktType == Packet.PKT_CLIENT_PACKED_FMT_HIGH)) {
+            if (Props.getLong(Props.PROP_COMM_PACKED_EVENTS, 0, 0L) > 1L) {
+                Log.warn(LOG_NAME, "Server does not support packed events");
+                Props.setLong(Props.PROP_COMM_PACKED_EVENTS, 0, 0L);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+    * Disables block compression, if the specified packet is a compressed data packet
+    * @param hdrType The packet header and type
+    * @return true if the packet was a compressed data packet
+    */
+    private boolean _disableCompression(int hdrType)
+    {
+        if ((hdrType & 0xFF) != Packet.PKT_CLIENT_DEFLATE_DATA) {
+            return false;
+        }
+        if (Props.getLong(Props.PROP_COMM_COMPRESSION, 0, 0L) != 0L) {
+            Log.warn(LOG_NAME, "Server does not support compressed blocks");
+            Props.setLong(Props.PROP_COMM_COMPRESSION, 0, 0L);
+        }
+        return true;
+    }
+
+    /**
+    * Disables catch-up sessions, if the specified packet is a catch-up request packet.  The
+    * current session continues with normal blocks.
+    * @param hdrType The packet header and type
+    * @return true if the packet was a catch-up request packet
+    */
+    private boolean _disableCatchup(int hdrType)
+    {
+        if ((hdrType & 0xFF) != Packet.PKT_CLIENT_CATCHUP_REQUEST) {
+            return false;
+        }
+        if (Props.getLong(Props.PROP_COMM_CATCHUP, 0, 0L) != 0L) {
+            Log.warn(LOG_NAME, "Server does not support catch-up sessions");
+            Props.setLong(Props.PROP_COMM_CATCHUP, 0, 0L);
+        }
+        this.catchupState = CATCHUP_NONE;
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Returns true if the event queue holds the backlog for a catch-up session
+    * (see PROP_COMM_CATCHUP)
+    */
+    private boolean _isCatchupBacklog()
+    {
+        long minEvents = Props.getLong(Props.PROP_COMM_CATCHUP, 0, 0L);
+        if (minEvents <= 0L) {
+            return false;
+        }
+        return (this._getDuplexQueueSize() >= minEvents);
+    }
+
+    /**
+    * Returns the number of queued events sent by duplex sessions
+    */
+    private long _getDuplexQueueSize()
+    {
+        long queued = this.getEventQueue().getQueueSize();
+        if (this._isSimplexLane()) {
+            // low priority events are sent on the simplex lane
+            queued -= this.getEventQueue().getQueueSize(Packet.PRIORITY_LOW);
+        }
+        return queued;
+    }
+
+    /**
+    * Returns the maximum number of events per catch-up block
+    */
+    private int _getCatchupEvents()
+    {
+        int maxEvents = (int)Props.getLong(Props.PROP_COMM_CATCHUP, 1, 512L);
+        if (maxEvents < 1) { maxEvents = 1; }
+        if (maxEvents > MAX_CATCHUP_EVENTS) { maxEvents = MAX_CATCHUP_EVENTS; }
+        return maxEvents;
+    }
+
+    /**
+    * Returns the maximum number of catch-up blocks awaiting acknowledgement
+    */
+    private int _getCatchupWindow()
+    {
+        int window = (int)Props.getLong(Props.PROP_COMM_CATCHUP, 2, 4L);
+        if (window < 1) { window = 1; }
+        if (window > MAX_DUPLEX_WINDOW) { window = MAX_DUPLEX_WINDOW; }
+        return window;
+    }
+
+    /**
+    * Sends the catch-up request packet.  The current block is sent as a normal block, and
+    * the following blocks are catch-up blocks once the server has accepted the request.
+    * @return true, if successful.
+    */
+    private boolean _sendCatchupRequest()
+    {
+        long queued = this._getDuplexQueueSize();
+        Payload p = new Payload();
+        p.writeULong(queued                             , 4);
+        p.writeULong(this._getCatchupEvents()           , 2);
+        p.writeULong(this._getCatchupWindow()           , 1);
+        Packet pkt = Packet.createClientPacket(Packet.PKT_CLIENT_CATCHUP_REQUEST, p);
+        if (this._transportWritePacket(pkt) < 0) {
+            return false; // write error
+        }
+        this.catchupState = CATCHUP_REQUESTED;
+        Log.info(LOG_NAME, "Catch-up requested: " + queued + " events");
+        return true;
+    }
+
+    /**
+    * Updates PROP_STATE_CATCHUP at the end of a catch-up session
+    */
+    private void _updateCatchupState()
+    {
+        long events = this.totalEventsSent - this.catchupStartSent;
+        long durSec = (System.currentTimeMillis() - this.catchupStartMS) / 1000L;
+        Props.setLong(Props.PROP_STATE_CATCHUP, 0, Props.getLong(Props.PROP_STATE_CATCHUP, 0, 0L) + 1L);
+        Props.setLong(Props.PROP_STATE_CATCHUP, 1, Props.getLong(Props.PROP_STATE_CATCHUP, 1, 0L) + events);
+        Props.setLong(Props.PROP_STATE_CATCHUP, 2, durSec);
+        Log.info(LOG_NAME, "Catch-up session ended: " + events + " events in " + durSec + " sec");
+    }
+
     // ----------------------------------------------------------------------------
 
     /**
@@ -1242,48 +2242,104 @@ public class Protocol
     * @param pq The acket queue
     * @param maxPri The maximum priority packets
     * @param maxEvents The maximum events (if >0)
+    * @param blockTag The tag of the transmission block (0 if the block is not tracked)
     * @return true, if successful.
     */
-    private boolean _sendQueue(PacketQueue pq, int maxPri, int maxEvents)
+    private boolean _sendQueue(PacketQueue pq, int maxPri, int maxEvents, int blockTag)
     {
         int rtnWriteLen = 0; // rtnVal
     
         /* adjust arguments */
+        int minPri = (pq == this.getEventQueue())? this._getDuplexMinPriority() : Packet.PRIORITY_LOW;
         if (maxPri < Packet.PRIORITY_LOW) { maxPri = Packet.PRIORITY_LOW; } // at least low priority packets
+        if (maxPri > Packet.PRIORITY_HIGH) { maxPri = Packet.PRIORITY_HIGH; } // no lanes above high priority
         if (maxEvents == 0) { maxEvents = 1; } // at least 1 packet
         // a 'maxEvent' < 0 means there is no maximum number of events to send
 
-        /* iterate through queue */
-        // This loop stops as soon as one of the following has occured:
+        /* packed events */
+        // Consecutive events of the same lane and fixed format are collected here, and sent
+        // in a single packed event packet (see PROP_COMM_PACKED_EVENTS).
+        int maxPacked = (pq == this.getEventQueue())? (int)Props.getLong(Props.PROP_COMM_PACKED_EVENTS, 0, 0L) : 0;
+        Packet packed[] = (maxPacked > 1)? new Packet[maxPacked] : null;
+        boolean delta = (Props.getLong(Props.PROP_COMM_PACKED_EVENTS, 1, 0L) != 0L);
+        int packedCount = 0;
+        int packedLength = 0; // payload length
+
+        /* iterate through queue lanes */
+        // Lanes are drained in priority order (highest allowed priority first), and each
+        // lane is sent in FIFO order.  This loop stops as soon as one of the following has
+        // occured:
         //  - We've sent the specified 'maxEvents'.
-        //  - All events in the queue have been sent.
-        //  - We've run into a packet that exceeds our maximum allowable priority.
-        for (int pi = 0; maxEvents != 0; pi++) {
+        //  - All events in the allowable lanes have been sent.
+        // Packets in lanes exceeding our maximum allowable priority are not sent, nor are low
+        // priority packets while they are sent on the simplex lane.
+        for (int pri = maxPri; (pri >= minPri) && (maxEvents != 0) && (rtnWriteLen >= 0); pri--) {
+            for (int pi = 0; maxEvents != 0; pi++) {
+
+                /* pre-empted by a high priority event? (see 'run_protocolSimplexTransport') */
+                if ((maxPri == Packet.PRIORITY_LOW) && this.expressPending) {
+                    break;
+                }
 
-            /* get next packet */
-            Packet quePkt = pq.getPackatAt(pi);
-            if (quePkt == null) {
-                break;
-            }
+                /* get next packet */
+                Packet quePkt = pq.getPackatAt(pri, pi);
+                if (quePkt == null) {
+                    break;
+                } else
+                if (quePkt.isSent()) {
+                    // sent in an earlier block, which is not yet acknowledged
+                    continue;
+                }
+
+                /* end the block before an event sequence number would repeat within it */
+                if ((blockTag > 0) && !this._isBlockSequenceUnique(quePkt, packedCount)) {
+                    maxEvents = 0;
+                    break;
+                }
+
+                /* pack with the preceding events? */
+                if (packed != null) {
+                    int recLen = this._getPackedRecordLength(packed, packedCount, packedLength, quePkt, delta);
+                    if ((recLen < 0) && (packedCount > 0)) {
+                        rtnWriteLen = this._sendPackedEvents(packed, packedCount, delta, blockTag);
+                        packedCount  = 0;
+                        packedLength = 0;
+                        if (rtnWriteLen < 0) {
+                            // error
+                            break;
+                        }
+                        recLen = this._getPackedRecordLength(packed, packedCount, packedLength, quePkt, delta);
+                    }
+                    if (recLen > 0) {
+                        packed[packedCount++] = quePkt;
+                        packedLength += recLen;
+                        if (maxEvents > 0) { maxEvents--; }
+                        continue;
+                    }
+                }
+
+                /* write packet */
+                rtnWriteLen = this._transportWritePacket(quePkt);
+                if (rtnWriteLen < 0) {
+                    // error
+                    break;
+                }
+
+                /* mark this packet as sent */
+                this._markSent(quePkt, blockTag);
+
+                /* decrement counter */
+                if (maxEvents > 0) { maxEvents--; }
 
-            /* priority */
-            if (quePkt.getPriority() > maxPri) {
-                break;
             }
 
-            /* write packet */
-            rtnWriteLen = this._transportWritePacket(quePkt);
-            if (rtnWriteLen < 0) {
-                // error
-                break;
+            /* send the packed events of this lane */
+            if ((packedCount > 0) && (rtnWriteLen >= 0)) {
+                rtnWriteLen = this._sendPackedEvents(packed, packedCount, delta, blockTag);
+                packedCount  = 0;
+                packedLength = 0;
             }
-            
-            /* mark this packet as sent */
-            quePkt.setSent(true); // mark it as sent
-            
-            /* decrement counter */
-            if (maxEvents > 0) { maxEvents--; }
-            
+
         }
     
         /* check for errors */
@@ -1295,6 +2351,140 @@ public class Protocol
     
     }
 
+    /**
+    * Returns true if the specified event may be added to the current block without
+    * repeating the sequence number (as carried in its sequence field) of an earlier event
+    * in the block.  A block holds at most half the range of the shortest sequence field of
+    * its events, so that an acknowledged sequence number identifies a single event of the
+    * block (see 'PacketQueue.deleteSentBlock').
+    * @param pkt The event packet
+    * @param pending The number of events collected for the block, but not yet sent
+    */
+    private boolean _isBlockSequenceUnique(Packet pkt, int pending)
+    {
+        int seqLen = Packet.GetSequenceLength(pkt.getPacketType());
+        if ((seqLen > 0) && (seqLen < 4)) {
+            int range = 1 << ((8 * seqLen) - 1);
+            if ((this.blockSequenceRange == 0) || (range < this.blockSequenceRange)) {
+                this.blockSequenceRange = range;
+            }
+        }
+        return (this.blockSequenceRange == 0) || ((this.blockEventCount + pending) < this.blockSequenceRange);
+    }
+
+    /**
+    * Returns the length of the record which the specified event packet adds to the collected
+    * packed events, or -1 if the event cannot be added
+    */
+    private int _getPackedRecordLength(Packet packed[], int count, int length, Packet pkt, boolean delta)
+    {
+        if (count >= packed.length) {
+            return -1;
+        }
+        Packet prev = (count > 0)? packed[count - 1] : null;
+        int recLen = Packet.GetPackedRecordLength(prev, pkt, delta);
+        return ((recLen > 0) && ((length + recLen) <= Packet.MAX_PAYLOAD_LENGTH))? recLen : -1;
+    }
+
+    /**
+    * Writes the collected packed events, as a single packed event packet if more than one
+    * event was collected, and marks the events as sent.
+    * @return the length written
+    */
+    private int _sendPackedEvents(Packet packed[], int count, boolean delta, int blockTag)
+    {
+        Packet pkt = (count > 1)? Packet.createClientPackedPacket(packed, count, delta) : packed[0];
+        if (pkt.getPacketType() == Packet.PKT_CLIENT_DELTA_FMT_STD) {
+            this.deltaPacketsSent = true;
+        }
+        int rtnWriteLen = this._transportWritePacket(pkt);
+        if (rtnWriteLen >= 0) {
+            for (int i = 0; i < count; i++) {
+                // each event is acknowledged individually
+                this._markSent(packed[i], blockTag);
+                packed[i] = null;
+            }
+        }
+        return rtnWriteLen;
+    }
+
+    /**
+    * Marks the specified packet as sent
+    */
+    private void _markSent(Packet pkt, int blockTag)
+    {
+        if (blockTag > 0) {
+            pkt.setSentBlock(blockTag); // mark it as sent within this block
+            this.blockEventCount++;
+        } else {
+            pkt.setSent(true); // mark it as sent
+        }
+    }
+
+    /**
+    * Sends further event blocks, without waiting for the server response, while fewer than
+    * 'duplexWindow' blocks are unacknowledged and there are unsent events.  Blocks are only
+    * pipelined behind a block which ended with EOB_MORE.
+    * @return true, if successful.
+    */
+    private boolean _fillDuplexWindow()
+    {
+        while (!this.speakFreely && this.sentBlockMore && !this.sentBlocks.isEmpty() && 
+            (this.sentBlocks.size() < this.duplexWindow) && this.getEventQueue().hasUnsentPackets(this._getDuplexMinPriority())) {
+            if (!this._sendAllPackets(TRANSPORT_DUPLEX, false)) {
+                return false; // write error
+            }
+        }
+        return true;
+    }
+
+    /**
+    * Ends the server response to the oldest unacknowledged block.  Any events of that block
+    * which were not acknowledged are set to 'unsent', so that they will be sent again.
+    */
+    private void _retireOldestBlock()
+    {
+        if (!this.sentBlocks.isEmpty()) {
+            int blockTag = ((Integer)this.sentBlocks.elementAt(0)).intValue();
+            this.sentBlocks.removeElementAt(0);
+            int resent = this.getEventQueue().resetSentBlock(blockTag);
+            if (resent > 0) {
+                Log.info(LOG_NAME, "Unacknowledged events will be resent: " + resent);
+            }
+            if (this.link.blockAcknowledged() >= 0L) {
+                this._updateLinkEstimate();
+            }
+        }
+    }
+
+    /**
+    * Sets the duplex read timeout from the current link estimate, and updates the link
+    * estimate status property.
+    */
+    private void _updateLinkEstimate()
+    {
+        long minMS = Props.getLong(Props.PROP_COMM_LINK_ADAPT, 1, 3000L);
+        long maxMS = Props.getLong(Props.PROP_COMM_LINK_ADAPT, 2, 30000L);
+        this._setReadTimeout(this.link.getReadTimeout(minMS, maxMS));
+        if (this.link.hasEstimate()) {
+            Props.setLong(Props.PROP_STATE_LINK_ESTIMATE, 0, this.link.getSmoothedRTT());
+            Props.setLong(Props.PROP_STATE_LINK_ESTIMATE, 1, this.link.getRTTVariation());
+            Props.setLong(Props.PROP_STATE_LINK_ESTIMATE, 2, this.readTimeoutMS);
+            Props.setLong(Props.PROP_STATE_LINK_ESTIMATE, 3, this.link.getBytesPerSecond());
+            Props.setLong(Props.PROP_STATE_LINK_ESTIMATE, 4, this.link.getLastBlockEvents());
+        }
+    }
+
+    /**
+    * Sets the duplex read timeout, limited to the maximum read timeout
+    */
+    private void _setReadTimeout(long timeoutMS)
+    {
+        long maxMS = Props.getLong(Props.PROP_COMM_LINK_ADAPT, 2, 30000L);
+        this.readTimeoutMS = (timeoutMS < maxMS)? timeoutMS : maxMS;
+        this.transport.setReadTimeout((int)this.readTimeoutMS);
+    }
+
     /**
     * Sends the End-Of-Block packet. Do not use for simplex transport.
     * @param hasMoreEvents True if there are more events.
@@ -1342,6 +2532,37 @@ public class Protocol
     // ----------------------------------------------------------------------------
     // The following are wrappers to the 'transport.c' module function calls
  
+    /**
+    * Applies the current queue limit/policy properties to the event queue.
+    */
+    private void _updateEventQueueLimits()
+    {
+        int  maxEvents = (int)Props.getLong(Props.PROP_COMM_QUEUE_LIMITS, 0, 0L);
+        long maxBytes  = Props.getLong(Props.PROP_COMM_QUEUE_LIMITS, 1, 0L);
+        int  policy    = (int)Props.getLong(Props.PROP_COMM_QUEUE_POLICY, 0, (long)PacketQueue.OVERFLOW_COALESCE);
+        this.getEventQueue().setLimits(maxEvents, maxBytes, policy);
+    }
+
+    /**
+    * Applies trajectory thinning to the low priority events in the event queue, if the 
+    * backlog has reached the size specified by PROP_COMM_THIN_BACKLOG, or the data budget
+    * is low.
+    */
+    private void _thinEventBacklog()
+    {
+        long minEvents = Props.getLong(Props.PROP_COMM_THIN_BACKLOG, 0, 0L);
+        if (Accounting.getDataBudgetLevel() != DataBudget.LEVEL_OK) {
+            minEvents = 1L; // thin whatever is queued
+        }
+        if ((minEvents > 0L) && (this.getEventQueue().getQueueSize(Packet.PRIORITY_LOW) >= minEvents)) {
+            long tolMeters = Props.getLong(Props.PROP_COMM_THIN_BACKLOG, 1, 25L);
+            int removed = this.getEventQueue().thinLowPriority((double)tolMeters);
+            if (removed > 0) {
+                Log.info(LOG_NAME, "Thinned low priority backlog: " + removed + " events removed");
+            }
+        }
+    }
+
     /**
     * Opens the transport communication.
     * @param type The type of transport (TRANSPORT_SIMPLEX, TRANSPORT_DUPLEX)
@@ -1349,11 +2570,13 @@ public class Protocol
     */
     private boolean _transportOpen(int type)
     {
+        long startMS = System.currentTimeMillis();
         boolean didOpen = this.transport.open(type);
         if (didOpen) {
+            this.lastConnectMS = System.currentTimeMillis() - startMS;
             /* openned, reset session */
             this.getVolatileQueue().emptyQueue();
-            //evEnableOverwrite(false); // disable overwrites while connected
+            this.getEventQueue().enableOverwrite(false); // disable overwrites while connected
             this.severeErrorCount        = 0;
             this.checkSumErrorCount      = 0;
             this.invalidAcctErrorCount   = 0;
@@ -1362,9 +2585,54 @@ public class Protocol
             this.totalWriteBytes         = Props.getLong(Props.PROP_COMM_BYTES_WRITTEN, 0, 0L);
             this.sessionReadBytes        = 0L;
             this.sessionWriteBytes       = 0L;
+            this._applyServerCapabilities();
         }
         return didOpen;
     }
+
+    /**
+    * Returns the "host:port" of the current server
+    */
+    private String _getServerKey()
+    {
+        if (this.serverKey != null) {
+            return this.serverKey;
+        } else
+        if (this.transport instanceof NioTransport) {
+            InetSocketAddress addr = ((NioTransport)this.transport).getServerAddress();
+            if (addr != null) {
+                return addr.getHostName() + ":" + addr.getPort();
+            }
+        }
+        String host = Props.getString(Props.PROP_COMM_DMTP_HOST, "");
+        int    port = (int)Props.getLong(Props.PROP_COMM_DMTP_PORT, 0, 0L);
+        return host + ":" + port;
+    }
+
+    /**
+    * Applies the cached capabilities of the current server to a new session.  The encoding
+    * which the server accepted is used, and the format definitions which the server required
+    * are sent ahead of the events.
+    */
+    private void _applyServerCapabilities()
+    {
+        this.sessionEncodingChanged = false;
+        ServerCapabilities.Entry caps = ServerCapabilities.getEntry(this._getServerKey());
+        if (caps == null) {
+            return;
+        }
+        if (caps.hasEncoding()) {
+            this.sessionEncoding = caps.getEncoding();
+        }
+        int types[] = caps.getDefinedTypes();
+        for (int i = 0; i < types.length; i++) {
+            PayloadTemplate template = Packet.GetClientPayloadTemplate(types[i]);
+            if (template != null) {
+                // volatile queue, sent at the start of the first block of this session
+                this.queuePacket(Packet.createClientPacket(Packet.PKT_CLIENT_FORMAT_DEF_24, template.getPayload()));
+            }
+        }
+    }
     
     /**
     * Closes the transpot communication.
@@ -1388,7 +2656,8 @@ public class Protocol
         this.getVolatileQueue().emptyQueue();
 
         /* re-enable event queue overwrites while not connected */
-        //evEnableOverwrite(EVENT_QUEUE_OVERWRITE); // enabled only while not connected
+        this._updateEventQueueLimits();
+        this.getEventQueue().enableOverwrite(true); // enabled only while not connected
         
         /* check for severe errors */
         if (xportType == TRANSPORT_DUPLEX) {
@@ -1441,11 +2710,13 @@ public class Protocol
         /* write */
         int len = this.transport.writePacket(buf);
         if (len >= 0) {
+            this.lastActivityTimer = DateTime.getTimerSec();
             if (calcChksum) { 
                 this.fletcher.runningChecksum(buf); 
             }
             this.sessionWriteBytes += len;
             this.totalWriteBytes   += len;
+            Accounting.consumeDataBytes(len);
         }
         return len;
         
@@ -1458,6 +2729,17 @@ public class Protocol
     */
     private int _transportWritePacket(Packet pkt)
     {
+        if (this.blockCompressor != null) {
+            // compressed packets are binary encoded, and sent in PKT_CLIENT_DEFLATE_DATA packets
+            byte pb[] = pkt.encode(Encoding.ENCODING_BINARY);
+            this.blockCompressor.write(pb);
+            for (byte p[] = this.blockCompressor.getPayload(false); p != null; p = this.blockCompressor.getPayload(false)) {
+                if (this._transportWriteDeflateData(p) < 0) {
+                    return -1;
+                }
+            }
+            return pb.length;
+        }
         byte pb[] = pkt.encode(this.sessionFirstEncoding);
         int rtnWriteLen = _transportWrite(pb, true);
         this.sessionFirstEncoding = this.sessionEncoding;
@@ -1466,4 +2748,43 @@ public class Protocol
     
     // ----------------------------------------------------------------------------
 
+    /**
+    * Ends the compressed stream of the current block, and writes the remaining compressed data
+    * @param write False if the block has failed (nothing is written)
+    * @return true, if successful.
+    */
+    private boolean _sendCompressedBlock(boolean write)
+    {
+        BlockCompressor bc = this.blockCompressor;
+        this.blockCompressor = null;
+        bc.finish();
+        if (!write) {
+            return false;
+        } else
+        if (bc.getInputBytes() <= 0L) {
+            return true; // no events in this block
+        }
+        for (byte p[] = bc.getPayload(true); p != null; p = bc.getPayload(true)) {
+            if (this._transportWriteDeflateData(p) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+    * Writes a PKT_CLIENT_DEFLATE_DATA packet with the specified compressed data
+    * @return the length written
+    */
+    private int _transportWriteDeflateData(byte data[])
+    {
+        BlockCompressor bc = this.blockCompressor;
+        this.blockCompressor = null; // write this packet uncompressed
+        int rtnWriteLen = this._transportWritePacket(Packet.createClientPacket(Packet.PKT_CLIENT_DEFLATE_DATA, data));
+        this.blockCompressor = bc;
+        return rtnWriteLen;
+    }
+
+    // ----------------------------------------------------------------------------
+
 }
@@ -0,0 +1,541 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class runs DMTP protocol sessions as non-blocking state machines on a
+//  single Selector thread, as an alternative to a blocking Protocol thread per
+//  client.  Each session moves through explicit states (connecting, sending,
+//  awaiting a server response, idle), and each state has a deadline which
+//  replaces the blocking socket timeouts.  The sessions of a transport request
+//  are run one at a time with each server selected by the Protocol (failover,
+//  or dual delivery), and failed servers are retried after the Protocol retry
+//  backoff.  The packet handling itself is performed by the Protocol handler.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+
+import com.tommasocodella.androdmtp.opendmtp.util.CThread;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* Non-blocking (NIO) engine which drives any number of Protocol sessions from one thread.
+*/
+public class ProtocolEngine
+    implements Runnable
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "ENGINE";
+
+    private static final int    STATE_CONNECTING    = 1;    // waiting for TCP connect
+    private static final int    STATE_SENDING       = 2;    // flushing a block to the server
+    private static final int    STATE_AWAIT         = 3;    // waiting for the server ACK/EOB
+    private static final int    STATE_IDLE          = 4;    // 'speak-freely', or idle persistent session
+
+    private static final long   CONNECT_TIMEOUT_MS  = 30000L;
+    private static final long   WRITE_TIMEOUT_MS    = 30000L;
+    private static final long   MAX_SELECT_MS       = 1000L;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Protocol session state
+    */
+    private static class Session
+    {
+        public Protocol     protocol    = null;
+        public NioTransport xport       = null;
+        public int          xportType   = Protocol.TRANSPORT_NONE;
+        public SelectionKey key         = null;
+        public int          state       = 0;
+        public long         deadline    = 0L;   // millis, 0 if none
+        public Session(Protocol protocol, int xportType) {
+            this.protocol  = protocol;
+            this.xport     = (NioTransport)protocol.getTransport();
+            this.xportType = xportType;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private CThread     engineThread    = null;
+    private Selector    selector        = null;
+
+    private Hashtable   sessions        = new Hashtable();  // Protocol ==> Session
+    private Object      requestLock     = new Object();
+    private Vector      startRequests   = new Vector();     // new Sessions
+    private Vector      pollRequests    = new Vector();     // Protocols with newly queued data
+    private Vector      wakeRequests    = new Vector();     // Protocols with newly queued events
+
+    /**
+    * Creates a protocol engine, run by a thread named "ProtocolEngine"
+    */
+    public ProtocolEngine()
+    {
+        this("ProtocolEngine");
+    }
+
+    /**
+    * Creates a protocol engine
+    * @param name The engine thread name
+    */
+    public ProtocolEngine(String name)
+    {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to open Selector", ioe);
+        }
+        this.engineThread = new CThread(name, this);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the engine thread
+    * @return The engine thread
+    */
+    public CThread getThread()
+    {
+        return this.engineThread;
+    }
+
+    /**
+    * Returns true if the engine thread is running
+    * @return True if the engine thread is running
+    */
+    public boolean isAlive()
+    {
+        return this.engineThread.isAlive();
+    }
+
+    /**
+    * Returns true if the engine thread has been asked to stop
+    * @return True if the engine thread should stop
+    */
+    public boolean shouldStop()
+    {
+        return this.engineThread.shouldStop();
+    }
+
+    /**
+    * Returns the number of sessions currently run by this engine
+    * @return The number of sessions
+    */
+    public int getSessionCount()
+    {
+        return this.sessions.size();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Requests a new session for the specified protocol handler.  Called by the Protocol.
+    * @param protocol The protocol handler (its transport must be a NioTransport)
+    * @param xportType The transport type
+    */
+    public void startSession(Protocol protocol, int xportType)
+    {
+        synchronized (this.requestLock) {
+            this.startRequests.addElement(new Session(protocol, xportType));
+        }
+        this._wakeup();
+    }
+
+    /**
+    * Notifies the engine that new data has been queued for an active session.  Called by
+    * the Protocol.
+    * @param protocol The protocol handler
+    */
+    public void pollSession(Protocol protocol)
+    {
+        synchronized (this.requestLock) {
+            if (!this.pollRequests.contains(protocol)) {
+                this.pollRequests.addElement(protocol);
+            }
+        }
+        this._wakeup();
+    }
+
+    /**
+    * Requests that the engine thread call 'transport()' on the specified protocol handler,
+    * so that a session is started (or polled) for newly queued events.  Called by the 
+    * Protocol from the thread which queued the events, this method does not block on 
+    * anything other than the short request lock.
+    * @param protocol The protocol handler
+    */
+    public void wakeTransport(Protocol protocol)
+    {
+        synchronized (this.requestLock) {
+            if (!this.wakeRequests.contains(protocol)) {
+                this.wakeRequests.addElement(protocol);
+            }
+        }
+        this._wakeup();
+    }
+
+    /**
+    * Wakes up the engine thread
+    */
+    private void _wakeup()
+    {
+        if (this.selector != null) {
+            this.selector.wakeup();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Thread run
+    */
+    public void run()
+    {
+        if (this.selector == null) {
+            return;
+        }
+        while (!this.engineThread.shouldStop()) {
+
+            /* wait until the next deadline */
+            long now = System.currentTimeMillis();
+            long waitMS = MAX_SELECT_MS;
+            for (Enumeration e = this.sessions.elements(); e.hasMoreElements();) {
+                Session s = (Session)e.nextElement();
+                if ((s.deadline > 0L) && ((s.deadline - now) < waitMS)) {
+                    waitMS = s.deadline - now;
+                }
+            }
+            try {
+                this.selector.select((waitMS > 0L)? waitMS : 1L);
+            } catch (IOException ioe) {
+                Log.error(LOG_NAME, "Select error", ioe);
+                break;
+            }
+            if (this.engineThread.shouldStop()) {
+                break;
+            }
+
+            /* requests */
+            this._handleRequests();
+
+            /* ready channels */
+            for (Iterator i = this.selector.selectedKeys().iterator(); i.hasNext();) {
+                SelectionKey key = (SelectionKey)i.next();
+                i.remove();
+                Session s = (Session)key.attachment();
+                DmtpClientContext prior = s.protocol.getContext().enter();
+                try {
+                    this._handleReady(s, key);
+                } catch (CancelledKeyException cke) {
+                    // session has been closed
+                } finally {
+                    DmtpClientContext.exit(prior);
+                }
+            }
+
+            /* expired deadlines */
+            this._handleDeadlines();
+
+        }
+
+        /* close open sessions */
+        for (Enumeration e = this.sessions.elements(); e.hasMoreElements();) {
+            Session s = (Session)e.nextElement();
+            DmtpClientContext prior = s.protocol.getContext().enter();
+            if (s.state == STATE_CONNECTING) {
+                s.xport.close(false);
+            } else {
+                s.protocol.endDuplexSession();
+            }
+            DmtpClientContext.exit(prior);
+        }
+        this.sessions.clear();
+        try { this.selector.close(); } catch (IOException ioe) {}
+
+    }
+
+    /**
+    * Runs the transport check of woken protocol handlers, starts requested sessions, and
+    * polls sessions which have new data to send
+    */
+    private void _handleRequests()
+    {
+        Vector wake = null, start = null, poll = null;
+        synchronized (this.requestLock) {
+            if (!this.wakeRequests.isEmpty()) {
+                wake = this.wakeRequests;
+                this.wakeRequests = new Vector();
+            }
+        }
+        if (wake != null) {
+            // may add start/poll requests, which are handled below
+            for (Enumeration e = wake.elements(); e.hasMoreElements();) {
+                Protocol protocol = (Protocol)e.nextElement();
+                DmtpClientContext prior = protocol.getContext().enter();
+                try {
+                    protocol.transport();
+                } finally {
+                    DmtpClientContext.exit(prior);
+                }
+            }
+        }
+        synchronized (this.requestLock) {
+            if (!this.startRequests.isEmpty()) {
+                start = this.startRequests;
+                this.startRequests = new Vector();
+            }
+            if (!this.pollRequests.isEmpty()) {
+                poll = this.pollRequests;
+                this.pollRequests = new Vector();
+            }
+        }
+        if (start != null) {
+            for (Enumeration e = start.elements(); e.hasMoreElements();) {
+                Session s = (Session)e.nextElement();
+                DmtpClientContext prior = s.protocol.getContext().enter();
+                try {
+                    this._startSession(s);
+                } finally {
+                    DmtpClientContext.exit(prior);
+                }
+            }
+        }
+        if (poll != null) {
+            for (Enumeration e = poll.elements(); e.hasMoreElements();) {
+                Session s = (Session)this.sessions.get(e.nextElement());
+                if ((s != null) && ((s.state == STATE_IDLE) || (s.state == STATE_AWAIT))) {
+                    DmtpClientContext prior = s.protocol.getContext().enter();
+                    try {
+                        this._sessionStep(s, s.protocol.pollDuplexSession(), false);
+                    } finally {
+                        DmtpClientContext.exit(prior);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    * Handles a ready channel
+    */
+    private void _handleReady(Session s, SelectionKey key)
+    {
+
+        /* connected */
+        if (key.isConnectable()) {
+            try {
+                if (!((SocketChannel)key.channel()).finishConnect()) {
+                    return; // still connecting
+                }
+            } catch (IOException ioe) {
+                Log.error(LOG_NAME, "Unable to connect to TCP host: " + s.xport.getServerAddress());
+                s.xport.close(false);
+            }
+            // 'beginDuplexSession' fails if the connection was not established
+            this._sessionStep(s, s.protocol.beginDuplexSession(), true);
+            return;
+        }
+
+        /* read */
+        if (key.isReadable()) {
+            int len;
+            try {
+                len = s.xport.fill();
+            } catch (IOException ioe) {
+                len = -1;
+            }
+            boolean more = true;
+            boolean read = false;
+            for (byte b[] = s.xport.nextPacket(); more && (b != null); b = s.xport.nextPacket()) {
+                more = s.protocol.handleDuplexPacket(b);
+                read = true;
+            }
+            if (more && (len < 0)) {
+                Log.warn(LOG_NAME, "Duplex connection closed by server");
+                this._endSession(s, s.protocol.abortDuplexSession());
+            } else
+            if (read || !more) {
+                this._sessionStep(s, more, true);
+            }
+            return;
+        }
+
+        /* write */
+        if (key.isWritable()) {
+            this._sessionStep(s, true, false);
+        }
+
+    }
+
+    /**
+    * Handles expired session deadlines
+    */
+    private void _handleDeadlines()
+    {
+        long now = System.currentTimeMillis();
+        Vector expired = new Vector();
+        for (Enumeration e = this.sessions.elements(); e.hasMoreElements();) {
+            Session s = (Session)e.nextElement();
+            if ((s.deadline > 0L) && (s.deadline <= now)) {
+                expired.addElement(s);
+            }
+        }
+        for (Enumeration e = expired.elements(); e.hasMoreElements();) {
+            Session s = (Session)e.nextElement();
+            DmtpClientContext prior = s.protocol.getContext().enter();
+            try {
+                switch (s.state) {
+                    case STATE_CONNECTING:
+                        Log.error(LOG_NAME, "Timeout connecting to TCP host: " + s.xport.getServerAddress());
+                        s.xport.close(false);
+                        this._sessionStep(s, s.protocol.beginDuplexSession(), true); // fails
+                        break;
+                    case STATE_SENDING:
+                        Log.error(LOG_NAME, "Timeout sending to TCP host: " + s.xport.getServerAddress());
+                        this._endSession(s, s.protocol.abortDuplexSession());
+                        break;
+                    case STATE_AWAIT:
+                    case STATE_IDLE:
+                        this._sessionStep(s, s.protocol.handleDuplexTimeout(), true);
+                        break;
+                }
+            } finally {
+                DmtpClientContext.exit(prior);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Starts a session
+    */
+    private void _startSession(Session s)
+    {
+        this.sessions.put(s.protocol, s);
+        try {
+
+            /* simplex */
+            if (s.xportType == Protocol.TRANSPORT_SIMPLEX) {
+                // datagrams are sent without blocking, the session completes immediately
+                this._endSession(s, s.protocol.runSimplexSession());
+                return;
+            }
+
+            /* duplex */
+            SocketChannel channel = null;
+            InetSocketAddress addr = s.xport.getServerAddress();
+            if (addr != null) {
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    s.xport.setSocketChannel(channel);
+                    if (!channel.connect(addr)) {
+                        s.key = channel.register(this.selector, SelectionKey.OP_CONNECT, s);
+                        this._setState(s, STATE_CONNECTING, CONNECT_TIMEOUT_MS);
+                        return;
+                    }
+                    s.key = channel.register(this.selector, 0, s);
+                } catch (IOException ioe) {
+                    Log.error(LOG_NAME, "Unable to connect to TCP host: " + addr);
+                    if (channel != null) { try { channel.close(); } catch (IOException ce) {} }
+                    s.xport.setSocketChannel(null);
+                }
+            }
+            // 'beginDuplexSession' fails if the connection was not established
+            this._sessionStep(s, s.protocol.beginDuplexSession(), true);
+
+        } catch (SecurityException se) {
+            // the user has denied us access to the network
+            Log.error(LOG_NAME, "Access denied", se);
+            this._endSession(s, false);
+        }
+    }
+
+    /**
+    * Flushes session output, and selects the next session state
+    * @param more False if the Protocol has ended the session
+    * @param restartTimer True to restart the read timeout
+    */
+    private void _sessionStep(Session s, boolean more, boolean restartTimer)
+    {
+
+        /* session ended? */
+        if (!more) {
+            this._endSession(s, s.protocol.endDuplexSession());
+            return;
+        }
+
+        /* flush output */
+        boolean flushed;
+        try {
+            flushed = s.xport.flush();
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to write packet");
+            this._endSession(s, s.protocol.abortDuplexSession());
+            return;
+        }
+
+        /* next state */
+        if (!flushed) {
+            s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            if (s.state != STATE_SENDING) {
+                this._setState(s, STATE_SENDING, WRITE_TIMEOUT_MS);
+            }
+        } else {
+            int state = s.protocol.isAwaitingResponse()? STATE_AWAIT : STATE_IDLE;
+            s.key.interestOps(SelectionKey.OP_READ);
+            if (restartTimer || (s.state != state)) {
+                this._setState(s, state, s.xport.getReadTimeout());
+            }
+        }
+
+    }
+
+    /**
+    * Ends a session.  A failed server is retried after a backoff delay (see RetryPolicy).
+    */
+    private void _endSession(Session s, boolean ok)
+    {
+        s.key = null;
+        this.sessions.remove(s.protocol);
+        s.protocol.markSessionResult(ok);
+        s.protocol.transportComplete();
+    }
+
+    /**
+    * Sets the session state, and state deadline
+    */
+    private void _setState(Session s, int state, long timeoutMS)
+    {
+        s.state    = state;
+        s.deadline = System.currentTimeMillis() + timeoutMS;
+    }
+
+}
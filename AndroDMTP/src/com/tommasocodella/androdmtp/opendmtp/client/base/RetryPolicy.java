@@ -0,0 +1,261 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class decides when a failed server ("host:port") may be retried.  The
+//  delay after each consecutive failure is chosen with "decorrelated jitter"
+//  exponential backoff (a random delay between the base delay and 3 times the
+//  previous delay, up to a cap), so that clients which failed together do not
+//  retry together.  After a number of consecutive failures the circuit of the
+//  server is opened: the server is not retried until the backoff delay has
+//  expired, and then a single probe session is allowed (half-open): further
+//  sessions are refused until the result of the probe is known.  A
+//  successful session closes the circuit.  High priority events may probe a
+//  failed server as soon as the base delay has expired.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* Per server retry backoff and circuit breaker.
+*/
+public class RetryPolicy
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "RETRY";
+
+    /* circuit states */
+    public  static final int    STATE_CLOSED        = 0;    // server in use
+    public  static final int    STATE_OPEN          = 1;    // server failing, not retried
+    public  static final int    STATE_HALF_OPEN     = 2;    // probe session allowed
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Retry state of a single server
+    */
+    private static class Breaker
+    {
+        public int      state       = STATE_CLOSED;
+        public int      failures    = 0;    // consecutive failures
+        public long     delayMS     = 0L;   // last backoff delay
+        public long     failMS      = 0L;   // time of the last failure
+        public long     retryMS     = 0L;   // time of the next allowed attempt
+        public long     openMS      = 0L;   // time the circuit was opened
+        public boolean  probing     = false; // half-open probe session granted, result pending
+    }
+
+    // ------------------------------------------------------------------------
+
+    private Hashtable   breakers    = new Hashtable();  // "host:port" => Breaker
+    private Random      random      = new Random();
+
+    private long        retryCount  = 0L;   // failed sessions
+    private long        openCount   = 0L;   // circuits opened
+    private long        openTotalMS = 0L;   // time spent in the open state (closed circuits)
+
+    /**
+    * Creates a retry policy with all circuits closed
+    */
+    public RetryPolicy()
+    {
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the retry state of the specified server
+    */
+    private Breaker _getBreaker(String key)
+    {
+        Breaker b = (Breaker)this.breakers.get(key);
+        if (b == null) {
+            b = new Breaker();
+            this.breakers.put(key, b);
+        }
+        return b;
+    }
+
+    /**
+    * Returns true if the backoff delay of the specified server has expired (or, for high
+    * priority events, the base delay), and no probe session is in progress
+    */
+    private boolean _isDue(Breaker b, int priority)
+    {
+        if ((b == null) || (b.failures == 0)) {
+            return true;
+        } else
+        if (b.probing) {
+            return false;
+        }
+        long nowMS = System.currentTimeMillis();
+        return (nowMS >= b.retryMS) ||
+            ((priority >= Packet.PRIORITY_HIGH) && (nowMS >= (b.failMS + RetryPolicy._getBaseDelayMS())));
+    }
+
+    /**
+    * Returns true if a session with the specified server may be started now, without
+    * granting the probe session of a server which is not closed (see 'isAllowed').
+    * @param key The server "host:port"
+    * @param priority The highest priority of the events to send (PRIORITY_NONE if none)
+    * @return True if a session would be allowed
+    */
+    public synchronized boolean isDue(String key, int priority)
+    {
+        return this._isDue((Breaker)this.breakers.get(key), priority);
+    }
+
+    /**
+    * Returns true if a session with the specified server may be started now.  A server whose
+    * circuit is open becomes half-open when its backoff delay expires (or, for high priority
+    * events, when the base delay expires) and the probe session is granted.  No further
+    * session is allowed until the result of the probe is recorded ('markResult'), or the
+    * probe is released unused ('release').
+    * @param key The server "host:port"
+    * @param priority The highest priority of the events to send (PRIORITY_NONE if none)
+    * @return True if a session is allowed
+    */
+    public synchronized boolean isAllowed(String key, int priority)
+    {
+        Breaker b = (Breaker)this.breakers.get(key);
+        if (!this._isDue(b, priority)) {
+            return false;
+        }
+        if ((b != null) && (b.state != STATE_CLOSED)) {
+            if (b.state == STATE_OPEN) {
+                b.state = STATE_HALF_OPEN;
+                Log.info(LOG_NAME, "Probing server " + key);
+            }
+            b.probing = true;
+        }
+        return true;
+    }
+
+    /**
+    * Releases a probe session which was granted by 'isAllowed', but not run (the server
+    * health is unchanged)
+    * @param key The server "host:port"
+    */
+    public synchronized void release(String key)
+    {
+        Breaker b = (Breaker)this.breakers.get(key);
+        if (b != null) {
+            b.probing = false;
+        }
+    }
+
+    /**
+    * Records the result of a session with the specified server
+    * @param key The server "host:port"
+    * @param ok True if the session was successful
+    */
+    public synchronized void markResult(String key, boolean ok)
+    {
+        long nowMS = System.currentTimeMillis();
+        Breaker b = this._getBreaker(key);
+        b.probing = false;
+        if (ok) {
+            if (b.state != STATE_CLOSED) {
+                this.openTotalMS += nowMS - b.openMS;
+                Log.info(LOG_NAME, "Circuit closed: " + key);
+            }
+            b.state    = STATE_CLOSED;
+            b.failures = 0;
+            b.delayMS  = 0L;
+            return;
+        }
+
+        /* decorrelated jitter: random(base, prev * 3), up to the cap */
+        long baseMS = RetryPolicy._getBaseDelayMS();
+        long capMS  = Props.getLong(Props.PROP_COMM_RETRY, 1, 900000L);
+        if (capMS < baseMS) { capMS = baseMS; }
+        long prevMS = (b.delayMS > baseMS)? b.delayMS : baseMS;
+        long maxMS  = Math.min(prevMS * 3L, capMS);
+        long delay  = baseMS + (long)(this.random.nextDouble() * (double)(maxMS - baseMS));
+        b.failures++;
+        b.delayMS = delay;
+        b.failMS  = nowMS;
+        b.retryMS = nowMS + delay;
+        this.retryCount++;
+
+        /* open the circuit */
+        long threshold = Props.getLong(Props.PROP_COMM_RETRY, 2, 3L);
+        if (b.state == STATE_HALF_OPEN) {
+            b.state = STATE_OPEN; // probe failed, remains open since 'openMS'
+        } else
+        if ((b.state == STATE_CLOSED) && (b.failures >= threshold)) {
+            b.state  = STATE_OPEN;
+            b.openMS = nowMS;
+            this.openCount++;
+            Log.warn(LOG_NAME, "Circuit opened: " + key);
+        }
+        Log.info(LOG_NAME, "Retry " + key + " in " + (delay / 1000L) + " sec");
+
+    }
+
+    /**
+    * Returns the base backoff delay
+    */
+    private static long _getBaseDelayMS()
+    {
+        long baseMS = Props.getLong(Props.PROP_COMM_RETRY, 0, 5000L);
+        return (baseMS > 0L)? baseMS : 1L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the circuit state of the specified server
+    * @param key The server "host:port"
+    * @return The state (STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN)
+    */
+    public synchronized int getState(String key)
+    {
+        Breaker b = (Breaker)this.breakers.get(key);
+        return (b != null)? b.state : STATE_CLOSED;
+    }
+
+    /**
+    * Updates PROP_STATE_RETRY with the retry counts and the time spent in the open state
+    */
+    public synchronized void updateState()
+    {
+        long nowMS  = System.currentTimeMillis();
+        long openMS = this.openTotalMS;
+        long open   = 0L;
+        for (Enumeration e = this.breakers.elements(); e.hasMoreElements();) {
+            Breaker b = (Breaker)e.nextElement();
+            if (b.state != STATE_CLOSED) {
+                openMS += nowMS - b.openMS;
+                open++;
+            }
+        }
+        Props.setLong(Props.PROP_STATE_RETRY, 0, this.retryCount);
+        Props.setLong(Props.PROP_STATE_RETRY, 1, this.openCount);
+        Props.setLong(Props.PROP_STATE_RETRY, 2, openMS / 1000L);
+        Props.setLong(Props.PROP_STATE_RETRY, 3, open);
+    }
+
+}
@@ -0,0 +1,107 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class allocates event sequence numbers which survive a restart.  The
+//  numbers are reserved in blocks, and only the end of the reserved block (the
+//  'high-water mark') is saved to the properties.  After a restart numbering
+//  resumes at the saved mark, skipping any unused numbers of the last block.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* Persistent, block reserving, sequence number allocator.
+*/
+public class SequenceAllocator
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "SEQ";
+
+    public  static final long   DEFAULT_BLOCK_SIZE  = 1000L;
+    public  static final long   SEQUENCE_MASK       = 0xFFFFFFFFL; // 32-bit sequence space
+
+    // ------------------------------------------------------------------------
+
+    private int         propKey     = 0;
+    private long        blockSize   = DEFAULT_BLOCK_SIZE;
+    private AtomicLong  next        = new AtomicLong(0L);
+    private volatile long limit     = -1L; // end of reserved block (exclusive), -1 until loaded
+
+    /**
+    * Creates a sequence allocator which saves its high-water mark in the specified property
+    * @param propKey The UInt32 property key holding the high-water mark
+    * @param blockSize The number of sequence numbers reserved at a time
+    */
+    public SequenceAllocator(int propKey, long blockSize)
+    {
+        this.propKey   = propKey;
+        this.blockSize = (blockSize > 0L)? blockSize : DEFAULT_BLOCK_SIZE;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the next sequence number.  This method is thread safe, and only blocks when
+    * a new block of sequence numbers needs to be reserved.
+    * @return The next sequence number (0 to SEQUENCE_MASK)
+    */
+    public long next()
+    {
+        if (this.limit < 0L) {
+            this._reserve(-1L); // first use, resume from the saved high-water mark
+        }
+        long seq = this.next.getAndIncrement();
+        if (seq >= this.limit) {
+            this._reserve(seq);
+        }
+        return seq & SEQUENCE_MASK;
+    }
+
+    /**
+    * Reserves sequence numbers until the specified number falls within the reserved range.
+    */
+    private synchronized void _reserve(long seq)
+    {
+        if (this.limit < 0L) {
+            long hwm = Props.getLong(this.propKey, 0, 0L) & SEQUENCE_MASK;
+            this.next.set(hwm);
+            this._save(hwm + this.blockSize);
+            Log.info(LOG_NAME, "Event sequence resumed at " + hwm);
+        }
+        while (seq >= this.limit) {
+            this._save(this.limit + this.blockSize);
+        }
+    }
+
+    /**
+    * Saves the new high-water mark before any number below it is handed out.
+    */
+    private void _save(long limit)
+    {
+        Props.setLong(this.propKey, 0, limit & SEQUENCE_MASK);
+        Props.saveProps();
+        this.limit = limit;
+    }
+
+}
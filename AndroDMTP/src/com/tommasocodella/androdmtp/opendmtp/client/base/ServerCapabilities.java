@@ -0,0 +1,265 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class maintains the cache of capabilities negotiated with each DMTP
+//  server (the packet encoding the server accepted, and the custom packet
+//  types for which the server required a format definition).  The cache is
+//  kept in the PROP_COMM_SERVER_CAPS property, so it persists with the other
+//  client properties.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Vector;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.util.StringTools;
+
+/**
+* Persisted per-server capability cache.
+*/
+public class ServerCapabilities
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "CAPS";
+
+    public  static final int    MAX_ENTRIES         = ServerList.MAX_SERVERS;
+    public  static final int    MAX_TYPES           = 16;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Capabilities of a single server
+    */
+    public static class Entry
+    {
+        private String  server      = null;
+        private int     encoding    = Encoding.ENCODING_UNKNOWN;    // unknown if not negotiated
+        private Vector  types       = new Vector();                 // Integer packet types
+        private Entry(String server)
+        {
+            this.server = server;
+        }
+        /**
+        * Returns the server "host:port"
+        * @return The server
+        */
+        public String getServer()
+        {
+            return this.server;
+        }
+        /**
+        * Returns true if an encoding has been negotiated with this server
+        * @return True if the encoding is known
+        */
+        public boolean hasEncoding()
+        {
+            return (this.encoding != Encoding.ENCODING_UNKNOWN);
+        }
+        /**
+        * Returns the encoding negotiated with this server
+        * @return The encoding, or ENCODING_UNKNOWN if not negotiated
+        */
+        public int getEncoding()
+        {
+            return this.encoding;
+        }
+        /**
+        * Returns the custom packet types for which this server requires a format definition
+        * @return The packet types
+        */
+        public int[] getDefinedTypes()
+        {
+            int t[] = new int[this.types.size()];
+            for (int i = 0; i < t.length; i++) {
+                t[i] = ((Integer)this.types.elementAt(i)).intValue();
+            }
+            return t;
+        }
+        public String toString()
+        {
+            StringBuffer sb = new StringBuffer();
+            sb.append(this.server).append("=").append(Integer.toHexString(this.encoding)).append("/");
+            for (int i = 0; i < this.types.size(); i++) {
+                if (i > 0) { sb.append(","); }
+                sb.append(Integer.toHexString(((Integer)this.types.elementAt(i)).intValue()));
+            }
+            return sb.toString();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Private constructor, no instances are allowed.
+    */
+    private ServerCapabilities()
+    {
+        // no instance allowed
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the cached capabilities of the specified server
+    * @param server The server "host:port"
+    * @return The capabilities, or null if nothing is known about the server
+    */
+    public static synchronized Entry getEntry(String server)
+    {
+        Vector list = ServerCapabilities._load();
+        int ndx = ServerCapabilities._indexOf(list, server);
+        return (ndx >= 0)? (Entry)list.elementAt(ndx) : null;
+    }
+
+    /**
+    * Records the encoding which the specified server accepted
+    * @param server The server "host:port"
+    * @param encoding The encoding
+    */
+    public static synchronized void setEncoding(String server, int encoding)
+    {
+        Vector list = ServerCapabilities._load();
+        Entry e = ServerCapabilities._getEntry(list, server);
+        if (e.encoding != encoding) {
+            e.encoding = encoding;
+            ServerCapabilities._save(list);
+        }
+    }
+
+    /**
+    * Records that the specified server required a format definition for a custom packet type
+    * @param server The server "host:port"
+    * @param type The custom packet type
+    */
+    public static synchronized void addDefinedType(String server, int type)
+    {
+        Vector list = ServerCapabilities._load();
+        Entry e = ServerCapabilities._getEntry(list, server);
+        Integer t = new Integer(type);
+        if (!e.types.contains(t) && (e.types.size() < MAX_TYPES)) {
+            e.types.addElement(t);
+            ServerCapabilities._save(list);
+        }
+    }
+
+    /**
+    * Clears the cached capabilities of the specified server
+    * @param server The server "host:port"
+    */
+    public static synchronized void invalidate(String server)
+    {
+        Vector list = ServerCapabilities._load();
+        int ndx = ServerCapabilities._indexOf(list, server);
+        if (ndx >= 0) {
+            list.removeElementAt(ndx);
+            ServerCapabilities._save(list);
+            Log.info(LOG_NAME, "Cleared capabilities of " + server);
+        }
+    }
+
+    /**
+    * Clears the cached capabilities of all servers
+    */
+    public static synchronized void invalidateAll()
+    {
+        ServerCapabilities._save(new Vector());
+        Log.info(LOG_NAME, "Cleared capabilities");
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the entry of the specified server, creating (and promoting) the entry as needed
+    */
+    private static Entry _getEntry(Vector list, String server)
+    {
+        int ndx = ServerCapabilities._indexOf(list, server);
+        Entry e = (ndx >= 0)? (Entry)list.elementAt(ndx) : new Entry(server);
+        if (ndx != 0) {
+            // most recently updated first, the oldest entries are dropped
+            if (ndx > 0) { list.removeElementAt(ndx); }
+            list.insertElementAt(e, 0);
+            if (list.size() > MAX_ENTRIES) { list.setSize(MAX_ENTRIES); }
+        }
+        return e;
+    }
+
+    /**
+    * Returns the index of the specified server in the list
+    */
+    private static int _indexOf(Vector list, String server)
+    {
+        for (int i = 0; i < list.size(); i++) {
+            if (((Entry)list.elementAt(i)).server.equals(server)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+    * Parses the cache property
+    */
+    private static Vector _load()
+    {
+        Vector list = new Vector();
+        String caps = Props.getString(Props.PROP_COMM_SERVER_CAPS, "");
+        if ((caps == null) || caps.equals("")) {
+            return list;
+        }
+        String ent[] = StringTools.parseString(caps, ';');
+        for (int i = 0; (i < ent.length) && (list.size() < MAX_ENTRIES); i++) {
+            int eq = ent[i].lastIndexOf('=');
+            if (eq <= 0) {
+                continue; // invalid
+            }
+            Entry e = new Entry(ent[i].substring(0, eq).trim());
+            String v = ent[i].substring(eq + 1);
+            int sl = v.indexOf('/');
+            e.encoding = StringTools.parseHex((sl >= 0)? v.substring(0, sl) : v, Encoding.ENCODING_UNKNOWN);
+            if ((sl >= 0) && (sl < (v.length() - 1))) {
+                String t[] = StringTools.parseString(v.substring(sl + 1), ',');
+                for (int n = 0; (n < t.length) && (e.types.size() < MAX_TYPES); n++) {
+                    int type = StringTools.parseHex(t[n].trim(), -1);
+                    if (type > 0) { e.types.addElement(new Integer(type)); }
+                }
+            }
+            list.addElement(e);
+        }
+        return list;
+    }
+
+    /**
+    * Saves the cache property
+    */
+    private static void _save(Vector list)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) { sb.append(";"); }
+            sb.append(list.elementAt(i).toString());
+        }
+        Props.setString(Props.PROP_COMM_SERVER_CAPS, sb.toString());
+        Props.saveProps();
+    }
+
+}
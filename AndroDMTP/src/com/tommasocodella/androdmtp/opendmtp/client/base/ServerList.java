@@ -0,0 +1,280 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class maintains the ordered list of DMTP servers (the primary server,
+//  followed by the alternate servers), and a health score for each server
+//  based on its recent connect latency and session error rate.  Failover
+//  picks servers in order of health, and the error rate of a failed server
+//  decays over time so that a recovered server is preferred again.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Vector;
+
+import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.util.StringTools;
+
+/**
+* Ordered, health scored, list of DMTP servers.
+*/
+public class ServerList
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "SERVERS";
+
+    public  static final int    MAX_SERVERS         = 8;        // see PROP_COMM_DELIVERY_MASK
+
+    private static final double SAMPLE_WEIGHT       = 0.25;     // moving average weight of the latest session
+    private static final double ERROR_PENALTY_MS    = 30000.0;  // score penalty of a 100% error rate
+    private static final double ORDER_PENALTY_MS    = 500.0;    // preference for the listed order
+    private static final long   ERROR_HALF_LIFE     = 600L;     // seconds
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * DMTP server
+    */
+    public static class Server
+    {
+        private int     index       = 0;
+        private String  host        = null;
+        private int     port        = 0;
+        private double  connectMS   = 0.0;  // connect latency (moving average)
+        private double  errorRate   = 0.0;  // session error rate (moving average, 0..1)
+        private long    errorTimer  = 0L;   // time of the last session result
+        private LinkEstimator link  = new LinkEstimator();
+        public Server(int index, String host, int port)
+        {
+            this.index = index;
+            this.host  = host;
+            this.port  = port;
+        }
+        /**
+        * Returns the index of this server in the list (0 is the primary server)
+        * @return The server index
+        */
+        public int getIndex()
+        {
+            return this.index;
+        }
+        /**
+        * Returns the server host
+        * @return The host
+        */
+        public String getHost()
+        {
+            return this.host;
+        }
+        /**
+        * Returns the server port
+        * @return The port
+        */
+        public int getPort()
+        {
+            return this.port;
+        }
+        /**
+        * Returns the duplex link estimator of this server
+        * @return The link estimator
+        */
+        public LinkEstimator getLinkEstimator()
+        {
+            return this.link;
+        }
+        /**
+        * Returns the recent error rate, decayed by the time since the last session result
+        * @return The error rate (0..1)
+        */
+        public double getErrorRate()
+        {
+            if (this.errorRate <= 0.0) {
+                return 0.0;
+            }
+            long age = DateTime.getTimerSec() - this.errorTimer;
+            return this.errorRate * Math.pow(0.5, (double)age / (double)ERROR_HALF_LIFE);
+        }
+        /**
+        * Returns the health score of this server (lower is better)
+        * @return The score, in milliseconds
+        */
+        public double getScore()
+        {
+            return this.connectMS + (this.getErrorRate() * ERROR_PENALTY_MS) + (this.index * ORDER_PENALTY_MS);
+        }
+        public String toString()
+        {
+            return this.host + ":" + this.port;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private Vector      servers     = new Vector();
+    private String      serverSpec  = null;     // properties from which the list was built
+
+    /**
+    * Creates a server list from the client properties
+    */
+    public ServerList()
+    {
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Rebuilds the server list if the server properties have changed.  Health scores are
+    * retained for servers which remain in the list.
+    */
+    private void _reload()
+    {
+        String host = Props.getString(Props.PROP_COMM_DMTP_HOST, "");
+        int    port = (int)Props.getLong(Props.PROP_COMM_DMTP_PORT, 0, 0L);
+        String alt  = Props.getString(Props.PROP_COMM_DMTP_ALT_HOSTS, "");
+        String spec = host + ":" + port + "," + alt;
+        if (spec.equals(this.serverSpec)) {
+            return;
+        }
+        Vector list = new Vector();
+        this._add(list, host, port);
+        if ((alt != null) && !alt.equals("")) {
+            String hp[] = StringTools.parseString(alt, ',');
+            for (int i = 0; (i < hp.length) && (list.size() < MAX_SERVERS); i++) {
+                String s = hp[i].trim();
+                int c = s.lastIndexOf(':');
+                if (c > 0) {
+                    this._add(list, s.substring(0, c).trim(), (int)StringTools.parseLong(s.substring(c + 1).trim(), port));
+                } else
+                if (!s.equals("")) {
+                    this._add(list, s, port);
+                }
+            }
+        }
+        this.servers    = list;
+        this.serverSpec = spec;
+        Log.info(LOG_NAME, "Servers: " + list.size());
+    }
+
+    /**
+    * Adds a server to the specified list, retaining the health of a known server
+    */
+    private void _add(Vector list, String host, int port)
+    {
+        if ((host == null) || host.equals("") || (port <= 0)) {
+            // a missing primary server still occupies index 0
+            if (list.isEmpty()) { list.addElement(new Server(0, "", 0)); }
+            return;
+        }
+        Server s = new Server(list.size(), host, port);
+        for (int i = 0; i < this.servers.size(); i++) {
+            Server old = (Server)this.servers.elementAt(i);
+            if (old.host.equals(host) && (old.port == port)) {
+                s.connectMS  = old.connectMS;
+                s.errorRate  = old.errorRate;
+                s.errorTimer = old.errorTimer;
+                s.link       = old.link;
+                break;
+            }
+        }
+        list.addElement(s);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the number of servers
+    * @return The number of servers (including an unspecified primary server)
+    */
+    public synchronized int size()
+    {
+        this._reload();
+        return this.servers.size();
+    }
+
+    /**
+    * Returns the server at the specified index
+    * @param ndx The server index (0 is the primary server)
+    * @return The server, or null if the server is not specified
+    */
+    public synchronized Server getServer(int ndx)
+    {
+        this._reload();
+        if ((ndx >= 0) && (ndx < this.servers.size())) {
+            Server s = (Server)this.servers.elementAt(ndx);
+            return (s.port > 0)? s : null;
+        }
+        return null;
+    }
+
+    /**
+    * Returns the specified servers in failover order (best health score first)
+    * @param mask The server mask (bit N for server N), or -1 for all servers
+    * @return The servers
+    */
+    public synchronized Server[] getFailoverOrder(int mask)
+    {
+        this._reload();
+        Vector list = new Vector();
+        for (int i = 0; i < this.servers.size(); i++) {
+            Server s = (Server)this.servers.elementAt(i);
+            if ((s.port > 0) && ((mask & (1 << i)) != 0)) {
+                // insertion sort, stable for equal scores
+                double score = s.getScore();
+                int n = list.size();
+                while ((n > 0) && (((Server)list.elementAt(n - 1)).getScore() > score)) { n--; }
+                list.insertElementAt(s, n);
+            }
+        }
+        Server order[] = new Server[list.size()];
+        list.copyInto(order);
+        return order;
+    }
+
+    /**
+    * Records the connect latency of the specified server
+    * @param s The server
+    * @param connectMS The time taken to connect, in milliseconds
+    */
+    public synchronized void markConnect(Server s, long connectMS)
+    {
+        if (s.connectMS <= 0.0) {
+            s.connectMS = (double)connectMS;
+        } else {
+            s.connectMS += SAMPLE_WEIGHT * ((double)connectMS - s.connectMS);
+        }
+    }
+
+    /**
+    * Records the result of a session with the specified server
+    * @param s The server
+    * @param ok True if the session was successful
+    */
+    public synchronized void markResult(Server s, boolean ok)
+    {
+        double rate = s.getErrorRate();
+        s.errorRate  = rate + (SAMPLE_WEIGHT * ((ok? 0.0 : 1.0) - rate));
+        s.errorTimer = DateTime.getTimerSec();
+        if (!ok) {
+            Log.warn(LOG_NAME, "Server " + s + " error rate " + StringTools.formatDouble(s.errorRate, 2));
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class sends the low priority events of the event queue in simplex
+//  datagrams, with its own transport and thread, concurrently with the duplex
+//  sessions of the Protocol (see PROP_COMM_SIMPLEX_LANE).  The events sent in
+//  a datagram are marked as sent within a block tag reserved for this lane, so
+//  that they are not affected by the acknowledgement of duplex blocks, and are
+//  deleted from the queue once the datagram has been sent.  The lane uses the
+//  simplex connection accounting only.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Vector;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.CThread;
+import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* Concurrent simplex lane for low priority events.
+*/
+public class SimplexLane
+    implements Runnable
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "SPLX";
+
+    /* the block tag of the events sent on this lane (not used for duplex blocks) */
+    public  static final int    BLOCK_TAG           = 127;  // see EventSlab flags
+
+    private static final int    MAX_SIMPLEX_EVENTS  = 8;
+    private static final long   RECHECK_MS          = 1000L; // while events are held by the quota
+
+    // ------------------------------------------------------------------------
+
+    private Protocol        protocol        = null;
+    private Transport       transport       = null;
+    private CThread         laneThread      = null;
+    private Object          laneLock        = new Object();
+    private boolean         wakeRequested   = false;
+    private long            lastErrorTimer  = 0L;
+
+    /**
+    * Creates the simplex lane of the specified Protocol handler
+    * @param protocol The Protocol handler
+    * @param xport The simplex transport of this lane (not used by the Protocol handler)
+    */
+    public SimplexLane(Protocol protocol, Transport xport)
+    {
+        this.protocol  = protocol;
+        this.transport = xport;
+        DmtpClientContext context = protocol.getContext();
+        // thread names must be unique
+        String name = context.isDefault()? "SimplexLane" : ("SimplexLane_" + context.getName());
+        this.laneThread = new CThread(name, this);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns true if low priority events are sent on this lane.  A datagram has a single
+    * destination, so the lane is not used while events must be delivered to more than one
+    * server (the low priority events are then sent by duplex sessions).
+    * @return True if the lane is enabled (see PROP_COMM_SIMPLEX_LANE, PROP_COMM_DELIVERY_MASK)
+    */
+    public boolean isEnabled()
+    {
+        if (!Accounting.hasSimplexLane()) {
+            return false;
+        }
+        int mask = this.protocol.getDeliveryMask();
+        return ((mask & (mask - 1)) == 0); // at most one required server
+    }
+
+    /**
+    * Notifies the lane thread that events have been queued
+    */
+    public void wake()
+    {
+        synchronized (this.laneLock) {
+            this.wakeRequested = true;
+            this.laneLock.notify();
+        }
+    }
+
+    /**
+    * Thread run
+    */
+    public void run()
+    {
+        this.protocol.getContext().enter(); // this thread serves only this client context
+        PacketQueue eventQueue = this.protocol.getEventQueue();
+        while (!this.laneThread.shouldStop()) {
+
+            /* wait for queued events (or recheck the quota of held events) */
+            boolean held = this.isEnabled() && (eventQueue.getQueueSize(Packet.PRIORITY_LOW) > 0);
+            synchronized (this.laneLock) {
+                if (!this.wakeRequested) {
+                    try { this.laneLock.wait(held? RECHECK_MS : 0L); } catch (InterruptedException ie) {}
+                }
+                this.wakeRequested = false;
+            }
+            if (this.laneThread.shouldStop()) {
+                break;
+            }
+
+            /* send datagrams while low priority events are queued */
+            while (this.isEnabled() && (eventQueue.getQueueSize(Packet.PRIORITY_LOW) > 0)) {
+                if (!Accounting.isUnderDataBudget(Packet.PRIORITY_LOW) ||
+                    !Accounting.isUnderSimplexQuota() ||
+                    !Accounting.minSimplexIntervalExpired()) {
+                    break; // held until the next check
+                }
+                if (!this._sendDatagram(eventQueue)) {
+                    break; // retried on the next check
+                }
+            }
+
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Sends a datagram with the identification and the next low priority events
+    * @param eventQueue The event queue
+    * @return true, if successful
+    */
+    private boolean _sendDatagram(PacketQueue eventQueue)
+    {
+
+        /* open transport */
+        this.transport.setServer(null, 0); // configured simplex host:port
+        if (!this.transport.open(Protocol.TRANSPORT_SIMPLEX)) {
+            if (DateTime.isTimerExpired(this.lastErrorTimer, 60L)) {
+                this.lastErrorTimer = DateTime.getTimerSec();
+                Log.warn(LOG_NAME, "Unable to open Simplex lane transport");
+            }
+            return false;
+        }
+
+        /* identification, and the next low priority events */
+        long writeBytes = 0L;
+        int eventCount = 0;
+        boolean writeOK = true;
+        Packet idPkts[] = this._getIdentification();
+        for (int i = 0; writeOK && (i < idPkts.length); i++) {
+            int len = this.transport.writePacket(idPkts[i].encode(Encoding.ENCODING_BINARY));
+            writeOK = (len >= 0);
+            if (writeOK) {
+                writeBytes += len;
+            }
+        }
+        int maxEvents = (int)Props.getLong(Props.PROP_COMM_MAX_SIM_EVENTS, 0, 4L);
+        if (maxEvents < 1) { maxEvents = 1; }
+        if (maxEvents > MAX_SIMPLEX_EVENTS) { maxEvents = MAX_SIMPLEX_EVENTS; }
+        if (writeOK) {
+            // selected and marked under the queue lock (see 'PacketQueue.markSentBlock')
+            byte events[][] = eventQueue.markSentBlock(Packet.PRIORITY_LOW, maxEvents, BLOCK_TAG);
+            for (int i = 0; writeOK && (i < events.length); i++) {
+                int len = this.transport.writePacket(events[i]);
+                writeOK = (len >= 0);
+                if (writeOK) {
+                    writeBytes += len;
+                    eventCount++;
+                }
+            }
+        }
+
+        /* send the datagram (on close) */
+        if (!writeOK || !this.transport.close(true)) {
+            if (writeOK) {
+                Log.warn(LOG_NAME, "Simplex lane datagram not sent");
+            } else {
+                this.transport.close(false);
+            }
+            eventQueue.resetSentBlock(BLOCK_TAG); // set to 'unsent'
+            return false;
+        }
+
+        /* delete the sent events (simplex events are not acknowledged) */
+        int delCnt = eventQueue.deleteSentBlock(BLOCK_TAG, Packet.SEQUENCE_ALL, 0);
+        if (delCnt != eventCount) {
+            Log.warn(LOG_NAME, "Simplex lane sent " + eventCount + " events, but deleted " + delCnt);
+        }
+        Accounting.consumeDataBytes(writeBytes);
+        Accounting.markSimplexConnection();
+        Props.setLong(Props.PROP_STATE_SIMPLEX_LANE, 0, Props.getLong(Props.PROP_STATE_SIMPLEX_LANE, 0, 0L) + 1L);
+        Props.setLong(Props.PROP_STATE_SIMPLEX_LANE, 1, Props.getLong(Props.PROP_STATE_SIMPLEX_LANE, 1, 0L) + delCnt);
+        return true;
+
+    }
+
+    /**
+    * Returns the identification packets sent with each datagram (the UniqueID if available,
+    * otherwise the AccountID and DeviceID)
+    */
+    private Packet[] _getIdentification()
+    {
+        byte id[] = Props.getByteArray(Props.PROP_STATE_UNIQUE_ID, null);
+        if ((id != null) && (id.length == 6)) { // length must be '6'
+            for (int b = 0; b < id.length; b++) {
+                if (id[b] != (byte)0) { // at least one field must be non-zero
+                    return new Packet[] { Packet.createClientPacket(Packet.PKT_CLIENT_UNIQUE_ID, id) };
+                }
+            }
+        }
+        Vector idPkts = new Vector();
+        String acctId = Props.getString(Props.PROP_STATE_ACCOUNT_ID, "");
+        if ((acctId != null) && !acctId.equals("")) {
+            if (acctId.length() > Props.MAX_ID_SIZE) { acctId = acctId.substring(0, Props.MAX_ID_SIZE); }
+            idPkts.addElement(Packet.createClientPacket(Packet.PKT_CLIENT_ACCOUNT_ID, acctId));
+        }
+        String devId = Props.getString(Props.PROP_STATE_DEVICE_ID, "");
+        if ((devId != null) && !devId.equals("")) {
+            if (devId.length() > Props.MAX_ID_SIZE) { devId = devId.substring(0, Props.MAX_ID_SIZE); }
+            idPkts.addElement(Packet.createClientPacket(Packet.PKT_CLIENT_DEVICE_ID, devId));
+        }
+        Packet p[] = new Packet[idPkts.size()];
+        idPkts.copyInto(p);
+        return p;
+    }
+
+}
@@ -0,0 +1,275 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  This class saves/restores a compact binary snapshot of the client runtime
+//  state (connection accounting, motion state, last GPS fix, etc) so that a
+//  restarted client can resume where it left off.  Each registered client
+//  writes its own tagged section, and sections which are not recognized on
+//  restore are skipped.  The snapshot is written to a temporary file and then
+//  renamed, so a crash while saving leaves the previous snapshot intact.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
+import com.tommasocodella.androdmtp.opendmtp.util.Log;
+
+/**
+* Warm-restart snapshot of the client runtime state.
+*/
+public class StateSnapshot
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String LOG_NAME            = "SNAP";
+
+    private static final int    SNAPSHOT_MAGIC      = 0x444D5353; // "DMSS"
+    private static final int    SNAPSHOT_VERSION    = 1;
+
+    /* section ids */
+    public  static final int    STATE_ACCOUNTING    = 0x0001;
+    public  static final int    STATE_MOTION        = 0x0002;
+    public  static final int    STATE_GPS_FIX       = 0x0003;
+    public  static final int    STATE_DATA_BUDGET   = 0x0004;
+    public  static final int    STATE_CATCHUP       = 0x0005;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * State client interface
+    */
+    public interface Client
+    {
+        /**
+        * Returns the id of the section written by this client
+        * @return The section id
+        */
+        public int getStateId();
+
+        /**
+        * Writes the state of this client
+        * @param out The section output
+        * @throws IOException if an error occurs
+        */
+        public void writeState(DataOutput out) throws IOException;
+
+        /**
+        * Restores the state of this client
+        * @param in The section input
+        * @throws IOException if an error occurs
+        */
+        public void readState(DataInput in) throws IOException;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Converts a timer value (see DateTime.getTimerSec) into an absolute time which remains
+    * valid after a restart.
+    * @param timer The timer value, or 0 if the timer is not set
+    * @return The absolute time in seconds, or 0 if the timer is not set
+    */
+    public static long timerToTime(long timer)
+    {
+        return (timer != 0L)? (DateTime.getTimerBase() + timer) : 0L;
+    }
+
+    /**
+    * Converts an absolute time saved with 'timerToTime' back into a timer value.
+    * @param timeSec The absolute time in seconds, or 0 if the timer is not set
+    * @return The timer value, or 0 if the timer is not set
+    */
+    public static long timeToTimer(long timeSec)
+    {
+        return (timeSec != 0L)? DateTime.getTimerSec(timeSec) : 0L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private File    file        = null;
+    private Vector  clients     = new Vector();
+
+    /**
+    * Creates a snapshot saved in the specified file
+    * @param file The snapshot file
+    */
+    public StateSnapshot(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+    * Adds a state client
+    * @param client The client
+    */
+    public void addClient(StateSnapshot.Client client)
+    {
+        if ((client != null) && !this.clients.contains(client)) {
+            this.clients.addElement(client);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Writes the state of all clients to the snapshot file
+    * @return True if the snapshot was saved
+    */
+    public synchronized boolean save()
+    {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+
+            /* sections */
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeLong(DateTime.getCurrentTimeSec());
+            out.writeShort(this.clients.size());
+            for (Enumeration e = this.clients.elements(); e.hasMoreElements();) {
+                StateSnapshot.Client c = (StateSnapshot.Client)e.nextElement();
+                ByteArrayOutputStream sect = new ByteArrayOutputStream();
+                c.writeState(new DataOutputStream(sect));
+                out.writeShort(c.getStateId());
+                out.writeShort(sect.size());
+                sect.writeTo(out);
+            }
+            out.flush();
+
+            /* checksum */
+            byte b[] = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, b.length);
+
+            /* write/rename */
+            fos = new FileOutputStream(tmp);
+            fos.write(b);
+            DataOutputStream tail = new DataOutputStream(fos);
+            tail.writeInt((int)crc.getValue());
+            tail.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(this.file)) {
+                this.file.delete();
+                if (!tmp.renameTo(this.file)) {
+                    Log.error(LOG_NAME, "Unable to rename snapshot: " + tmp);
+                    return false;
+                }
+            }
+            return true;
+
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to save snapshot", ioe);
+            return false;
+        } finally {
+            if (fos != null) { try { fos.close(); } catch (IOException ioe) {} }
+        }
+    }
+
+    /**
+    * Restores the state of all clients from the snapshot file
+    * @return True if a valid snapshot was found and restored
+    */
+    public synchronized boolean restore()
+    {
+        if (!this.file.exists()) {
+            return false;
+        }
+        FileInputStream fis = null;
+        try {
+
+            /* read/verify */
+            int len = (int)this.file.length();
+            if (len < 4) {
+                Log.warn(LOG_NAME, "Ignoring truncated snapshot");
+                return false;
+            }
+            byte b[] = new byte[len];
+            fis = new FileInputStream(this.file);
+            new DataInputStream(fis).readFully(b);
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, len - 4);
+            int check = ((b[len-4] & 0xFF) << 24) | ((b[len-3] & 0xFF) << 16) | ((b[len-2] & 0xFF) << 8) | (b[len-1] & 0xFF);
+            if (check != (int)crc.getValue()) {
+                Log.warn(LOG_NAME, "Ignoring corrupt snapshot");
+                return false;
+            }
+
+            /* header */
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, 0, len - 4));
+            if ((in.readInt() != SNAPSHOT_MAGIC) || (in.readUnsignedByte() != SNAPSHOT_VERSION)) {
+                Log.warn(LOG_NAME, "Ignoring unrecognized snapshot");
+                return false;
+            }
+            long savedTime = in.readLong();
+
+            /* sections */
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                int  id   = in.readUnsignedShort();
+                byte s[]  = new byte[in.readUnsignedShort()];
+                in.readFully(s);
+                StateSnapshot.Client c = this._getClient(id);
+                if (c != null) {
+                    c.readState(new DataInputStream(new ByteArrayInputStream(s)));
+                }
+            }
+            Log.info(LOG_NAME, "Restored snapshot (age " + (DateTime.getCurrentTimeSec() - savedTime) + " sec)");
+            return true;
+
+        } catch (IOException ioe) {
+            Log.error(LOG_NAME, "Unable to restore snapshot", ioe);
+            return false;
+        } finally {
+            if (fis != null) { try { fis.close(); } catch (IOException ioe) {} }
+        }
+    }
+
+    /**
+    * Returns the client for the specified section id
+    */
+    private StateSnapshot.Client _getClient(int id)
+    {
+        for (Enumeration e = this.clients.elements(); e.hasMoreElements();) {
+            StateSnapshot.Client c = (StateSnapshot.Client)e.nextElement();
+            if (c.getStateId() == id) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+}
@@ -27,6 +27,8 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.client.base;
 
+import com.tommasocodella.androdmtp.opendmtp.util.TimeoutException;
+
 /**
 * The Transport interface.
 */
@@ -39,6 +41,19 @@ public interface Transport
     */
     public boolean isOpen();
 
+    /**
+    * Sets the server to which the transport connects when it is next opened.
+    * @param host The server host, or null to use the host:port specified in the client properties
+    * @param port The server port
+    */
+    public void setServer(String host, int port);
+
+    /**
+    * Sets the duplex read timeout.  Takes effect immediately if the transport is open.
+    * @param timeoutMS The read timeout in milliseconds
+    */
+    public void setReadTimeout(int timeoutMS);
+
     /**
     * Opens the transport medium.
     * @param xportType The transport type
@@ -56,8 +71,9 @@ public interface Transport
     /**
     * Read a single packet as a byte array
     * @return the single packet read
+    * @throws TimeoutException if no packet was received within the transport read timeout
     */
-    public byte[] readPacket();
+    public byte[] readPacket() throws TimeoutException;
 
     /**
     * Write a single packet to the transport media
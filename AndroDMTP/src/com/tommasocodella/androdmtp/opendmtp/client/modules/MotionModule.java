@@ -28,9 +28,14 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.client.modules;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import com.tommasocodella.androdmtp.opendmtp.client.base.Packet;
 import com.tommasocodella.androdmtp.opendmtp.client.base.PacketQueue;
 import com.tommasocodella.androdmtp.opendmtp.client.base.Props;
+import com.tommasocodella.androdmtp.opendmtp.client.base.StateSnapshot;
 import com.tommasocodella.androdmtp.opendmtp.client.custom.Constants;
 import com.tommasocodella.androdmtp.opendmtp.codes.StatusCodes;
 import com.tommasocodella.androdmtp.opendmtp.util.DateTime;
@@ -42,7 +47,7 @@ import com.tommasocodella.androdmtp.opendmtp.client.base.GPSModules;
 * dormant, and excessive speed events.
 */
 public class MotionModule
-    implements StatusCodes, GPSModules.Module
+    implements StatusCodes, GPSModules.Module, StateSnapshot.Client
 {
 
     // ----------------------------------------------------------------------------
@@ -351,4 +356,51 @@ public class MotionModule
         this.packetQueue.addEvent(priority, newFix);
     }
 
+    // ----------------------------------------------------------------------------
+
+    /**
+    * Returns the StateSnapshot section id of this module.
+    * @return The section id
+    */
+    public int getStateId()
+    {
+        return StateSnapshot.STATE_MOTION;
+    }
+
+    /**
+    * Writes the motion state (timers are saved as absolute times).
+    * @param out The section output
+    * @throws IOException if an error occurs
+    */
+    public void writeState(DataOutput out)
+        throws IOException
+    {
+        out.writeBoolean(this.isInMotion);
+        out.writeBoolean(this.isExceedingSpeed);
+        out.writeLong(StateSnapshot.timerToTime(this.lastStoppedTimer));
+        out.writeLong(StateSnapshot.timerToTime(this.lastInMotionMessageTimer));
+        out.writeLong(StateSnapshot.timerToTime(this.lastDormantMessageTimer));
+        out.writeLong(this.dormantCount);
+        this.lastMotionFix.writeTo(out);
+        this.lastStoppedFix.writeTo(out);
+    }
+
+    /**
+    * Restores the motion state, so that a restart does not generate a spurious motion start.
+    * @param in The section input
+    * @throws IOException if an error occurs
+    */
+    public void readState(DataInput in)
+        throws IOException
+    {
+        this.isInMotion               = in.readBoolean();
+        this.isExceedingSpeed         = in.readBoolean();
+        this.lastStoppedTimer         = StateSnapshot.timeToTimer(in.readLong());
+        this.lastInMotionMessageTimer = StateSnapshot.timeToTimer(in.readLong());
+        this.lastDormantMessageTimer  = StateSnapshot.timeToTimer(in.readLong());
+        this.dormantCount             = in.readLong();
+        this.lastMotionFix.readFrom(in);
+        this.lastStoppedFix.readFrom(in);
+    }
+
 }
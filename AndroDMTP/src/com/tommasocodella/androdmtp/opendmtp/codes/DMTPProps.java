@@ -597,6 +597,96 @@ public interface DMTPProps
         //      0:4 - [UInt32] Number of queued, un-acknowledged, events
         //      0:4 - [UInt32] Total number of events generated (since last reboot)
 
+    public static final int PROP_STATE_QUEUE_OVERFLOW       = 0xF132;
+        // Description: [optional]
+        //      [Read-Only] Event queue overflow counts (since last reboot)
+        // Value:
+        //      0:4 - [UInt32] Number of low priority events dropped to make room
+        //      4:4 - [UInt32] Number of in-motion/dormant events removed by coalescing
+        //      8:4 - [UInt32] Number of new events refused because the queue was full
+        //     12:4 - [UInt32] Number of in-motion/dormant events removed by backlog thinning
+        // Notes:
+        //      - See PROP_COMM_QUEUE_LIMITS, PROP_COMM_QUEUE_POLICY, and PROP_COMM_THIN_BACKLOG
+
+    public static final int PROP_STATE_EVENT_SEQUENCE       = 0xF133;
+        // Description: [optional]
+        //      [Read-Only] Event sequence high-water mark
+        // Value:
+        //      0:4 - [UInt32] First event sequence number not yet reserved
+        // Notes:
+        //      - Event sequence numbers are reserved in blocks, and this value is saved each
+        //      time a new block is reserved.  After a restart, sequence numbering resumes at
+        //      this value, so sequence numbers are never reused for a new event.
+
+    public static final int PROP_STATE_LINK_ESTIMATE        = 0xF134;
+        // Description: [optional]
+        //      [Read-Only] Duplex link estimates
+        // Value:
+        //      0:4 - [UInt32] Smoothed round trip time (milliseconds)
+        //      4:4 - [UInt32] Round trip time variation (milliseconds)
+        //      8:4 - [UInt32] Current duplex read timeout (milliseconds)
+        //     12:4 - [UInt32] Throughput (bytes per second)
+        //     16:4 - [UInt32] Current events per block (0 if blocks are not sized)
+        // Notes:
+        //      - The round trip time is measured from the end of each event block to the
+        //      server response to that block.  See PROP_COMM_LINK_ADAPT.
+
+    public static final int PROP_STATE_UPLOAD               = 0xF135;
+        // Description: [optional]
+        //      [Read-Only] File upload status
+        // Value:
+        //      0:4 - [UInt32] Size of the file being uploaded
+        //      4:4 - [UInt32] Bytes received (the offset at which the upload continues)
+        //      8:4 - [UInt32] Status (0=none, 1=receiving, 2=complete, else upload error code)
+        // Notes:
+        //      - This value is sent to the server in response to the upload FILE and END
+        //      records, and after an upload offset error.  A partially received file is
+        //      retained between sessions, and the upload is resumed if the server sends
+        //      the same file name and size again.
+
+    public static final int PROP_STATE_DATA_BUDGET          = 0xF136;
+        // Description: [optional]
+        //      [Read-Only] Data budget consumption
+        // Value:
+        //      0:4 - [UInt32] Bytes consumed from the hourly budget
+        //      4:4 - [UInt32] Bytes consumed from the daily budget
+        //      8:4 - [UInt32] Bytes consumed from the monthly budget
+        // Notes:
+        //      - Each value is the number of bytes read/written which have not yet been
+        //      refilled (see PROP_COMM_DATA_BUDGET), and may exceed the budget if high
+        //      priority events were sent after the budget was exhausted.  A value is 0 if
+        //      the corresponding budget is not set.
+
+    public static final int PROP_STATE_RETRY                = 0xF137;
+        // Description: [optional]
+        //      [Read-Only] Connection retry statistics
+        // Value:
+        //      0:4 - [UInt32] Number of failed sessions (retries)
+        //      4:4 - [UInt32] Number of times a server circuit was opened
+        //      8:4 - [UInt32] Total seconds servers have spent in the open state
+        //     12:4 - [UInt32] Number of servers currently open/half-open
+        // Notes:
+        //      - See PROP_COMM_RETRY
+
+    public static final int PROP_STATE_CATCHUP              = 0xF138;
+        // Description: [optional]
+        //      [Read-Only] Bulk backlog catch-up statistics
+        // Value:
+        //      0:4 - [UInt32] Number of catch-up sessions
+        //      4:4 - [UInt32] Number of events acknowledged in catch-up sessions
+        //      8:4 - [UInt32] Duration of the last catch-up session in seconds
+        // Notes:
+        //      - See PROP_COMM_CATCHUP
+
+    public static final int PROP_STATE_SIMPLEX_LANE         = 0xF139;
+        // Description: [optional]
+        //      [Read-Only] Simplex lane statistics
+        // Value:
+        //      0:4 - [UInt32] Number of datagrams sent on the simplex lane
+        //      4:4 - [UInt32] Number of events sent on the simplex lane
+        // Notes:
+        //      - See PROP_COMM_SIMPLEX_LANE
+
     public static final int PROP_STATE_DEV_DIAGNOSTIC       = 0xF141;
         // Description: [optional]
         //      [Read-Only] Device diagnostics
@@ -729,6 +819,241 @@ public interface DMTPProps
         //      - Since Simplex transmissions may not guarantee delivery, only low priority, 
         //      non-critical messages should be sent via Simplex.
 
+    public static final int PROP_COMM_QUEUE_LIMITS          = 0xF321;
+        // Description: [optional]
+        //      Maximum size of the event queue
+        // Value: 
+        //      0:4 - [UInt32] Maximum number of queued events (0 means no limit)
+        //      4:4 - [UInt32] Maximum number of queued event bytes (0 means no limit)
+        // Notes:
+        //      - When either limit is reached, PROP_COMM_QUEUE_POLICY determines how room 
+        //      is made for new events.
+        //      - Limits are only enforced while the client is not connected to the server.
+        //      Events generated while connected are accepted, and the queue is trimmed back
+        //      to the limit when the connection is closed.
+
+    public static final int PROP_COMM_QUEUE_POLICY          = 0xF322;
+        // Description: [optional]
+        //      Event queue overflow policy
+        // Value: 
+        //      0:1 - [UInt8] Policy applied when the event queue is full
+        //            0 - Refuse new events
+        //            1 - Drop the oldest low priority events
+        //            2 - Coalesce runs of in-motion/dormant events, then drop the oldest low
+        //                priority events
+        // Notes:
+        //      - Overflow counts are available in PROP_STATE_QUEUE_OVERFLOW
+
+    public static final int PROP_COMM_THIN_BACKLOG          = 0xF323;
+        // Description: [optional]
+        //      Trajectory thinning of a queued low priority event backlog
+        // Value: 
+        //      0:4 - [UInt32] Minimum number of queued low priority events before thinning
+        //            is applied (0 to disable)
+        //      4:4 - [UInt32] Tolerance in meters
+        // Notes:
+        //      - When the backlog reaches the specified size, unsent in-motion/dormant events
+        //      are simplified (Douglas-Peucker) before they are sent, so that the remaining
+        //      points deviate from the original route by no more than the tolerance.  All
+        //      other events (start/stop, alerts, etc), and the first/last point of each run
+        //      of in-motion/dormant events, are always retained.
+        //      - The backlog is thinned regardless of its size while the data budget is
+        //      low (see PROP_COMM_DATA_BUDGET).
+        //      - Thinned event counts are available in PROP_STATE_QUEUE_OVERFLOW
+
+    public static final int PROP_COMM_DUPLEX_WINDOW         = 0xF324;
+        // Description: [optional]
+        //      Duplex transmit window
+        // Value: 
+        //      0:1 - [UInt8] Maximum number of event blocks sent, but not yet acknowledged
+        //            Valid range: 1 to 16 blocks (1 disables pipelining)
+        // Notes:
+        //      - With a window greater than 1, the client continues sending event blocks
+        //      (terminated with EOB_MORE) while the server response to earlier blocks is
+        //      still outstanding, instead of waiting one round trip per block.  Each server
+        //      ACK applies to the oldest outstanding block, and the events of a block which
+        //      were not acknowledged by the end of its server response are sent again.
+
+    public static final int PROP_COMM_PERSISTENT            = 0xF325;
+        // Description: [optional]
+        //      Persistent Duplex session
+        // Value: 
+        //      0:2 - [UInt16] Keepalive interval in seconds (0 disables persistent sessions)
+        //      2:2 - [UInt16] Server response timeout in seconds
+        // Notes:
+        //      - In a persistent session the Duplex connection is kept open after the queued
+        //      events have been sent.  New events are sent as soon as they are queued, and
+        //      a keepalive (an empty event block) is sent after the specified idle interval.
+        //      If the server does not respond to a block within the response timeout, the
+        //      connection is considered lost (half-open) and is closed.
+        //      - In persistent session mode the Duplex connection counts maintained for
+        //      PROP_COMM_MAX_CONNECTIONS are session minutes (each minute during which a
+        //      session was open counts as one connection), and the session is ended when
+        //      the Duplex limit is reached.  The Duplex limit should be set accordingly.
+
+    public static final int PROP_COMM_DELIVERY_MASK         = 0xF326;
+        // Description: [optional]
+        //      Required event destinations (dual delivery)
+        // Value: 
+        //      0:1 - [UInt8] Bit mask of the servers which must acknowledge each event.
+        //            Bit 0 is the primary server (PROP_COMM_DMTP_HOST), bit 1 is the first
+        //            alternate server (PROP_COMM_DMTP_ALT_HOSTS), etc.
+        // Notes:
+        //      - With a mask of 0 (the default) the alternate servers are used only for
+        //      failover: each connection is made to the healthiest server, as scored by its
+        //      recent connect latency and error rate, and an event is removed from the
+        //      queue once it has been acknowledged by any server.
+        //      - With a non-zero mask each event is sent to every specified server, and an
+        //      event is removed from the queue only when all of these servers have
+        //      acknowledged it.  A server which is unavailable does not delay delivery to
+        //      the other servers.  The servers which have acknowledged an event are kept
+        //      in the durable event log, so that they do not receive it again after a restart.
+
+    public static final int PROP_COMM_LINK_ADAPT            = 0xF327;
+        // Description: [optional]
+        //      Duplex link adaptation
+        // Value: 
+        //      0:2 - [UInt16] Target block duration in milliseconds (0 disables block sizing)
+        //      2:2 - [UInt16] Minimum duplex read timeout in milliseconds
+        //      4:2 - [UInt16] Maximum duplex read timeout in milliseconds
+        // Notes:
+        //      - The duplex read timeout is derived from the measured round trip time
+        //      (smoothed RTT + 4 * RTT variation), within the specified bounds.  The
+        //      minimum is used until the round trip time has been measured.  When the
+        //      server does not respond within the read timeout, the timeout is doubled
+        //      (up to the maximum) before the session is considered to have failed.
+        //      - With a non-zero target block duration the number of events sent per block
+        //      is sized from the measured throughput, so that each block is acknowledged
+        //      within about the target time (up to 128 events per block).  The value of
+        //      PROP_COMM_MAX_DUP_EVENTS is used until the throughput has been measured.
+        //      - Current estimates are available in PROP_STATE_LINK_ESTIMATE
+
+    public static final int PROP_COMM_DATA_BUDGET           = 0xF328;
+        // Description: [optional]
+        //      Data budget
+        // Value: 
+        //      0:4 - [UInt32] Maximum bytes per hour (0 for no limit)
+        //      4:4 - [UInt32] Maximum bytes per day (0 for no limit)
+        //      8:4 - [UInt32] Maximum bytes per month (0 for no limit)
+        // Notes:
+        //      - All bytes read and written by the client are counted.  Each budget is a
+        //      token bucket which refills continuously at the specified bytes per period (a
+        //      month is 30 days), so the budget is not reset at the start of a period.
+        //      - When any budget falls below the threshold specified by PROP_COMM_BUDGET_LOW,
+        //      the low priority event backlog is thinned (see PROP_COMM_THIN_BACKLOG) and the
+        //      intervals between low priority and 'checkup' connections are lengthened.  When
+        //      any budget is exhausted only high priority events are sent.
+        //      - Budget consumption is available in PROP_STATE_DATA_BUDGET
+
+    public static final int PROP_COMM_BUDGET_LOW            = 0xF329;
+        // Description: [optional]
+        //      Low data budget policy
+        // Value: 
+        //      0:1 - [UInt8] Percentage of a budget below which the budget is low
+        //      1:1 - [UInt8] Connection interval multiplier while the budget is low
+        // Notes:
+        //      - While the budget is low, the PROP_COMM_MIN_XMIT_RATE interval (for low
+        //      priority events) and the PROP_COMM_MAX_XMIT_RATE interval (for 'checkup'
+        //      connections) are multiplied by the specified value.
+
+    public static final int PROP_COMM_RETRY                 = 0xF32A;
+        // Description: [optional]
+        //      Connection retry backoff
+        // Value: 
+        //      0:4 - [UInt32] Base retry delay in milliseconds
+        //      4:4 - [UInt32] Maximum retry delay in milliseconds
+        //      8:4 - [UInt32] Consecutive failures before the server circuit is opened
+        // Notes:
+        //      - After a failed session, the server is not retried until a random delay
+        //      between the base delay and 3 times the previous delay (up to the maximum) has
+        //      expired, so that clients which failed at the same time do not retry in step.
+        //      - After the specified number of consecutive failures the circuit of the server
+        //      is opened.  When the retry delay expires a single probe session is made
+        //      (half-open), and the circuit is closed again when a session succeeds.  High
+        //      priority events may probe a server as soon as the base delay has expired.
+        //      - Retry statistics are available in PROP_STATE_RETRY
+
+    public static final int PROP_COMM_PACKED_EVENTS         = 0xF32B;
+        // Description: [optional]
+        //      Packed event packets
+        // Value: 
+        //      0:1 - [UInt8] Maximum number of events per packet (0 or 1 to disable)
+        //      1:1 - [UInt8] Non-zero to delta encode packed standard format events
+        // Notes:
+        //      - Consecutive events of the same priority and fixed format are sent in a single
+        //      packed event packet (PKT_CLIENT_PACKED_FMT_STD/HIGH), up to the specified number
+        //      of events, or the maximum payload length.  The first event is encoded with the
+        //      fields of the fixed format, and each further event is a repeated binary record
+        //      with the same layout.  Each event retains its own sequence number, so events are
+        //      still acknowledged individually.
+        //      - With delta encoding, standard format events are sent in delta event packets
+        //      (PKT_CLIENT_DELTA_FMT_STD).  The first event of the packet is the keyframe, and
+        //      each further event carries the changes of time, position, speed, heading,
+        //      altitude and odometer since the previous event in 10 bytes.  An event whose
+        //      changes do not fit starts a new packet.
+        //      - Packing (or delta encoding) is disabled if the server does not support the
+        //      packed (or delta) event types.
+
+    public static final int PROP_COMM_COMPRESSION           = 0xF32C;
+        // Description: [optional]
+        //      Duplex block compression
+        // Value: 
+        //      0:1 - [UInt8] DEFLATE compression level (1..9), 0 to disable
+        // Notes:
+        //      - The event packets of each duplex block are binary encoded and compressed into
+        //      a single DEFLATE stream (primed with a preset dictionary of typical DMTP
+        //      packets), which is sent in PKT_CLIENT_DEFLATE_DATA packets ahead of the EOB.
+        //      The stream is finished at the end of each block.
+        //      - Compression is disabled if the server rejects a PKT_CLIENT_DEFLATE_DATA
+        //      packet, and the events of the block are resent uncompressed.
+
+    public static final int PROP_COMM_CATCHUP               = 0xF32D;
+        // Description: [optional]
+        //      Bulk backlog catch-up sessions
+        // Value: 
+        //      0:4 - [UInt32] Minimum number of queued events for a catch-up session, 0 to disable
+        //      4:4 - [UInt32] Maximum number of events per catch-up block (up to 1024)
+        //      8:4 - [UInt32] Maximum number of catch-up blocks awaiting acknowledgement
+        //     12:4 - [UInt32] Maximum number of catch-up connections within the connection
+        //                     accounting interval (see PROP_COMM_MAX_CONNECTIONS)
+        // Notes:
+        //      - When the event queue holds at least the specified number of events, a duplex
+        //      catch-up session is started, regardless of the connection quota and minimum
+        //      transmit interval.  Catch-up connections are counted separately, and do not
+        //      use the quota of PROP_COMM_MAX_CONNECTIONS.
+        //      - The client requests the catch-up session with a PKT_CLIENT_CATCHUP_REQUEST
+        //      packet in the first block.  If the server accepts (PKT_SERVER_CATCHUP_ACCEPT,
+        //      with the granted block size and window), the backlog is sent in blocks of up to
+        //      the granted number of events, with up to the granted number of blocks in flight.
+        //      Each block is a checkpoint: events are deleted from the queue only when the
+        //      server acknowledges the block.  A block holds at most half the range of the
+        //      shortest sequence field of its events (128 events with the 1 byte sequence of
+        //      the standard event formats), so that an acknowledged sequence number identifies
+        //      a single event of the block.
+        //      - Catch-up sessions are disabled if the server rejects the request packet.
+        //      - Catch-up statistics are available in PROP_STATE_CATCHUP
+
+    public static final int PROP_COMM_SIMPLEX_LANE          = 0xF32E;
+        // Description: [optional]
+        //      Concurrent simplex lane
+        // Value: 
+        //      0:1 - [Boolean] True to send low priority events on a concurrent simplex lane
+        // Notes:
+        //      - Low priority events are sent in simplex datagrams by a separate thread, with a
+        //      separate transport, while normal and high priority events (and all server
+        //      interaction) use duplex sessions.  The simplex lane is not held up by a long
+        //      duplex session (ie. a catch-up session), and duplex sessions are not started
+        //      for low priority events.
+        //      - Each lane only sends the events of its own priorities.  The simplex lane is
+        //      limited to the simplex share of the connection quota (total minus duplex
+        //      connections of PROP_COMM_MAX_CONNECTIONS), and the minimum transmit interval
+        //      (PROP_COMM_MIN_XMIT_RATE) applies to each lane separately.
+        //      - This property has no effect unless both simplex and duplex connections are
+        //      supported, and a simplex lane transport is available.
+        //      - The simplex lane is not used while more than one server is required by
+        //      PROP_COMM_DELIVERY_MASK (dual delivery), since a datagram has a single destination.
+        //      - Simplex lane statistics are available in PROP_STATE_SIMPLEX_LANE
+
     // ----------------------------------------------------------------------------
     // Communication connection properties:
 
@@ -884,6 +1209,37 @@ public interface DMTPProps
         //        may use this value to compare against the signal strength returned
         //        from a "AT+CSQ" comment sent to the modem.
 
+    public static final int PROP_COMM_DMTP_ALT_HOSTS        = 0xF3B0;
+        // Description: [optional]
+        //      Alternate (failover) servers
+        // Value: 
+        //      0:X - [ASCIIZ] comma separated list of "host:port" servers
+        // Special data length rules:
+        //      - A 0-length value indicates that no alternate servers are available.
+        // Notes:
+        //      - Alternate servers are listed in order of preference, following the primary
+        //      server (PROP_COMM_DMTP_HOST/PROP_COMM_DMTP_PORT).  If the port is omitted, the
+        //      port of the primary server is used.
+        //      - See PROP_COMM_DELIVERY_MASK.
+
+    public static final int PROP_COMM_SERVER_CAPS           = 0xF3B1;
+        // Description: [optional]
+        //      Server capability cache
+        // Value: 
+        //      0:X - [ASCIIZ] semicolon separated list of "host:port=encoding/type,type"
+        //            entries, where 'encoding' is the (hex) packet encoding which the server
+        //            accepted, and each 'type' is a (hex) custom packet type for which the
+        //            server required a format definition.
+        // Special data length rules:
+        //      - A 0-length value indicates that nothing is known about any server.
+        // Notes:
+        //      - This value is maintained by the client.  At the start of each session the
+        //      cached encoding is used, and the format definitions of the cached packet types
+        //      are sent before any events, so that the server does not need to reject
+        //      events (NAK_FORMAT_NOT_RECOGNIZED, NAK_PACKET_ENCODING) to negotiate these.
+        //      - Setting this value to an empty string clears the cache (ie. after the
+        //      server has been upgraded).
+
     public static final int PROP_COMM_ACCESS_PIN            = 0xF3AF;
         // Description: [optional]
         //      Access PIN/Password
@@ -27,6 +27,10 @@
 // ----------------------------------------------------------------------------
 package com.tommasocodella.androdmtp.opendmtp.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
 * Provides an container for GPS events. keeping track of a piece of GPS information in sequence of
 * events of each entity.
@@ -485,5 +489,55 @@ public class GeoEvent
     }
 
     // ------------------------------------------------------------------------
+
+    /**
+    * Writes the contents of this GPS event to the specified output (see 'readFrom').
+    * @param out the output to which the contents of this GPS event are written.
+    * @throws IOException if an error occurs.
+    */
+    public void writeTo(DataOutput out)
+        throws IOException
+    {
+        out.writeInt   (this.gpsStatusCode);
+        out.writeLong  (this.gpsTimestamp);
+        out.writeLong  (this.gpsIndex);
+        out.writeDouble(this.gpsLatitude);
+        out.writeDouble(this.gpsLongitude);
+        out.writeDouble(this.gpsSpeedKPH);
+        out.writeDouble(this.gpsHeading);
+        out.writeDouble(this.gpsAltitude);
+        out.writeDouble(this.gpsDistanceKM);
+        out.writeDouble(this.gpsOdometerKM);
+        out.writeDouble(this.gpsHDOP);
+        out.writeDouble(this.gpsAccuracyM);
+        out.writeLong  (this.gpsSequence);
+    }
+
+    /**
+    * Reads the contents of this GPS event from the specified input (see 'writeTo').
+    * @param in the input from which the contents of this GPS event are read.
+    * @return this GeoEvent object.
+    * @throws IOException if an error occurs.
+    */
+    public GeoEvent readFrom(DataInput in)
+        throws IOException
+    {
+        this.gpsStatusCode = in.readInt();
+        this.gpsTimestamp  = in.readLong();
+        this.gpsIndex      = in.readLong();
+        this.gpsLatitude   = in.readDouble();
+        this.gpsLongitude  = in.readDouble();
+        this.gpsSpeedKPH   = in.readDouble();
+        this.gpsHeading    = in.readDouble();
+        this.gpsAltitude   = in.readDouble();
+        this.gpsDistanceKM = in.readDouble();
+        this.gpsOdometerKM = in.readDouble();
+        this.gpsHDOP       = in.readDouble();
+        this.gpsAccuracyM  = in.readDouble();
+        this.gpsSequence   = in.readLong();
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
     
 }
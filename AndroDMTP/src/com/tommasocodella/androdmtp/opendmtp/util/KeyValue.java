@@ -264,6 +264,16 @@ public class KeyValue
         this.resetToDefault();
     }
 
+    /**
+    * Constructs a copy of the definition of the specified key/value pair.  The values of the
+    * copy are set to the default.  Command handlers and change listeners are not copied.
+    * @param kv The key/value pair to copy.
+    */
+    public KeyValue(KeyValue kv)
+    {
+        this(kv.keyCode, kv.keyName, kv.valType, kv.valAttr, kv.ndxSize, kv.dftVal);
+    }
+
     /**
     * Constructs a command type key/value pair. The access attribute for commands is write-only.
     * @param code The mapping key.
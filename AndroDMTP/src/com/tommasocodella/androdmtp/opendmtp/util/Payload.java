@@ -171,6 +171,18 @@ public class Payload
             return n;
         }
     }
+
+    /**
+    * Copies the content of the payload into the specified array.
+    * @param dest The destination array.
+    * @param ofs The offset within the destination array.
+    * @return The number of bytes copied.
+    */
+    public int getBytes(byte dest[], int ofs)
+    {
+        System.arraycopy(this._getBytes(), 0, dest, ofs, this.size);
+        return this.size;
+    }
     
     // ------------------------------------------------------------------------
 
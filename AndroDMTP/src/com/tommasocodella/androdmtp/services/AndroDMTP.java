@@ -1,13 +1,23 @@
 package com.tommasocodella.androdmtp.services;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
 import com.tommasocodella.androdmtp.gps.AndroDMTPLocationListener;
 import com.tommasocodella.androdmtp.gps.GPSUtils;
+import com.tommasocodella.androdmtp.opendmtp.client.base.DmtpClientContext;
 import com.tommasocodella.androdmtp.opendmtp.client.base.GPSModules;
+import com.tommasocodella.androdmtp.opendmtp.client.base.NioTransport;
 import com.tommasocodella.androdmtp.opendmtp.client.base.Packet;
 import com.tommasocodella.androdmtp.opendmtp.client.base.PacketQueue;
 import com.tommasocodella.androdmtp.opendmtp.client.base.PersistentStorage;
 import com.tommasocodella.androdmtp.opendmtp.client.base.Props;
 import com.tommasocodella.androdmtp.opendmtp.client.base.Protocol;
+import com.tommasocodella.androdmtp.opendmtp.client.base.ProtocolEngine;
+import com.tommasocodella.androdmtp.opendmtp.client.base.StateSnapshot;
+import com.tommasocodella.androdmtp.opendmtp.client.base.Accounting;
 import com.tommasocodella.androdmtp.opendmtp.client.modules.MotionModule;
 import com.tommasocodella.androdmtp.opendmtp.client.modules.OdometerModule;
 import com.tommasocodella.androdmtp.opendmtp.codes.StatusCodes;
@@ -39,6 +49,8 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
     private static final boolean ENABLE_EVENTS		= true;
     private static final long STANDARD_LOOP_DELAY	= 2000L; // millis
     private static final long LOOP_DELAY_INCREMENT	= 30L; // millis
+    private static final long SNAPSHOT_INTERVAL		= 60L; // seconds
+    private static final boolean USE_PROTOCOL_ENGINE	= false; // non-blocking NIO protocol engine
     
     //	Variable declaration
     
@@ -74,6 +86,11 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
     private String 						motionInMotion			= "120";    // seconds
     private String						motionStop				= "210";    // seconds
     private String 						motionDormant			= "1800";   // seconds
+    private File						eventLogDir				= null;		// durable event queue
+    private File						uploadDir				= null;		// server file uploads
+    private File						snapshotFile			= null;		// warm-restart state
+    private StateSnapshot				stateSnapshot			= null;
+    private long						lastSnapshotTimer		= 0L;
     //private TimeModules         		timeModules 			= null;
     //private long                		lastTimeEventTimer 		= 0L;
     
@@ -354,6 +371,30 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
 		this.motionDormant = motionDormant;
 	}
 
+	public File getEventLogDir() {
+		return eventLogDir;
+	}
+
+	public void setEventLogDir(File eventLogDir) {
+		this.eventLogDir = eventLogDir;
+	}
+
+	public File getUploadDir() {
+		return uploadDir;
+	}
+
+	public void setUploadDir(File uploadDir) {
+		this.uploadDir = uploadDir;
+	}
+
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
 	public AndroDMTP(AndroDMTPLocationListener locationListener){
         super();
         DMTP_Main = this;
@@ -506,26 +547,68 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
 
             //	Protocol handler init
             try{
-                this.protocol = Protocol.createInstance(new TransportImpl());
+                if (USE_PROTOCOL_ENGINE) {
+                    this.protocol = Protocol.createInstance(new NioTransport(), new ProtocolEngine());
+                    this.protocol.setSimplexTransport(new NioTransport());
+                } else {
+                    this.protocol = Protocol.createInstance(new TransportImpl());
+                    this.protocol.setSimplexTransport(new TransportImpl());
+                }
             }catch (Throwable th){
                 Log.error(LOG_NAME, "Protocol init error", th);
                 accessOK = false;
             }
 
+            //	Durable event queue (unsent events survive a service kill/reboot)
+            if (this.eventLogDir != null) {
+                try{
+                    this.protocol.getEventQueue().openEventLog(this.eventLogDir);
+                }catch (Throwable th){
+                    Log.error(LOG_NAME, "Event log init error", th);
+                }
+            }
+
+            //	Server file uploads
+            if ((this.protocol != null) && (this.uploadDir != null)) {
+                this.protocol.getFileUpload().setDirectory(this.uploadDir);
+            }
+
             //	GPS event module init
             try {
-                this.gpsModules = new GPSModules();
+                this.gpsModules = DmtpClientContext.getDefault().getGPSModules();
                 if (accessOK) {
                     PacketQueue pq = this.protocol.getEventQueue();
+                    MotionModule motion = new MotionModule(pq);
                     this.gpsModules.addModule(new OdometerModule(pq));
-                    this.gpsModules.addModule(new MotionModule(pq));
+                    this.gpsModules.addModule(motion);
                     // here other modules
+                    if (this.snapshotFile != null) {
+                        this.stateSnapshot = new StateSnapshot(this.snapshotFile);
+                        this.stateSnapshot.addClient(Accounting.getStateClient());
+                        this.stateSnapshot.addClient(Accounting.getDataBudgetStateClient());
+                        this.stateSnapshot.addClient(Accounting.getCatchupStateClient());
+                        this.stateSnapshot.addClient(motion);
+                        this.stateSnapshot.addClient(this.getGPSFixStateClient());
+                    }
                 }
             } catch (Throwable th) {
                 Log.error(LOG_NAME, "GPS modules init error", th);
                 accessOK = false;
             }
 
+            //	Warm-restart state (accounting, motion, last fix)
+            if (this.stateSnapshot != null) {
+                try{
+                    long startMS = DateTime.getCurrentTimeMillis();
+                    if (this.stateSnapshot.restore()) {
+                        Log.info(LOG_NAME, "State restored in " + (DateTime.getCurrentTimeMillis() - startMS) + " ms");
+                    }
+                    this.lastSnapshotTimer = DateTime.getTimerSec();
+                }catch (Throwable th){
+                    Log.error(LOG_NAME, "State restore error", th);
+                }
+            }
+
             // Time event module
             /*
 	            try{
@@ -586,6 +669,12 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
     //	Destroys application. During the process all properties saved into storage.
     public void destroyApp(){
         CThread.stopThreads();
+        if (this.stateSnapshot != null) {
+            this.stateSnapshot.save();
+        }
+        if (this.protocol != null) {
+            this.protocol.getEventQueue().closeEventLog();
+        }
         this.saveProps();
         Log.info(LOG_NAME, "Application DESTROYED");
     }
@@ -601,6 +690,21 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
         }
     }
     
+    //	Snapshot client for the last valid GPS fix
+    private StateSnapshot.Client getGPSFixStateClient(){
+        return new StateSnapshot.Client() {
+            public int getStateId() {
+                return StateSnapshot.STATE_GPS_FIX;
+            }
+            public void writeState(DataOutput out) throws IOException {
+                AndroDMTP.this.lastValidGPSFix.writeTo(out);
+            }
+            public void readState(DataInput in) throws IOException {
+                AndroDMTP.this.lastValidGPSFix.readFrom(in);
+            }
+        };
+    }
+    
     //	Restart application.
     public void restartApp(){
     	exitApp();
@@ -650,6 +754,12 @@ public class AndroDMTP implements Runnable, Props.SavePropsCallBack{
                 if (ENABLE_EVENTS) {
                     this.protocol.transport();
                 }
+
+                //	Periodic warm-restart snapshot
+                if ((this.stateSnapshot != null) && DateTime.isTimerExpired(this.lastSnapshotTimer, SNAPSHOT_INTERVAL)) {
+                    this.stateSnapshot.save();
+                    this.lastSnapshotTimer = DateTime.getTimerSec();
+                }
         
                 //	Short loop delay
                 try { Thread.sleep(this.loopDelayMS); } catch (Throwable t) {/*ignore*/}
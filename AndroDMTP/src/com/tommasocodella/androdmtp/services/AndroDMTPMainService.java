@@ -1,5 +1,7 @@
 package com.tommasocodella.androdmtp.services;
 
+import java.io.File;
+
 import com.tommasocodella.androdmtp.gps.AndroDMTPLocationListener;
 
 import android.app.Service;
@@ -162,6 +164,9 @@ public class AndroDMTPMainService extends Service {
         locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
                
         dmtp = AndroDMTP.getInstance((AndroDMTPLocationListener) locationListener);
+        dmtp.setEventLogDir(new File(getFilesDir(), "events"));
+        dmtp.setUploadDir(new File(getFilesDir(), "upload"));
+        dmtp.setSnapshotFile(new File(getFilesDir(), "state.snap"));
         
         androDMTPPersistentStorage = new PersistentStorage(getApplicationContext());		
 	}
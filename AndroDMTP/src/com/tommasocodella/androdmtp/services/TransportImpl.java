@@ -43,6 +43,7 @@ import com.tommasocodella.androdmtp.opendmtp.client.base.Protocol;
 import com.tommasocodella.androdmtp.opendmtp.client.base.Transport;
 import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
 import com.tommasocodella.androdmtp.opendmtp.util.Log;
+import com.tommasocodella.androdmtp.opendmtp.util.TimeoutException;
 
 /**
 * Manages the transport layer for the OpenDMTP protocol, handling both simplex and duplex
@@ -57,6 +58,8 @@ public class TransportImpl
 
     private static final String LOG_NAME = "XPORT";
 
+    public  static final int    DEFAULT_READ_TIMEOUT = 3000; // milliseconds
+
     // ----------------------------------------------------------------------------
 
     /**
@@ -168,6 +171,7 @@ public class TransportImpl
         private int             port = 0;
         private InputStream     input = null;
         private OutputStream    output = null;
+        private int             readTimeout = DEFAULT_READ_TIMEOUT;
         /*J2ME*
         private SocketConnection socket = null;
         /**/
@@ -219,7 +223,7 @@ public class TransportImpl
                 this.socket = new Socket(this.host, this.port);
                 this.input  = this.socket.getInputStream();
                 this.output = this.socket.getOutputStream();
-                this.socket.setSoTimeout(3000);
+                this.socket.setSoTimeout(this.readTimeout);
             } catch (UnknownHostException uhe) {
                 Log.error(LOG_NAME, "Unable to find host: " + this.host + ":" + this.port);
                 return false;
@@ -231,6 +235,22 @@ public class TransportImpl
             return true;
         }
         /**
+        * Sets the socket read timeout, effective immediately if the socket is open.
+        * @param timeoutMS the read timeout in milliseconds
+        */
+        public void setReadTimeout(int timeoutMS) {
+            this.readTimeout = timeoutMS;
+            /*J2SE*/
+            if (this.socket != null) {
+                try {
+                    this.socket.setSoTimeout(timeoutMS);
+                } catch (IOException ioe) {
+                    Log.error(LOG_NAME, "Unable to set read timeout", ioe);
+                }
+            }
+            /**/
+        }
+        /**
         * Accessor for InputStream field.
         * @return the InputStream
         * @throws IOException if unexpected IO error occurs.
@@ -260,7 +280,10 @@ public class TransportImpl
 
     private String                  host = null;
     private int                     port = 0;
+    private String                  serverHost = null;
+    private int                     serverPort = 0;
     private int                     xportType = Protocol.TRANSPORT_NONE;
+    private int                     readTimeout = DEFAULT_READ_TIMEOUT;
     
     private SocketWrapper           socket = null;
     private DatagramWrapper         datagram = null;
@@ -284,10 +307,33 @@ public class TransportImpl
     {
         return (this.xportType != Protocol.TRANSPORT_NONE);
     }
+
+    /**
+    * Sets the server to which the transport connects when it is next opened.
+    * @param host The server host, or null to use the host:port specified in the client properties
+    * @param port The server port
+    */
+    public void setServer(String host, int port)
+    {
+        this.serverHost = host;
+        this.serverPort = port;
+    }
+    
+    /**
+    * Sets the duplex socket read timeout, effective immediately if the socket is open.
+    * @param timeoutMS the read timeout in milliseconds
+    */
+    public void setReadTimeout(int timeoutMS)
+    {
+        this.readTimeout = timeoutMS;
+        if (this.socket != null) {
+            this.socket.setReadTimeout(timeoutMS);
+        }
+    }
     
     /**
     * Opens a connection of the specified transport type to the hostname and port
-    * specified by the user in the client properties. Logs errors on failure.
+    * specified by 'setServer', or by the user in the client properties. Logs errors on failure.
     * @param xportType type of transport to be opened, see Protocol constants.
     * @return true if connection could be established, false otherwise.
     * @see org.opendmtp.j2me.client.base.Protocol
@@ -304,14 +350,18 @@ public class TransportImpl
         }
 
         /* get host:port */
-        this.host = Props.getString(Props.PROP_COMM_DMTP_HOST, "");
-        this.port = (int)Props.getLong(Props.PROP_COMM_DMTP_PORT, 0, 0L);
+        if (this.serverHost != null) {
+            this.host = this.serverHost;
+            this.port = this.serverPort;
+        } else {
+            this.host = Props.getString(Props.PROP_COMM_DMTP_HOST, "");
+            this.port = (int)Props.getLong(Props.PROP_COMM_DMTP_PORT, 0, 0L);
+        }
         Log.info(LOG_NAME, "Connecting to: " + this.host + ":" + this.port);
         if ((this.host == null) || this.host.equals("") || (this.port <= 0)) {
             Log.warn(LOG_NAME, "TransportImpl.open: host/port not specified ...");
             // If we don't have a valid host:port, this problem will likely not be fixed 
-            // soon, so go ahead and sleep awhile.
-            try { Thread.sleep(30000L); } catch (Throwable t) {}
+            // soon.  The Protocol retry backoff will delay the next attempt.
             return false;
         }
         Log.info(LOG_NAME, "TransportImpl.open: host=" + this.host + " port=" + this.port);
@@ -326,6 +376,7 @@ public class TransportImpl
                 break;
             case Protocol.TRANSPORT_DUPLEX:
                 this.socket = new SocketWrapper(this.host, this.port);
+                this.socket.setReadTimeout(this.readTimeout);
                 if (!this.socket.open()) {
                     return false;
                 }
@@ -388,9 +439,11 @@ public class TransportImpl
     * to simplex connections or closed connections.
     * @return the payload of the packet, or null if there was an error receiving or decoding
     * it.
+    * @throws TimeoutException if no packet was received within the socket read timeout.
     * @see org.opendmtp.j2me.client.base.Transport#readPacket()
     */
     public byte[] readPacket()
+        throws TimeoutException
     {
         
         /* open? */
@@ -414,7 +467,12 @@ public class TransportImpl
             int rlen = 0;
     
             /* read encoding indicator */
-            rlen = input.read(pkt, 0, 1);
+            try {
+                rlen = input.read(pkt, 0, 1);
+            } catch (InterruptedIOException iioe) { // SocketTimeoutException
+                // nothing received yet, the connection may still be usable
+                throw new TimeoutException("Read timeout");
+            }
             if (rlen != 1) {
                 Log.error(LOG_NAME, "Unable to read encoding character");
                 return null;
@@ -460,6 +518,8 @@ public class TransportImpl
             System.arraycopy(pkt, 0, p, 0, p.length);
             return p;
             
+        } catch (TimeoutException te) {
+            throw te;
         } catch (InterruptedIOException ee) { // SocketTimeoutException ee)
             Log.error(LOG_NAME, "Timeout");
             return null;
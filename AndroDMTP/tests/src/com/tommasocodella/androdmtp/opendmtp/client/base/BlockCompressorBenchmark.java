@@ -0,0 +1,105 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Benchmark of duplex block compression: the compression ratio (including
+//  the headers of the PKT_CLIENT_DEFLATE_DATA packets) and the CPU time of
+//  the client (compression) and of the reference Decoder, per event, for
+//  blocks of standard event packets at several block sizes and levels.
+//  Usage: BlockCompressorBenchmark [blocks]   (default 2000)
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.Vector;
+
+public class BlockCompressorBenchmark
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    BLOCK_EVENTS[]  = { 8, 32, 64 };
+    private static final int    LEVELS[]        = { 1, 6, 9 };
+
+    private static ThreadMXBean threadBean      = ManagementFactory.getThreadMXBean();
+
+    /**
+    * Compresses and decodes the specified blocks, and prints the results
+    */
+    private static void _bench(byte blocks[][][], int level, boolean print)
+        throws Exception
+    {
+        long input = 0L, output = 0L, events = 0L;
+        Vector compressed[] = new Vector[blocks.length];
+        long startNS = threadBean.getCurrentThreadCpuTime();
+        for (int b = 0; b < blocks.length; b++) {
+            compressed[b] = BlockCompressorTest.compress(blocks[b], level);
+        }
+        long deflateNS = threadBean.getCurrentThreadCpuTime() - startNS;
+        BlockCompressor.Decoder decoder = new BlockCompressor.Decoder();
+        startNS = threadBean.getCurrentThreadCpuTime();
+        for (int b = 0; b < blocks.length; b++) {
+            for (int i = 0; i < compressed[b].size(); i++) {
+                decoder.inflate((byte[])compressed[b].elementAt(i));
+            }
+        }
+        long inflateNS = threadBean.getCurrentThreadCpuTime() - startNS;
+        for (int b = 0; b < blocks.length; b++) {
+            for (int i = 0; i < blocks[b].length; i++) {
+                input += blocks[b][i].length;
+            }
+            for (int i = 0; i < compressed[b].size(); i++) {
+                output += ((byte[])compressed[b].elementAt(i)).length + Packet.MIN_HEADER_LENGTH;
+            }
+            events += blocks[b].length;
+        }
+        if (print) {
+            System.out.println("level " + level + ", " + blocks[0].length + " events/block: " +
+                (input / events) + " -> " + ((double)((output * 100L) / events) / 100.0) + " bytes/event (" +
+                ((output * 100L) / input) + "%), deflate " + (deflateNS / events) + " ns/event, inflate " +
+                (inflateNS / events) + " ns/event");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+        throws Exception
+    {
+        int count = (argv.length > 0)? Integer.parseInt(argv[0]) : 2000;
+        DmtpClientContext prior = new DmtpClientContext("deflate_" + System.nanoTime(), null).enter();
+        try {
+            Random random = new Random(0x44454649L);
+            for (int e = 0; e < BLOCK_EVENTS.length; e++) {
+                byte blocks[][][] = new byte[count][][];
+                for (int b = 0; b < count; b++) {
+                    blocks[b] = BlockCompressorTest.eventPackets(random, BLOCK_EVENTS[e], b * BLOCK_EVENTS[e]);
+                }
+                _bench(blocks, 6, false); // warm up
+                for (int l = 0; l < LEVELS.length; l++) {
+                    _bench(blocks, LEVELS[l], true);
+                }
+            }
+        } finally {
+            DmtpClientContext.exit(prior);
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Round-trip tests of the compressed duplex blocks.  Blocks are compressed
+//  as the Protocol compresses them (a PKT_CLIENT_DEFLATE_DATA payload as soon
+//  as one is full, the remainder at the end of the block), and the payloads
+//  of consecutive blocks are passed to a single reference Decoder one at a
+//  time.  Each block must decode to its packets byte for byte, including
+//  blocks which span many payloads.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.Vector;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoEvent;
+
+import junit.framework.TestCase;
+
+public class BlockCompressorTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private DmtpClientContext   prior   = null;
+    private Random              random  = new Random(0x44454649L);
+
+    protected void setUp()
+    {
+        this.prior = new DmtpClientContext("deflate_" + System.nanoTime(), null).enter();
+    }
+
+    protected void tearDown()
+    {
+        DmtpClientContext.exit(this.prior);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the binary encoded standard event packets of a trace (1 s fixes along a road)
+    */
+    static byte[][] eventPackets(Random random, int count, int first)
+    {
+        byte pkts[][] = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int n = first + i;
+            GeoEvent ev = new GeoEvent();
+            ev.setStatusCode(((n % 30) == 0)? 0xF112 : 0xF020);
+            ev.setTimestamp(1220000000L + n);
+            ev.setLatitude(39.1234 + (n * 0.00012) + (random.nextInt(5) * 0.000001));
+            ev.setLongitude(-142.5678 + (n * 0.00007));
+            ev.setSpeedKPH(40.0 + random.nextInt(20));
+            ev.setHeading(30.0 + random.nextInt(4));
+            ev.setAltitude(120.0 + random.nextInt(3));
+            ev.setOdometerKM(1200.0 + (n * 0.015));
+            pkts[i] = Packet.createClientEventPacket(ev, null).encode(Encoding.ENCODING_BINARY);
+        }
+        return pkts;
+    }
+
+    /**
+    * Returns the binary encoded packets of a block which does not compress (random payloads)
+    */
+    private byte[][] _randomPackets(int count)
+    {
+        byte pkts[][] = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte payload[] = new byte[200];
+            this.random.nextBytes(payload);
+            pkts[i] = Packet.createClientPacket(Packet.PKT_CLIENT_PROPERTY_VALUE, payload).encode(Encoding.ENCODING_BINARY);
+        }
+        return pkts;
+    }
+
+    /**
+    * Compresses a block as the Protocol does, and returns the PKT_CLIENT_DEFLATE_DATA payloads
+    */
+    static Vector compress(byte pkts[][], int level)
+    {
+        Vector payloads = new Vector();
+        BlockCompressor bc = new BlockCompressor(level);
+        for (int i = 0; i < pkts.length; i++) {
+            bc.write(pkts[i]);
+            for (byte p[] = bc.getPayload(false); p != null; p = bc.getPayload(false)) {
+                payloads.addElement(p);
+            }
+        }
+        bc.finish();
+        for (byte p[] = bc.getPayload(true); p != null; p = bc.getPayload(true)) {
+            payloads.addElement(p);
+        }
+        return payloads;
+    }
+
+    private static byte[] _concat(byte pkts[][])
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < pkts.length; i++) {
+            out.write(pkts[i], 0, pkts[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void _assertBytes(String msg, byte expect[], byte actual[])
+    {
+        assertEquals(msg + " length", expect.length, actual.length);
+        for (int i = 0; i < expect.length; i++) {
+            if (expect[i] != actual[i]) {
+                fail(msg + " differs at " + i);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testDecoderRoundTrip()
+        throws Exception
+    {
+        // consecutive blocks of events, and of incompressible packets, through one decoder
+        int sizes[] = { 1, 8, 64, 200, -10, 32, -40, 8 }; // <0 == random packets
+        BlockCompressor.Decoder decoder = new BlockCompressor.Decoder();
+        int multi = 0;
+        for (int b = 0; b < sizes.length; b++) {
+            byte pkts[][] = (sizes[b] > 0)? eventPackets(this.random, sizes[b], b * 1000) : this._randomPackets(-sizes[b]);
+            byte input[] = _concat(pkts);
+            Vector payloads = compress(pkts, 6);
+            String msg = "block " + b + " [" + sizes[b] + "]";
+            assertTrue(msg + " payloads", payloads.size() > 0);
+            if (payloads.size() > 1) {
+                multi++;
+            }
+
+            /* each payload is decoded as it arrives, the block ends with its last payload */
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < payloads.size(); i++) {
+                byte p[] = (byte[])payloads.elementAt(i);
+                if (i < (payloads.size() - 1)) {
+                    assertEquals(msg + " payload length", Packet.MAX_PAYLOAD_LENGTH, p.length);
+                } else {
+                    assertTrue(msg + " payload length", p.length <= Packet.MAX_PAYLOAD_LENGTH);
+                }
+                byte d[] = decoder.inflate(p);
+                out.write(d, 0, d.length);
+            }
+            _assertBytes(msg, input, out.toByteArray());
+        }
+        assertTrue("multi-payload blocks", multi >= 3);
+    }
+
+    public void testEventBlockRatio()
+        throws Exception
+    {
+        byte pkts[][] = eventPackets(this.random, 64, 0);
+        int input = _concat(pkts).length;
+        Vector payloads = compress(pkts, 6);
+        int output = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            output += ((byte[])payloads.elementAt(i)).length + Packet.MIN_HEADER_LENGTH;
+        }
+        // less than 60% (including the headers of the PKT_CLIENT_DEFLATE_DATA packets)
+        assertTrue("ratio " + output + "/" + input, (output * 10) < (input * 6));
+    }
+
+}
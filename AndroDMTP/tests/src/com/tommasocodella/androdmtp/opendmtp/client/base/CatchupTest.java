@@ -0,0 +1,108 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Bulk backlog catch-up of a large event queue against a local stand-in
+//  server which grants the largest block size, and acknowledges each block
+//  by the (1 byte) sequence number of its last event.  Every event must be
+//  received exactly once, and in order.  The wall time is reported.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import junit.framework.TestCase;
+
+public class CatchupTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    BACKLOG_EVENTS  = 50000;
+    private static final long   TIMEOUT_MS      = 120000L;
+
+    private StandInServer       server          = null;
+    private StandInClient       client          = null;
+
+    protected void setUp()
+        throws Exception
+    {
+        this.server = new StandInServer(0L);
+        this.client = new StandInClient("catchup", this.server, false);
+        Props.setLong(Props.PROP_COMM_CATCHUP, 0, 10000L); // backlog
+        Props.setLong(Props.PROP_COMM_CATCHUP, 1, 1024L);  // block events
+        Props.setLong(Props.PROP_COMM_CATCHUP, 2, 4L);     // window
+        Props.setLong(Props.PROP_COMM_QUEUE_LIMITS, 0, 0L);
+        Props.setLong(Props.PROP_COMM_QUEUE_LIMITS, 1, 0L);
+        this.client.getEventQueue().setLimits(0, 0L, PacketQueue.OVERFLOW_COALESCE);
+    }
+
+    protected void tearDown()
+    {
+        this.client.stop();
+        this.server.close();
+    }
+
+    /**
+    * Waits until the queue is empty (the last events may reach the server before the
+    * client has handled the acknowledgement)
+    */
+    private static boolean _waitForEmpty(PacketQueue q, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        while (!q.isEmpty() && (System.currentTimeMillis() < until)) {
+            Thread.sleep(10L);
+        }
+        return q.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testCatchupBacklog()
+        throws Exception
+    {
+        this.server.setCatchupAccept(1024, 4);
+        this.server.setAckSequence(true);
+        PacketQueue q = this.client.getEventQueue();
+        for (int i = 0; i < BACKLOG_EVENTS; i++) {
+            q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.00001), -142.0));
+        }
+        assertEquals("queued", BACKLOG_EVENTS, q.getQueueSize());
+
+        long startNanos = System.nanoTime();
+        this.client.start();
+        assertTrue("timeout", this.server.waitForEvents(BACKLOG_EVENTS, TIMEOUT_MS));
+        long wallNanos = System.nanoTime() - startNanos;
+        assertTrue("not acknowledged", _waitForEmpty(q, TIMEOUT_MS));
+
+        /* each event once (an event resent after a partial acknowledgement is received twice) */
+        StandInServer.Received r[] = this.server.getReceived();
+        assertEquals("received", BACKLOG_EVENTS, r.length);
+        for (int i = 0; i < r.length; i++) {
+            assertEquals("order", i, r[i].id);
+        }
+        assertEquals("catch-up sessions", 1L, Props.getLong(Props.PROP_STATE_CATCHUP, 0, 0L));
+        assertEquals("catch-up events", (long)BACKLOG_EVENTS, Props.getLong(Props.PROP_STATE_CATCHUP, 1, 0L));
+
+        double wallSec = (double)wallNanos / 1.0E9;
+        System.out.println("Catch-up: " + BACKLOG_EVENTS + " events in " + (long)(wallSec * 1000.0) + " ms (" +
+            (long)(BACKLOG_EVENTS / wallSec) + " events/s), " + this.server.getSessionCount() + " sessions");
+
+    }
+
+}
@@ -0,0 +1,107 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Backlog upload throughput of pipelined duplex sessions on a high latency
+//  link: a local stand-in server delays every response by a 600 ms round
+//  trip, and the same backlog is sent without a transmit window (one round
+//  trip per block) and with a window of 4 blocks (PROP_COMM_DUPLEX_WINDOW).
+//  Every event must be received once, in order, and the throughput of both
+//  runs is reported.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import junit.framework.TestCase;
+
+public class DuplexWindowTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final long   RTT_MS          = 600L;
+    private static final int    BACKLOG_EVENTS  = 320;
+    private static final int    BLOCK_EVENTS    = 32;
+    private static final int    WINDOW          = 4;
+    private static final long   TIMEOUT_MS      = 60000L;
+
+    /**
+    * Waits until the queue is empty (the last events may reach the server before the
+    * client has handled the acknowledgement)
+    */
+    private static boolean _waitForEmpty(PacketQueue q, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        while (!q.isEmpty() && (System.currentTimeMillis() < until)) {
+            Thread.sleep(10L);
+        }
+        return q.isEmpty();
+    }
+
+    /**
+    * Sends the backlog with the specified transmit window
+    * @return The throughput (events per second)
+    */
+    private static double _sendBacklog(int window)
+        throws Exception
+    {
+        StandInServer server = new StandInServer(RTT_MS);
+        StandInClient client = new StandInClient("window", server, false);
+        try {
+            Props.setLong(Props.PROP_COMM_MAX_DUP_EVENTS, 0, BLOCK_EVENTS);
+            Props.setLong(Props.PROP_COMM_DUPLEX_WINDOW , 0, window);
+            PacketQueue q = client.getEventQueue();
+            for (int i = 0; i < BACKLOG_EVENTS; i++) {
+                q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0));
+            }
+
+            long startNanos = System.nanoTime();
+            client.start();
+            assertTrue("timeout", server.waitForEvents(BACKLOG_EVENTS, TIMEOUT_MS));
+            assertTrue("not acknowledged", _waitForEmpty(q, TIMEOUT_MS));
+            double wallSec = (double)(System.nanoTime() - startNanos) / 1.0E9;
+
+            StandInServer.Received r[] = server.getReceived();
+            assertEquals("received", BACKLOG_EVENTS, r.length);
+            for (int i = 0; i < r.length; i++) {
+                assertEquals("order", i, r[i].id);
+            }
+            assertEquals("sessions", 1, server.getSessionCount());
+            double rate = BACKLOG_EVENTS / wallSec;
+            System.out.println("Window " + window + ": " + BACKLOG_EVENTS + " events in " + (long)(wallSec * 1000.0) +
+                " ms at " + RTT_MS + " ms RTT (" + (long)rate + " events/s, " + server.getBlockCount() + " blocks)");
+            return rate;
+        } finally {
+            client.stop();
+            server.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testWindowThroughput()
+        throws Exception
+    {
+        double serial    = _sendBacklog(1);
+        double pipelined = _sendBacklog(WINDOW);
+        System.out.println("Window " + WINDOW + " speed-up: " + ((long)((pipelined / serial) * 10.0) / 10.0) + "x");
+        assertTrue("speed-up " + (pipelined / serial), pipelined > (serial * 2.0));
+    }
+
+}
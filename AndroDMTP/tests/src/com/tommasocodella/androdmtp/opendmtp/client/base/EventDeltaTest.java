@@ -0,0 +1,231 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Round-trip tests of delta encoded event packets (PKT_CLIENT_DELTA_FMT_STD).
+//  Random event traces are packed as '_sendQueue' packs them, and each packet
+//  is decoded on its own: the first record must be the absolute record of its
+//  event, and every event must decode to its original record byte for byte,
+//  including fields which wrap (speed, heading, sequence) and changes which
+//  do not fit in a delta record (which must start a new packet).
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class EventDeltaTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    ROUNDS          = 200;
+    private static final int    EVENTS          = 500;
+
+    private Random  random  = new Random(0x44454C54L);
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns a standard fixed format record (see 'EventDelta')
+    */
+    private static byte[] _record(int status, long time, long lat, long lon, int speed, int heading,
+        int alt, long odom, int seq)
+    {
+        byte rec[] = new byte[EventDelta.RECORD_LENGTH];
+        _set(rec,  0, 2, status);
+        _set(rec,  2, 4, time);
+        _set(rec,  6, 3, lat);
+        _set(rec,  9, 3, lon);
+        _set(rec, 12, 1, speed);
+        _set(rec, 13, 1, heading);
+        _set(rec, 14, 2, alt);
+        _set(rec, 16, 3, odom);
+        _set(rec, 19, 1, seq);
+        return rec;
+    }
+
+    private static void _set(byte b[], int ofs, int len, long v)
+    {
+        for (int i = len - 1; i >= 0; i--) {
+            b[ofs + i] = (byte)v;
+            v >>= 8;
+        }
+    }
+
+    private static Packet _packet(byte rec[])
+    {
+        return new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, rec);
+    }
+
+    /**
+    * Returns a random trace.  Most changes fit in a delta record, some do not (long gaps,
+    * large moves, altitude jumps), and speed, heading, sequence, latitude and time wrap.
+    */
+    private byte[][] _trace(int count)
+    {
+        byte trace[][] = new byte[count][];
+        long time    = 0xFFFFFFFFL - this.random.nextInt(2000);     // wraps
+        long lat     = 0xFFFFFFL - this.random.nextInt(5000);       // wraps
+        long lon     = this.random.nextInt(0x1000000);
+        int  speed   = this.random.nextInt(256);
+        int  heading = this.random.nextInt(256);
+        int  alt     = this.random.nextInt(65536) - 32768;
+        long odom    = this.random.nextInt(0x1000000);
+        for (int i = 0; i < count; i++) {
+            int r = this.random.nextInt(100);
+            time    += (r < 3)? 256 + this.random.nextInt(3600) : this.random.nextInt(60);
+            lat     += (r == 3)? 1000 : this.random.nextInt(255) - 127;
+            lon     += (r == 4)? -1000 : this.random.nextInt(255) - 127;
+            speed   += this.random.nextInt(256);                   // any change fits (modulo 256)
+            heading += this.random.nextInt(256);
+            alt     += (r == 5)? 500 : this.random.nextInt(255) - 127;
+            odom    += (r == 6)? 256 : this.random.nextInt(4);
+            trace[i] = _record(0xF000 + this.random.nextInt(4), time, lat, lon, speed, heading,
+                (short)alt, odom, i);
+        }
+        return trace;
+    }
+
+    /**
+    * Decodes a delta event packet on its own
+    * @return The decoded records
+    */
+    private static byte[][] _decode(Packet pkt)
+    {
+        assertEquals("packet type", Packet.PKT_CLIENT_DELTA_FMT_STD, pkt.getPacketType());
+        byte p[] = pkt.getPayload(true).getBytes();
+        assertTrue("payload length " + p.length, p.length <= Packet.MAX_PAYLOAD_LENGTH);
+        assertEquals("delta records", 0, (p.length - EventDelta.RECORD_LENGTH) % EventDelta.DELTA_LENGTH);
+        byte recs[][] = new byte[1 + ((p.length - EventDelta.RECORD_LENGTH) / EventDelta.DELTA_LENGTH)][];
+        recs[0] = new byte[EventDelta.RECORD_LENGTH];
+        System.arraycopy(p, 0, recs[0], 0, recs[0].length);
+        for (int i = 1, ofs = EventDelta.RECORD_LENGTH; i < recs.length; i++, ofs += EventDelta.DELTA_LENGTH) {
+            byte d[] = new byte[EventDelta.DELTA_LENGTH];
+            System.arraycopy(p, ofs, d, 0, d.length);
+            recs[i] = EventDelta.decode(recs[i - 1], d);
+            assertNotNull("decode", recs[i]);
+        }
+        return recs;
+    }
+
+    private static void _assertRecord(String msg, byte expect[], byte actual[])
+    {
+        assertEquals(msg + " length", expect.length, actual.length);
+        for (int i = 0; i < expect.length; i++) {
+            assertEquals(msg + " byte " + i, expect[i], actual[i]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testRandomRoundTrip()
+    {
+        long events = 0L, packets = 0L, deltas = 0L, bytes = 0L;
+        for (int round = 0; round < ROUNDS; round++) {
+            byte trace[][] = this._trace(EVENTS);
+
+            /* pack as '_sendQueue' does: until a record does not fit, or is not representable */
+            Packet packed[] = new Packet[EVENTS];
+            for (int e = 0; e < trace.length;) {
+                Packet prev = null;
+                int count = 0, length = 0;
+                for (; e < trace.length; e++) {
+                    Packet pkt = _packet(trace[e]);
+                    int recLen = Packet.GetPackedRecordLength(prev, pkt, true);
+                    if ((recLen < 0) || ((length + recLen) > Packet.MAX_PAYLOAD_LENGTH)) {
+                        break;
+                    }
+                    packed[count++] = pkt;
+                    length += recLen;
+                    prev = pkt;
+                }
+                assertTrue("empty packet", count > 0);
+
+                /* each packet decodes on its own, starting with an absolute record */
+                int first = e - count;
+                byte recs[][] = _decode(Packet.createClientPackedPacket(packed, count, true));
+                String msg = "round " + round + ", event " + first;
+                assertEquals(msg + " events", count, recs.length);
+                _assertRecord(msg + " keyframe", trace[first], recs[0]);
+                for (int i = 1; i < recs.length; i++) {
+                    _assertRecord(msg + " + " + i, trace[first + i], recs[i]);
+                }
+
+                /* the packet ended because the next record did not fit, or was not representable */
+                if (e < trace.length) {
+                    boolean full = (length + EventDelta.DELTA_LENGTH) > Packet.MAX_PAYLOAD_LENGTH;
+                    assertTrue(msg + " ended early", full || (EventDelta.encode(trace[e - 1], trace[e]) == null));
+                }
+                events  += count;
+                packets += 1L;
+                deltas  += count - 1;
+                bytes   += length;
+            }
+        }
+        assertEquals("events", (long)ROUNDS * EVENTS, events);
+        assertTrue("keyframes only", deltas > (events / 2L));
+        System.out.println("Delta round trip: " + events + " events, " + packets + " packets, " +
+            ((double)bytes / (double)events) + " payload bytes/event");
+    }
+
+    public void testFieldWrap()
+    {
+        // speed, heading and sequence wrap modulo 256, altitude decreases
+        byte a[] = _record(0xF020, 1000L, 0x123456L, 0x654321L, 250, 253, -5, 77L, 255);
+        byte b[] = _record(0xF020, 1255L, 0x123456L + 127L, 0x654321L - 128L, 4, 2, -133, 77L + 255L, 0);
+        byte d[] = EventDelta.encode(a, b);
+        assertNotNull("representable", d);
+        assertEquals("delta length", EventDelta.DELTA_LENGTH, d.length);
+        _assertRecord("wrapped", b, EventDelta.decode(a, d));
+
+        /* changes which do not fit in a delta record */
+        assertNull("time", EventDelta.encode(a, _record(0xF020, 1256L, 0x123456L, 0x654321L, 250, 253, -5, 77L, 0)));
+        assertNull("time backwards", EventDelta.encode(a, _record(0xF020, 999L, 0x123456L, 0x654321L, 250, 253, -5, 77L, 0)));
+        assertNull("latitude", EventDelta.encode(a, _record(0xF020, 1000L, 0x123456L + 128L, 0x654321L, 250, 253, -5, 77L, 0)));
+        assertNull("longitude", EventDelta.encode(a, _record(0xF020, 1000L, 0x123456L, 0x654321L - 129L, 250, 253, -5, 77L, 0)));
+        assertNull("altitude", EventDelta.encode(a, _record(0xF020, 1000L, 0x123456L, 0x654321L, 250, 253, 123, 77L, 0)));
+        assertNull("odometer", EventDelta.encode(a, _record(0xF020, 1000L, 0x123456L, 0x654321L, 250, 253, -5, 76L, 0)));
+
+        /* a timestamp or latitude which wraps around the field starts a new keyframe */
+        byte c[] = _record(0xF020, 0xFFFFFFF0L, 0xFFFFF0L, 0x000010L, 0, 0, 0, 0L, 0);
+        assertNull("time wrap", EventDelta.encode(c, _record(0xF020, 0x00000005L, 0xFFFFF0L, 0x000010L, 0, 0, 0, 0L, 1)));
+        assertNull("latitude wrap", EventDelta.encode(c, _record(0xF020, 0xFFFFFFF1L, 0x000005L, 0x000010L, 0, 0, 0, 0L, 1)));
+    }
+
+    public void testFirstEventIsAbsolute()
+    {
+        // the first event of every packet is the absolute record, whatever the previous packet
+        byte a[] = _record(0xF020, 5000L, 0x200000L, 0x300000L, 60, 10, 100, 1000L, 7);
+        byte b[] = _record(0xF020, 5001L, 0x200001L, 0x300001L, 61, 11, 101, 1000L, 8);
+        Packet single[] = new Packet[] { _packet(b) };
+        byte recs[][] = _decode(Packet.createClientPackedPacket(single, 1, true));
+        assertEquals("events", 1, recs.length);
+        _assertRecord("absolute", b, recs[0]);
+
+        Packet pair[] = new Packet[] { _packet(a), _packet(b) };
+        Packet pkt = Packet.createClientPackedPacket(pair, 2, true);
+        assertEquals("payload", EventDelta.RECORD_LENGTH + EventDelta.DELTA_LENGTH, pkt.getPayload(true).getBytes().length);
+        recs = _decode(pkt);
+        _assertRecord("keyframe", a, recs[0]);
+        _assertRecord("delta", b, recs[1]);
+    }
+
+}
@@ -0,0 +1,327 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Crash-recovery tests for the EventLog.  Segment and head files are
+//  truncated at random offsets (the unwritten part reads back as zeros once
+//  the file is mapped again), and the recovered records must always be an
+//  intact, contiguous run of the records which were written.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+public class EventLogRecoveryTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final long   NEW_SEQUENCE    = 1000000L; // sequence of records added after recovery
+    private static final int    ROUNDS          = 40;
+    private static final int    RECORD_HEADER   = 28;       // EventLog record header size
+
+    private File    logDir  = null;
+    private Random  random  = new Random(0x444D5450L);
+
+    protected void setUp()
+        throws Exception
+    {
+        this.logDir = new File(System.getProperty("java.io.tmpdir"), "evlogtest_" + System.nanoTime());
+        this.logDir.mkdirs();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _delete(this.logDir);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the payload length of the test record with the specified sequence
+    */
+    private static int _payloadLength(long seq)
+    {
+        return 8 + (int)(seq % 40L);
+    }
+
+    /**
+    * Creates the test record with the specified sequence.  Payload bytes are never zero,
+    * so that a truncated payload does not read back as the original payload.
+    */
+    private static Packet _packet(long seq)
+    {
+        byte payload[] = new byte[_payloadLength(seq)];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)(1 + ((seq + i) % 255L));
+        }
+        Packet pkt = new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, payload);
+        pkt.setPriority(Packet.PRIORITY_LOW + (int)(seq % 3L));
+        pkt.setEventSequence(seq);
+        return pkt;
+    }
+
+    /**
+    * Asserts that the recovered packet is the intact test record with the specified sequence
+    */
+    private static void _assertRecord(Packet pkt, long seq)
+    {
+        assertEquals("sequence", seq, pkt.getEventSequence());
+        assertEquals("priority", Packet.PRIORITY_LOW + (int)(seq % 3L), pkt.getPriority());
+        assertEquals("type", Packet.PKT_CLIENT_FIXED_FMT_STD, pkt.getPacketType());
+        byte payload[] = pkt.getPayload(false).getBytes();
+        assertEquals("payload length", _payloadLength(seq), payload.length);
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals("payload", (byte)(1 + ((seq + i) % 255L)), payload[i]);
+        }
+    }
+
+    /**
+    * Appends the test records 'first' through 'first + count - 1'
+    */
+    private static void _append(EventLog log, long first, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            assertTrue("append", log.append(_packet(first + i)) >= 0L);
+        }
+    }
+
+    /**
+    * Opens the log and returns the recovered packets
+    */
+    private Vector _recover(EventLog log)
+    {
+        Vector recovered = new Vector();
+        assertTrue("open", log.open(recovered));
+        return recovered;
+    }
+
+    private File _segmentFile(long id)
+    {
+        return new File(this.logDir, "evlog_" + Long.toHexString(id) + ".seg");
+    }
+
+    private static void _truncate(File file, long length)
+        throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void _delete(File file)
+    {
+        File list[] = file.listFiles();
+        for (int i = 0; (list != null) && (i < list.length); i++) {
+            _delete(list[i]);
+        }
+        file.delete();
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testRecoverAfterClose()
+    {
+        EventLog log = new EventLog(this.logDir);
+        this._recover(log);
+        _append(log, 0L, 3000);
+        for (int i = 0; i < 500; i++) {
+            log.release(i);
+        }
+        log.close();
+
+        Vector recovered = this._recover(new EventLog(this.logDir));
+        assertEquals("recovered", 2500, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            _assertRecord((Packet)recovered.elementAt(i), 500L + i);
+            assertEquals("log position", 500L + i, ((Packet)recovered.elementAt(i)).getLogPosition());
+        }
+    }
+
+    public void testRecoverWithoutClose()
+    {
+        // the process is killed: nothing is synced or closed
+        EventLog log = new EventLog(this.logDir);
+        this._recover(log);
+        _append(log, 0L, 1500);
+        log.release(0L);
+
+        Vector recovered = this._recover(new EventLog(this.logDir));
+        assertEquals("recovered", 1499, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            _assertRecord((Packet)recovered.elementAt(i), 1L + i);
+        }
+    }
+
+    public void testRecoverDelivered()
+    {
+        // events acknowledged by one of two required destinations must not be sent to it
+        // again after a restart
+        PacketQueue q = new PacketQueue();
+        assertTrue("open", q.openEventLog(this.logDir));
+        q.setDeliveryMask(0x03);
+        for (int i = 0; i < 300; i++) {
+            q.addPacket(_packet(i));
+        }
+        q.setDestination(0);
+        for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+            q.markSentBlock(pri, 50, 1);
+        }
+        assertEquals("acknowledged", 150, q.deleteToSequence(Packet.SEQUENCE_ALL));
+        q.setDestination(-1);
+        q.closeEventLog();
+
+        Vector recovered = this._recover(new EventLog(this.logDir));
+        assertEquals("recovered", 300, recovered.size());
+        int delivered = 0;
+        for (int i = 0; i < recovered.size(); i++) {
+            Packet pkt = (Packet)recovered.elementAt(i);
+            _assertRecord(pkt, i);
+            if (pkt.getDelivered() != 0) {
+                assertEquals("delivered", 0x01, pkt.getDelivered());
+                delivered++;
+            }
+        }
+        assertEquals("delivered", 150, delivered);
+
+        /* the recovered queue still owes all events to destination 1 only */
+        q = new PacketQueue();
+        assertTrue("reopen", q.openEventLog(this.logDir));
+        q.setDeliveryMask(0x03);
+        assertEquals("queued", 300L, q.getQueueSize());
+        assertTrue(q.hasPendingPackets(0));
+        q.setDestination(0);
+        int pending = 0;
+        for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+            pending += q.markSentBlock(pri, 300, 1).length;
+        }
+        assertEquals("pending for destination 0", 150, pending);
+        q.setDestination(1);
+        assertTrue(q.hasPendingPackets(1));
+        q.setDestination(-1);
+        q.closeEventLog();
+    }
+
+    public void testTruncateSegmentAtRandomOffsets()
+        throws Exception
+    {
+        for (int round = 0; round < ROUNDS; round++) {
+            _delete(this.logDir);
+            this.logDir.mkdirs();
+
+            /* write a backlog spanning a random number of segments */
+            int written = 1 + this.random.nextInt(3 * EventLog.SLOTS_PER_SEGMENT);
+            EventLog log = new EventLog(this.logDir);
+            this._recover(log);
+            _append(log, 0L, written);
+            log.close();
+
+            /* truncate a random segment at a random offset */
+            int lastSegId = (written - 1) / EventLog.SLOTS_PER_SEGMENT;
+            int segId = this.random.nextInt(lastSegId + 1);
+            int offset = this.random.nextInt(EventLog.SEGMENT_SIZE + 1);
+            _truncate(this._segmentFile(segId), offset);
+
+            /* records entirely before the offset must survive, at most one more may */
+            int intact = segId * EventLog.SLOTS_PER_SEGMENT;
+            for (int slot = 0; (slot < EventLog.SLOTS_PER_SEGMENT) && (intact < written); slot++, intact++) {
+                int end = (slot * EventLog.SLOT_SIZE) + RECORD_HEADER + _payloadLength(intact);
+                if (end > offset) { break; }
+            }
+            Vector recovered = this._recover(log = new EventLog(this.logDir));
+            String msg = "round " + round + " [written=" + written + ", seg=" + segId + ", offset=" + offset + "]";
+            assertTrue(msg + " lost " + (intact - recovered.size()), recovered.size() >= intact);
+            assertTrue(msg + " recovered " + recovered.size(), recovered.size() <= Math.min(intact + 1, written));
+            for (int i = 0; i < recovered.size(); i++) {
+                _assertRecord((Packet)recovered.elementAt(i), i);
+            }
+
+            /* records appended after recovery follow the recovered records, with nothing stale in between */
+            int count = recovered.size();
+            int added = 1 + this.random.nextInt(EventLog.SLOTS_PER_SEGMENT);
+            _append(log, NEW_SEQUENCE, added);
+            log.close();
+            recovered = this._recover(log = new EventLog(this.logDir));
+            assertEquals(msg + " reopened", count + added, recovered.size());
+            for (int i = 0; i < recovered.size(); i++) {
+                _assertRecord((Packet)recovered.elementAt(i), (i < count)? i : (NEW_SEQUENCE + i - count));
+            }
+            log.close();
+        }
+    }
+
+    public void testTruncateHeadAtRandomOffsets()
+        throws Exception
+    {
+        for (int round = 0; round < ROUNDS; round++) {
+            _delete(this.logDir);
+            this.logDir.mkdirs();
+
+            /* write a backlog, and release a random number of leading records */
+            int written = 1 + this.random.nextInt(4 * EventLog.SLOTS_PER_SEGMENT);
+            int released = this.random.nextInt(written + 1);
+            EventLog log = new EventLog(this.logDir);
+            this._recover(log);
+            _append(log, 0L, written);
+            for (int i = 0; i < released; i++) {
+                log.release(i);
+            }
+            log.close();
+
+            /* truncate the head file at a random offset */
+            int offset = this.random.nextInt(32 + 1);
+            _truncate(new File(this.logDir, "evlog.head"), offset);
+
+            /* released records may be delivered again, but no live record may be lost */
+            Vector recovered = this._recover(log = new EventLog(this.logDir));
+            String msg = "round " + round + " [written=" + written + ", released=" + released + ", offset=" + offset + "]";
+            int first = written - recovered.size();
+            assertTrue(msg + " lost " + (first - released), first <= released);
+            for (int i = 0; i < recovered.size(); i++) {
+                _assertRecord((Packet)recovered.elementAt(i), first + i);
+            }
+            log.close();
+        }
+    }
+
+    public void testRecoverLargeBacklog()
+    {
+        EventLog log = new EventLog(this.logDir);
+        this._recover(log);
+        _append(log, 0L, 100000);
+        log.close();
+
+        long startMS = System.currentTimeMillis();
+        Vector recovered = this._recover(log = new EventLog(this.logDir));
+        long deltaMS = System.currentTimeMillis() - startMS;
+        assertEquals("recovered", 100000, recovered.size());
+        assertTrue("recovery took " + deltaMS + " ms", deltaMS < 1000L);
+        log.close();
+    }
+
+}
@@ -0,0 +1,145 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Upload of a multi-MB file from a local stand-in server.  The first session
+//  is closed by the server part way through the file, and the upload must be
+//  resumed in the next session from the offset of the partial file (without
+//  resending the data already received), and reassembled byte for byte.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FileUploadTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String FILE_NAME       = "upload.bin";
+    private static final int    FILE_SIZE       = 4 * 1024 * 1024;
+    private static final int    INTERRUPT_AFTER = 1500000;      // bytes sent before the first session is closed
+    private static final long   TIMEOUT_MS      = 60000L;
+
+    private StandInServer       server          = null;
+    private StandInClient       client          = null;
+    private File                uploadDir       = null;
+
+    protected void setUp()
+        throws Exception
+    {
+        this.server    = new StandInServer(0L);
+        this.client    = new StandInClient("upload", this.server, false);
+        this.uploadDir = new File(System.getProperty("java.io.tmpdir"), "uploadtest_" + System.nanoTime());
+        this.client.getProtocol().getFileUpload().setDirectory(this.uploadDir);
+        Props.setLong(Props.PROP_COMM_RETRY, 0, 50L); // base delay
+        Props.setLong(Props.PROP_COMM_RETRY, 1, 50L); // cap
+    }
+
+    protected void tearDown()
+    {
+        this.client.stop();
+        this.server.close();
+        File list[] = this.uploadDir.listFiles();
+        for (int i = 0; (list != null) && (i < list.length); i++) {
+            list[i].delete();
+        }
+        this.uploadDir.delete();
+    }
+
+    private static byte[] _readFile(File file)
+        throws Exception
+    {
+        byte b[] = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int ofs = 0; ofs < b.length;) {
+                int n = in.read(b, ofs, b.length - ofs);
+                if (n < 0) { break; }
+                ofs += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testResumeInterruptedUpload()
+        throws Exception
+    {
+        byte data[] = new byte[FILE_SIZE];
+        new Random(0x55504C44L).nextBytes(data);
+        this.server.setUpload(FILE_NAME, data, INTERRUPT_AFTER);
+
+        /* the first session is closed part way through the file */
+        long startNanos = System.nanoTime();
+        PacketQueue q = this.client.getEventQueue();
+        q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(0, 39.0, -142.0));
+        this.client.start();
+        assertTrue("first session timeout", this.server.waitForUpload(1, TIMEOUT_MS));
+        File part = new File(this.uploadDir, FILE_NAME + "." + FILE_SIZE + ".part");
+        File file = new File(this.uploadDir, FILE_NAME);
+        assertFalse("complete after interruption", file.exists());
+        assertTrue("partial file", part.isFile());
+
+        /* the next session resumes the upload */
+        q.addEvent(Packet.PRIORITY_HIGH, StandInClient.createEvent(1, 39.0, -142.0));
+        long until = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!this.server.waitForUpload(0, 50L) && (System.currentTimeMillis() < until)) {
+            this.client.getProtocol().transport(); // after the retry delay
+        }
+        long wallNanos = System.nanoTime() - startNanos;
+        assertTrue("upload timeout", this.server.waitForUpload(0, 0L));
+
+        /* the second session sent only the data which had not been received */
+        int s[][] = this.server.getUploadSessions();
+        assertEquals("data sessions", 2, s.length);
+        assertEquals("first resume offset", 0, s[0][0]);
+        assertTrue("interrupted " + s[0][1], (s[0][1] >= INTERRUPT_AFTER) && (s[0][1] < FILE_SIZE));
+        assertEquals("resume offset", s[0][1], s[1][0]);
+        assertEquals("resent", FILE_SIZE - s[0][1], s[1][1]);
+        long status[] = this.server.getUploadStatus();
+        assertEquals("status", (long)FileUpload.STATUS_COMPLETE, status[2]);
+        assertEquals("status offset", (long)FILE_SIZE, status[1]);
+
+        /* reassembled byte for byte */
+        assertFalse("partial file remains", part.exists());
+        byte received[] = _readFile(file);
+        assertEquals("size", FILE_SIZE, received.length);
+        for (int i = 0; i < FILE_SIZE; i++) {
+            if (received[i] != data[i]) {
+                fail("content differs at offset " + i);
+            }
+        }
+
+        double wallSec = (double)wallNanos / 1.0E9;
+        // (the wall time includes the minimum delay between the two sessions)
+        System.out.println("Upload: " + FILE_SIZE + " bytes in " + (long)(wallSec * 1000.0) + " ms, resumed at " +
+            s[1][0] + " in session " + this.server.getSessionCount());
+
+    }
+
+}
@@ -0,0 +1,86 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Benchmark of packed event packets: a backlog of standard events is sent to
+//  a local stand-in server in duplex blocks of 64 events, with 1, 8 and 32
+//  events per packet (PROP_COMM_PACKED_EVENTS), and optionally delta encoded.
+//  The binary bytes received per event (all packets of the session, including
+//  identification and EOB packets) and the event packets per block are
+//  reported.
+//  Usage: PackedEventsBenchmark [events]   (default 512)
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+public class PackedEventsBenchmark
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    PACKED[]        = { 1, 8, 32 };
+    private static final int    BLOCK_EVENTS    = 64;
+    private static final long   TIMEOUT_MS      = 60000L;
+
+    /**
+    * Sends the events with the specified packing, and prints the results
+    */
+    private static void _bench(int events, int packed, boolean delta)
+        throws Exception
+    {
+        StandInServer server = new StandInServer(0L);
+        StandInClient client = new StandInClient("packed", server, false);
+        try {
+            Props.setLong(Props.PROP_COMM_PACKED_EVENTS , 0, packed);
+            Props.setLong(Props.PROP_COMM_PACKED_EVENTS , 1, delta? 1L : 0L);
+            Props.setLong(Props.PROP_COMM_MAX_DUP_EVENTS, 0, BLOCK_EVENTS);
+            PacketQueue q = client.getEventQueue();
+            for (int i = 0; i < events; i++) {
+                q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0 + (i * 0.00005)));
+            }
+            client.start();
+            long until = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!q.isEmpty() && (System.currentTimeMillis() < until)) {
+                Thread.sleep(10L);
+            }
+            if (!q.isEmpty()) {
+                throw new IllegalStateException("Not acknowledged: " + q.getQueueSize() + " events");
+            }
+            int blocks = server.getBlockCount();
+            System.out.println("packed " + packed + (delta? " (delta)" : "") + ": " +
+                ((double)((server.getByteCount() * 100L) / events) / 100.0) + " bytes/event, " +
+                ((double)((server.getEventPacketCount() * 100L) / blocks) / 100.0) + " event packets/block (" +
+                blocks + " blocks, " + server.getPacketCount() + " packets)");
+        } finally {
+            client.stop();
+            server.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+        throws Exception
+    {
+        int events = (argv.length > 0)? Integer.parseInt(argv[0]) : 512;
+        for (int i = 0; i < PACKED.length; i++) {
+            _bench(events, PACKED[i], false);
+        }
+        _bench(events, PACKED[PACKED.length - 1], true);
+    }
+
+}
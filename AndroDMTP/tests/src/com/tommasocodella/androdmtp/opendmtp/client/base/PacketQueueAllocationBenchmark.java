@@ -0,0 +1,167 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Allocation benchmark of the slab based PacketQueue against queued Packet
+//  objects (as the original Vector based queue held them).  The bytes
+//  allocated by the benchmark thread (com.sun.management.ThreadMXBean, on a
+//  desktop VM) are reported per 'addEvent', and per binary resend of a queued
+//  event (after 'resetSent'), together with the heap retained per queued
+//  event.
+//  Usage: PacketQueueAllocationBenchmark [events]   (default 10000)
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.lang.management.ManagementFactory;
+import java.util.Vector;
+
+import com.sun.management.ThreadMXBean;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.Encoding;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoEvent;
+
+public class PacketQueueAllocationBenchmark
+{
+
+    // ------------------------------------------------------------------------
+
+    private static ThreadMXBean threadBean      = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static GeoEvent     events[]        = null;
+
+    /**
+    * Returns the number of bytes allocated by the current thread so far
+    */
+    private static long _allocated()
+    {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+    * Returns the heap in use after a full collection
+    */
+    private static long _usedHeap()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static GeoEvent[] _createEvents(int count)
+    {
+        GeoEvent ev[] = new GeoEvent[count];
+        for (int i = 0; i < count; i++) {
+            ev[i] = StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0);
+        }
+        return ev;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Queues the events as Packet objects (each with its own Payload)
+    * @return { allocated/event, resend allocated/event, retained/event }
+    */
+    private static long[] _benchPackets()
+    {
+        int n = events.length;
+        long heap = _usedHeap();
+        Vector queue = new Vector(n);
+        long start = _allocated();
+        for (int i = 0; i < n; i++) {
+            queue.addElement(Packet.createClientEventPacket(events[i], null));
+        }
+        long added = _allocated() - start;
+        long retained = _usedHeap() - heap;
+        start = _allocated();
+        long bytes = 0L;
+        for (int i = 0; i < n; i++) {
+            bytes += ((Packet)queue.elementAt(i)).encode(Encoding.ENCODING_BINARY).length;
+        }
+        long resent = _allocated() - start;
+        if ((bytes <= 0L) || (queue.size() != n)) {
+            throw new IllegalStateException("Packets");
+        }
+        return new long[] { added / n, resent / n, retained / n };
+    }
+
+    /**
+    * Queues the events in the PacketQueue
+    * @return { allocated/event, resend allocated/event, retained/event }
+    */
+    private static long[] _benchQueue()
+    {
+        int n = events.length;
+        long heap = _usedHeap();
+        PacketQueue q = new PacketQueue();
+        q.setLimits(0, 0L, PacketQueue.OVERFLOW_COALESCE);
+        long start = _allocated();
+        for (int i = 0; i < n; i++) {
+            q.addEvent(Packet.PRIORITY_NORMAL, events[i]);
+        }
+        long added = _allocated() - start;
+        q.getQueueSize(); // moves the published packets into the slabs
+        long retained = _usedHeap() - heap;
+        for (int i = 0; i < n; i++) {
+            q.getPackatAt(i).setSent(true);
+        }
+        q.resetSent();
+        start = _allocated();
+        long bytes = 0L;
+        for (int i = 0; i < n; i++) {
+            bytes += q.getPackatAt(i).encode(Encoding.ENCODING_BINARY).length;
+        }
+        long resent = _allocated() - start;
+        if ((bytes <= 0L) || (q.getQueueSize() != n)) {
+            throw new IllegalStateException("PacketQueue");
+        }
+        q.emptyQueue();
+        return new long[] { added / n, resent / n, retained / n };
+    }
+
+    private static void _print(String name, long r[])
+    {
+        System.out.println(name + ": addEvent " + r[0] + " B allocated, resend " + r[1] + " B allocated, " +
+            r[2] + " B retained per event");
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+    {
+        int count = (argv.length > 0)? Integer.parseInt(argv[0]) : 10000;
+        DmtpClientContext prior = new DmtpClientContext("alloc_" + System.nanoTime(), null).enter();
+        try {
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+            events = _createEvents(count);
+
+            /* warm up */
+            _benchPackets();
+            _benchQueue();
+
+            System.out.println(count + " events");
+            _print("Packet objects", _benchPackets());
+            _print("PacketQueue   ", _benchQueue());
+        } finally {
+            DmtpClientContext.exit(prior);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Micro-benchmark of the PacketQueue against the original Vector based queue.
+//  A backlog of 'n' low priority packets is queued and marked sent, and is
+//  then drained the way the protocol thread drains it on each transport tick
+//  (getHighestPriority, hasUnsentPackets, deleteFirstSent).
+//  Usage: PacketQueueBenchmark [count ...]   (default 1000 10000 100000)
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+public class PacketQueueBenchmark
+{
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * The original Vector based PacketQueue (the operations used by this benchmark)
+    */
+    private static class VectorQueue
+    {
+        private Vector queue = new Vector();
+        public void addPacket(Packet pkt)
+        {
+            synchronized (this.queue) {
+                this.queue.addElement(pkt);
+            }
+        }
+        public Packet getPackatAt(int ndx)
+        {
+            synchronized (this.queue) {
+                return (ndx < this.queue.size())? (Packet)this.queue.elementAt(ndx) : null;
+            }
+        }
+        public boolean hasUnsentPackets()
+        {
+            synchronized (this.queue) {
+                int len = this.queue.size();
+                return (len > 0)? !((Packet)this.queue.elementAt(len-1)).isSent() : false;
+            }
+        }
+        public boolean deleteFirstSent()
+        {
+            synchronized (this.queue) {
+                if ((this.queue.size() > 0) && ((Packet)this.queue.elementAt(0)).isSent()) {
+                    this.queue.removeElementAt(0);
+                    return true;
+                }
+                return false;
+            }
+        }
+        public int getHighestPriority()
+        {
+            int priority = Packet.PRIORITY_NONE;
+            synchronized (this.queue) {
+                for (Enumeration i = this.queue.elements(); i.hasMoreElements() && (priority < Packet.PRIORITY_HIGH);) {
+                    int pri = ((Packet)i.nextElement()).getPriority();
+                    if (pri > priority) {
+                        priority = pri;
+                    }
+                }
+            }
+            return priority;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static Packet _packet(long seq)
+    {
+        Packet pkt = new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, new byte[] {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)seq
+        });
+        pkt.setPriority(Packet.PRIORITY_LOW);
+        pkt.setEventSequence(seq);
+        return pkt;
+    }
+
+    /**
+    * Returns the time (in milliseconds) taken to drain 'n' packets from the Vector queue
+    */
+    private static long _benchVector(int n)
+    {
+        VectorQueue q = new VectorQueue();
+        for (int i = 0; i < n; i++) {
+            q.addPacket(_packet(i));
+            q.getPackatAt(i).setSent(true);
+        }
+        long startMS = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            if ((q.getHighestPriority() != Packet.PRIORITY_LOW) || q.hasUnsentPackets() || !q.deleteFirstSent()) {
+                throw new IllegalStateException("Vector queue");
+            }
+        }
+        return System.currentTimeMillis() - startMS;
+    }
+
+    /**
+    * Returns the time (in milliseconds) taken to drain 'n' packets from the PacketQueue
+    */
+    private static long _benchQueue(int n)
+    {
+        PacketQueue q = new PacketQueue();
+        for (int i = 0; i < n; i++) {
+            q.addPacket(_packet(i));
+            q.getPackatAt(i).setSent(true);
+        }
+        long startMS = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            if ((q.getHighestPriority() != Packet.PRIORITY_LOW) || q.hasUnsentPackets() || !q.deleteFirstSent()) {
+                throw new IllegalStateException("PacketQueue");
+            }
+        }
+        return System.currentTimeMillis() - startMS;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+    {
+        int counts[] = { 1000, 10000, 100000 };
+        if (argv.length > 0) {
+            counts = new int[argv.length];
+            for (int i = 0; i < argv.length; i++) {
+                counts[i] = Integer.parseInt(argv[i]);
+            }
+        }
+
+        /* warm up */
+        _benchVector(1000);
+        _benchQueue(1000);
+
+        for (int i = 0; i < counts.length; i++) {
+            long vecMS = _benchVector(counts[i]);
+            long queMS = _benchQueue(counts[i]);
+            System.out.println(counts[i] + " packets: Vector " + vecMS + " ms, PacketQueue " + queMS + " ms");
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Contention benchmark of the PacketQueue inbox.  Several producer threads
+//  add packets while a consumer thread reads, marks sent and deletes them.
+//  The 'synchronized' figures hold one lock shared by the producers and the
+//  consumer (as the original 'synchronized (this.queue)' queue did), the
+//  'inbox' figures let the producers publish without taking the queue lock.
+//  Usage: PacketQueueContentionBenchmark [packetsPerProducer]
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+public class PacketQueueContentionBenchmark
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    PRODUCERS[]     = { 1, 4, 8 };
+
+    private static Packet _packet(int ndx)
+    {
+        Packet pkt = new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, new byte[] {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)(ndx >> 8), (byte)ndx
+        });
+        pkt.setPriority(Packet.PRIORITY_LOW + (ndx % 3));
+        return pkt;
+    }
+
+    /**
+    * Returns the number of nanoseconds per packet taken by the specified number of
+    * producers each adding 'count' packets, until the consumer has deleted them all
+    */
+    private static long _bench(int producers, final int count, boolean locked)
+        throws InterruptedException
+    {
+        final PacketQueue q = new PacketQueue();
+        final Object lock = locked? new Object() : null;
+        Thread thread[] = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            thread[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        Packet pkt = _packet(i);
+                        if (lock != null) {
+                            synchronized (lock) { q.addPacket(pkt); }
+                        } else {
+                            q.addPacket(pkt);
+                        }
+                    }
+                }
+            };
+        }
+
+        long startNS = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            thread[p].start();
+        }
+        long total = (long)producers * count, deleted = 0L;
+        while (deleted < total) {
+            if (lock != null) {
+                synchronized (lock) { deleted += _consume(q); }
+            } else {
+                deleted += _consume(q);
+            }
+        }
+        for (int p = 0; p < producers; p++) {
+            thread[p].join();
+        }
+        return (System.nanoTime() - startNS) / total;
+    }
+
+    /**
+    * Marks all queued packets sent, and deletes them
+    */
+    private static int _consume(PacketQueue q)
+    {
+        for (int pri = Packet.PRIORITY_HIGH; pri >= Packet.PRIORITY_LOW; pri--) {
+            int n = q.getQueueSize(pri);
+            for (int i = 0; i < n; i++) {
+                q.getPackatAt(pri, i).setSent(true);
+            }
+        }
+        return q.deleteToSequence(Packet.SEQUENCE_ALL);
+    }
+
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+        throws InterruptedException
+    {
+        int count = (argv.length > 0)? Integer.parseInt(argv[0]) : 200000;
+
+        /* warm up */
+        _bench(2, 20000, true);
+        _bench(2, 20000, false);
+
+        System.out.println("producers  synchronized  inbox  (ns/packet, " + count + " packets per producer)");
+        for (int i = 0; i < PRODUCERS.length; i++) {
+            long lockNS  = _bench(PRODUCERS[i], count, true);
+            long inboxNS = _bench(PRODUCERS[i], count, false);
+            System.out.println("    " + PRODUCERS[i] + "          " + lockNS + "          " + inboxNS);
+        }
+    }
+
+}
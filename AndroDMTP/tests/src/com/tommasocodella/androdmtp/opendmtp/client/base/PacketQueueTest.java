@@ -0,0 +1,440 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Tests for the PacketQueue lanes and their live unsent/pending counts, and
+//  for concurrent producers publishing through the lock-free inbox while the
+//  protocol thread reads, marks and deletes.  Route thinning is checked on a
+//  fixed trace for its reduction ratio and maximum deviation.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.File;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.StatusCodes;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoEvent;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoPoint;
+
+public class PacketQueueTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    PER_LANE    = 4;
+
+    private static final int    PER_PRODUCER= 50000;
+    private static final int    ROUNDS      = 3;
+
+    private static final int    TRACE_LEG   = 100;      // points per leg of the thinning trace
+    private static final int    TRACE_STOP  = 200;      // index of the (non-thinnable) location event
+    private static final double TOLERANCE   = 15.0;     // meters
+
+    private static Packet _packet(int pri, long seq)
+    {
+        Packet pkt = new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, new byte[] {
+            (byte)pri, (byte)(seq >> 8), (byte)seq
+        });
+        pkt.setPriority(pri);
+        pkt.setEventSequence(seq);
+        return pkt;
+    }
+
+    /**
+    * Returns a queue with PER_LANE packets in each lane
+    */
+    private static PacketQueue _fill()
+    {
+        PacketQueue q = new PacketQueue();
+        long seq = 0L;
+        for (int i = 0; i < PER_LANE; i++) {
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                q.addPacket(_packet(pri, seq++));
+            }
+        }
+        return q;
+    }
+
+    /**
+    * Marks all packets in the lanes of the specified, or higher, priority as sent
+    */
+    private static void _markSent(PacketQueue q, int minPri, int block)
+    {
+        for (int pri = minPri; pri <= Packet.PRIORITY_HIGH; pri++) {
+            for (int i = 0; i < q.getQueueSize(pri); i++) {
+                Packet pkt = q.getPackatAt(pri, i);
+                if (block > 0) {
+                    pkt.setSentBlock(block);
+                } else {
+                    pkt.setSent(true);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testUnsentCounts()
+    {
+        PacketQueue q = _fill();
+        assertTrue(q.hasUnsentPackets());
+
+        /* sent through the packet views */
+        _markSent(q, Packet.PRIORITY_NORMAL, 0);
+        assertFalse(q.hasUnsentPackets(Packet.PRIORITY_NORMAL));
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_LOW));
+        _markSent(q, Packet.PRIORITY_LOW, 0);
+        assertFalse(q.hasUnsentPackets());
+
+        /* reset a range of lanes */
+        q.resetSent(Packet.PRIORITY_HIGH);
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_HIGH));
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_NORMAL));
+        q.resetSent();
+        _markSent(q, Packet.PRIORITY_NORMAL, 0);
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_LOW));
+        assertFalse(q.hasUnsentPackets(Packet.PRIORITY_NORMAL));
+
+        /* sent and reset within a block */
+        _markSent(q, Packet.PRIORITY_LOW, 5);
+        assertFalse(q.hasUnsentPackets());
+        assertEquals(3 * PER_LANE, q.resetSentBlock(5));
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_HIGH));
+
+        /* acknowledged */
+        _markSent(q, Packet.PRIORITY_LOW, 0);
+        q.addPacket(_packet(Packet.PRIORITY_LOW, 100L));
+        assertTrue(q.hasUnsentPackets());
+        assertEquals(3 * PER_LANE, q.deleteToSequence(Packet.SEQUENCE_ALL));
+        assertEquals(1L, q.getQueueSize());
+        assertTrue(q.hasUnsentPackets());
+        q.getPackatAt(0).setSent(true);
+        assertFalse(q.hasUnsentPackets());
+        assertTrue(q.deleteFirstSent());
+        assertTrue(q.isEmpty());
+        assertFalse(q.hasUnsentPackets());
+    }
+
+    public void testPendingCounts()
+    {
+        PacketQueue q = _fill();
+        q.setDeliveryMask(0x03);
+        assertTrue(q.hasPendingPackets(0));
+        assertTrue(q.hasPendingPackets(1));
+
+        /* delivered to destination 0 */
+        q.setDestination(0);
+        _markSent(q, Packet.PRIORITY_LOW, 0);
+        assertEquals(3 * PER_LANE, q.deleteToSequence(Packet.SEQUENCE_ALL));
+        assertEquals(3L * PER_LANE, q.getQueueSize());
+        assertFalse(q.hasPendingPackets(0));
+        assertTrue(q.hasPendingPackets(1));
+        assertFalse(q.hasUnsentPackets());
+
+        /* still to be sent to destination 1 */
+        q.setDestination(1);
+        assertTrue(q.hasUnsentPackets());
+        _markSent(q, Packet.PRIORITY_LOW, 0);
+        assertFalse(q.hasUnsentPackets());
+        q.resetSent();
+        assertTrue(q.hasUnsentPackets());
+        _markSent(q, Packet.PRIORITY_LOW, 0);
+        assertEquals(3 * PER_LANE, q.deleteToSequence(Packet.SEQUENCE_ALL));
+        assertTrue(q.isEmpty());
+        assertFalse(q.hasPendingPackets(0));
+        assertFalse(q.hasPendingPackets(1));
+        q.setDestination(-1);
+    }
+
+    public void testDeleteAboveSimplexLane()
+    {
+        // low priority events of an unconfirmed simplex lane datagram must survive the
+        // deletes of a duplex session running at the same time
+        PacketQueue q = _fill();
+        _markSent(q, Packet.PRIORITY_LOW, SimplexLane.BLOCK_TAG);
+        q.resetSent(Packet.PRIORITY_NORMAL);
+        _markSent(q, Packet.PRIORITY_NORMAL, 0);
+
+        assertTrue(q.deleteFirstSent(Packet.PRIORITY_NORMAL));
+        assertEquals(2 * PER_LANE - 1, q.deleteToSequence(Packet.SEQUENCE_ALL, 8, Packet.PRIORITY_NORMAL));
+        assertEquals((long)PER_LANE, q.getQueueSize());
+        assertFalse(q.deleteFirstSent(Packet.PRIORITY_NORMAL));
+        assertEquals(0, q.deleteToSequence(Packet.SEQUENCE_ALL, 8, Packet.PRIORITY_NORMAL));
+
+        /* the datagram failed */
+        assertEquals(PER_LANE, q.resetSentBlock(SimplexLane.BLOCK_TAG));
+        assertTrue(q.hasUnsentPackets(Packet.PRIORITY_LOW));
+    }
+
+    public void testMarkSentBlock()
+    {
+        PacketQueue q = _fill();
+        q.getPackatAt(Packet.PRIORITY_LOW, 0).setSent(true);
+        byte pkts[][] = q.markSentBlock(Packet.PRIORITY_LOW, 2, SimplexLane.BLOCK_TAG);
+        assertEquals(2, pkts.length);
+        for (int i = 0; i < pkts.length; i++) {
+            // the 2nd and 3rd low priority packets (sequence 3 and 6)
+            assertEquals((byte)Packet.PRIORITY_LOW, pkts[i][Packet.MIN_HEADER_LENGTH]);
+            assertEquals((byte)(3 * (i + 1)), pkts[i][Packet.MIN_HEADER_LENGTH + 2]);
+        }
+        assertEquals(1, q.markSentBlock(Packet.PRIORITY_LOW, 2, SimplexLane.BLOCK_TAG).length);
+        assertEquals(0, q.markSentBlock(Packet.PRIORITY_LOW, 2, SimplexLane.BLOCK_TAG).length);
+        assertEquals(PER_LANE - 1, q.deleteSentBlock(SimplexLane.BLOCK_TAG, Packet.SEQUENCE_ALL, 0));
+    }
+
+    public void testStaleView()
+    {
+        // a view of a released record must not reach the record which reuses its space
+        PacketQueue q = new PacketQueue();
+        q.addPacket(_packet(Packet.PRIORITY_LOW, 1L));
+        Packet stale = q.getPackatAt(Packet.PRIORITY_LOW, 0);
+        stale.setSent(true);
+        assertEquals(1, q.deleteToSequence(Packet.SEQUENCE_ALL));
+        q.addPacket(_packet(Packet.PRIORITY_LOW, 2L));
+        assertTrue(stale.isSent());
+        stale.setSentBlock(SimplexLane.BLOCK_TAG);
+        assertEquals(0, stale.getPayloadLength());
+        Packet live = q.getPackatAt(Packet.PRIORITY_LOW, 0);
+        assertFalse(live.isSent());
+        assertEquals(2L, live.getEventSequence());
+        assertEquals(0, q.resetSentBlock(SimplexLane.BLOCK_TAG));
+        assertTrue(q.hasUnsentPackets());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Creates the packet added by the specified producer.  The payload identifies the
+    * producer and the index of the packet within the producer's sequence.
+    */
+    private static Packet _produced(int producer, int ndx)
+    {
+        int pri = Packet.PRIORITY_LOW + (ndx % 3);
+        Packet pkt = new Packet(true, Packet.HEADER_BASIC, Packet.PKT_CLIENT_FIXED_FMT_STD, new byte[] {
+            (byte)producer, (byte)(ndx >> 24), (byte)(ndx >> 16), (byte)(ndx >> 8), (byte)ndx
+        });
+        pkt.setPriority(pri);
+        return pkt;
+    }
+
+    /**
+    * Runs the specified number of producers against a consumer which reads, marks sent,
+    * and deletes packets while they are being added.  Checks that every packet is received
+    * exactly once, in the lane matching its priority, and in the order in which its 
+    * producer added it.
+    */
+    private static void _runProducers(final int producers)
+        throws Exception
+    {
+        final PacketQueue q = new PacketQueue();
+        Thread thread[] = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            thread[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < PER_PRODUCER; i++) {
+                        q.addPacket(_produced(producer, i));
+                    }
+                }
+            };
+        }
+        for (int p = 0; p < producers; p++) {
+            thread[p].start();
+        }
+
+        /* consume */
+        int lastNdx[][] = new int[producers][Packet.PRIORITY_HIGH + 1];
+        for (int p = 0; p < producers; p++) {
+            for (int pri = 0; pri <= Packet.PRIORITY_HIGH; pri++) { lastNdx[p][pri] = -1; }
+        }
+        long received = 0L, expected = (long)producers * PER_PRODUCER;
+        while (received < expected) {
+            for (int pri = Packet.PRIORITY_HIGH; pri >= Packet.PRIORITY_LOW; pri--) {
+                int n = q.getQueueSize(pri);
+                for (int i = 0; i < n; i++) {
+                    Packet pkt = q.getPackatAt(pri, i);
+                    byte b[] = pkt.getPayloadBytes(0, 5);
+                    int producer = (int)b[0] & 0xFF;
+                    int ndx = (((int)b[1] & 0xFF) << 24) | (((int)b[2] & 0xFF) << 16) | 
+                              (((int)b[3] & 0xFF) <<  8) |  ((int)b[4] & 0xFF);
+                    assertEquals("lane", Packet.PRIORITY_LOW + (ndx % 3), pri);
+                    assertTrue("order [" + producer + "/" + pri + "] " + ndx + " after " + lastNdx[producer][pri], 
+                        ndx > lastNdx[producer][pri]);
+                    lastNdx[producer][pri] = ndx;
+                    pkt.setSent(true);
+                }
+            }
+            received += q.deleteToSequence(Packet.SEQUENCE_ALL);
+        }
+        for (int p = 0; p < producers; p++) {
+            thread[p].join();
+            for (int pri = Packet.PRIORITY_LOW; pri <= Packet.PRIORITY_HIGH; pri++) {
+                // the last index of each producer within each lane
+                int last = PER_PRODUCER - 1;
+                while ((Packet.PRIORITY_LOW + (last % 3)) != pri) { last--; }
+                assertEquals("last [" + p + "/" + pri + "]", last, lastNdx[p][pri]);
+            }
+        }
+        assertEquals("received", expected, received);
+        assertTrue(q.isEmpty());
+        assertFalse(q.hasUnsentPackets());
+    }
+
+    public void testConcurrentProducers()
+        throws Exception
+    {
+        for (int round = 0; round < ROUNDS; round++) {
+            _runProducers(1);
+            _runProducers(4);
+            _runProducers(8);
+        }
+    }
+
+    /**
+    * Returns the fixed thinning trace, as { latitude, longitude } pairs: 4 legs (east,
+    * north, an arc, west) with points about 10 meters apart and up to 2 meters of noise
+    */
+    private static double[][] _trace()
+    {
+        Random rand = new Random(0x444D5450L);
+        double M = 1.0 / (GeoPoint.EARTH_MEAN_RADIUS_KM * 1000.0 * Math.PI / 180.0); // degrees/meter
+        double cos = Math.cos(Math.toRadians(39.0));
+        double trace[][] = new double[4 * TRACE_LEG][];
+        double x = 0.0, y = 0.0;
+        for (int i = 0; i < trace.length; i++) {
+            int leg = i / TRACE_LEG, n = i % TRACE_LEG;
+            double dir = (leg == 0)? 0.0 : (leg == 1)? 90.0 : (leg == 2)? (90.0 + (n * 0.9)) : 180.0;
+            x += 10.0 * Math.cos(Math.toRadians(dir));
+            y += 10.0 * Math.sin(Math.toRadians(dir));
+            double nx = (rand.nextDouble() - 0.5) * 4.0, ny = (rand.nextDouble() - 0.5) * 4.0;
+            trace[i] = new double[] { 39.0 + ((y + ny) * M), -142.0 + ((x + nx) * M / cos) };
+        }
+        return trace;
+    }
+
+    /**
+    * Returns the distance (meters) from point p to segment a-b, projected as in 'thinLowPriority'
+    */
+    private static double _distance(GeoPoint p, GeoPoint a, GeoPoint b)
+    {
+        double R    = GeoPoint.EARTH_MEAN_RADIUS_KM * 1000.0 * Math.PI / 180.0;
+        double cosA = Math.cos(a.getLatitudeRadians());
+        double bx   = (b.getLongitude() - a.getLongitude()) * cosA * R;
+        double by   = (b.getLatitude()  - a.getLatitude() ) * R;
+        double px   = (p.getLongitude() - a.getLongitude()) * cosA * R;
+        double py   = (p.getLatitude()  - a.getLatitude() ) * R;
+        double bb   = (bx * bx) + (by * by);
+        double t    = (bb > 0.0)? Math.max(0.0, Math.min(1.0, ((px * bx) + (py * by)) / bb)) : 0.0;
+        double dx = px - (t * bx), dy = py - (t * by);
+        return Math.sqrt((dx * dx) + (dy * dy));
+    }
+
+    public void testThinLowPriority()
+    {
+        DmtpClientContext prior = new DmtpClientContext("thin_" + System.nanoTime(), null).enter();
+        try {
+            double trace[][] = _trace();
+            PacketQueue q = new PacketQueue();
+            for (int i = 0; i < trace.length; i++) {
+                GeoEvent ev = new GeoEvent();
+                ev.setStatusCode((i == TRACE_STOP)? StatusCodes.STATUS_LOCATION : StatusCodes.STATUS_MOTION_IN_MOTION);
+                ev.setTimestamp(i);
+                ev.setLatitude(trace[i][0]);
+                ev.setLongitude(trace[i][1]);
+                ev.setSpeedKPH(36.0);
+                q.addEvent(Packet.PRIORITY_LOW, ev);
+            }
+            assertEquals("queued", trace.length, q.getQueueSize(Packet.PRIORITY_LOW));
+
+            /* the points as encoded in the events (timestamp == trace index) */
+            GeoPoint gp[] = new GeoPoint[trace.length];
+            for (int i = 0; i < trace.length; i++) {
+                byte b[] = q.getPackatAt(Packet.PRIORITY_LOW, i).getPayloadBytes(6, 6);
+                gp[i] = GeoPoint.decodeGeoPoint(b, 0, b.length);
+            }
+
+            /* thin */
+            int removed = q.thinLowPriority(TOLERANCE);
+            int keptCount = q.getQueueSize(Packet.PRIORITY_LOW);
+            assertEquals("removed", trace.length - keptCount, removed);
+            assertEquals("thinned count", (long)removed, q.getOverflowCount(3));
+            boolean kept[] = new boolean[trace.length];
+            for (int i = 0; i < keptCount; i++) {
+                byte b[] = q.getPackatAt(Packet.PRIORITY_LOW, i).getPayloadBytes(2, 4);
+                kept[((b[2] & 0xFF) << 8) | (b[3] & 0xFF)] = true;
+            }
+            assertTrue("first", kept[0]);
+            assertTrue("last", kept[trace.length - 1]);
+            assertTrue("location", kept[TRACE_STOP]);
+            assertTrue("run ends", kept[TRACE_STOP - 1] && kept[TRACE_STOP + 1]);
+
+            /* every removed point lies within the tolerance of the retained route */
+            double maxDev = 0.0;
+            for (int i = 0, k0 = 0; i < trace.length; i++) {
+                if (kept[i]) {
+                    k0 = i;
+                    continue;
+                }
+                int k1 = i + 1;
+                while (!kept[k1]) { k1++; }
+                maxDev = Math.max(maxDev, _distance(gp[i], gp[k0], gp[k1]));
+            }
+            double ratio = (double)trace.length / (double)keptCount;
+            System.out.println("Thinning: " + trace.length + " events, " + keptCount + " retained (" +
+                Math.round(ratio * 10.0) / 10.0 + ":1), max deviation " + Math.round(maxDev * 10.0) / 10.0 +
+                " m (tolerance " + TOLERANCE + " m)");
+            assertTrue("max deviation " + maxDev, maxDev <= TOLERANCE);
+            assertTrue("reduction " + ratio, ratio >= 8.0);
+
+            /* thinning again removes nothing */
+            assertEquals("rethinned", 0, q.thinLowPriority(TOLERANCE));
+        } finally {
+            DmtpClientContext.exit(prior);
+        }
+    }
+
+    public void testLoggedBeforeDrain()
+    {
+        // a packet must be durable once 'addPacket' returns, even if the queue is never read
+        File dir = new File(System.getProperty("java.io.tmpdir"), "pqtest_" + System.nanoTime());
+        try {
+            PacketQueue q = new PacketQueue();
+            assertTrue(q.openEventLog(dir));
+            for (int i = 0; i < 100; i++) {
+                q.addPacket(_produced(0, i));
+            }
+            Vector recovered = new Vector();
+            EventLog log = new EventLog(dir);
+            assertTrue(log.open(recovered));
+            assertEquals("recovered", 100, recovered.size());
+            log.close();
+            q.closeEventLog();
+        } finally {
+            File list[] = dir.listFiles();
+            for (int i = 0; (list != null) && (i < list.length); i++) {
+                list[i].delete();
+            }
+            dir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Server list tests of sessions run by the ProtocolEngine against local
+//  stand-in servers: failover from an unreachable primary server to an
+//  alternate server, and dual delivery of every event to two servers.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+public class ProtocolEngineTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    EVENTS          = 200;
+    private static final long   TIMEOUT_MS      = 30000L;
+
+    private StandInServer       primary         = null;
+    private StandInServer       alternate       = null;
+    private StandInClient       client          = null;
+
+    protected void setUp()
+        throws Exception
+    {
+        this.primary   = new StandInServer(0L);
+        this.alternate = new StandInServer(0L);
+        this.client    = new StandInClient("engine", this.primary, new ProtocolEngine("Engine_" + System.nanoTime()));
+        Props.setString(Props.PROP_COMM_DMTP_ALT_HOSTS, StandInServer.HOST + ":" + this.alternate.getTcpPort());
+    }
+
+    protected void tearDown()
+    {
+        this.client.stop();
+        this.primary.close();
+        this.alternate.close();
+    }
+
+    /**
+    * Queues the test events
+    */
+    private void _queueEvents()
+    {
+        PacketQueue q = this.client.getEventQueue();
+        for (int i = 0; i < EVENTS; i++) {
+            q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0));
+        }
+    }
+
+    /**
+    * Checks that the server received each event once, in order
+    */
+    private static void _checkReceived(String name, StandInServer server)
+    {
+        StandInServer.Received r[] = server.getReceived();
+        assertEquals(name + " received", EVENTS, r.length);
+        for (int i = 0; i < r.length; i++) {
+            assertEquals(name + " order", i, r[i].id);
+        }
+    }
+
+    /**
+    * Waits until the queue is empty (the last events may reach the server before the
+    * client has handled the acknowledgement)
+    */
+    private static boolean _waitForEmpty(PacketQueue q, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        while (!q.isEmpty() && (System.currentTimeMillis() < until)) {
+            Thread.sleep(10L);
+        }
+        return q.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testFailover()
+        throws Exception
+    {
+        /* the primary server is unreachable (nothing listens on its port) */
+        ServerSocket closed = new ServerSocket(0);
+        int deadPort = closed.getLocalPort();
+        closed.close();
+        Props.setLong(Props.PROP_COMM_DMTP_PORT, 0, deadPort);
+
+        this._queueEvents();
+        this.client.start();
+        assertTrue("timeout", this.alternate.waitForEvents(EVENTS, TIMEOUT_MS));
+        assertTrue("not acknowledged", _waitForEmpty(this.client.getEventQueue(), TIMEOUT_MS));
+        _checkReceived("alternate", this.alternate);
+        assertEquals("primary sessions", 0, this.primary.getSessionCount());
+    }
+
+    public void testDualDelivery()
+        throws Exception
+    {
+        Props.setLong(Props.PROP_COMM_DELIVERY_MASK, 0, 0x03L);
+
+        this._queueEvents();
+        this.client.start();
+        assertTrue("primary timeout", this.primary.waitForEvents(EVENTS, TIMEOUT_MS));
+        assertTrue("alternate timeout", this.alternate.waitForEvents(EVENTS, TIMEOUT_MS));
+        assertTrue("not acknowledged", _waitForEmpty(this.client.getEventQueue(), TIMEOUT_MS));
+        _checkReceived("primary", this.primary);
+        _checkReceived("alternate", this.alternate);
+    }
+
+}
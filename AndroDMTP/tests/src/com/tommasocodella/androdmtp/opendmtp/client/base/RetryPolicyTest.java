@@ -0,0 +1,125 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Circuit breaker tests of the RetryPolicy: a half-open server allows a
+//  single probe session until the result of the probe is known.  The backoff
+//  delay is fixed (base delay == cap) so that the tests are deterministic.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import junit.framework.TestCase;
+
+public class RetryPolicyTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final String SERVER          = "127.0.0.1:31000";
+    private static final long   DELAY_MS        = 20L;
+
+    private DmtpClientContext   prior           = null;
+    private RetryPolicy         retry           = null;
+
+    protected void setUp()
+    {
+        this.prior = new DmtpClientContext("retry_" + System.nanoTime(), null).enter();
+        Props.setLong(Props.PROP_COMM_RETRY, 0, DELAY_MS); // base delay
+        Props.setLong(Props.PROP_COMM_RETRY, 1, DELAY_MS); // cap
+        Props.setLong(Props.PROP_COMM_RETRY, 2, 2L);       // failures to open the circuit
+        this.retry = new RetryPolicy();
+    }
+
+    protected void tearDown()
+    {
+        DmtpClientContext.exit(this.prior);
+    }
+
+    /**
+    * Fails the server until its circuit is open, and waits for the backoff delay
+    */
+    private void _openCircuit()
+        throws InterruptedException
+    {
+        this.retry.markResult(SERVER, false);
+        this.retry.markResult(SERVER, false);
+        assertEquals("open", RetryPolicy.STATE_OPEN, this.retry.getState(SERVER));
+        assertFalse("backing off", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        Thread.sleep(DELAY_MS * 2L);
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testSingleProbe()
+        throws Exception
+    {
+        this._openCircuit();
+        assertTrue("due", this.retry.isDue(SERVER, Packet.PRIORITY_NORMAL));
+        assertTrue("probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertEquals("half-open", RetryPolicy.STATE_HALF_OPEN, this.retry.getState(SERVER));
+
+        /* no further sessions while the probe is in flight, whatever the priority */
+        assertFalse("second probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertFalse("high priority probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_HIGH));
+        assertFalse("due", this.retry.isDue(SERVER, Packet.PRIORITY_HIGH));
+
+        /* the probe fails: open again, one probe after the next delay */
+        this.retry.markResult(SERVER, false);
+        assertEquals("reopened", RetryPolicy.STATE_OPEN, this.retry.getState(SERVER));
+        assertFalse("backing off", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        Thread.sleep(DELAY_MS * 2L);
+        assertTrue("probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertFalse("second probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+
+        /* the probe succeeds: closed, any number of sessions */
+        this.retry.markResult(SERVER, true);
+        assertEquals("closed", RetryPolicy.STATE_CLOSED, this.retry.getState(SERVER));
+        assertTrue(this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertTrue(this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+    }
+
+    public void testReleasedProbe()
+        throws Exception
+    {
+        this._openCircuit();
+        assertTrue("probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertFalse("second probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+
+        /* the probe session was not run, the next one may probe */
+        this.retry.release(SERVER);
+        assertEquals("half-open", RetryPolicy.STATE_HALF_OPEN, this.retry.getState(SERVER));
+        assertTrue("probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertFalse("second probe", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+    }
+
+    public void testClosedCircuitNotLimited()
+        throws Exception
+    {
+        // below the failure threshold the circuit is closed, and sessions are not limited
+        // to a single probe once the delay has expired
+        this.retry.markResult(SERVER, false);
+        assertEquals("closed", RetryPolicy.STATE_CLOSED, this.retry.getState(SERVER));
+        assertFalse("backing off", this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        Thread.sleep(DELAY_MS * 2L);
+        assertTrue(this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertTrue(this.retry.isAllowed(SERVER, Packet.PRIORITY_NORMAL));
+        assertTrue("unknown server", this.retry.isAllowed("127.0.0.1:31001", Packet.PRIORITY_NORMAL));
+    }
+
+}
@@ -0,0 +1,215 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Mixed-load tests of the concurrent simplex lane against a local stand-in
+//  server: normal priority events are sent by duplex (TCP) sessions while low
+//  priority events are sent in datagrams (UDP), also while the low priority
+//  lane is being thinned.  Duplex throughput and enqueue-to-arrival latency
+//  are reported.  Each datagram is at least 5 seconds apart (the minimum
+//  transmit interval), so each test runs for several seconds.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+import com.tommasocodella.androdmtp.opendmtp.util.CThread;
+
+public class SimplexLaneTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    NORMAL_EVENTS   = 2000;
+    private static final int    LOW_EVENTS      = 16;       // 2 datagrams
+    private static final int    LOW_ID          = 1000000;  // first low priority event id
+    private static final long   TIMEOUT_MS      = 30000L;
+
+    private StandInServer       server          = null;
+    private StandInClient       client          = null;
+
+    protected void setUp()
+        throws Exception
+    {
+        this.server = new StandInServer(0L);
+        this.client = new StandInClient("lane", this.server, true);
+        Props.setLong(Props.PROP_COMM_MAX_SIM_EVENTS, 0, 8L);
+        Props.setLong(Props.PROP_COMM_MAX_DUP_EVENTS, 0, 32L);
+    }
+
+    protected void tearDown()
+    {
+        this.client.stop();
+        this.server.close();
+    }
+
+    /**
+    * Returns the event id (timestamp field) of the specified queued packet
+    */
+    private static int _getId(Packet pkt)
+    {
+        byte b[] = pkt.getPayloadBytes(2, 4);
+        return (((int)b[0] & 0xFF) << 24) | (((int)b[1] & 0xFF) << 16) | (((int)b[2] & 0xFF) << 8) | ((int)b[3] & 0xFF);
+    }
+
+    /**
+    * Checks that no event was received twice, and that each event was received on the
+    * lane of its priority, and in the order in which it was queued
+    */
+    private static void _checkReceived(StandInServer.Received r[])
+    {
+        Hashtable seen = new Hashtable();
+        int lastNormal = -1, lastLow = -1;
+        for (int i = 0; i < r.length; i++) {
+            Integer id = new Integer(r[i].id);
+            assertNull("duplicate " + r[i].id, seen.put(id, id));
+            if (r[i].id >= LOW_ID) {
+                assertTrue("low priority event " + r[i].id + " sent by duplex", r[i].simplex);
+                assertTrue("low priority order", r[i].id > lastLow);
+                lastLow = r[i].id;
+            } else {
+                assertFalse("normal priority event " + r[i].id + " sent by simplex", r[i].simplex);
+                assertTrue("normal priority order", r[i].id > lastNormal);
+                lastNormal = r[i].id;
+            }
+        }
+    }
+
+    /**
+    * Waits until the queue is empty (the last events may reach the server before the
+    * client has handled the acknowledgement, or the end of the datagram send)
+    */
+    private static boolean _waitForEmpty(PacketQueue q, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        while (!q.isEmpty() && (System.currentTimeMillis() < until)) {
+            Thread.sleep(10L);
+        }
+        return q.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testMixedLoad()
+        throws Exception
+    {
+        PacketQueue q = this.client.getEventQueue();
+        long queued[] = new long[NORMAL_EVENTS];
+        for (int i = 0; i < NORMAL_EVENTS; i++) {
+            queued[i] = System.nanoTime();
+            q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0));
+            if (i < LOW_EVENTS) {
+                q.addEvent(Packet.PRIORITY_LOW, StandInClient.createEvent(LOW_ID + i, 40.0 + (i * 0.0001), -142.0));
+            }
+        }
+        long startNanos = System.nanoTime();
+        this.client.start();
+        assertTrue("timeout", this.server.waitForEvents(NORMAL_EVENTS + LOW_EVENTS, TIMEOUT_MS));
+        StandInServer.Received r[] = this.server.getReceived();
+        _checkReceived(r);
+        assertTrue("not deleted", _waitForEmpty(q, TIMEOUT_MS));
+
+        /* duplex throughput/latency, and the latency of the low priority lane */
+        long lastDuplex = 0L, firstLow = 0L, maxLatency = 0L, sumLatency = 0L;
+        for (int i = 0; i < r.length; i++) {
+            if (r[i].simplex) {
+                if (firstLow == 0L) { firstLow = r[i].nanos; }
+            } else {
+                long latency = r[i].nanos - queued[r[i].id];
+                maxLatency = Math.max(maxLatency, latency);
+                sumLatency += latency;
+                lastDuplex = r[i].nanos;
+            }
+        }
+        double duplexSec = (double)(lastDuplex - startNanos) / 1.0E9;
+        System.out.println("Mixed load: " + NORMAL_EVENTS + " duplex events in " + (long)(duplexSec * 1000.0) + " ms (" +
+            (long)(NORMAL_EVENTS / duplexSec) + " events/s), latency avg " + (sumLatency / NORMAL_EVENTS / 1000000L) +
+            " ms, max " + (maxLatency / 1000000L) + " ms; first datagram after " + ((firstLow - startNanos) / 1000000L) +
+            " ms, " + this.server.getDatagramCount() + " datagrams, " + this.server.getSessionCount() + " sessions");
+
+    }
+
+    public void testThinningAlongsideLane()
+        throws Exception
+    {
+        final PacketQueue q = this.client.getEventQueue();
+        final DmtpClientContext context = this.client.getContext();
+        final int produced[] = new int[1];
+        final boolean stop[] = new boolean[1];
+
+        /* producer: a zig-zag route (thinned to its corners) while the lane is sending */
+        Thread producer = new Thread() {
+            public void run() {
+                context.enter();
+                for (int i = 0; !stop[0]; i++) {
+                    int leg = i % 20;
+                    double lon = -142.0 + (((leg < 10)? leg : (20 - leg)) * 0.001);
+                    q.addEvent(Packet.PRIORITY_LOW, StandInClient.createEvent(LOW_ID + i, 40.0 + (i * 0.0001), lon));
+                    produced[0] = i + 1;
+                    q.thinLowPriority(50.0);
+                    try { Thread.sleep(2L); } catch (InterruptedException ie) {}
+                }
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0, -142.0));
+        }
+        producer.start();
+        this.client.start();
+
+        /* at least two datagrams (the second after the minimum transmit interval) */
+        long until = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((this.server.getDatagramCount() < 2) && (System.currentTimeMillis() < until)) {
+            Thread.sleep(100L);
+        }
+        stop[0] = true;
+        producer.join();
+        CThread.stopThreads(); // the queue is examined below
+        assertTrue("datagrams", this.server.getDatagramCount() >= 2);
+
+        /* every produced event was sent once, thinned, or is still queued */
+        StandInServer.Received r[] = this.server.getReceived();
+        _checkReceived(r);
+        int sent = 0;
+        Hashtable ids = new Hashtable();
+        for (int i = 0; i < r.length; i++) {
+            if (r[i].simplex) {
+                assertTrue("unknown event " + r[i].id, (r[i].id - LOW_ID) < produced[0]);
+                ids.put(new Integer(r[i].id), r[i]);
+                sent++;
+            }
+        }
+        int queued = q.getQueueSize(Packet.PRIORITY_LOW);
+        for (int i = 0; i < queued; i++) {
+            Packet pkt = q.getPackatAt(Packet.PRIORITY_LOW, i);
+            assertFalse("sent and still queued", pkt.isSent());
+            assertNull("sent and still queued", ids.get(new Integer(_getId(pkt))));
+        }
+        long thinned = q.getOverflowCount(3); // COUNT_THINNED
+        assertTrue("thinned", thinned > 0L);
+        assertEquals("produced", (long)produced[0], sent + queued + thinned);
+        System.out.println("Thinning alongside lane: " + produced[0] + " produced, " + sent + " sent in " +
+            this.server.getDatagramCount() + " datagrams, " + thinned + " thinned, " + queued + " queued");
+
+    }
+
+}
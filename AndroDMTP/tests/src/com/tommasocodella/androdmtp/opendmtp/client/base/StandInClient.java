@@ -0,0 +1,154 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  A client context with its own Protocol handler (and Protocol thread),
+//  configured to send to a StandInServer without connection quota or
+//  transmit interval limits (other than the fixed minimum intervals).  The
+//  context is bound to the creating thread until 'stop' is called.  Sessions
+//  may instead be run by a ProtocolEngine (with a non-blocking NioTransport).
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import com.tommasocodella.androdmtp.opendmtp.codes.StatusCodes;
+import com.tommasocodella.androdmtp.opendmtp.util.CThread;
+import com.tommasocodella.androdmtp.opendmtp.util.GeoEvent;
+
+public class StandInClient
+{
+
+    // ------------------------------------------------------------------------
+
+    private DmtpClientContext   context     = null;
+    private DmtpClientContext   prior       = null;
+    private Protocol            protocol    = null;
+    private StandInTransport    duplex      = null;
+    private StandInTransport    simplex     = null;
+
+    /**
+    * Creates a client of the specified stand-in server
+    * @param name The context name (made unique, as it names the context threads)
+    * @param server The stand-in server
+    * @param simplexLane True to send low priority events on a concurrent simplex lane
+    */
+    public StandInClient(String name, StandInServer server, boolean simplexLane)
+    {
+        this._init(name, server, simplexLane);
+        this.duplex   = new StandInTransport(server);
+        this.protocol = Protocol.createInstance(this.duplex);
+        if (simplexLane) {
+            this.simplex = new StandInTransport(server);
+            this.protocol.setSimplexTransport(this.simplex);
+        }
+    }
+
+    /**
+    * Creates a client of the specified stand-in server, with sessions run by the specified
+    * ProtocolEngine (started with the client)
+    * @param name The context name (made unique, as it names the context threads)
+    * @param server The stand-in server
+    * @param engine The protocol engine
+    */
+    public StandInClient(String name, StandInServer server, ProtocolEngine engine)
+    {
+        this._init(name, server, false);
+        this.protocol = Protocol.createInstance(new NioTransport(), engine);
+    }
+
+    private void _init(String name, StandInServer server, boolean simplexLane)
+    {
+        this.context = new DmtpClientContext(name + "_" + System.nanoTime(), null);
+        this.prior   = this.context.enter();
+        Props.setString(Props.PROP_STATE_ACCOUNT_ID, "standin");
+        Props.setString(Props.PROP_STATE_DEVICE_ID , name);
+        Props.setString(Props.PROP_COMM_DMTP_HOST  , StandInServer.HOST);
+        Props.setLong(Props.PROP_COMM_DMTP_PORT     , 0, server.getTcpPort());
+        Props.setLong(Props.PROP_COMM_MAX_CONNECTIONS, 0, 255L); // total
+        Props.setLong(Props.PROP_COMM_MAX_CONNECTIONS, 1, 128L); // duplex
+        Props.setLong(Props.PROP_COMM_MIN_XMIT_DELAY, 0, 0L);
+        Props.setLong(Props.PROP_COMM_MIN_XMIT_RATE , 0, 0L);
+        Props.setBoolean(Props.PROP_COMM_SIMPLEX_LANE, 0, simplexLane);
+    }
+
+    // ------------------------------------------------------------------------
+
+    public DmtpClientContext getContext()
+    {
+        return this.context;
+    }
+
+    public Protocol getProtocol()
+    {
+        return this.protocol;
+    }
+
+    public PacketQueue getEventQueue()
+    {
+        return this.protocol.getEventQueue();
+    }
+
+    /**
+    * Returns the duplex transport, or null if sessions are run by a ProtocolEngine
+    */
+    public StandInTransport getDuplexTransport()
+    {
+        return this.duplex;
+    }
+
+    public StandInTransport getSimplexTransport()
+    {
+        return this.simplex;
+    }
+
+    /**
+    * Starts the Protocol (and simplex lane) thread of this client.  Events queued before
+    * this call are sent in the first session.
+    */
+    public void start()
+    {
+        CThread.startThreads();
+    }
+
+    /**
+    * Stops the client threads, empties the event queue and unbinds the context
+    */
+    public void stop()
+    {
+        CThread.stopThreads();
+        this.getEventQueue().emptyQueue();
+        DmtpClientContext.exit(this.prior);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Creates an in-motion event identified by the specified id (carried in the timestamp
+    * field, see 'StandInServer.Received'), at the specified position
+    */
+    public static GeoEvent createEvent(int id, double lat, double lon)
+    {
+        GeoEvent ev = new GeoEvent();
+        ev.setStatusCode(StatusCodes.STATUS_MOTION_IN_MOTION);
+        ev.setTimestamp((long)id & 0xFFFFFFFFL);
+        ev.setLatitude(lat);
+        ev.setLongitude(lon);
+        ev.setSpeedKPH(50.0);
+        return ev;
+    }
+
+}
@@ -0,0 +1,648 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Local stand-in DMTP server for the protocol tests.  Duplex (TCP) sessions
+//  are answered block by block (ACK, then EOB_DONE or EOT), optionally after
+//  an injected round trip delay, and catch-up requests may be accepted.
+//  A block may be acknowledged by the sequence number of its last event.
+//  A file may be uploaded to the client (FILE, DATA from the offset reported
+//  by the client, END), and the first upload session may be interrupted by
+//  closing the socket part way through the file.
+//  Simplex (UDP) datagrams are received on a separate port.  The events
+//  received on either lane are recorded with their arrival time.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+public class StandInServer
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final String HOST                = "127.0.0.1";
+
+    private static final int    UPLOAD_DATA_SIZE    = 250;  // data bytes per upload record
+
+    /**
+    * An event received by the server
+    */
+    public static class Received
+    {
+        public int      id      = 0;        // the event timestamp field (see 'StandInClient.createEvent')
+        public int      type    = 0;        // the packet type
+        public boolean  simplex = false;    // received in a datagram
+        public long     nanos   = 0L;       // arrival time (System.nanoTime)
+        public Received(int id, int type, boolean simplex)
+        {
+            this.id      = id;
+            this.type    = type;
+            this.simplex = simplex;
+            this.nanos   = System.nanoTime();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private ServerSocket    tcpSocket       = null;
+    private DatagramSocket  udpSocket       = null;
+    private long            rttMS           = 0L;
+    private int             catchupEvents   = 0;        // 0 == catch-up requests are ignored
+    private int             catchupWindow   = 1;
+    private boolean         ackSequence     = false;    // acknowledge by the last sequence number
+
+    private String          uploadName      = null;
+    private byte            uploadData[]    = null;     // null == no upload
+    private int             uploadInterrupt = 0;        // 0 == the upload is not interrupted
+    private volatile boolean uploadDone     = false;
+    private Vector          uploadResume    = new Vector(); // int[] { resume offset, bytes sent } per session
+    private Vector          uploadStatus    = new Vector(); // long[] { size, offset, status } per status packet
+
+    private Vector          received        = new Vector();
+    private int             sessions        = 0;
+    private int             datagrams       = 0;
+    private int             clientPackets   = 0;        // duplex packets received
+    private int             eventPackets    = 0;        // duplex event packets received (packed or not)
+    private int             clientBlocks    = 0;        // duplex blocks received (EOB packets)
+    private long            clientBytes     = 0L;       // duplex bytes received
+    private boolean         closed          = false;
+
+    /**
+    * Starts a stand-in server on ephemeral local ports
+    * @param rttMS The round trip delay injected before each response to the client
+    */
+    public StandInServer(long rttMS)
+        throws IOException
+    {
+        this.rttMS     = rttMS;
+        this.tcpSocket = new ServerSocket(0, 16, InetAddress.getByName(HOST));
+        this.udpSocket = new DatagramSocket(0, InetAddress.getByName(HOST));
+        Thread tcp = new Thread("StandIn_TCP") {
+            public void run() {
+                StandInServer.this._acceptLoop();
+            }
+        };
+        Thread udp = new Thread("StandIn_UDP") {
+            public void run() {
+                StandInServer.this._receiveLoop();
+            }
+        };
+        tcp.setDaemon(true);
+        udp.setDaemon(true);
+        tcp.start();
+        udp.start();
+    }
+
+    /**
+    * Accepts further catch-up requests, granting the specified block size and window
+    */
+    public void setCatchupAccept(int events, int window)
+    {
+        this.catchupEvents = events;
+        this.catchupWindow = window;
+    }
+
+    /**
+    * Acknowledges each block by the sequence number of its last event (rather than as a
+    * whole), as a server does which acknowledges the events it has stored
+    */
+    public void setAckSequence(boolean ackSequence)
+    {
+        this.ackSequence = ackSequence;
+    }
+
+    /**
+    * Uploads the specified file to the client in the following sessions
+    * @param name The file name
+    * @param data The file contents
+    * @param interruptAfter The number of bytes after which the first session sending data is
+    *        closed (before the file is complete), or 0 to send the whole file
+    */
+    public synchronized void setUpload(String name, byte data[], int interruptAfter)
+    {
+        this.uploadName      = name;
+        this.uploadData      = data;
+        this.uploadInterrupt = interruptAfter;
+        this.uploadDone      = false;
+    }
+
+    public int getTcpPort()
+    {
+        return this.tcpSocket.getLocalPort();
+    }
+
+    public int getUdpPort()
+    {
+        return this.udpSocket.getLocalPort();
+    }
+
+    /**
+    * Stops accepting sessions and datagrams
+    */
+    public void close()
+    {
+        this.closed = true;
+        try { this.tcpSocket.close(); } catch (IOException ioe) {}
+        this.udpSocket.close();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns a copy of the events received so far (in order of arrival)
+    */
+    public Received[] getReceived()
+    {
+        synchronized (this.received) {
+            Received r[] = new Received[this.received.size()];
+            this.received.copyInto(r);
+            return r;
+        }
+    }
+
+    public int getReceivedCount()
+    {
+        synchronized (this.received) {
+            return this.received.size();
+        }
+    }
+
+    public synchronized int getSessionCount()
+    {
+        return this.sessions;
+    }
+
+    public synchronized int getDatagramCount()
+    {
+        return this.datagrams;
+    }
+
+    /**
+    * Returns the number of duplex packets received (all types)
+    */
+    public synchronized int getPacketCount()
+    {
+        return this.clientPackets;
+    }
+
+    /**
+    * Returns the number of duplex event packets received (a packed event packet is counted
+    * once)
+    */
+    public synchronized int getEventPacketCount()
+    {
+        return this.eventPackets;
+    }
+
+    /**
+    * Returns the number of duplex blocks received
+    */
+    public synchronized int getBlockCount()
+    {
+        return this.clientBlocks;
+    }
+
+    /**
+    * Returns the number of duplex bytes received (all packets)
+    */
+    public synchronized long getByteCount()
+    {
+        return this.clientBytes;
+    }
+
+    /**
+    * Waits until at least the specified number of events has been received
+    * @return True if the events were received before the timeout
+    */
+    public boolean waitForEvents(int count, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        synchronized (this.received) {
+            while (this.received.size() < count) {
+                long wait = until - System.currentTimeMillis();
+                if (wait <= 0L) {
+                    return false;
+                }
+                this.received.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+    * Returns the resume offset and the number of bytes sent, of each session which sent
+    * upload data
+    */
+    public int[][] getUploadSessions()
+    {
+        synchronized (this.uploadResume) {
+            int r[][] = new int[this.uploadResume.size()][];
+            this.uploadResume.copyInto(r);
+            return r;
+        }
+    }
+
+    /**
+    * Returns the last upload status reported by the client (size, offset, status), or null
+    */
+    public long[] getUploadStatus()
+    {
+        synchronized (this.uploadResume) {
+            return this.uploadStatus.isEmpty()? null : (long[])this.uploadStatus.lastElement();
+        }
+    }
+
+    /**
+    * Waits until the upload has been completed (the client status has been received), or
+    * until the specified number of sessions have sent upload data
+    * @return True if the condition was met before the timeout
+    */
+    public boolean waitForUpload(int sessions, long timeoutMS)
+        throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + timeoutMS;
+        synchronized (this.uploadResume) {
+            while (!this.uploadDone && ((sessions <= 0) || (this.uploadResume.size() < sessions))) {
+                long wait = until - System.currentTimeMillis();
+                if (wait <= 0L) {
+                    return false;
+                }
+                this.uploadResume.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    private void _received(byte pkt[], int ofs, boolean simplex)
+    {
+        int type = (int)pkt[ofs + 1] & 0xFF;
+        if (!Packet.isEventType(type)) {
+            return;
+        }
+        // the timestamp field follows the 2 byte status code
+        int p = ofs + Packet.MIN_HEADER_LENGTH + 2;
+        int id = (((int)pkt[p] & 0xFF) << 24) | (((int)pkt[p + 1] & 0xFF) << 16) |
+                 (((int)pkt[p + 2] & 0xFF) <<  8) |  ((int)pkt[p + 3] & 0xFF);
+        synchronized (this.received) {
+            this.received.addElement(new Received(id, type, simplex));
+            this.received.notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void _receiveLoop()
+    {
+        byte buf[] = new byte[8192];
+        while (!this.closed) {
+            DatagramPacket dp = new DatagramPacket(buf, buf.length);
+            try {
+                this.udpSocket.receive(dp);
+            } catch (IOException ioe) {
+                break; // closed
+            }
+            synchronized (this) { this.datagrams++; }
+            for (int ofs = 0; (ofs + Packet.MIN_HEADER_LENGTH) <= dp.getLength();) {
+                this._received(buf, ofs, true);
+                ofs += Packet.MIN_HEADER_LENGTH + ((int)buf[ofs + 2] & 0xFF);
+            }
+        }
+    }
+
+    private void _acceptLoop()
+    {
+        while (!this.closed) {
+            final Socket s;
+            try {
+                s = this.tcpSocket.accept();
+            } catch (IOException ioe) {
+                break; // closed
+            }
+            synchronized (this) { this.sessions++; }
+            Thread t = new Thread("StandIn_Session") {
+                public void run() {
+                    StandInServer.this._session(s);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+    * Answers the blocks of a duplex session
+    */
+    private void _session(Socket s)
+    {
+        Responder out = null;
+        try {
+            s.setTcpNoDelay(true);
+            InputStream in = s.getInputStream();
+            out = new Responder(s.getOutputStream(), this.rttMS);
+            byte hdr[] = new byte[Packet.MIN_HEADER_LENGTH];
+            int lastSeq = -1; // the sequence number of the last event of the block
+            int blockEvents = 0;
+            int uploadPhase = -1; // -1 == no upload in this session
+            long uploadOffset = 0L; // the offset last reported by the client
+            synchronized (this) {
+                if ((this.uploadData != null) && !this.uploadDone) {
+                    uploadPhase = 0;
+                }
+            }
+            while (_readFully(in, hdr, 0, hdr.length)) {
+                int type = (int)hdr[1] & 0xFF;
+                byte pkt[] = new byte[Packet.MIN_HEADER_LENGTH + ((int)hdr[2] & 0xFF)];
+                System.arraycopy(hdr, 0, pkt, 0, hdr.length);
+                if (!_readFully(in, pkt, hdr.length, pkt.length - hdr.length)) {
+                    break;
+                }
+                synchronized (this) {
+                    this.clientPackets++;
+                    this.clientBytes += pkt.length;
+                    if (Packet.isEventType(type)) {
+                        this.eventPackets++;
+                    } else
+                    if ((type == Packet.PKT_CLIENT_EOB_MORE) || (type == Packet.PKT_CLIENT_EOB_DONE)) {
+                        this.clientBlocks++;
+                    }
+                }
+                if (type == Packet.PKT_CLIENT_CATCHUP_REQUEST) {
+                    if (this.catchupEvents > 0) {
+                        out.send(Packet.PKT_SERVER_CATCHUP_ACCEPT, new byte[] {
+                            (byte)(this.catchupEvents >> 8), (byte)this.catchupEvents, (byte)this.catchupWindow
+                        });
+                    }
+                } else
+                if (((type == Packet.PKT_CLIENT_EOB_MORE) || (type == Packet.PKT_CLIENT_EOB_DONE)) && (uploadPhase >= 0)) {
+                    if (blockEvents > 0) {
+                        out.send(Packet.PKT_SERVER_ACK, this._getAck(lastSeq));
+                    }
+                    lastSeq = -1;
+                    blockEvents = 0;
+                    uploadPhase = this._uploadBlock(out, uploadPhase, uploadOffset);
+                    if (uploadPhase < 0) {
+                        // interrupted: close the socket once the data sent so far is written
+                        out.finish();
+                        try { out.join(); } catch (InterruptedException ie) {}
+                        break;
+                    }
+                } else
+                if ((type == Packet.PKT_CLIENT_PROPERTY_VALUE) && (uploadPhase >= 0)) {
+                    long v[] = _getUploadStatus(pkt);
+                    if (v != null) {
+                        uploadOffset = v[1];
+                        synchronized (this.uploadResume) {
+                            this.uploadStatus.addElement(v);
+                        }
+                    }
+                } else
+                if (type == Packet.PKT_CLIENT_EOB_MORE) {
+                    out.send(Packet.PKT_SERVER_ACK, this._getAck(lastSeq));
+                    out.send(Packet.PKT_SERVER_EOB_DONE, new byte[0]);
+                    lastSeq = -1;
+                } else
+                if (type == Packet.PKT_CLIENT_EOB_DONE) {
+                    out.send(Packet.PKT_SERVER_ACK, this._getAck(lastSeq));
+                    out.send(Packet.PKT_SERVER_EOT, new byte[0]);
+                    lastSeq = -1;
+                } else {
+                    this._received(pkt, 0, false);
+                    if (Packet.isEventType(type)) {
+                        blockEvents++;
+                    }
+                    if ((type == Packet.PKT_CLIENT_FIXED_FMT_STD) || (type == Packet.PKT_CLIENT_FIXED_FMT_HIGH)) {
+                        // the 1 byte sequence is the last field of the fixed format events
+                        lastSeq = (int)pkt[pkt.length - 1] & 0xFF;
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // session closed
+        } finally {
+            if (out != null) { out.finish(); }
+            try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+    * Responds to a client block during an upload
+    * @return The next upload phase, or -1 if the session is to be interrupted
+    */
+    private int _uploadBlock(Responder out, int phase, long clientOffset)
+    {
+        byte data[] = this.uploadData;
+        switch (phase) {
+            case 0: {
+                // FILE: the client responds with the offset at which to resume
+                byte name[] = this.uploadName.getBytes();
+                byte rcd[] = new byte[4 + name.length];
+                _writeRecordHeader(rcd, FileUpload.UPLOAD_TYPE_FILE, data.length);
+                System.arraycopy(name, 0, rcd, 4, name.length);
+                out.send(Packet.PKT_SERVER_FILE_UPLOAD, rcd);
+                out.send(Packet.PKT_SERVER_EOB_DONE, new byte[0]);
+                return 1;
+            }
+            case 1: {
+                // DATA from the client offset, then END
+                int resume = (int)clientOffset;
+                int limit  = data.length;
+                synchronized (this) {
+                    if (this.uploadInterrupt > 0) {
+                        limit = Math.min(resume + this.uploadInterrupt, data.length - 1);
+                        this.uploadInterrupt = 0; // only the first session
+                    }
+                }
+                int ofs = resume;
+                while (ofs < limit) {
+                    int len = Math.min(UPLOAD_DATA_SIZE, data.length - ofs);
+                    byte rcd[] = new byte[4 + len];
+                    _writeRecordHeader(rcd, FileUpload.UPLOAD_TYPE_DATA, ofs);
+                    System.arraycopy(data, ofs, rcd, 4, len);
+                    out.send(Packet.PKT_SERVER_FILE_UPLOAD, rcd);
+                    ofs += len;
+                }
+                synchronized (this.uploadResume) {
+                    this.uploadResume.addElement(new int[] { resume, ofs - resume });
+                    this.uploadResume.notifyAll();
+                }
+                if (ofs < data.length) {
+                    return -1; // interrupted
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                long c = crc.getValue();
+                byte rcd[] = new byte[8];
+                _writeRecordHeader(rcd, FileUpload.UPLOAD_TYPE_END, data.length);
+                rcd[4] = (byte)(c >> 24);
+                rcd[5] = (byte)(c >> 16);
+                rcd[6] = (byte)(c >>  8);
+                rcd[7] = (byte)c;
+                out.send(Packet.PKT_SERVER_FILE_UPLOAD, rcd);
+                out.send(Packet.PKT_SERVER_EOB_DONE, new byte[0]);
+                return 2;
+            }
+            default: {
+                // the client has reported the final status
+                synchronized (this.uploadResume) {
+                    this.uploadDone = true;
+                    this.uploadResume.notifyAll();
+                }
+                out.send(Packet.PKT_SERVER_EOT, new byte[0]);
+                return 2;
+            }
+        }
+    }
+
+    /**
+    * Writes the 1 byte type and 3 byte size/offset of an upload record
+    */
+    private static void _writeRecordHeader(byte rcd[], int type, int value)
+    {
+        rcd[0] = (byte)type;
+        rcd[1] = (byte)(value >> 16);
+        rcd[2] = (byte)(value >>  8);
+        rcd[3] = (byte)value;
+    }
+
+    /**
+    * Returns the upload status (size, offset, status) of a PROP_STATE_UPLOAD property
+    * value packet, or null if the packet is another property value
+    */
+    private static long[] _getUploadStatus(byte pkt[])
+    {
+        int p = Packet.MIN_HEADER_LENGTH;
+        if ((pkt.length < (p + 14)) || (_readInt(pkt, p, 2) != Props.PROP_STATE_UPLOAD)) {
+            return null;
+        }
+        return new long[] { _readInt(pkt, p + 2, 4), _readInt(pkt, p + 6, 4), _readInt(pkt, p + 10, 4) };
+    }
+
+    private static long _readInt(byte b[], int ofs, int len)
+    {
+        long v = 0L;
+        for (int i = 0; i < len; i++) {
+            v = (v << 8) | ((long)b[ofs + i] & 0xFFL);
+        }
+        return v;
+    }
+
+    /**
+    * Returns the payload of the block acknowledgement
+    */
+    private byte[] _getAck(int lastSeq)
+    {
+        if (this.ackSequence && (lastSeq >= 0)) {
+            return new byte[] { (byte)lastSeq };
+        } else {
+            return new byte[0]; // the whole block
+        }
+    }
+
+    private static boolean _readFully(InputStream in, byte b[], int ofs, int len)
+        throws IOException
+    {
+        while (len > 0) {
+            int n = in.read(b, ofs, len);
+            if (n < 0) {
+                return false;
+            }
+            ofs += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Writes the responses of a session, each after the round trip delay has passed since
+    * the request was received (responses to pipelined blocks overlap, as on a real link)
+    */
+    private static class Responder
+        extends Thread
+    {
+        private OutputStream    out     = null;
+        private long            rttMS   = 0L;
+        private Vector          due     = new Vector(); // long[] { dueMS }, byte[] pairs
+        private boolean         done    = false;
+        public Responder(OutputStream out, long rttMS)
+        {
+            super("StandIn_Responder");
+            this.out   = out;
+            this.rttMS = rttMS;
+            this.setDaemon(true);
+            this.start();
+        }
+        public synchronized void send(int type, byte payload[])
+        {
+            byte b[] = new byte[Packet.MIN_HEADER_LENGTH + payload.length];
+            b[0] = (byte)Packet.HEADER_BASIC;
+            b[1] = (byte)type;
+            b[2] = (byte)payload.length;
+            System.arraycopy(payload, 0, b, Packet.MIN_HEADER_LENGTH, payload.length);
+            this.due.addElement(new Long(System.currentTimeMillis() + this.rttMS));
+            this.due.addElement(b);
+            this.notifyAll();
+        }
+        public synchronized void finish()
+        {
+            this.done = true;
+            this.notifyAll();
+        }
+        public void run()
+        {
+            try {
+                while (true) {
+                    byte b[] = null;
+                    synchronized (this) {
+                        while (this.due.isEmpty() && !this.done) {
+                            this.wait();
+                        }
+                        if (this.due.isEmpty()) {
+                            break;
+                        }
+                        long wait = ((Long)this.due.elementAt(0)).longValue() - System.currentTimeMillis();
+                        if (wait > 0L) {
+                            this.wait(wait);
+                            continue;
+                        }
+                        b = (byte[])this.due.elementAt(1);
+                        this.due.removeElementAt(0);
+                        this.due.removeElementAt(0);
+                    }
+                    this.out.write(b);
+                    this.out.flush();
+                }
+            } catch (Exception e) {
+                // session closed
+            }
+        }
+    }
+
+}
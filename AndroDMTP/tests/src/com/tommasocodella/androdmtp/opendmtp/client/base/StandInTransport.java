@@ -0,0 +1,211 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Blocking java.net Transport for the protocol tests, connecting to a
+//  StandInServer: duplex sessions use TCP, and simplex packets are cached
+//  and sent as a single UDP datagram on close (as the device transport does).
+//  The time of the first packet written is recorded.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import com.tommasocodella.androdmtp.opendmtp.util.TimeoutException;
+
+public class StandInTransport
+    implements Transport
+{
+
+    // ------------------------------------------------------------------------
+
+    private StandInServer           server          = null;
+    private String                  host            = null;
+    private int                     port            = 0;
+    private int                     readTimeout     = 3000;
+    private int                     xportType       = Protocol.TRANSPORT_NONE;
+
+    private Socket                  socket          = null;
+    private ByteArrayOutputStream   datagram        = null;
+
+    private long                    firstWriteNanos = 0L;   // 0 if nothing has been written
+    private long                    writeCount      = 0L;
+
+    /**
+    * Creates a transport to the specified stand-in server
+    */
+    public StandInTransport(StandInServer server)
+    {
+        this.server = server;
+    }
+
+    // ------------------------------------------------------------------------
+
+    public boolean isOpen()
+    {
+        return (this.xportType != Protocol.TRANSPORT_NONE);
+    }
+
+    public void setServer(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void setReadTimeout(int timeoutMS)
+    {
+        this.readTimeout = timeoutMS;
+        if (this.socket != null) {
+            try { this.socket.setSoTimeout(timeoutMS); } catch (IOException ioe) {}
+        }
+    }
+
+    public boolean open(int xportType)
+    {
+        if (this.isOpen()) {
+            this.close(false);
+        }
+        if (xportType == Protocol.TRANSPORT_DUPLEX) {
+            String h = (this.host != null)? this.host : StandInServer.HOST;
+            int    p = (this.host != null)? this.port : this.server.getTcpPort();
+            try {
+                this.socket = new Socket(h, p);
+                this.socket.setTcpNoDelay(true);
+                this.socket.setSoTimeout(this.readTimeout);
+            } catch (IOException ioe) {
+                return false;
+            }
+        } else
+        if (xportType == Protocol.TRANSPORT_SIMPLEX) {
+            this.datagram = new ByteArrayOutputStream();
+        } else {
+            return false;
+        }
+        this.xportType = xportType;
+        return true;
+    }
+
+    public boolean close(boolean sendUDP)
+    {
+        boolean rtn = true;
+        if (sendUDP && (this.datagram != null) && (this.datagram.size() > 0)) {
+            DatagramSocket ds = null;
+            try {
+                byte b[] = this.datagram.toByteArray();
+                ds = new DatagramSocket();
+                ds.send(new DatagramPacket(b, b.length, InetAddress.getByName(StandInServer.HOST), this.server.getUdpPort()));
+            } catch (IOException ioe) {
+                rtn = false;
+            } finally {
+                if (ds != null) { ds.close(); }
+            }
+        }
+        this.datagram = null;
+        if (this.socket != null) {
+            try { this.socket.close(); } catch (IOException ioe) {}
+            this.socket = null;
+        }
+        this.xportType = Protocol.TRANSPORT_NONE;
+        return rtn;
+    }
+
+    public byte[] readPacket()
+        throws TimeoutException
+    {
+        if (this.socket == null) {
+            return null;
+        }
+        try {
+            InputStream in = this.socket.getInputStream();
+            byte hdr[] = new byte[Packet.MIN_HEADER_LENGTH];
+            if (!this._readFully(in, hdr)) {
+                return null;
+            }
+            byte pkt[] = new byte[Packet.MIN_HEADER_LENGTH + ((int)hdr[2] & 0xFF)];
+            System.arraycopy(hdr, 0, pkt, 0, hdr.length);
+            byte payload[] = new byte[pkt.length - hdr.length];
+            if (!this._readFully(in, payload)) {
+                return null;
+            }
+            System.arraycopy(payload, 0, pkt, hdr.length, payload.length);
+            return pkt;
+        } catch (SocketTimeoutException ste) {
+            throw new TimeoutException("Read timeout");
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    private boolean _readFully(InputStream in, byte b[])
+        throws IOException
+    {
+        for (int ofs = 0; ofs < b.length;) {
+            int n = in.read(b, ofs, b.length - ofs);
+            if (n < 0) {
+                return false;
+            }
+            ofs += n;
+        }
+        return true;
+    }
+
+    public int writePacket(byte b[])
+    {
+        synchronized (this) {
+            if (this.firstWriteNanos == 0L) { this.firstWriteNanos = System.nanoTime(); }
+            this.writeCount++;
+        }
+        if (this.datagram != null) {
+            this.datagram.write(b, 0, b.length);
+            return b.length;
+        } else
+        if (this.socket != null) {
+            try {
+                this.socket.getOutputStream().write(b);
+                return b.length;
+            } catch (IOException ioe) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    * Returns the time (System.nanoTime) of the first packet written, or 0 if none
+    */
+    public synchronized long getFirstWriteNanos()
+    {
+        return this.firstWriteNanos;
+    }
+
+    public synchronized long getWriteCount()
+    {
+        return this.writeCount;
+    }
+
+}
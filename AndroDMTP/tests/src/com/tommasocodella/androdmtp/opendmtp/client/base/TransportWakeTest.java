@@ -0,0 +1,125 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2008, Martin D. Flynn
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Event-to-wire latency of the transport wake-up.  An event is queued to an
+//  idle client (its Protocol thread waiting for a transport request), and the
+//  time until the first packet is written to the stub transport is measured,
+//  without any call to 'Protocol.transport()' (which the application loop
+//  only makes every 2 seconds).  A burst of events must be sent in a single
+//  session.
+// ----------------------------------------------------------------------------
+package com.tommasocodella.androdmtp.opendmtp.client.base;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TransportWakeTest
+    extends TestCase
+{
+
+    // ------------------------------------------------------------------------
+
+    private static final int    TRIALS          = 5;
+    private static final int    BURST_EVENTS    = 200;
+    private static final long   IDLE_MS         = 200L;     // the client is idle before the event is queued
+    private static final long   MAX_LATENCY_MS  = 500L;     // (the application loop delay is 2000 ms)
+    private static final long   TIMEOUT_MS      = 10000L;
+
+    /**
+    * Queues an event to an idle client, and returns the time (in nanoseconds) until the
+    * first packet is written
+    */
+    private static long _measureLatency(int priority)
+        throws Exception
+    {
+        StandInServer server = new StandInServer(0L);
+        StandInClient client = new StandInClient("wake", server, false);
+        try {
+            client.start();
+            Thread.sleep(IDLE_MS);
+            StandInTransport xport = client.getDuplexTransport();
+            assertEquals("written while idle", 0L, xport.getFirstWriteNanos());
+            long startNanos = System.nanoTime();
+            client.getEventQueue().addEvent(priority, StandInClient.createEvent(1, 39.0, -142.0));
+            long until = System.currentTimeMillis() + TIMEOUT_MS;
+            while ((xport.getFirstWriteNanos() == 0L) && (System.currentTimeMillis() < until)) {
+                Thread.yield();
+            }
+            assertTrue("not written", xport.getFirstWriteNanos() != 0L);
+            assertTrue("not received", server.waitForEvents(1, TIMEOUT_MS));
+            return xport.getFirstWriteNanos() - startNanos;
+        } finally {
+            client.stop();
+            server.close();
+        }
+    }
+
+    private static void _checkLatency(String name, int priority)
+        throws Exception
+    {
+        long latency[] = new long[TRIALS];
+        for (int i = 0; i < TRIALS; i++) {
+            latency[i] = _measureLatency(priority);
+        }
+        Arrays.sort(latency);
+        long maxMS = latency[TRIALS - 1] / 1000000L;
+        System.out.println(name + " event to first write: median " + (latency[TRIALS / 2] / 1000L) + " us, max " +
+            (latency[TRIALS - 1] / 1000L) + " us (" + TRIALS + " trials)");
+        assertTrue(name + " latency " + maxMS + " ms", maxMS < MAX_LATENCY_MS);
+    }
+
+    // ------------------------------------------------------------------------
+
+    public void testHighPriorityLatency()
+        throws Exception
+    {
+        _checkLatency("High priority", Packet.PRIORITY_HIGH);
+    }
+
+    public void testNormalPriorityLatency()
+        throws Exception
+    {
+        _checkLatency("Normal priority", Packet.PRIORITY_NORMAL);
+    }
+
+    public void testBurstSingleSession()
+        throws Exception
+    {
+        StandInServer server = new StandInServer(0L);
+        StandInClient client = new StandInClient("burst", server, false);
+        try {
+            client.start();
+            Thread.sleep(IDLE_MS);
+            long startNanos = System.nanoTime();
+            PacketQueue q = client.getEventQueue();
+            for (int i = 0; i < BURST_EVENTS; i++) {
+                q.addEvent(Packet.PRIORITY_NORMAL, StandInClient.createEvent(i, 39.0 + (i * 0.0001), -142.0));
+            }
+            assertTrue("timeout", server.waitForEvents(BURST_EVENTS, TIMEOUT_MS));
+            long wallMS = (System.nanoTime() - startNanos) / 1000000L;
+            assertEquals("sessions", 1, server.getSessionCount());
+            System.out.println("Burst: " + BURST_EVENTS + " events in " + wallMS + " ms, " + server.getSessionCount() + " session");
+        } finally {
+            client.stop();
+            server.close();
+        }
+    }
+
+}